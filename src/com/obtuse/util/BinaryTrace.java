@@ -0,0 +1,562 @@
+package com.obtuse.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * A compact binary form of the trace reports produced by {@link Trace} (see {@link Trace#setBinaryFormat}).
+ * <p/>
+ * A binary trace file is a gzip stream containing a header followed by a sequence of records.  Each record starts
+ * with a tag byte.  Strings that tend to repeat (thread names, thread states, stack frames, event descriptions and
+ * exception stack lines) are defined once by a {@link #STRING} record and referred to by number after that.  Numbers
+ * are written as unsigned LEB128 varints (zigzag encoded if they can be negative).  Every other string is written as a
+ * varint length followed by that many bytes of UTF-8.
+ * <p/>
+ * <blockquote>
+ * <pre>
+ * header:   int magic ("OTRC"), varint version, string time zone id
+ * STRING:   string            (defines string number 1, 2, 3, ... in order;  0 means null)
+ * LINE:     string            (a line of text)
+ * THREAD:   varint thread id, ref name, ref state, ref lock name,
+ *           [zigzag lock owner id, ref lock owner name  (only if the lock name isn't null)],
+ *           varint frame count, ref frame ...
+ * EVENT:    zigzag milliseconds since the previous event, varint thread id, ref description,
+ *           varint exception line count, ref exception line ...
+ * END
+ * </pre>
+ * </blockquote>
+ * <p/>
+ * {@link #render} turns a binary trace back into exactly the lines of text that {@link Trace#getTrace} would have
+ * produced.  The {@link #main} method does that from the command line:
+ * <p/>
+ * Usage:  <tt>BinaryTrace <i>file</i> ...</tt>
+ */
+
+public class BinaryTrace {
+
+    public static final String FILE_SUFFIX = ".btrace.gz";
+
+    private static final int MAGIC = 0x4F545243;    // "OTRC"
+
+    private static final int VERSION = 1;
+
+    private static final int END = 0;
+
+    private static final int STRING = 1;
+
+    private static final int LINE = 2;
+
+    private static final int THREAD = 3;
+
+    private static final int EVENT = 4;
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private BinaryTrace() {
+        super();
+
+    }
+
+    /**
+     * Writes a trace report in binary form.
+     */
+
+    static class Writer implements Trace.TraceSink, Closeable {
+
+        private final DataOutputStream _out;
+
+        private final Map<Object,Integer> _strings = new HashMap<Object,Integer>();
+
+        private long _previousTimestamp = 0L;
+
+        private IOException _failure = null;
+
+        /**
+         * Start writing a binary trace.
+         *
+         * @param out where it goes (compressed on the way).
+         * @throws IOException if something goes wrong writing the header.
+         */
+
+        Writer( OutputStream out )
+                throws IOException {
+            super();
+
+            _out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new GZIPOutputStream( out, BinaryTrace.BUFFER_SIZE ), BinaryTrace.BUFFER_SIZE
+                    )
+            );
+            _out.writeInt( BinaryTrace.MAGIC );
+            writeVarLong( (long)BinaryTrace.VERSION );
+            writeString( TimeZone.getDefault().getID() );
+
+        }
+
+        public void line( String line ) {
+
+            try {
+
+                _out.writeByte( BinaryTrace.LINE );
+                writeString( line );
+
+            } catch ( IOException e ) {
+
+                noteFailure( e );
+
+            }
+
+        }
+
+        public void thread( ThreadInfo info ) {
+
+            try {
+
+                // Define the strings first since the reader has to see a definition before the reference.
+
+                int nameRef = intern( info.getThreadName() );
+                int stateRef = intern( info.getThreadState().toString() );
+                String lockName = info.getLockName();
+                int lockRef = intern( lockName );
+                int ownerNameRef = lockName == null ? 0 : intern( info.getLockOwnerName() );
+                StackTraceElement[] stack = info.getStackTrace();
+                int[] frameRefs = new int[stack.length];
+                for ( int i = 0; i < stack.length; i += 1 ) {
+
+                    frameRefs[i] = internFrame( stack[i] );
+
+                }
+
+                _out.writeByte( BinaryTrace.THREAD );
+                writeVarLong( info.getThreadId() );
+                writeVarLong( (long)nameRef );
+                writeVarLong( (long)stateRef );
+                writeVarLong( (long)lockRef );
+                if ( lockName != null ) {
+
+                    writeVarLong( BinaryTrace.zigzag( info.getLockOwnerId() ) );
+                    writeVarLong( (long)ownerNameRef );
+
+                }
+
+                writeVarLong( (long)frameRefs.length );
+                for ( int frameRef : frameRefs ) {
+
+                    writeVarLong( (long)frameRef );
+
+                }
+
+            } catch ( IOException e ) {
+
+                noteFailure( e );
+
+            }
+
+        }
+
+        public void event( long timestamp, long tid, String event, @Nullable Throwable exception ) {
+
+            try {
+
+                int eventRef = intern( event );
+                int[] lineRefs;
+                if ( exception == null ) {
+
+                    lineRefs = new int[0];
+
+                } else {
+
+                    List<String> lines = new ArrayList<String>();
+                    Trace.captureStackTrace( false, "", exception, lines );
+                    lineRefs = new int[lines.size()];
+                    for ( int i = 0; i < lineRefs.length; i += 1 ) {
+
+                        lineRefs[i] = intern( lines.get( i ) );
+
+                    }
+
+                }
+
+                _out.writeByte( BinaryTrace.EVENT );
+                writeVarLong( BinaryTrace.zigzag( timestamp - _previousTimestamp ) );
+                writeVarLong( tid );
+                writeVarLong( (long)eventRef );
+                writeVarLong( (long)lineRefs.length );
+                for ( int lineRef : lineRefs ) {
+
+                    writeVarLong( (long)lineRef );
+
+                }
+
+                _previousTimestamp = timestamp;
+
+            } catch ( IOException e ) {
+
+                noteFailure( e );
+
+            }
+
+        }
+
+        /**
+         * Finish the trace.
+         *
+         * @throws IOException if anything went wrong at any point while writing the trace.
+         */
+
+        public void close()
+                throws IOException {
+
+            try {
+
+                _out.writeByte( BinaryTrace.END );
+
+            } catch ( IOException e ) {
+
+                noteFailure( e );
+
+            }
+
+            try {
+
+                _out.close();
+
+            } catch ( IOException e ) {
+
+                noteFailure( e );
+
+            }
+
+            if ( _failure != null ) {
+
+                throw _failure;
+
+            }
+
+        }
+
+        private void noteFailure( IOException e ) {
+
+            if ( _failure == null ) {
+
+                _failure = e;
+
+            }
+
+        }
+
+        private int intern( String string )
+                throws IOException {
+
+            return string == null ? 0 : intern( string, string );
+
+        }
+
+        private int internFrame( StackTraceElement frame )
+                throws IOException {
+
+            // Key on the frame itself so that a frame we've seen before costs a hash lookup rather than a string.
+
+            Integer ref = _strings.get( frame );
+
+            return ref == null ? intern( frame, Trace.formatFrame( frame ) ) : ref.intValue();
+
+        }
+
+        private int intern( Object key, String string )
+                throws IOException {
+
+            Integer ref = _strings.get( key );
+            if ( ref == null ) {
+
+                ref = _strings.size() + 1;
+                _strings.put( key, ref );
+                _out.writeByte( BinaryTrace.STRING );
+                writeString( string );
+
+            }
+
+            return ref.intValue();
+
+        }
+
+        private void writeString( String string )
+                throws IOException {
+
+            byte[] bytes = string.getBytes( BinaryTrace.UTF_8 );
+            writeVarLong( (long)bytes.length );
+            _out.write( bytes );
+
+        }
+
+        private void writeVarLong( long value )
+                throws IOException {
+
+            long v = value;
+            //noinspection MagicNumber
+            while ( ( v & ~0x7FL ) != 0L ) {
+
+                //noinspection MagicNumber
+                _out.writeByte( (int)( ( v & 0x7FL ) | 0x80L ) );
+                v >>>= 7;
+
+            }
+
+            _out.writeByte( (int)v );
+
+        }
+
+    }
+
+    private static long zigzag( long value ) {
+
+        //noinspection MagicNumber
+        return ( value << 1 ) ^ ( value >> 63 );
+
+    }
+
+    private static long unzigzag( long value ) {
+
+        return ( value >>> 1 ) ^ -( value & 1L );
+
+    }
+
+    /**
+     * Reads a binary trace.
+     */
+
+    private static class Reader {
+
+        private final DataInputStream _in;
+
+        private final List<String> _strings = new ArrayList<String>();
+
+        private Reader( InputStream in ) {
+            super();
+
+            _in = new DataInputStream( new BufferedInputStream( in, BinaryTrace.BUFFER_SIZE ) );
+            _strings.add( null );
+
+        }
+
+        private long readVarLong()
+                throws IOException {
+
+            long value = 0L;
+            //noinspection MagicNumber
+            for ( int shift = 0; shift < 64; shift += 7 ) {
+
+                int b = _in.readUnsignedByte();
+                //noinspection MagicNumber
+                value |= (long)( b & 0x7F ) << shift;
+                //noinspection MagicNumber
+                if ( ( b & 0x80 ) == 0 ) {
+
+                    return value;
+
+                }
+
+            }
+
+            throw new IOException( "malformed varint" );
+
+        }
+
+        private int readCount()
+                throws IOException {
+
+            long count = readVarLong();
+            if ( count < 0L || count > (long)Integer.MAX_VALUE ) {
+
+                throw new IOException( "impossible count (" + count + ")" );
+
+            }
+
+            return (int)count;
+
+        }
+
+        private String readString()
+                throws IOException {
+
+            byte[] bytes = new byte[readCount()];
+            _in.readFully( bytes );
+
+            return new String( bytes, BinaryTrace.UTF_8 );
+
+        }
+
+        private String readRef()
+                throws IOException {
+
+            long ref = readVarLong();
+            if ( ref < 0L || ref >= (long)_strings.size() ) {
+
+                throw new IOException( "reference to undefined string " + ref );
+
+            }
+
+            return _strings.get( (int)ref );
+
+        }
+
+    }
+
+    /**
+     * Render a binary trace as text.
+     *
+     * @param in      the binary trace (still compressed).
+     * @param results where the lines of text go (exactly as {@link Trace#getTrace} would have produced them).
+     * @throws IOException if the trace can't be read or is malformed.
+     */
+
+    public static void render( InputStream in, List<String> results )
+            throws IOException {
+
+        Reader reader = new Reader( new GZIPInputStream( in, BinaryTrace.BUFFER_SIZE ) );
+        if ( reader._in.readInt() != BinaryTrace.MAGIC ) {
+
+            throw new IOException( "not a binary trace" );
+
+        }
+
+        long version = reader.readVarLong();
+        if ( version != (long)BinaryTrace.VERSION ) {
+
+            throw new IOException( "unsupported binary trace version " + version );
+
+        }
+
+        DateFormat dateFormat = new SimpleDateFormat( ( (SimpleDateFormat)Trace.OUR_DATE_FORMAT ).toPattern() );
+        dateFormat.setTimeZone( TimeZone.getTimeZone( reader.readString() ) );
+
+        long timestamp = 0L;
+        while ( true ) {
+
+            int tag = reader._in.readUnsignedByte();
+            switch ( tag ) {
+
+                case BinaryTrace.END:
+                    return;
+
+                case BinaryTrace.STRING:
+                    reader._strings.add( reader.readString() );
+                    break;
+
+                case BinaryTrace.LINE:
+                    results.add( reader.readString() );
+                    break;
+
+                case BinaryTrace.THREAD:
+                    long tid = reader.readVarLong();
+                    String name = reader.readRef();
+                    String state = reader.readRef();
+                    results.add( "{" + tid + "}:" + name + " (state = " + state + ")" );
+                    String lock = reader.readRef();
+                    if ( lock != null ) {
+
+                        long lockOwnerId = BinaryTrace.unzigzag( reader.readVarLong() );
+                        String lockOwnerName = reader.readRef();
+                        results.add(
+                                "    thread is waiting for \"" + lock + "\" which is currently held by {" +
+                                lockOwnerId + "}:" + lockOwnerName
+                        );
+
+                    }
+
+                    for ( int frames = reader.readCount(); frames > 0; frames -= 1 ) {
+
+                        results.add( "    at " + reader.readRef() );
+
+                    }
+
+                    results.add( "" );
+                    break;
+
+                case BinaryTrace.EVENT:
+                    timestamp += BinaryTrace.unzigzag( reader.readVarLong() );
+                    String pfx = dateFormat.format( new Date( timestamp ) ) + " {" + reader.readVarLong() + "}:  ";
+                    results.add( pfx + reader.readRef() );
+                    for ( int lines = reader.readCount(); lines > 0; lines -= 1 ) {
+
+                        results.add( pfx + reader.readRef() );
+
+                    }
+
+                    break;
+
+                default:
+                    throw new IOException( "unknown record type " + tag );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Print binary trace files as text.
+     *
+     * @param args the names of the files.
+     */
+
+    public static void main( String[] args ) {
+
+        if ( args.length == 0 ) {
+
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println( "usage:  BinaryTrace file ..." );
+            System.exit( 2 );
+
+        }
+
+        for ( String fileName : args ) {
+
+            List<String> results = new ArrayList<String>();
+            try {
+
+                InputStream in = new FileInputStream( fileName );
+                try {
+
+                    BinaryTrace.render( in, results );
+
+                } finally {
+
+                    ObtuseUtil.closeQuietly( in );
+
+                }
+
+            } catch ( IOException e ) {
+
+                //noinspection UseOfSystemOutOrSystemErr
+                System.err.println( fileName + ":  " + e.getMessage() );
+                System.exit( 1 );
+
+            }
+
+            for ( String line : results ) {
+
+                //noinspection UseOfSystemOutOrSystemErr
+                System.out.println( line );
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.obtuse.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare writing trace reports as gzipped text with writing them as binary traces (see {@link BinaryTrace}) in a
+ * process with lots of threads, and make sure that a binary trace renders back into exactly the same text.
+ * <p/>
+ * Usage:  <tt>BinaryTraceBenchmark [threads [rounds]]</tt>
+ */
+
+public class BinaryTraceBenchmark {
+
+    private static final int STACK_DEPTH = 20;
+
+    private BinaryTraceBenchmark() {
+        super();
+
+    }
+
+    /**
+     * Sends everything to two sinks.
+     */
+
+    private static class TeeSink implements Trace.TraceSink {
+
+        private final Trace.TraceSink _first;
+
+        private final Trace.TraceSink _second;
+
+        private TeeSink( Trace.TraceSink first, Trace.TraceSink second ) {
+            super();
+
+            _first = first;
+            _second = second;
+
+        }
+
+        public void line( String line ) {
+
+            _first.line( line );
+            _second.line( line );
+
+        }
+
+        public void thread( ThreadInfo info ) {
+
+            _first.thread( info );
+            _second.thread( info );
+
+        }
+
+        public void event( long timestamp, long tid, String event, @Nullable Throwable exception ) {
+
+            _first.event( timestamp, tid, event, exception );
+            _second.event( timestamp, tid, event, exception );
+
+        }
+
+    }
+
+    /**
+     * Park a thread a little way down the stack so that the trace has something to show.
+     */
+
+    private static void descend( int depth, CountDownLatch started, CountDownLatch done )
+            throws InterruptedException {
+
+        if ( depth == 0 ) {
+
+            started.countDown();
+            done.await();
+
+        } else {
+
+            BinaryTraceBenchmark.descend( depth - 1, started, done );
+
+        }
+
+    }
+
+    private static long writeText( ByteArrayOutputStream bytes )
+            throws IOException {
+
+        List<String> results = Trace.getTrace( "benchmark", "nowhere" );
+        PrintWriter writer = new PrintWriter( new GZIPOutputStream( bytes ) );
+        for ( String s : results ) {
+
+            writer.println( s );
+
+        }
+
+        writer.close();
+
+        return (long)bytes.size();
+
+    }
+
+    private static long writeBinary( ByteArrayOutputStream bytes )
+            throws IOException {
+
+        BinaryTrace.Writer writer = new BinaryTrace.Writer( bytes );
+        Trace.collectTrace( "benchmark", "nowhere", writer );
+        writer.close();
+
+        return (long)bytes.size();
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "BinaryTraceBenchmark", null );
+
+        int threadCount = args.length > 0 ? Integer.parseInt( args[0] ) : 500;
+        int rounds = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+
+        final CountDownLatch started = new CountDownLatch( threadCount );
+        final CountDownLatch done = new CountDownLatch( 1 );
+        for ( int t = 0; t < threadCount; t += 1 ) {
+
+            Thread thread = new Thread( "parked " + t ) {
+
+                public void run() {
+
+                    Trace.event( "parking " + getName() );
+                    try {
+
+                        BinaryTraceBenchmark.descend( BinaryTraceBenchmark.STACK_DEPTH, started, done );
+
+                    } catch ( InterruptedException e ) {
+
+                        Trace.event( "interrupted", e );
+
+                    }
+
+                }
+
+            };
+            thread.setDaemon( true );
+            thread.start();
+
+        }
+
+        try {
+
+            started.await();
+
+            for ( int i = 0; i < 1000; i += 1 ) {
+
+                Trace.event( "event " + i, i % 100 == 0 ? new IllegalStateException( "example " + i ) : null );
+
+            }
+
+            // Collect one report into both forms at once and make sure that they match.
+
+            List<String> text = new ArrayList<String>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BinaryTrace.Writer binary = new BinaryTrace.Writer( bytes );
+            Trace.collectTrace( "check", "nowhere", new TeeSink( new Trace.TextTraceSink( text ), binary ) );
+            binary.close();
+
+            List<String> rendered = new ArrayList<String>();
+            BinaryTrace.render( new ByteArrayInputStream( bytes.toByteArray() ), rendered );
+            if ( !text.equals( rendered ) ) {
+
+                for ( int i = 0; i < Math.min( text.size(), rendered.size() ); i += 1 ) {
+
+                    if ( !text.get( i ).equals( rendered.get( i ) ) ) {
+
+                        Logger.logErr( "line " + i + " differs:  \"" + text.get( i ) + "\" vs \"" + rendered.get( i ) + "\"" );
+                        break;
+
+                    }
+
+                }
+
+                Logger.logErr( "rendered binary trace does not match (" + text.size() + " vs " + rendered.size() + " lines)" );
+                System.exit( 1 );
+
+            }
+
+            Logger.logMsg( "binary trace renders back to the same " + text.size() + " lines" );
+
+            long textSize = 0L;
+            long binarySize = 0L;
+            for ( int round = 0; round < rounds; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                Measure m = new Measure( "gzipped text" );
+                textSize = BinaryTraceBenchmark.writeText( new ByteArrayOutputStream() );
+                m.done();
+
+                m = new Measure( "binary" );
+                binarySize = BinaryTraceBenchmark.writeBinary( new ByteArrayOutputStream() );
+                m.done();
+
+            }
+
+            Logger.logMsg( "gzipped text is " + textSize + " bytes, binary is " + binarySize + " bytes" );
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "I/O error", e );
+            System.exit( 1 );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        } finally {
+
+            done.countDown();
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -14,6 +14,11 @@ import java.util.Vector;
  * A comma-separated-value style record parser which provides just enough functionality to serve
  * our needs.
  * <p/>
+ * Input is pulled from the underlying reader in large blocks.  Callers can either walk through a record a character
+ * or a field at a time (see {@link #getField}, {@link #getString} and friends) or hand entire records to a
+ * {@link RecordHandler} via {@link #parseRecords}.  The latter never builds a {@link String} unless the handler asks
+ * for one.
+ * <p/>
  * Copyright © 2006 Invidi Technologies Corporation
  * Copyright © 2012 Daniel Boulet
  */
@@ -21,6 +26,107 @@ import java.util.Vector;
 @SuppressWarnings({ "ClassWithoutToString", "NestedAssignment", "StandardVariableNames" })
 public class CSVParser implements Closeable {
 
+    /**
+     * Something which wants to be handed parsed records one at a time.
+     * See {@link CSVParser#parseRecords} for more information.
+     */
+
+    public interface RecordHandler {
+
+        /**
+         * Process the next record.
+         * <p/>
+         * The fields are views into the parser's internal buffer.  They are only valid until this method returns and
+         * must be turned into {@link String}s (via {@link Object#toString}) if their contents need to be kept.
+         *
+         * @param recordNumber the record's position within this call to {@link CSVParser#parseRecords} (the first
+         *                     record is record 1).
+         * @param fields       the record's fields (only the first <tt>fieldCount</tt> elements are meaningful).
+         * @param fieldCount   how many fields the record actually has.
+         * @return true if parsing should continue; false if {@link CSVParser#parseRecords} should return right away.
+         * @throws SyntaxErrorException if the handler decides that the record is unacceptable.
+         */
+
+        boolean handleRecord( int recordNumber, Field[] fields, int fieldCount )
+                throws SyntaxErrorException;
+
+    }
+
+    /**
+     * A field within the record currently being handed to a {@link RecordHandler}.
+     * <p/>
+     * Instances are recycled from one record to the next.  Use {@link #toString} to get a copy which can be kept.
+     */
+
+    public static class Field implements CharSequence {
+
+        private char[] _chars;
+        private int _offset;
+        private int _length;
+
+        private Field() {
+            super();
+
+        }
+
+        private void set( char[] chars, int offset, int length ) {
+
+            _chars = chars;
+            _offset = offset;
+            _length = length;
+
+        }
+
+        public int length() {
+
+            return _length;
+
+        }
+
+        public char charAt( int index ) {
+
+            if ( index < 0 || index >= _length ) {
+
+                throw new IndexOutOfBoundsException( "index " + index + " is not within [0," + _length + ")" );
+
+            }
+
+            return _chars[_offset + index];
+
+        }
+
+        public CharSequence subSequence( int start, int end ) {
+
+            if ( start < 0 || end > _length || start > end ) {
+
+                throw new IndexOutOfBoundsException( "[" + start + "," + end + ") is not within [0," + _length + ")" );
+
+            }
+
+            return new String( _chars, _offset + start, end - start );
+
+        }
+
+        public boolean isEmpty() {
+
+            return _length == 0;
+
+        }
+
+        public String toString() {
+
+            return new String( _chars, _offset, _length );
+
+        }
+
+    }
+
+    /**
+     * How many characters we ask for each time we go back to the underlying reader (unless the caller says otherwise).
+     */
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
     private BufferedReader _input;
     private int _lnum;
     private int _pushbackChar;
@@ -28,6 +134,22 @@ public class CSVParser implements Closeable {
     private boolean _atEOF = false;
     private static final DateFormat DATE_FORMAT = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
 
+    // The block of characters most recently read from _input.
+    // Everything from _recordStart up to _limit is kept when the block is refilled
+    // (the block is grown if a single record does not fit in it).
+
+    private char[] _buf;
+    private int _pos = 0;
+    private int _limit = 0;
+    private int _recordStart = 0;
+
+    // Where the fields of the record currently being scanned live (relative to _recordStart).
+
+    private int[] _fieldStarts = new int[16];
+    private int[] _fieldEnds = new int[16];
+    private int _nFields = 0;
+    private Field[] _fieldViews = new Field[0];
+
     /**
      * Create a new comma-separated-value parser.
      *
@@ -35,10 +157,30 @@ public class CSVParser implements Closeable {
      */
 
     public CSVParser( BufferedReader input ) {
+        this( input, CSVParser.DEFAULT_BLOCK_SIZE );
+
+    }
+
+    /**
+     * Create a new comma-separated-value parser which reads its input in blocks of a specified size.
+     *
+     * @param input     the input stream which is to be parsed.
+     * @param blockSize how many characters to read from the input stream at a time.
+     * @throws IllegalArgumentException if <tt>blockSize</tt> is not positive.
+     */
+
+    public CSVParser( BufferedReader input, int blockSize ) {
         super();
 
+        if ( blockSize <= 0 ) {
+
+            throw new IllegalArgumentException( "block size must be positive (" + blockSize + " is not)" );
+
+        }
+
         _input = input;
         _lnum = 1;
+        _buf = new char[blockSize];
 
     }
 
@@ -101,21 +243,125 @@ public class CSVParser implements Closeable {
 
         }
 
-        try {
+        if ( _pos == _limit ) {
 
-            int ch = _input.read();
-            if ( ch == -1 ) {
+            _recordStart = _pos;
+            if ( !fillBuffer() ) {
 
                 _atEOF = true;
+                return -1;
+
+            }
+
+        }
+
+        return (int)_buf[_pos++];
+
+    }
+
+    /**
+     * Refill our block of characters from the input stream.
+     * <p/>
+     * Everything from the start of the record currently being scanned onwards is preserved (it gets moved to the
+     * start of the block).  The block is doubled in size if the current record already fills it.
+     *
+     * @return true if at least one more character is available; false if the end of the input stream has been reached.
+     */
+
+    private boolean fillBuffer() {
+
+        int kept = _limit - _recordStart;
+        if ( kept == _buf.length ) {
+
+            char[] bigger = new char[_buf.length * 2];
+            System.arraycopy( _buf, _recordStart, bigger, 0, kept );
+            _buf = bigger;
+
+        } else if ( _recordStart > 0 ) {
+
+            System.arraycopy( _buf, _recordStart, _buf, 0, kept );
+
+        }
+
+        _pos -= _recordStart;
+        _limit = kept;
+        _recordStart = 0;
+
+        try {
+
+            int count;
+            do {
+
+                count = _input.read( _buf, _limit, _buf.length - _limit );
+
+            } while ( count == 0 );
+
+            if ( count < 0 ) {
+
+                return false;
 
             }
 
-            return ch;
+            _limit += count;
+            return true;
 
         } catch ( IOException e ) {
 
             // Pretend that nothing of substance happened (which is, pretty much, true)
-            return -1;
+            return false;
+
+        }
+
+    }
+
+    /**
+     * Put a pushed back character (if there is one) back where {@link #readRecord} will find it.
+     */
+
+    private void absorbPushback() {
+
+        if ( !_pushedBack ) {
+
+            return;
+
+        }
+
+        _pushedBack = false;
+        if ( _pushbackChar == -1 ) {
+
+            // The end of the input stream will still be there when we look for it.
+
+            return;
+
+        }
+
+        char ch = (char)_pushbackChar;
+        if ( _pos > 0 && _buf[_pos - 1] == ch ) {
+
+            _pos -= 1;
+
+        } else {
+
+            // Someone pushed back a character that we never gave them.
+
+            if ( _pos == 0 ) {
+
+                if ( _limit == _buf.length ) {
+
+                    char[] bigger = new char[_buf.length * 2];
+                    System.arraycopy( _buf, 0, bigger, 0, _limit );
+                    _buf = bigger;
+
+                }
+
+                System.arraycopy( _buf, 0, _buf, 1, _limit );
+                _limit += 1;
+                _pos = 1;
+
+            }
+
+            _pos -= 1;
+            _buf[_pos] = ch;
 
         }
 
@@ -160,6 +406,323 @@ public class CSVParser implements Closeable {
 
     }
 
+    /**
+     * Parse records until the end of the input stream is reached or the handler asks us to stop.
+     * <p/>
+     * The record syntax is the one that {@link GenericCsvParser} has always accepted:
+     * <ul>
+     * <li>fields are separated by commas and records are terminated by newlines.</li>
+     * <li>a field which starts with a double quote extends to the next double quote and may contain the
+     * escape sequences described in {@link #getString}.</li>
+     * <li>carriage returns are dropped from unquoted fields and terminate a record if they follow a quoted field.</li>
+     * <li>a comma immediately followed by the end of the record does not introduce an empty trailing field.</li>
+     * </ul>
+     * Scanning is done directly within the parser's block of input characters.  Fields are handed to the handler as
+     * recycled {@link Field} views so a record costs no allocations unless the handler creates some.
+     *
+     * @param handler who gets the records.
+     * @return how many records were handed to the handler.
+     * @throws SyntaxErrorException if a record is malformed or the handler throws one.
+     */
+
+    public int parseRecords( RecordHandler handler )
+            throws SyntaxErrorException {
+
+        int recordNumber = 0;
+        while ( true ) {
+
+            int fieldCount = readRecord();
+            if ( fieldCount < 0 ) {
+
+                return recordNumber;
+
+            }
+
+            recordNumber += 1;
+            if ( !handler.handleRecord( recordNumber, getFieldViews( fieldCount ), fieldCount ) ) {
+
+                return recordNumber;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Scan the next record within our block of input characters.
+     * The record's fields are left in place (escape sequences are decoded in place) and can be retrieved via
+     * {@link #getFieldViews}.
+     *
+     * @return the number of fields in the record or -1 if we were already at the end of the input stream.
+     * @throws SyntaxErrorException if the record is malformed.
+     */
+
+    protected int readRecord()
+            throws SyntaxErrorException {
+
+        absorbPushback();
+
+        _nFields = 0;
+        _recordStart = _pos;
+        if ( _pos == _limit && !fillBuffer() ) {
+
+            _atEOF = true;
+            return -1;
+
+        }
+
+        while ( true ) {
+
+            if ( _pos == _limit && !fillBuffer() ) {
+
+                _atEOF = true;
+                return _nFields;
+
+            }
+
+            char ch = _buf[_pos];
+            if ( ch == '\n' ) {
+
+                _pos += 1;
+                _lnum += 1;
+                return _nFields;
+
+            }
+
+            if ( ch == '"' ) {
+
+                _pos += 1;
+                scanQuotedField();
+
+            } else {
+
+                scanUnquotedField();
+
+            }
+
+            if ( _pos == _limit && !fillBuffer() ) {
+
+                _atEOF = true;
+                return _nFields;
+
+            }
+
+            ch = _buf[_pos++];
+            if ( ch == '\n' ) {
+
+                _lnum += 1;
+                return _nFields;
+
+            } else if ( ch == '\r' ) {
+
+                return _nFields;
+
+            } else if ( ch != ',' ) {
+
+                throw new SyntaxErrorException( "field not terminated by a comma on line " + _lnum );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Scan an unquoted field which extends up to the next comma, newline or the end of the input stream.
+     * Any carriage returns within the field are squeezed out.
+     */
+
+    private void scanUnquotedField() {
+
+        int start = _pos - _recordStart;
+        int w = -1;     // where the next character goes once a carriage return has been squeezed out
+
+        while ( true ) {
+
+            // Scan with local copies of the block's state (refills are rare).
+
+            char[] buf = _buf;
+            int pos = _pos;
+            int limit = _limit;
+            while ( pos < limit ) {
+
+                char ch = buf[pos];
+                if ( ch == ',' || ch == '\n' ) {
+
+                    break;
+
+                }
+
+                pos += 1;
+                if ( ch == '\r' ) {
+
+                    if ( w < 0 ) {
+
+                        w = pos - 1 - _recordStart;
+
+                    }
+
+                } else if ( w >= 0 ) {
+
+                    buf[_recordStart + w] = ch;
+                    w += 1;
+
+                }
+
+            }
+
+            _pos = pos;
+            if ( pos < limit || !fillBuffer() ) {
+
+                break;
+
+            }
+
+        }
+
+        addField( start, w < 0 ? _pos - _recordStart : w );
+
+    }
+
+    /**
+     * Scan a quoted field (the opening quote has already been consumed).
+     *
+     * @throws SyntaxErrorException if the closing quote is missing or an invalid escape sequence is encountered.
+     */
+
+    private void scanQuotedField()
+            throws SyntaxErrorException {
+
+        int start = _pos - _recordStart;
+        int w = start;      // decoding in place works because escape sequences never get longer when decoded
+
+        while ( true ) {
+
+            if ( _pos == _limit && !fillBuffer() ) {
+
+                throw new SyntaxErrorException( "missing closing string delimiter" );
+
+            }
+
+            char ch = _buf[_pos++];
+            if ( ch == '"' ) {
+
+                break;
+
+            } else if ( ch == '\n' ) {
+
+                throw new SyntaxErrorException( "missing closing string delimiter" );
+
+            } else if ( ch == '\\' ) {
+
+                if ( _pos == _limit && !fillBuffer() ) {
+
+                    throw new SyntaxErrorException( "illegal char after backslash" );
+
+                }
+
+                ch = CSVParser.unescape( _buf[_pos++] );
+
+            }
+
+            _buf[_recordStart + w] = ch;
+            w += 1;
+
+        }
+
+        addField( start, w );
+
+    }
+
+    /**
+     * Decode the character after a backslash within a quoted string.
+     *
+     * @param ch the character after the backslash.
+     * @return the character that the escape sequence stands for.
+     * @throws SyntaxErrorException if the escape sequence is not one that we understand.
+     */
+
+    private static char unescape( char ch )
+            throws SyntaxErrorException {
+
+        switch ( ch ) {
+
+            case 'n':
+                return '\n';
+
+            case 'r':
+                return '\r';
+
+            case 't':
+                return '\t';
+
+            case 'b':
+                return '\b';
+
+            case '\\':
+                return '\\';
+
+            default:
+                throw new SyntaxErrorException( "illegal char after backslash" );
+
+        }
+
+    }
+
+    private void addField( int start, int end ) {
+
+        if ( _nFields == _fieldStarts.length ) {
+
+            int[] starts = new int[_nFields * 2];
+            System.arraycopy( _fieldStarts, 0, starts, 0, _nFields );
+            _fieldStarts = starts;
+
+            int[] ends = new int[_nFields * 2];
+            System.arraycopy( _fieldEnds, 0, ends, 0, _nFields );
+            _fieldEnds = ends;
+
+        }
+
+        _fieldStarts[_nFields] = start;
+        _fieldEnds[_nFields] = end;
+        _nFields += 1;
+
+    }
+
+    /**
+     * Point our recycled field views at the fields of the record most recently scanned by {@link #readRecord}.
+     *
+     * @param fieldCount how many fields the record has.
+     * @return the field views (the array may be longer than <tt>fieldCount</tt>).
+     */
+
+    protected Field[] getFieldViews( int fieldCount ) {
+
+        if ( _fieldViews.length < fieldCount ) {
+
+            Field[] views = new Field[Math.max( fieldCount, _fieldViews.length * 2 )];
+            System.arraycopy( _fieldViews, 0, views, 0, _fieldViews.length );
+            for ( int i = _fieldViews.length; i < views.length; i += 1 ) {
+
+                views[i] = new Field();
+
+            }
+
+            _fieldViews = views;
+
+        }
+
+        for ( int i = 0; i < fieldCount; i += 1 ) {
+
+            _fieldViews[i].set( _buf, _recordStart + _fieldStarts[i], _fieldEnds[i] - _fieldStarts[i] );
+
+        }
+
+        return _fieldViews;
+
+    }
+
     protected String getField() {
 
         StringBuilder rval = new StringBuilder();
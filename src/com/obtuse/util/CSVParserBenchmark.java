@@ -0,0 +1,203 @@
+package com.obtuse.util;
+
+import com.obtuse.util.exceptions.SyntaxErrorException;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare the character-at-a-time {@link CSVParser#getField}/{@link CSVParser#getString} path with the
+ * record-at-a-time {@link CSVParser#parseRecords} path.
+ * <p/>
+ * Both paths parse the same synthetic data set several times.  The timings are collected and reported via
+ * {@link Measure}.
+ */
+
+public class CSVParserBenchmark {
+
+    private static final int ROWS = 250000;
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Parse records the way {@link GenericCsvParser} always has (one character and one {@link String} at a time).
+     */
+
+    private static class FieldAtATimeParser extends CSVParser {
+
+        private FieldAtATimeParser( BufferedReader input ) {
+            super( input );
+
+        }
+
+        private long parseAll()
+                throws SyntaxErrorException {
+
+            long checksum = 0L;
+            while ( true ) {
+
+                int iCh = nextCh();
+                if ( iCh == -1 ) {
+
+                    return checksum;
+
+                }
+
+                pushback( iCh );
+                for ( String field : parseRawLine() ) {
+
+                    checksum += field.length();
+
+                }
+
+            }
+
+        }
+
+        private List<String> parseRawLine()
+                throws SyntaxErrorException {
+
+            List<String> fields = new LinkedList<String>();
+
+            while ( true ) {
+
+                int iCh = nextCh();
+                if ( iCh == '\n' || iCh == -1 ) {
+
+                    return fields;
+
+                }
+
+                pushback( iCh );
+                fields.add( iCh == (int)'"' ? getString() : getField() );
+
+                iCh = nextCh();
+                if ( iCh == '\n' || iCh == '\r' || iCh == -1 ) {
+
+                    return fields;
+
+                } else if ( iCh != ',' ) {
+
+                    throw new SyntaxErrorException( "field not terminated by a comma" );
+
+                }
+
+            }
+
+        }
+
+    }
+
+    private CSVParserBenchmark() {
+        super();
+
+    }
+
+    private static String generateData() {
+
+        StringBuilder sb = new StringBuilder( "id,name,when,amount,flag,comment\n" );
+        for ( int row = 0; row < CSVParserBenchmark.ROWS; row += 1 ) {
+
+            sb.append( row )
+              .append( ",name_" ).append( row % 1000 )
+              .append( ",\"2012-03-" ).append( 10 + row % 20 ).append( " 12:34:56\"" )
+              .append( ',' ).append( row * 0.25 )
+              .append( ',' ).append( row % 2 == 0 ? "yes" : "no" )
+              .append( ",\"a quoted\\\\ comment,\\twith escapes\"" )
+              .append( '\n' );
+
+        }
+
+        return sb.toString();
+
+    }
+
+    private static long fieldAtATime( String data )
+            throws SyntaxErrorException {
+
+        FieldAtATimeParser parser = new FieldAtATimeParser( new BufferedReader( new StringReader( data ) ) );
+        Measure m = new Measure( "getField/getString" );
+        long checksum = parser.parseAll();
+        m.done();
+
+        return checksum;
+
+    }
+
+    private static long recordAtATime( String data )
+            throws SyntaxErrorException {
+
+        CSVParser parser = new CSVParser( new BufferedReader( new StringReader( data ) ) );
+        final long[] checksum = new long[1];
+        Measure m = new Measure( "parseRecords" );
+        parser.parseRecords(
+                new CSVParser.RecordHandler() {
+
+                    public boolean handleRecord( int recordNumber, CSVParser.Field[] fields, int fieldCount ) {
+
+                        for ( int i = 0; i < fieldCount; i += 1 ) {
+
+                            checksum[0] += fields[i].length();
+
+                        }
+
+                        return true;
+
+                    }
+
+                }
+        );
+        m.done();
+
+        return checksum[0];
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "CSVParserBenchmark", null );
+
+        String data = CSVParserBenchmark.generateData();
+
+        try {
+
+            for ( int round = 0; round < CSVParserBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                long slow = CSVParserBenchmark.fieldAtATime( data );
+                long fast = CSVParserBenchmark.recordAtATime( data );
+                if ( slow != fast ) {
+
+                    Logger.logErr( "parsers disagree (" + slow + " vs " + fast + ")" );
+                    System.exit( 1 );
+
+                }
+
+            }
+
+        } catch ( SyntaxErrorException e ) {
+
+            Logger.logErr( "benchmark data failed to parse", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
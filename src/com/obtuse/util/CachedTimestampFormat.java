@@ -0,0 +1,206 @@
+package com.obtuse.util;
+
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.util.Date;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Format timestamps quickly and safely from any number of threads.
+ * <p/>
+ * Formatting a date from scratch is slow and a {@link DateFormat} can't be shared between threads.  This class
+ * renders each second once and remembers the result.  Timestamps within the remembered second are formatted by
+ * copying the rendered text and patching in the milliseconds.  The remembered second lives in an immutable object
+ * referenced by a volatile field so readers never need to synchronize.  When a timestamp falls in some other second,
+ * the thread that notices renders it using its own copy of the underlying format and replaces the remembered second.
+ * <p/>
+ * The output is identical to what the underlying format produces.  Formats whose output can't be patched this way
+ * (for example, milliseconds that aren't always three digits) are detected the first time around and every timestamp
+ * is then formatted from scratch (still safely).
+ */
+
+public class CachedTimestampFormat {
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    /**
+     * The rendering of one second.
+     */
+
+    private static class RenderedSecond {
+
+        private final long _second;
+
+        private final char[] _template;
+
+        private final int _millisIndex;     // where the three millisecond digits go (-1 if there aren't any)
+
+        private final String _text;         // the whole thing if there are no milliseconds
+
+        private RenderedSecond( long second, String text, int millisIndex ) {
+            super();
+
+            _second = second;
+            _template = text.toCharArray();
+            _millisIndex = millisIndex;
+            _text = millisIndex < 0 ? text : null;
+
+        }
+
+        private String format( int millis ) {
+
+            if ( _millisIndex < 0 ) {
+
+                return _text;
+
+            }
+
+            char[] chars = _template.clone();
+            //noinspection MagicNumber
+            chars[_millisIndex] = (char)( '0' + millis / 100 );
+            //noinspection MagicNumber
+            chars[_millisIndex + 1] = (char)( '0' + millis / 10 % 10 );
+            //noinspection MagicNumber
+            chars[_millisIndex + 2] = (char)( '0' + millis % 10 );
+
+            return new String( chars );
+
+        }
+
+    }
+
+    private final DateFormat _format;
+
+    private final ThreadLocal<DateFormat> _threadFormats = new ThreadLocal<DateFormat>() {
+
+        protected DateFormat initialValue() {
+
+            return (DateFormat)_format.clone();
+
+        }
+
+    };
+
+    private volatile RenderedSecond _cache = null;
+
+    private volatile boolean _cacheable = true;
+
+    /**
+     * Create a cached formatter.
+     *
+     * @param format the underlying format.  A copy is made so the caller can go on using (or changing) it.
+     */
+
+    public CachedTimestampFormat( DateFormat format ) {
+        super();
+
+        _format = (DateFormat)format.clone();
+
+    }
+
+    /**
+     * Format a timestamp.
+     *
+     * @param when the timestamp (milliseconds since the epoch).
+     * @return the formatted timestamp (exactly what the underlying format would produce).
+     */
+
+    public String format( long when ) {
+
+        long second = when / CachedTimestampFormat.MILLIS_PER_SECOND;
+        if ( when < 0L && second * CachedTimestampFormat.MILLIS_PER_SECOND != when ) {
+
+            second -= 1L;
+
+        }
+
+        RenderedSecond cached = _cache;
+        if ( cached == null || cached._second != second ) {
+
+            if ( !_cacheable ) {
+
+                return _threadFormats.get().format( new Date( when ) );
+
+            }
+
+            cached = render( second );
+            if ( cached == null ) {
+
+                return _threadFormats.get().format( new Date( when ) );
+
+            }
+
+            _cache = cached;
+
+        }
+
+        return cached.format( (int)( when - second * CachedTimestampFormat.MILLIS_PER_SECOND ) );
+
+    }
+
+    public String format( Date when ) {
+
+        return format( when.getTime() );
+
+    }
+
+    /**
+     * Render a second.
+     *
+     * @return the rendering or null if this format can't be patched (in which case we stop trying).
+     */
+
+    private RenderedSecond render( long second ) {
+
+        DateFormat format = _threadFormats.get();
+        long start = second * CachedTimestampFormat.MILLIS_PER_SECOND;
+
+        StringBuffer buffer = new StringBuffer();
+        FieldPosition millisField = new FieldPosition( DateFormat.MILLISECOND_FIELD );
+        format.format( new Date( start ), buffer, millisField );
+
+        int millisIndex;
+        //noinspection MagicNumber
+        if ( millisField.getEndIndex() - millisField.getBeginIndex() == 3 ) {
+
+            millisIndex = millisField.getBeginIndex();
+
+        } else if ( millisField.getEndIndex() == 0 ) {
+
+            millisIndex = -1;
+
+        } else {
+
+            _cacheable = false;
+            return null;
+
+        }
+
+        RenderedSecond rval = new RenderedSecond( second, buffer.toString(), millisIndex );
+
+        // Make sure that patching really works for this format (it wouldn't if the milliseconds appeared more than
+        // once or if something else depended on them).
+
+        //noinspection MagicNumber
+        long probe = start + 987L;
+        if ( !rval.format( (int)( probe - start ) ).equals( format.format( new Date( probe ) ) ) ) {
+
+            _cacheable = false;
+            return null;
+
+        }
+
+        return rval;
+
+    }
+
+    public String toString() {
+
+        return "CachedTimestampFormat( " + _format + " )";
+
+    }
+
+}
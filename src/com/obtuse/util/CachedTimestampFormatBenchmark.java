@@ -0,0 +1,161 @@
+package com.obtuse.util;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Make sure that {@link CachedTimestampFormat} produces exactly what the underlying {@link SimpleDateFormat} produces
+ * and compare how long each takes to format the sort of timestamps that a busy log sees (lots of them per second).
+ * <p/>
+ * The comparison covers random timestamps (including some before 1970) and the milliseconds around daylight saving
+ * time changes in a few time zones.
+ * <p/>
+ * Usage:  <tt>CachedTimestampFormatBenchmark [count]</tt>
+ */
+
+public class CachedTimestampFormatBenchmark {
+
+    private static final String LOGGER_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS Z";
+
+    private static final String[] PATTERNS = {
+            CachedTimestampFormatBenchmark.LOGGER_PATTERN,
+            "yyyy-MM-dd HH:mm:ss",
+            "HH:mm:ss.S",
+            "SSS 'then' SSS"
+    };
+
+    private static final String[] TIME_ZONES = {
+            "America/Toronto", "Europe/London", "Australia/Lord_Howe", "Asia/Kolkata", "UTC"
+    };
+
+    private static final int ROUNDS = 3;
+
+    private CachedTimestampFormatBenchmark() {
+        super();
+
+    }
+
+    private static void check( DateFormat expected, CachedTimestampFormat cached, long when ) {
+
+        String want = expected.format( new Date( when ) );
+        String got = cached.format( when );
+        if ( !want.equals( got ) ) {
+
+            Logger.logErr( "formatting " + when + " produced \"" + got + "\" instead of \"" + want + "\"" );
+            System.exit( 1 );
+
+        }
+
+    }
+
+    private static void verify( int count ) {
+
+        Random random = new Random( 20120101L );
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        try {
+
+            for ( String timeZoneName : CachedTimestampFormatBenchmark.TIME_ZONES ) {
+
+                TimeZone.setDefault( TimeZone.getTimeZone( timeZoneName ) );
+                for ( String pattern : CachedTimestampFormatBenchmark.PATTERNS ) {
+
+                    DateFormat expected = new SimpleDateFormat( pattern );
+                    CachedTimestampFormat cached = new CachedTimestampFormat( expected );
+
+                    for ( int i = 0; i < count; i += 1 ) {
+
+                        //noinspection MagicNumber
+                        CachedTimestampFormatBenchmark.check(
+                                expected, cached, ( random.nextLong() >> 22 ) + ( random.nextBoolean() ? 0L : 1L )
+                        );
+
+                    }
+
+                    // Walk across the milliseconds around the start of each hour of a year (which is where daylight
+                    // saving time changes happen).
+
+                    //noinspection MagicNumber
+                    for ( long hour = 1325376000000L; hour < 1356998400000L; hour += 3600000L ) {
+
+                        for ( long when = hour - 1100L; when < hour + 1100L; when += 37L ) {
+
+                            CachedTimestampFormatBenchmark.check( expected, cached, when );
+
+                        }
+
+                    }
+
+                }
+
+            }
+
+        } finally {
+
+            TimeZone.setDefault( defaultTimeZone );
+
+        }
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "CachedTimestampFormatBenchmark", null );
+
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 1000000;
+
+        Logger.logMsg( "verifying" );
+        CachedTimestampFormatBenchmark.verify( count / 10 );
+
+        Logger.logMsg( "timing " + count + " timestamps at 50 per second" );
+
+        DateFormat plain = new SimpleDateFormat( CachedTimestampFormatBenchmark.LOGGER_PATTERN );
+        CachedTimestampFormat cached = new CachedTimestampFormat( plain );
+        long start = System.currentTimeMillis();
+        long totalLength = 0L;
+        for ( int round = 0; round < CachedTimestampFormatBenchmark.ROUNDS; round += 1 ) {
+
+            if ( round == 1 ) {
+
+                // The first round just warms things up.
+
+                Measure.restart();
+
+            }
+
+            Measure m = new Measure( "SimpleDateFormat" );
+            for ( int i = 0; i < count; i += 1 ) {
+
+                //noinspection MagicNumber
+                totalLength += (long)plain.format( new Date( start + (long)i * 20L ) ).length();
+
+            }
+
+            m.done();
+
+            m = new Measure( "CachedTimestampFormat" );
+            for ( int i = 0; i < count; i += 1 ) {
+
+                //noinspection MagicNumber
+                totalLength += (long)cached.format( start + (long)i * 20L ).length();
+
+            }
+
+            m.done();
+
+        }
+
+        Logger.logMsg( "formatted " + totalLength + " characters" );
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,565 @@
+package com.obtuse.util;
+
+import java.util.*;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * An {@link EventQueueBackend} based on a calendar queue (R. Brown, "Calendar Queues:  A Fast O(1) Priority Queue
+ * Implementation for the Simulation Event Set Problem", CACM 31(10), 1988).
+ * <p/>
+ * Time is divided into "days" of equal width (a power of two number of milliseconds) and the days are spread over a
+ * circular array of buckets, much like the days of the year are spread over the pages of a desk calendar.  Each bucket
+ * holds a short sorted list with one entry per distinct time.  Finding the next time normally means looking at the
+ * bucket for today and perhaps a few of the days after it.
+ * <p/>
+ * The number of buckets grows and shrinks with the number of distinct times so that there are between one half and
+ * two distinct times per bucket.  The day width is recomputed whenever that happens from the spacing of the times
+ * nearest the front of the queue.
+ * <p/>
+ * The entries for each distinct time (and the arrays that hold their events) are recycled so a simulation which
+ * reaches a steady state stops allocating memory in here.
+ */
+
+public class CalendarEventQueueBackend<T extends SimpleEvent> implements EventQueueBackend<T> {
+
+    private static final int MIN_BUCKETS = 16;
+
+    private static final int MAX_BUCKETS = 1 << 30;
+
+    /**
+     * How many of the earliest times are used to estimate the day width when the buckets are resized.
+     */
+
+    private static final int WIDTH_SAMPLE_SIZE = 64;
+
+    /**
+     * The most that a day's width can be shifted (wider days would make the day numbers meaningless).
+     */
+
+    private static final int MAX_SHIFT = 62;
+
+    /**
+     * How many recycled entries are kept.
+     */
+
+    private static final int MAX_FREE_TIMES = 1024;
+
+    private static final int INITIAL_EVENTS_PER_TIME = 4;
+
+    /**
+     * The events for one distinct time (in order) and a link to the next later time in the same bucket.
+     * <p/>
+     * The events live in a circular array so that events can be added at either end.
+     */
+
+    private static class EventsAtTime<T> extends AbstractList<T> implements RandomAccess {
+
+        private long _when;
+
+        private Object[] _events = new Object[CalendarEventQueueBackend.INITIAL_EVENTS_PER_TIME];
+
+        private int _head = 0;
+
+        private int _count = 0;
+
+        private EventsAtTime<T> _next = null;
+
+        private EventsAtTime() {
+            super();
+
+        }
+
+        private void addEvent( T event, boolean before ) {
+
+            if ( _count == _events.length ) {
+
+                Object[] events = new Object[_events.length * 2];
+                for ( int i = 0; i < _count; i += 1 ) {
+
+                    events[i] = _events[( _head + i ) & ( _events.length - 1 )];
+
+                }
+
+                _events = events;
+                _head = 0;
+
+            }
+
+            if ( before ) {
+
+                _head = ( _head - 1 ) & ( _events.length - 1 );
+                _events[_head] = event;
+
+            } else {
+
+                _events[( _head + _count ) & ( _events.length - 1 )] = event;
+
+            }
+
+            _count += 1;
+
+        }
+
+        private T removeFirstEvent() {
+
+            @SuppressWarnings("unchecked")
+            T event = (T)_events[_head];
+            _events[_head] = null;
+            _head = ( _head + 1 ) & ( _events.length - 1 );
+            _count -= 1;
+
+            return event;
+
+        }
+
+        private void forgetEvents() {
+
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                _events[( _head + i ) & ( _events.length - 1 )] = null;
+
+            }
+
+            _head = 0;
+            _count = 0;
+            _next = null;
+
+        }
+
+        public T get( int index ) {
+
+            if ( index < 0 || index >= _count ) {
+
+                throw new IndexOutOfBoundsException( "index " + index + " is not within [0," + _count + ")" );
+
+            }
+
+            @SuppressWarnings("unchecked")
+            T event = (T)_events[( _head + index ) & ( _events.length - 1 )];
+
+            return event;
+
+        }
+
+        public int size() {
+
+            return _count;
+
+        }
+
+    }
+
+    private EventsAtTime<T>[] _buckets;
+
+    private int _mask;
+
+    // A day is (1 << _shift) milliseconds wide.
+
+    private int _shift = 0;
+
+    private int _timeCount = 0;
+
+    private int _eventCount = 0;
+
+    // No events are earlier than this.
+
+    private long _cursor = Long.MIN_VALUE;
+
+    // The earliest time (null if it needs to be found again).
+
+    private EventsAtTime<T> _first = null;
+
+    private EventsAtTime<T> _freeTimes = null;
+
+    private int _freeTimeCount = 0;
+
+    public CalendarEventQueueBackend() {
+        super();
+
+        _buckets = CalendarEventQueueBackend.allocateBuckets( CalendarEventQueueBackend.MIN_BUCKETS );
+        _mask = _buckets.length - 1;
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> EventsAtTime<T>[] allocateBuckets( int nBuckets ) {
+
+        return (EventsAtTime<T>[])new EventsAtTime<?>[nBuckets];
+
+    }
+
+    private int bucketOf( long when ) {
+
+        return (int)( when >> _shift ) & _mask;
+
+    }
+
+    public void add( long when, T event, boolean before ) {
+
+        int bucket = bucketOf( when );
+        EventsAtTime<T> previous = null;
+        EventsAtTime<T> eat = _buckets[bucket];
+        while ( eat != null && eat._when < when ) {
+
+            previous = eat;
+            eat = eat._next;
+
+        }
+
+        if ( eat == null || eat._when != when ) {
+
+            EventsAtTime<T> newEat = allocateTime( when );
+            newEat._next = eat;
+            if ( previous == null ) {
+
+                _buckets[bucket] = newEat;
+
+            } else {
+
+                previous._next = newEat;
+
+            }
+
+            eat = newEat;
+            _timeCount += 1;
+
+            // The queue's clock rules normally keep new times at or after the earliest time but backends aren't
+            // supposed to depend on that.
+
+            if ( when < _cursor ) {
+
+                _cursor = when;
+
+            }
+
+            if ( _first != null && when < _first._when ) {
+
+                _first = newEat;
+
+            }
+
+        }
+
+        eat.addEvent( event, before );
+        _eventCount += 1;
+
+        if ( _timeCount > 2 * _buckets.length && _buckets.length < CalendarEventQueueBackend.MAX_BUCKETS ) {
+
+            resize( _buckets.length * 2 );
+
+        }
+
+    }
+
+    public boolean isEmpty() {
+
+        return _eventCount == 0;
+
+    }
+
+    public int size() {
+
+        return _eventCount;
+
+    }
+
+    public int getTimeCount() {
+
+        return _timeCount;
+
+    }
+
+    public long getFirstTime() {
+
+        return findFirst()._when;
+
+    }
+
+    public List<T> getFirstBatch() {
+
+        // The list is already unmodifiable (it doesn't override any of AbstractList's mutators).
+
+        return findFirst();
+
+    }
+
+    public T removeFirst() {
+
+        EventsAtTime<T> first = findFirst();
+        T event = first.removeFirstEvent();
+        _eventCount -= 1;
+        if ( first._count == 0 ) {
+
+            removeFirstTime( first );
+
+        }
+
+        return event;
+
+    }
+
+    public void removeFirstBatch() {
+
+        EventsAtTime<T> first = findFirst();
+        _eventCount -= first._count;
+        removeFirstTime( first );
+
+    }
+
+    public void clear() {
+
+        _buckets = CalendarEventQueueBackend.allocateBuckets( CalendarEventQueueBackend.MIN_BUCKETS );
+        _mask = _buckets.length - 1;
+        _shift = 0;
+        _timeCount = 0;
+        _eventCount = 0;
+        _cursor = Long.MIN_VALUE;
+        _first = null;
+
+    }
+
+    public SortedMap<Long,List<T>> snapshot() {
+
+        SortedMap<Long,List<T>> rval = new TreeMap<Long,List<T>>();
+        for ( EventsAtTime<T> eat : _buckets ) {
+
+            for ( ; eat != null; eat = eat._next ) {
+
+                rval.put( eat._when, new ArrayList<T>( eat ) );
+
+            }
+
+        }
+
+        return rval;
+
+    }
+
+    /**
+     * Find the earliest time.
+     * <p/>
+     * Starting with the day containing the cursor, look at each day's bucket until we find a bucket whose earliest
+     * time falls within that day.  If we go all the way around the calendar without finding one then the next time is
+     * more than a calendar year away and we look at the earliest time in every bucket instead.
+     */
+
+    private EventsAtTime<T> findFirst() {
+
+        if ( _first != null ) {
+
+            return _first;
+
+        }
+
+        if ( _timeCount == 0 ) {
+
+            throw new NoSuchElementException( "no events left" );
+
+        }
+
+        long day = _cursor >> _shift;
+        for ( int i = 0; i < _buckets.length; i += 1 ) {
+
+            EventsAtTime<T> eat = _buckets[(int)day & _mask];
+            if ( eat != null && eat._when >> _shift == day ) {
+
+                _cursor = eat._when;
+                _first = eat;
+
+                return eat;
+
+            }
+
+            day += 1L;
+
+        }
+
+        EventsAtTime<T> earliest = null;
+        for ( EventsAtTime<T> eat : _buckets ) {
+
+            if ( eat != null && ( earliest == null || eat._when < earliest._when ) ) {
+
+                earliest = eat;
+
+            }
+
+        }
+
+        //noinspection ConstantConditions
+        _cursor = earliest._when;
+        _first = earliest;
+
+        return earliest;
+
+    }
+
+    /**
+     * Remove the earliest time (which is always at the front of its bucket).
+     */
+
+    private void removeFirstTime( EventsAtTime<T> first ) {
+
+        _buckets[bucketOf( first._when )] = first._next;
+        _first = null;
+        _timeCount -= 1;
+        freeTime( first );
+
+        if ( _timeCount < _buckets.length / 2 && _buckets.length > CalendarEventQueueBackend.MIN_BUCKETS ) {
+
+            resize( _buckets.length / 2 );
+
+        }
+
+    }
+
+    private EventsAtTime<T> allocateTime( long when ) {
+
+        EventsAtTime<T> eat = _freeTimes;
+        if ( eat == null ) {
+
+            eat = new EventsAtTime<T>();
+
+        } else {
+
+            _freeTimes = eat._next;
+            _freeTimeCount -= 1;
+            eat._next = null;
+
+        }
+
+        eat._when = when;
+
+        return eat;
+
+    }
+
+    private void freeTime( EventsAtTime<T> eat ) {
+
+        eat.forgetEvents();
+        if ( _freeTimeCount < CalendarEventQueueBackend.MAX_FREE_TIMES ) {
+
+            eat._next = _freeTimes;
+            _freeTimes = eat;
+            _freeTimeCount += 1;
+
+        }
+
+    }
+
+    /**
+     * Change the number of buckets, recompute the day width and redistribute the times.
+     */
+
+    private void resize( int nBuckets ) {
+
+        // Gather up the times in order.
+
+        @SuppressWarnings("unchecked")
+        EventsAtTime<T>[] times = (EventsAtTime<T>[])new EventsAtTime<?>[_timeCount];
+        int n = 0;
+        for ( EventsAtTime<T> eat : _buckets ) {
+
+            for ( ; eat != null; eat = eat._next ) {
+
+                times[n++] = eat;
+
+            }
+
+        }
+
+        Arrays.sort(
+                times,
+                new Comparator<EventsAtTime<T>>() {
+
+                    public int compare( EventsAtTime<T> lhs, EventsAtTime<T> rhs ) {
+
+                        return lhs._when < rhs._when ? -1 : lhs._when == rhs._when ? 0 : 1;
+
+                    }
+
+                }
+        );
+
+        _shift = CalendarEventQueueBackend.estimateShift( times );
+        _buckets = CalendarEventQueueBackend.allocateBuckets( nBuckets );
+        _mask = nBuckets - 1;
+
+        // Appending the times in order keeps each bucket sorted.
+
+        EventsAtTime<T>[] tails = CalendarEventQueueBackend.allocateBuckets( nBuckets );
+        for ( EventsAtTime<T> eat : times ) {
+
+            int bucket = bucketOf( eat._when );
+            eat._next = null;
+            if ( tails[bucket] == null ) {
+
+                _buckets[bucket] = eat;
+
+            } else {
+
+                tails[bucket]._next = eat;
+
+            }
+
+            tails[bucket] = eat;
+
+        }
+
+        _first = null;
+
+    }
+
+    /**
+     * Pick a day width of about three times the average gap between the earliest times (rounded up to a power of two).
+     *
+     * @param times the times (in order).
+     * @return the day width as a shift count.
+     */
+
+    private static <T> int estimateShift( EventsAtTime<T>[] times ) {
+
+        int n = Math.min( times.length, CalendarEventQueueBackend.WIDTH_SAMPLE_SIZE );
+        if ( n < 2 ) {
+
+            return 0;
+
+        }
+
+        long span = times[n - 1]._when - times[0]._when;
+        if ( span < 0L ) {
+
+            // The times are so far apart that their difference overflowed.
+
+            return CalendarEventQueueBackend.MAX_SHIFT;
+
+        }
+
+        long gap = span / (long)( n - 1 );
+        if ( gap > Long.MAX_VALUE / 3L ) {
+
+            return CalendarEventQueueBackend.MAX_SHIFT;
+
+        }
+
+        long width = 3L * gap;
+        if ( width <= 1L ) {
+
+            return 0;
+
+        }
+
+        return Math.min( 64 - Long.numberOfLeadingZeros( width - 1L ), CalendarEventQueueBackend.MAX_SHIFT );
+
+    }
+
+    public String toString() {
+
+        return "CalendarEventQueueBackend( " + _eventCount + " events at " + _timeCount + " times in " +
+               _buckets.length + " buckets of " + ( 1L << _shift ) + "ms )";
+
+    }
+
+}
@@ -0,0 +1,777 @@
+package com.obtuse.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.DateFormat;
+import java.text.FieldPosition;
+import java.util.Arrays;
+import java.util.Date;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Write comma-separated-value records which {@link CSVParser} and {@link GenericCsvParser} can read back.
+ * <p/>
+ * Fields are appended to a reusable block of characters which is only handed to the underlying {@link Writer} or
+ * {@link FileChannel} when it fills up (or when the writer is flushed or closed).  Numbers are formatted straight into
+ * the block and text is copied into it, so writing a field normally costs no allocations.
+ * <p/>
+ * A text field is only quoted if it has to be.  Whether or not it does (and which of its characters must be escaped
+ * within quotes) is decided with a single pass over the text using a precomputed table.  The rules are the inverse of
+ * what {@link CSVParser#parseRecords} accepts:
+ * <ul>
+ * <li>a field is quoted if it contains a comma, a newline or a carriage return, if it starts with a double quote or
+ * if it is an empty field at the end of a record (an unquoted one would vanish).</li>
+ * <li>within quotes, newlines, carriage returns and backslashes are written as <tt>\n</tt>, <tt>\r</tt> and
+ * <tt>\\</tt>.</li>
+ * <li>records are terminated by a single newline.</li>
+ * </ul>
+ * The parser has no way to represent a double quote within a quoted field.  Text which would have to be quoted and
+ * which contains a double quote (including any text which starts with one) is rejected with an
+ * {@link IllegalArgumentException}.
+ * <p/>
+ * Output sent to a {@link FileChannel} is encoded as UTF-8 (which is what {@link MappedFileReader} expects).
+ * <p/>
+ * Instances are not thread safe.
+ */
+
+@SuppressWarnings({ "ClassWithoutToString" })
+public class CsvWriter implements Closeable, Flushable {
+
+    /**
+     * How many characters are accumulated before they are sent on (unless the caller says otherwise).
+     */
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    // What each of the first 128 characters means to us (all other characters are plain).
+
+    private static final byte PLAIN = 0;
+    private static final byte NEEDS_QUOTES = 1;             // field must be quoted but the char is copied as is
+    private static final byte NEEDS_QUOTES_AND_ESCAPE = 2;  // field must be quoted and the char is escaped
+    private static final byte ESCAPE_IF_QUOTED = 3;         // char is escaped if the field is quoted for another reason
+    private static final byte DOUBLE_QUOTE = 4;             // field cannot be quoted
+
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    // What follows the backslash when a character is escaped.
+
+    private static final char[] ESCAPES = new char[128];
+
+    static {
+
+        CsvWriter.CHAR_CLASSES[','] = CsvWriter.NEEDS_QUOTES;
+        CsvWriter.CHAR_CLASSES['\n'] = CsvWriter.NEEDS_QUOTES_AND_ESCAPE;
+        CsvWriter.CHAR_CLASSES['\r'] = CsvWriter.NEEDS_QUOTES_AND_ESCAPE;
+        CsvWriter.CHAR_CLASSES['\\'] = CsvWriter.ESCAPE_IF_QUOTED;
+        CsvWriter.CHAR_CLASSES['"'] = CsvWriter.DOUBLE_QUOTE;
+
+        CsvWriter.ESCAPES['\n'] = 'n';
+        CsvWriter.ESCAPES['\r'] = 'r';
+        CsvWriter.ESCAPES['\\'] = '\\';
+
+    }
+
+    private static final char[] MIN_LONG = Long.toString( Long.MIN_VALUE ).toCharArray();
+
+    private static final char[] EMPTY_QUOTED_FIELD = { '"', '"', '\n' };
+
+    private final Writer _writer;
+
+    private final FileChannel _channel;
+
+    private final CharsetEncoder _encoder;
+
+    private final ByteBuffer _bytes;
+
+    private char[] _buf;
+
+    private int _pos = 0;
+
+    // How many fields have been written to the current record and whether the last one was empty.
+
+    private int _fieldCount = 0;
+
+    private boolean _lastFieldEmpty = false;
+
+    private final char[] _digits = new char[20];
+
+    private final StringBuilder _scratch = new StringBuilder();
+
+    private DateFormat _dateFormat = null;
+
+    // The most recently formatted date (consecutive dates which fall within the same second are formatted once).
+
+    private final StringBuffer _dateChars = new StringBuffer();
+
+    private final FieldPosition _dateField = new FieldPosition( 0 );
+
+    private long _lastDateSecond = Long.MIN_VALUE;
+
+    private long _recordCount = 0L;
+
+    private boolean _closed = false;
+
+    /**
+     * Create a writer which sends its output to a {@link Writer}.
+     *
+     * @param writer where the output goes.
+     */
+
+    public CsvWriter( Writer writer ) {
+        this( writer, CsvWriter.DEFAULT_BLOCK_SIZE );
+
+    }
+
+    /**
+     * Create a writer which sends its output to a {@link Writer} in blocks of a specified size.
+     *
+     * @param writer    where the output goes.
+     * @param blockSize how many characters to accumulate before sending them on.
+     * @throws IllegalArgumentException if <tt>blockSize</tt> is not positive.
+     */
+
+    public CsvWriter( Writer writer, int blockSize ) {
+        super();
+
+        _writer = writer;
+        _channel = null;
+        _encoder = null;
+        _bytes = null;
+        _buf = CsvWriter.allocateBlock( blockSize );
+
+    }
+
+    /**
+     * Create a writer which sends UTF-8 encoded output to a {@link FileChannel}.
+     *
+     * @param channel where the output goes (output is written at the channel's current position).
+     */
+
+    public CsvWriter( FileChannel channel ) {
+        this( channel, CsvWriter.DEFAULT_BLOCK_SIZE );
+
+    }
+
+    /**
+     * Create a writer which sends UTF-8 encoded output to a {@link FileChannel} in blocks of a specified size.
+     *
+     * @param channel   where the output goes (output is written at the channel's current position).
+     * @param blockSize how many characters to accumulate before encoding them and sending them on.
+     * @throws IllegalArgumentException if <tt>blockSize</tt> is not positive.
+     */
+
+    public CsvWriter( FileChannel channel, int blockSize ) {
+        super();
+
+        _writer = null;
+        _channel = channel;
+        _buf = CsvWriter.allocateBlock( blockSize );
+        _encoder = Charset.forName( "UTF-8" ).newEncoder()
+                          .onMalformedInput( CodingErrorAction.REPLACE )
+                          .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        _bytes = ByteBuffer.allocateDirect( (int)Math.ceil( blockSize * (double)_encoder.maxBytesPerChar() ) );
+
+    }
+
+    private static char[] allocateBlock( int blockSize ) {
+
+        if ( blockSize <= 0 ) {
+
+            throw new IllegalArgumentException( "block size must be positive (" + blockSize + " is not)" );
+
+        }
+
+        return new char[blockSize];
+
+    }
+
+    /**
+     * Write a text field.
+     *
+     * @param value the text (null is written as an empty field).
+     * @return this writer.
+     * @throws IOException              if a full block could not be sent on.
+     * @throws IllegalArgumentException if the text has to be quoted and contains a double quote.
+     */
+
+    public CsvWriter field( CharSequence value )
+            throws IOException {
+
+        startField();
+
+        int length = value == null ? 0 : value.length();
+        if ( length == 0 ) {
+
+            _lastFieldEmpty = true;
+            return this;
+
+        }
+
+        // One pass over the text to decide whether it needs quotes and how long it gets once escaped.
+
+        boolean quote = value.charAt( 0 ) == '"';
+        boolean sawDoubleQuote = quote;
+        int escapes = 0;
+        for ( int i = 0; i < length; i += 1 ) {
+
+            char ch = value.charAt( i );
+            if ( ch < 128 ) {
+
+                switch ( CsvWriter.CHAR_CLASSES[ch] ) {
+
+                    case CsvWriter.PLAIN:
+                        break;
+
+                    case CsvWriter.NEEDS_QUOTES:
+                        quote = true;
+                        break;
+
+                    case CsvWriter.NEEDS_QUOTES_AND_ESCAPE:
+                        quote = true;
+                        escapes += 1;
+                        break;
+
+                    case CsvWriter.ESCAPE_IF_QUOTED:
+                        escapes += 1;
+                        break;
+
+                    case CsvWriter.DOUBLE_QUOTE:
+                        sawDoubleQuote = true;
+                        break;
+
+                }
+
+            }
+
+        }
+
+        if ( !quote ) {
+
+            appendPlain( value, length );
+            return this;
+
+        }
+
+        if ( sawDoubleQuote ) {
+
+            throw new IllegalArgumentException(
+                    "a field which must be quoted cannot contain a double quote (" + ObtuseUtil.enquoteForJavaString(
+                            value.toString()
+                    ) + ")"
+            );
+
+        }
+
+        ensureRoom( length + escapes + 2 );
+        char[] buf = _buf;
+        int pos = _pos;
+        buf[pos++] = '"';
+        for ( int i = 0; i < length; i += 1 ) {
+
+            char ch = value.charAt( i );
+            if ( ch < 128 && CsvWriter.ESCAPES[ch] != 0 ) {
+
+                buf[pos++] = '\\';
+                buf[pos++] = CsvWriter.ESCAPES[ch];
+
+            } else {
+
+                buf[pos++] = ch;
+
+            }
+
+        }
+
+        buf[pos++] = '"';
+        _pos = pos;
+
+        return this;
+
+    }
+
+    /**
+     * Write an <tt>int</tt> field.
+     *
+     * @param value the value.
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter field( int value )
+            throws IOException {
+
+        return field( (long)value );
+
+    }
+
+    /**
+     * Write a <tt>long</tt> field.
+     *
+     * @param value the value.
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter field( long value )
+            throws IOException {
+
+        startField();
+
+        if ( value == Long.MIN_VALUE ) {
+
+            appendChars( CsvWriter.MIN_LONG, CsvWriter.MIN_LONG.length );
+            return this;
+
+        }
+
+        // Generate the digits backwards into a scratch array and then copy them into the block.
+
+        long v = value < 0L ? -value : value;
+        int ix = _digits.length;
+        do {
+
+            //noinspection MagicNumber
+            _digits[--ix] = (char)( '0' + (int)( v % 10L ) );
+            //noinspection MagicNumber
+            v /= 10L;
+
+        } while ( v != 0L );
+
+        ensureRoom( _digits.length - ix + 1 );
+        if ( value < 0L ) {
+
+            _buf[_pos++] = '-';
+
+        }
+
+        System.arraycopy( _digits, ix, _buf, _pos, _digits.length - ix );
+        _pos += _digits.length - ix;
+
+        return this;
+
+    }
+
+    /**
+     * Write a <tt>double</tt> field.
+     * The value is formatted the way {@link Double#toString(double)} formats it so that {@link Double#parseDouble}
+     * gets back exactly the same value.
+     *
+     * @param value the value.
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter field( double value )
+            throws IOException {
+
+        startField();
+
+        _scratch.setLength( 0 );
+        _scratch.append( value );
+        appendPlain( _scratch, _scratch.length() );
+
+        return this;
+
+    }
+
+    /**
+     * Write a <tt>boolean</tt> field (as <tt>true</tt> or <tt>false</tt>).
+     *
+     * @param value the value.
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter field( boolean value )
+            throws IOException {
+
+        startField();
+
+        appendPlain( value ? "true" : "false", value ? 4 : 5 );
+
+        return this;
+
+    }
+
+    /**
+     * Write a date field in the format that {@link CSVParser#parseDate} accepts ("YYYY-MM-DD HH:MM:SS" in the default
+     * time zone).
+     * Consecutive dates within the same second are only formatted once.
+     *
+     * @param value the date (null is written as an empty field).
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter field( Date value )
+            throws IOException {
+
+        if ( value == null ) {
+
+            return field( (CharSequence)null );
+
+        }
+
+        startField();
+
+        long time = value.getTime();
+        //noinspection MagicNumber
+        long second = time >= 0L ? time / 1000L : ( time - 999L ) / 1000L;
+        if ( second != _lastDateSecond || _dateChars.length() == 0 ) {
+
+            if ( _dateFormat == null ) {
+
+                _dateFormat = (DateFormat)CSVParser.getDateFormat().clone();
+
+            }
+
+            _dateChars.setLength( 0 );
+            _dateFormat.format( value, _dateChars, _dateField );
+            _lastDateSecond = second;
+
+        }
+
+        appendPlain( _dateChars, _dateChars.length() );
+
+        return this;
+
+    }
+
+    /**
+     * Write an entire record.
+     *
+     * @param values the record's fields (see {@link #field(CharSequence)}).
+     * @return this writer.
+     * @throws IOException              if a full block could not be sent on.
+     * @throws IllegalArgumentException if one of the fields has to be quoted and contains a double quote.
+     * @throws IllegalStateException    if part of a record has already been written.
+     */
+
+    public CsvWriter record( CharSequence... values )
+            throws IOException {
+
+        return record( Arrays.asList( values ) );
+
+    }
+
+    /**
+     * Write an entire record (a list of titles, for example).
+     *
+     * @param values the record's fields (see {@link #field(CharSequence)}).
+     * @return this writer.
+     * @throws IOException              if a full block could not be sent on.
+     * @throws IllegalArgumentException if one of the fields has to be quoted and contains a double quote.
+     * @throws IllegalStateException    if part of a record has already been written.
+     */
+
+    public CsvWriter record( Iterable<? extends CharSequence> values )
+            throws IOException {
+
+        if ( _fieldCount > 0 ) {
+
+            throw new IllegalStateException( "record already has " + _fieldCount + " field(s)" );
+
+        }
+
+        for ( CharSequence value : values ) {
+
+            field( value );
+
+        }
+
+        return endRecord();
+
+    }
+
+    /**
+     * Terminate the current record.
+     *
+     * @return this writer.
+     * @throws IOException if a full block could not be sent on.
+     */
+
+    public CsvWriter endRecord()
+            throws IOException {
+
+        checkOpen();
+
+        if ( _fieldCount > 0 && _lastFieldEmpty ) {
+
+            // An unquoted empty field at the end of a record is not seen by the parser.
+
+            appendChars( CsvWriter.EMPTY_QUOTED_FIELD, CsvWriter.EMPTY_QUOTED_FIELD.length );
+
+        } else {
+
+            ensureRoom( 1 );
+            _buf[_pos++] = '\n';
+
+        }
+
+        _fieldCount = 0;
+        _lastFieldEmpty = false;
+        _recordCount += 1L;
+
+        return this;
+
+    }
+
+    /**
+     * Get the number of complete records written so far.
+     *
+     * @return the number of times {@link #endRecord} has been called.
+     */
+
+    public long getRecordCount() {
+
+        return _recordCount;
+
+    }
+
+    /**
+     * Send everything written so far on to the underlying {@link Writer} or {@link FileChannel} and flush it.
+     * A partially written record is sent on as is.
+     *
+     * @throws IOException if the underlying writer or channel fails.
+     */
+
+    public void flush()
+            throws IOException {
+
+        checkOpen();
+
+        drain( true );
+        if ( _writer != null ) {
+
+            _writer.flush();
+
+        }
+
+    }
+
+    /**
+     * Flush and then close the underlying {@link Writer} or {@link FileChannel}.
+     * Calling this method more than once has no effect.
+     *
+     * @throws IOException if the underlying writer or channel fails.
+     */
+
+    public void close()
+            throws IOException {
+
+        if ( _closed ) {
+
+            return;
+
+        }
+
+        try {
+
+            drain( true );
+
+        } finally {
+
+            _closed = true;
+            if ( _writer != null ) {
+
+                _writer.close();
+
+            } else {
+
+                _channel.close();
+
+            }
+
+        }
+
+    }
+
+    private void checkOpen() {
+
+        if ( _closed ) {
+
+            throw new IllegalStateException( "CsvWriter is closed" );
+
+        }
+
+    }
+
+    private void startField()
+            throws IOException {
+
+        checkOpen();
+
+        if ( _fieldCount > 0 ) {
+
+            ensureRoom( 1 );
+            _buf[_pos++] = ',';
+
+        }
+
+        _fieldCount += 1;
+        _lastFieldEmpty = false;
+
+    }
+
+    /**
+     * Copy text which has already been found not to need quotes into the block.
+     */
+
+    private void appendPlain( CharSequence value, int length )
+            throws IOException {
+
+        ensureRoom( length );
+        if ( value instanceof String ) {
+
+            ( (String)value ).getChars( 0, length, _buf, _pos );
+
+        } else if ( value instanceof StringBuilder ) {
+
+            ( (StringBuilder)value ).getChars( 0, length, _buf, _pos );
+
+        } else if ( value instanceof StringBuffer ) {
+
+            ( (StringBuffer)value ).getChars( 0, length, _buf, _pos );
+
+        } else {
+
+            for ( int i = 0; i < length; i += 1 ) {
+
+                _buf[_pos + i] = value.charAt( i );
+
+            }
+
+        }
+
+        _pos += length;
+
+    }
+
+    private void appendChars( char[] chars, int length )
+            throws IOException {
+
+        ensureRoom( length );
+        System.arraycopy( chars, 0, _buf, _pos, length );
+        _pos += length;
+
+    }
+
+    /**
+     * Make sure that there is room for a certain number of characters in the block.
+     * The block is sent on if it does not have enough room left.  It is grown if it still does not have enough room
+     * (the only way that can happen is if a single field is larger than the block).
+     */
+
+    private void ensureRoom( int length )
+            throws IOException {
+
+        if ( _buf.length - _pos >= length ) {
+
+            return;
+
+        }
+
+        drain( false );
+
+        if ( _buf.length - _pos < length ) {
+
+            char[] buf = new char[Math.max( _pos + length, _buf.length * 2 )];
+            System.arraycopy( _buf, 0, buf, 0, _pos );
+            _buf = buf;
+
+        }
+
+    }
+
+    /**
+     * Send the block on.
+     *
+     * @param endOfInput true if there is nothing else coming just yet (only matters when the block ends with the
+     *                   first half of a surrogate pair which is being encoded for a channel).
+     */
+
+    private void drain( boolean endOfInput )
+            throws IOException {
+
+        if ( _pos == 0 ) {
+
+            return;
+
+        }
+
+        if ( _writer != null ) {
+
+            _writer.write( _buf, 0, _pos );
+            _pos = 0;
+            return;
+
+        }
+
+        CharBuffer chars = CharBuffer.wrap( _buf, 0, _pos );
+        while ( true ) {
+
+            CoderResult result = _encoder.encode( chars, _bytes, endOfInput );
+            if ( result.isError() ) {
+
+                result.throwException();
+
+            }
+
+            writeBytes();
+
+            if ( !result.isOverflow() ) {
+
+                break;
+
+            }
+
+        }
+
+        if ( endOfInput ) {
+
+            while ( _encoder.flush( _bytes ).isOverflow() ) {
+
+                writeBytes();
+
+            }
+
+            writeBytes();
+            _encoder.reset();
+
+        }
+
+        // Keep whatever the encoder could not consume yet (half of a surrogate pair) for next time.
+
+        int leftover = chars.remaining();
+        System.arraycopy( _buf, chars.position(), _buf, 0, leftover );
+        _pos = leftover;
+
+    }
+
+    private void writeBytes()
+            throws IOException {
+
+        _bytes.flip();
+        while ( _bytes.hasRemaining() ) {
+
+            _channel.write( _bytes );
+
+        }
+
+        _bytes.clear();
+
+    }
+
+}
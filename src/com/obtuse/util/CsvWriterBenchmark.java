@@ -0,0 +1,252 @@
+package com.obtuse.util;
+
+import com.obtuse.util.exceptions.SyntaxErrorException;
+
+import java.io.*;
+import java.text.DateFormat;
+import java.util.Date;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare writing CSV by hand (string concatenation and {@link ObtuseUtil#enquoteForCSV}) with writing it via a
+ * {@link CsvWriter}.
+ * <p/>
+ * The {@link CsvWriter}'s output (sent to both a {@link Writer} and a {@link java.nio.channels.FileChannel}) is read
+ * back by {@link GenericCsvParser} and checked against the values that were written, including values which have to
+ * be quoted and escaped.
+ * <p/>
+ * Usage:  <tt>CsvWriterBenchmark [rows]</tt>
+ */
+
+public class CsvWriterBenchmark {
+
+    private static final int DEFAULT_ROWS = 1000000;
+
+    private static final int ROUNDS = 4;
+
+    private static final String[] TITLES = { "id", "region", "when", "amount", "comment", "note" };
+
+    private static final String[] COMMENTS = {
+            "plain", "with, a comma", "with a\nnewline", "back\\slash, quoted", "back\\slash", "crlf\r\n",
+            "tab\there", "quote\"inside", "trailing space ", "", "café", "😀 (outside the BMP)"
+    };
+
+    private static final String[] REGIONS = { "north", "south", "east", "west", "central" };
+
+    private static final long BASE_TIME = 1325376000000L;   // 2012-01-01 00:00:00 UTC
+
+    private CsvWriterBenchmark() {
+        super();
+
+    }
+
+    private static Date when( int row ) {
+
+        //noinspection MagicNumber
+        return new Date( CsvWriterBenchmark.BASE_TIME + ( (long)row / 10L ) * 1000L );
+
+    }
+
+    private static String comment( int row ) {
+
+        return CsvWriterBenchmark.COMMENTS[row % CsvWriterBenchmark.COMMENTS.length];
+
+    }
+
+    private static String note( int row ) {
+
+        //noinspection MagicNumber
+        return row % 4 == 0 ? "" : "note " + row;
+
+    }
+
+    /**
+     * Write the rows by hand, the way it has always been done.
+     */
+
+    private static void byHand( Writer writer, int rows )
+            throws IOException {
+
+        DateFormat dates = CSVParser.getDateFormat();
+        writer.write( "id,region,when,amount,comment,note\n" );
+        for ( int row = 0; row < rows; row += 1 ) {
+
+            writer.write(
+                    "" + row + ',' + CsvWriterBenchmark.REGIONS[row % CsvWriterBenchmark.REGIONS.length] + ',' +
+                    dates.format( CsvWriterBenchmark.when( row ) ) + ',' + row * 0.25 + ',' +
+                    ObtuseUtil.enquoteForCSV( CsvWriterBenchmark.comment( row ) ) + ',' +
+                    ObtuseUtil.enquoteForCSV( CsvWriterBenchmark.note( row ) ) + '\n'
+            );
+
+        }
+
+    }
+
+    /**
+     * Write the rows via a {@link CsvWriter}.
+     */
+
+    private static void viaCsvWriter( CsvWriter csvWriter, int rows )
+            throws IOException {
+
+        csvWriter.record( CsvWriterBenchmark.TITLES );
+        for ( int row = 0; row < rows; row += 1 ) {
+
+            csvWriter.field( row )
+                     .field( CsvWriterBenchmark.REGIONS[row % CsvWriterBenchmark.REGIONS.length] )
+                     .field( CsvWriterBenchmark.when( row ) )
+                     .field( row * 0.25 )
+                     .field( CsvWriterBenchmark.comment( row ) )
+                     .field( CsvWriterBenchmark.note( row ) )
+                     .endRecord();
+
+        }
+
+    }
+
+    /**
+     * Make sure that a file written by {@link #viaCsvWriter} parses back into what was written.
+     *
+     * @return the number of mismatched cells.
+     */
+
+    private static int verify( File file, int rows, boolean memoryMapped )
+            throws IOException, SyntaxErrorException {
+
+        GenericCsvParser gcp = new GenericCsvParser( file.getPath(), memoryMapped );
+        gcp.parse(
+                new GenericCsvParser.Schema()
+                        .add( "id", GenericCsvParser.ColumnType.INT )
+                        .add( "region", GenericCsvParser.ColumnType.STRING )
+                        .add( "when", GenericCsvParser.ColumnType.DATE )
+                        .add( "amount", GenericCsvParser.ColumnType.DOUBLE )
+                        .add( "comment", GenericCsvParser.ColumnType.STRING )
+                        .add( "note", GenericCsvParser.ColumnType.STRING )
+        );
+        gcp.close();
+
+        int mismatches = gcp.getLineCount() == rows ? 0 : 1;
+        for ( int row = 0; row < rows && gcp.hasLine( row + 1 ); row += 1 ) {
+
+            int lnum = row + 1;
+            if ( gcp.getInt( lnum, "id" ) != row ||
+                 !CsvWriterBenchmark.REGIONS[row % CsvWriterBenchmark.REGIONS.length].equals(
+                         gcp.getString( lnum, "region" )
+                 ) ||
+                 !CsvWriterBenchmark.when( row ).equals( gcp.getDate( lnum, "when" ) ) ||
+                 gcp.getDouble( lnum, "amount" ) != row * 0.25 ||
+                 !CsvWriterBenchmark.comment( row ).equals( gcp.getString( lnum, "comment" ) ) ||
+                 !CsvWriterBenchmark.note( row ).equals( gcp.getString( lnum, "note" ) ) ) {
+
+                if ( mismatches < 10 ) {
+
+                    Logger.logErr( "line " + lnum + " did not survive the round trip" );
+
+                }
+
+                mismatches += 1;
+
+            }
+
+        }
+
+        return mismatches;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "CsvWriterBenchmark", null );
+
+        int rows = args.length > 0 ? Integer.parseInt( args[0] ) : CsvWriterBenchmark.DEFAULT_ROWS;
+
+        try {
+
+            File file = File.createTempFile( "CsvWriterBenchmark", ".csv" );
+            file.deleteOnExit();
+
+            for ( int round = 0; round < CsvWriterBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                Writer writer = new BufferedWriter( new FileWriter( file ) );
+                Measure m = new Measure( "by hand" );
+                try {
+
+                    CsvWriterBenchmark.byHand( writer, rows );
+
+                } finally {
+
+                    writer.close();
+
+                }
+
+                m.done();
+
+                CsvWriter csvWriter = new CsvWriter( new FileWriter( file ) );
+                m = new Measure( "CsvWriter to a Writer" );
+                try {
+
+                    CsvWriterBenchmark.viaCsvWriter( csvWriter, rows );
+
+                } finally {
+
+                    csvWriter.close();
+
+                }
+
+                m.done();
+
+                int mismatches = CsvWriterBenchmark.verify( file, rows, false );
+
+                csvWriter = new CsvWriter( new FileOutputStream( file ).getChannel() );
+                m = new Measure( "CsvWriter to a FileChannel" );
+                try {
+
+                    CsvWriterBenchmark.viaCsvWriter( csvWriter, rows );
+
+                } finally {
+
+                    csvWriter.close();
+
+                }
+
+                m.done();
+
+                mismatches += CsvWriterBenchmark.verify( file, rows, true );
+                if ( mismatches != 0 ) {
+
+                    Logger.logErr( mismatches + " line(s) did not survive the round trip" );
+                    System.exit( 1 );
+
+                }
+
+            }
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "unable to write or read the test file", e );
+            System.exit( 1 );
+
+        } catch ( SyntaxErrorException e ) {
+
+            Logger.logErr( "CsvWriter output failed to parse", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.obtuse.util;
+
+import java.util.List;
+import java.util.SortedMap;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Where a {@link SimpleEventQueue} keeps its pending events.
+ * <p/>
+ * A backend is a priority queue of events ordered by time.  Events which share a time are kept in the order implied by
+ * how they were added (see {@link #add}).  Backends do not enforce any of the queue's clock rules;  the queue takes
+ * care of that before it calls {@link #add}.
+ * <p/>
+ * Implementations need not be thread safe.
+ */
+
+public interface EventQueueBackend<T extends SimpleEvent> {
+
+    /**
+     * Add an event.
+     *
+     * @param when   when the event is to happen.
+     * @param event  the event.
+     * @param before true if the event goes in front of any events already queued for the same time;
+     *               false if it goes behind them.
+     */
+
+    void add( long when, T event, boolean before );
+
+    /**
+     * Determine if there are any events left.
+     *
+     * @return true if there are no events left.
+     */
+
+    boolean isEmpty();
+
+    /**
+     * Get the number of events left.
+     *
+     * @return how many events have been added and not yet removed.
+     */
+
+    int size();
+
+    /**
+     * Get the number of distinct times for which there are events.
+     *
+     * @return the number of distinct times.
+     */
+
+    int getTimeCount();
+
+    /**
+     * Get the time of the earliest events.
+     *
+     * @return the earliest time for which there is at least one event.
+     * @throws java.util.NoSuchElementException if there are no events left.
+     */
+
+    long getFirstTime();
+
+    /**
+     * Get the events for the earliest time (in order).
+     *
+     * @return the events.  The list cannot be modified and is only valid until the next time this backend is modified.
+     * @throws java.util.NoSuchElementException if there are no events left.
+     */
+
+    List<T> getFirstBatch();
+
+    /**
+     * Remove the first of the events for the earliest time.
+     *
+     * @return the removed event.
+     * @throws java.util.NoSuchElementException if there are no events left.
+     */
+
+    T removeFirst();
+
+    /**
+     * Remove all of the events for the earliest time.
+     *
+     * @throws java.util.NoSuchElementException if there are no events left.
+     */
+
+    void removeFirstBatch();
+
+    /**
+     * Remove all events.
+     */
+
+    void clear();
+
+    /**
+     * Get a copy of all of the events (intended for debugging).
+     *
+     * @return the events for each time (in order).
+     */
+
+    SortedMap<Long,List<T>> snapshot();
+
+}
@@ -0,0 +1,407 @@
+package com.obtuse.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Counters which describe what a {@link SimpleEventQueue} has been doing (see
+ * {@link SimpleEventQueue#setStats}).
+ * <p/>
+ * Keeps track of how many events have been run (and how quickly), how many events are pending and at how many
+ * distinct times, and a histogram of how long the events of each {@link SimpleEvent} class take to run.
+ * <p/>
+ * Everything is recorded with atomic variables (no locks, no logging, no date formatting) so the counters are cheap to
+ * keep up to date and can be read by any thread while the simulation is running.
+ */
+
+public class EventQueueStats {
+
+    /**
+     * The histogram buckets are powers of two:  bucket <tt>i</tt> counts events that took at least
+     * <tt>2<sup>i-1</sup></tt> and less than <tt>2<sup>i</sup></tt> nanoseconds (bucket 0 counts zero nanosecond
+     * events).
+     */
+
+    private static final int HISTOGRAM_BUCKETS = 64;
+
+    /**
+     * How long the events of one class take to run.
+     */
+
+    public static class EventClassStats {
+
+        private final Class<?> _eventClass;
+
+        private final AtomicLong _count = new AtomicLong();
+
+        private final AtomicLong _totalNanos = new AtomicLong();
+
+        private final AtomicLong _maxNanos = new AtomicLong();
+
+        private final AtomicLongArray _histogram = new AtomicLongArray( EventQueueStats.HISTOGRAM_BUCKETS );
+
+        private EventClassStats( Class<?> eventClass ) {
+            super();
+
+            _eventClass = eventClass;
+
+        }
+
+        private void record( long nanos ) {
+
+            _count.incrementAndGet();
+            _totalNanos.addAndGet( nanos );
+            _histogram.incrementAndGet( 64 - Long.numberOfLeadingZeros( nanos ) );
+
+            long max = _maxNanos.get();
+            while ( nanos > max && !_maxNanos.compareAndSet( max, nanos ) ) {
+
+                max = _maxNanos.get();
+
+            }
+
+        }
+
+        public Class<?> getEventClass() {
+
+            return _eventClass;
+
+        }
+
+        public long getCount() {
+
+            return _count.get();
+
+        }
+
+        public long getTotalNanos() {
+
+            return _totalNanos.get();
+
+        }
+
+        public long getMaxNanos() {
+
+            return _maxNanos.get();
+
+        }
+
+        public double getMeanNanos() {
+
+            long count = _count.get();
+
+            return count == 0L ? 0.0 : (double)_totalNanos.get() / (double)count;
+
+        }
+
+        /**
+         * Get a copy of the histogram.
+         *
+         * @return the number of events in each bucket (bucket <tt>i</tt> counts events that took less than
+         *         <tt>2<sup>i</sup></tt> nanoseconds and, unless <tt>i</tt> is 0, at least <tt>2<sup>i-1</sup></tt>).
+         */
+
+        public long[] getHistogram() {
+
+            long[] rval = new long[EventQueueStats.HISTOGRAM_BUCKETS];
+            for ( int i = 0; i < rval.length; i += 1 ) {
+
+                rval[i] = _histogram.get( i );
+
+            }
+
+            return rval;
+
+        }
+
+        /**
+         * Estimate a percentile of the events' run times.
+         *
+         * @param percentile the percentile (between 0 and 100).
+         * @return an upper bound (accurate to within a factor of two) on the run time in nanoseconds which the
+         *         specified percentage of events did not exceed (0 if no events have been recorded).
+         */
+
+        public long getPercentileNanos( double percentile ) {
+
+            long[] histogram = getHistogram();
+            long count = 0L;
+            for ( long bucketCount : histogram ) {
+
+                count += bucketCount;
+
+            }
+
+            //noinspection MagicNumber
+            long wanted = (long)Math.ceil( (double)count * percentile / 100.0 );
+            long seen = 0L;
+            for ( int i = 0; i < histogram.length; i += 1 ) {
+
+                seen += histogram[i];
+                if ( seen >= wanted && seen > 0L ) {
+
+                    return i == 0 ? 0L : i == 63 ? Long.MAX_VALUE : ( 1L << i ) - 1L;
+
+                }
+
+            }
+
+            return 0L;
+
+        }
+
+        public String toString() {
+
+            return "EventClassStats( " + _eventClass.getName() + ", " + getCount() + " events )";
+
+        }
+
+    }
+
+    private final ConcurrentMap<Class<?>,EventClassStats> _eventClasses =
+            new ConcurrentHashMap<Class<?>,EventClassStats>();
+
+    private final AtomicInteger _queueDepth = new AtomicInteger();
+
+    private final AtomicInteger _maxQueueDepth = new AtomicInteger();
+
+    private final AtomicInteger _distinctTimes = new AtomicInteger();
+
+    private final AtomicInteger _maxDistinctTimes = new AtomicInteger();
+
+    private volatile long _startNanos;
+
+    public EventQueueStats() {
+        super();
+
+        _startNanos = System.nanoTime();
+
+    }
+
+    /**
+     * Record that an event has been run.
+     * May be called by several threads at once (if the queue has a batch executor).
+     *
+     * @param event the event.
+     * @param nanos how long it took.
+     */
+
+    void eventRun( SimpleEvent event, long nanos ) {
+
+        Class<?> eventClass = event.getClass();
+        EventClassStats stats = _eventClasses.get( eventClass );
+        if ( stats == null ) {
+
+            EventClassStats newStats = new EventClassStats( eventClass );
+            stats = _eventClasses.putIfAbsent( eventClass, newStats );
+            if ( stats == null ) {
+
+                stats = newStats;
+
+            }
+
+        }
+
+        stats.record( nanos );
+
+    }
+
+    /**
+     * Record the size of the queue.
+     * Only called by the thread running the queue.
+     *
+     * @param depth         the number of pending events.
+     * @param distinctTimes the number of distinct times at which there are pending events.
+     */
+
+    void queueObserved( int depth, int distinctTimes ) {
+
+        // There is only one writer so plain (lazy) sets are enough for the current values.
+
+        _queueDepth.lazySet( depth );
+        _distinctTimes.lazySet( distinctTimes );
+        if ( depth > _maxQueueDepth.get() ) {
+
+            _maxQueueDepth.lazySet( depth );
+
+        }
+
+        if ( distinctTimes > _maxDistinctTimes.get() ) {
+
+            _maxDistinctTimes.lazySet( distinctTimes );
+
+        }
+
+    }
+
+    public long getEventsRun() {
+
+        long rval = 0L;
+        for ( EventClassStats stats : _eventClasses.values() ) {
+
+            rval += stats.getCount();
+
+        }
+
+        return rval;
+
+    }
+
+    /**
+     * Get the average rate at which events have been run.
+     *
+     * @return the number of events run per second since this instance was created (or last reset).
+     */
+
+    public double getEventsPerSecond() {
+
+        long elapsed = System.nanoTime() - _startNanos;
+
+        //noinspection MagicNumber
+        return elapsed <= 0L ? 0.0 : (double)getEventsRun() * 1e9 / (double)elapsed;
+
+    }
+
+    public int getQueueDepth() {
+
+        return _queueDepth.get();
+
+    }
+
+    public int getMaxQueueDepth() {
+
+        return _maxQueueDepth.get();
+
+    }
+
+    public int getDistinctTimes() {
+
+        return _distinctTimes.get();
+
+    }
+
+    public int getMaxDistinctTimes() {
+
+        return _maxDistinctTimes.get();
+
+    }
+
+    /**
+     * Get the run time statistics for each class of event that has been run.
+     *
+     * @return the statistics, busiest (by total run time) first.
+     */
+
+    public List<EventClassStats> getEventClassStats() {
+
+        List<EventClassStats> rval = new ArrayList<EventClassStats>( _eventClasses.values() );
+        Collections.sort(
+                rval,
+                new Comparator<EventClassStats>() {
+
+                    public int compare( EventClassStats lhs, EventClassStats rhs ) {
+
+                        long lhsTotal = lhs.getTotalNanos();
+                        long rhsTotal = rhs.getTotalNanos();
+
+                        return lhsTotal > rhsTotal ? -1 : lhsTotal == rhsTotal ? 0 : 1;
+
+                    }
+
+                }
+        );
+
+        return rval;
+
+    }
+
+    /**
+     * Start counting again.
+     * Counts recorded by other threads while this method is running may or may not survive.
+     */
+
+    public void reset() {
+
+        _eventClasses.clear();
+        _maxQueueDepth.set( _queueDepth.get() );
+        _maxDistinctTimes.set( _distinctTimes.get() );
+        _startNanos = System.nanoTime();
+
+    }
+
+    /**
+     * Describe everything that has been recorded.
+     *
+     * @param where where the description goes.
+     */
+
+    public void dump( PrintStream where ) {
+
+        where.println(
+                "events run:  " + getEventsRun() + " (" + String.format( "%.0f", getEventsPerSecond() ) + " per second)"
+        );
+        where.println( "queue depth:  " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")" );
+        where.println( "distinct times:  " + getDistinctTimes() + " (max " + getMaxDistinctTimes() + ")" );
+
+        List<EventClassStats> eventClassStats = getEventClassStats();
+        int maxNameLength = "event class".length();
+        for ( EventClassStats stats : eventClassStats ) {
+
+            maxNameLength = Math.max( maxNameLength, stats.getEventClass().getName().length() );
+
+        }
+
+        where.println(
+                ObtuseUtil.rpad( "event class", maxNameLength + 2 )
+                + "   " +
+                ObtuseUtil.lpad( "count", 12 )
+                + "   " +
+                ObtuseUtil.lpad( "mean ns", 10 )
+                + "   " +
+                ObtuseUtil.lpad( "p50 ns <", 10 )
+                + "   " +
+                ObtuseUtil.lpad( "p99 ns <", 10 )
+                + "   " +
+                ObtuseUtil.lpad( "max ns", 12 )
+        );
+
+        for ( EventClassStats stats : eventClassStats ) {
+
+            //noinspection MagicNumber
+            where.println(
+                    ObtuseUtil.rpad( stats.getEventClass().getName(), maxNameLength + 2 )
+                    + " : " +
+                    ObtuseUtil.lpad( stats.getCount(), 12 )
+                    + " : " +
+                    String.format( "%10.0f", stats.getMeanNanos() )
+                    + " : " +
+                    ObtuseUtil.lpad( stats.getPercentileNanos( 50.0 ), 10 )
+                    + " : " +
+                    ObtuseUtil.lpad( stats.getPercentileNanos( 99.0 ), 10 )
+                    + " : " +
+                    ObtuseUtil.lpad( stats.getMaxNanos(), 12 )
+            );
+
+        }
+
+    }
+
+    public String toString() {
+
+        return "EventQueueStats( " + getEventsRun() + " events run, depth " + getQueueDepth() + " )";
+
+    }
+
+}
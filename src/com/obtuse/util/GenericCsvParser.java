@@ -3,13 +3,10 @@ package com.obtuse.util;
 import com.obtuse.exceptions.HowDidWeGetHereError;
 import com.obtuse.util.exceptions.SyntaxErrorException;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Parse a CSV file where the first line provides the names of each column.
@@ -18,47 +15,1415 @@ import java.util.List;
  * manipulating arbitrary files of the format commonly encountered when working
  * with MS Excel.
  * <p/>
+ * The parsed data is stored by column (one array per title).  Columns with relatively few distinct values are
+ * dictionary encoded so that each distinct value is stored once and each cell costs two bytes.
+ * <p/>
+ * Callers which only need some of the columns, or which want numbers and dates rather than text, can describe what
+ * they want with a {@link Schema} (see {@link #parse(Schema)}).
+ * <p/>
+ * Parsers created from a file name can also parse the file on several threads at once (see {@link #parse(int)}).
+ * They can also read the file by mapping it into memory (see {@link #GenericCsvParser(String, boolean)}).
+ * <p/>
+ * Files which are too big to keep in memory can be streamed instead of parsed:  create the parser (which reads the
+ * titles) and then hand the rest of the file to a {@link CSVParser.RecordHandler} via {@link #parseRecords}.
+ * <p/>
  * Copyright © 2011 Invidi Technologies Corporation
  */
 
-public class GenericCsvParser extends CSVParser {
+public class GenericCsvParser extends CSVParser {
+
+    /**
+     * How the values in a column are to be stored.
+     * <p/>
+     * Numeric and date values are converted as the file is parsed (straight out of the parser's input buffer) and
+     * stored in primitive arrays.  An empty field is a missing value.
+     */
+
+    public static enum ColumnType {
+
+        /**
+         * Keep the text (retrieve it with {@link GenericCsvParser#getString}).
+         */
+
+        STRING,
+
+        /**
+         * An optionally signed decimal integer which fits in an <tt>int</tt>
+         * (retrieve it with {@link GenericCsvParser#getInt}).
+         */
+
+        INT,
+
+        /**
+         * An optionally signed decimal integer which fits in a <tt>long</tt>
+         * (retrieve it with {@link GenericCsvParser#getLong}).
+         */
+
+        LONG,
+
+        /**
+         * Anything that {@link Double#parseDouble} accepts (retrieve it with {@link GenericCsvParser#getDouble}).
+         */
+
+        DOUBLE,
+
+        /**
+         * A date of the format "YYYY-MM-DD HH:MM:SS" in the default time zone (the format which
+         * {@link CSVParser#parseDate} accepts).  Retrieve it with {@link GenericCsvParser#getDate}.
+         */
+
+        DATE
+
+    }
+
+    /**
+     * Which columns are to be kept by {@link GenericCsvParser#parse(Schema)} and how their values are to be stored.
+     * <p/>
+     * Columns which are not mentioned in the schema are skipped as the file is parsed.
+     */
+
+    public static class Schema {
+
+        private final Map<String,ColumnType> _types = new LinkedHashMap<String,ColumnType>();
+
+        public Schema() {
+            super();
+
+        }
+
+        /**
+         * Specify how the column(s) with a particular title are to be stored.
+         *
+         * @param title the column's title.
+         * @param type  how it is to be stored.
+         * @return this schema (so that calls can be chained).
+         */
+
+        public Schema add( String title, ColumnType type ) {
+
+            if ( type == null ) {
+
+                throw new IllegalArgumentException( "no type specified for \"" + title + "\"" );
+
+            }
+
+            _types.put( title, type );
+
+            return this;
+
+        }
+
+        public ColumnType getType( String title ) {
+
+            return _types.get( title );
+
+        }
+
+        public Set<String> getTitles() {
+
+            return Collections.unmodifiableSet( _types.keySet() );
+
+        }
+
+        public String toString() {
+
+            return "Schema( " + _types + " )";
+
+        }
+
+    }
+
+    /**
+     * The values in one column of the file (the value on line <tt>n</tt> is at index <tt>n - 1</tt>).
+     * <p/>
+     * A column starts out dictionary encoded.  It switches to a plain array of strings if it turns out to have
+     * too many distinct values.
+     */
+
+    private static class Column {
+
+        // Code 0 means that the line did not have a value for this column.
+
+        private static final int MAX_DICTIONARY_SIZE = (int)Character.MAX_VALUE;
+
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private int _size = 0;
+
+        private char[] _codes = new char[Column.INITIAL_CAPACITY];
+
+        private String[] _dictionary = new String[64];
+
+        private int _dictionarySize = 1;
+
+        // An open addressing hash table of dictionary codes (0 marks an empty slot).
+
+        private int[] _slots = new int[128];
+
+        private String[] _values = null;
+
+        private Column() {
+            super();
+
+        }
+
+        private void add( CharSequence value ) {
+
+            if ( _values == null ) {
+
+                char code = value == null ? 0 : encode( value );
+                if ( _values == null ) {
+
+                    ensureCodeCapacity( _size + 1 );
+                    _codes[_size] = code;
+                    _size += 1;
+                    return;
+
+                }
+
+                // The dictionary just overflowed.
+
+            }
+
+            if ( _size == _values.length ) {
+
+                String[] values = new String[_size * 2];
+                System.arraycopy( _values, 0, values, 0, _size );
+                _values = values;
+
+            }
+
+            _values[_size] = value == null ? null : value.toString();
+            _size += 1;
+
+        }
+
+        private void ensureCodeCapacity( int capacity ) {
+
+            if ( capacity > _codes.length ) {
+
+                char[] codes = new char[Math.max( capacity, _codes.length * 2 )];
+                System.arraycopy( _codes, 0, codes, 0, _size );
+                _codes = codes;
+
+            }
+
+        }
+
+        /**
+         * Append all the values in another column to this column.
+         * When both columns are dictionary encoded, the other column's codes are translated rather than re-encoding
+         * each value.
+         * @param other the other column.
+         */
+
+        private void append( Column other ) {
+
+            if ( _values == null && other._values == null ) {
+
+                char[] translation = new char[other._dictionarySize];
+                for ( int code = 1; code < other._dictionarySize && _values == null; code += 1 ) {
+
+                    translation[code] = encode( other._dictionary[code] );
+
+                }
+
+                if ( _values == null ) {
+
+                    ensureCodeCapacity( _size + other._size );
+                    for ( int i = 0; i < other._size; i += 1 ) {
+
+                        _codes[_size + i] = translation[other._codes[i]];
+
+                    }
+
+                    _size += other._size;
+                    return;
+
+                }
+
+                // Our dictionary overflowed along the way.
+
+            }
+
+            for ( int i = 0; i < other._size; i += 1 ) {
+
+                add( other.get( i ) );
+
+            }
+
+        }
+
+        /**
+         * Find (or create) the dictionary code for a value.
+         * If the dictionary is full then the column is converted to a plain array of strings.
+         * @param value the value.
+         * @return the value's code (meaningless if the column was converted).
+         */
+
+        private char encode( CharSequence value ) {
+
+            int length = value.length();
+            int hash = 0;
+            for ( int i = 0; i < length; i += 1 ) {
+
+                hash = 31 * hash + value.charAt( i );
+
+            }
+
+            int mask = _slots.length - 1;
+            int slot = ( hash ^ hash >>> 16 ) & mask;
+            while ( _slots[slot] != 0 ) {
+
+                String candidate = _dictionary[_slots[slot]];
+                if ( candidate.hashCode() == hash && candidate.contentEquals( value ) ) {
+
+                    return (char)_slots[slot];
+
+                }
+
+                slot = ( slot + 1 ) & mask;
+
+            }
+
+            if ( _dictionarySize > Column.MAX_DICTIONARY_SIZE ) {
+
+                switchToPlainValues();
+                return 0;
+
+            }
+
+            if ( _dictionarySize == _dictionary.length ) {
+
+                String[] dictionary = new String[_dictionarySize * 2];
+                System.arraycopy( _dictionary, 0, dictionary, 0, _dictionarySize );
+                _dictionary = dictionary;
+
+            }
+
+            int code = _dictionarySize;
+            _dictionary[code] = value.toString();
+            _dictionarySize += 1;
+            _slots[slot] = code;
+
+            if ( _dictionarySize * 2 > _slots.length ) {
+
+                rehash( _slots.length * 2 );
+
+            }
+
+            return (char)code;
+
+        }
+
+        private void rehash( int slotCount ) {
+
+            int[] slots = new int[slotCount];
+            int mask = slotCount - 1;
+            for ( int code = 1; code < _dictionarySize; code += 1 ) {
+
+                int hash = _dictionary[code].hashCode();
+                int slot = ( hash ^ hash >>> 16 ) & mask;
+                while ( slots[slot] != 0 ) {
+
+                    slot = ( slot + 1 ) & mask;
+
+                }
+
+                slots[slot] = code;
+
+            }
+
+            _slots = slots;
+
+        }
+
+        private void switchToPlainValues() {
+
+            _values = new String[_codes.length];
+            for ( int i = 0; i < _size; i += 1 ) {
+
+                _values[i] = _dictionary[_codes[i]];
+
+            }
+
+            _codes = null;
+            _dictionary = null;
+            _slots = null;
+
+        }
+
+        /**
+         * Release any unused capacity once all the values are in.
+         */
+
+        private void trim() {
+
+            if ( _values == null ) {
+
+                if ( _codes.length > _size ) {
+
+                    char[] codes = new char[_size];
+                    System.arraycopy( _codes, 0, codes, 0, _size );
+                    _codes = codes;
+
+                }
+
+                // The hash table is only needed while values are still arriving.
+
+                _slots = null;
+
+            } else if ( _values.length > _size ) {
+
+                String[] values = new String[_size];
+                System.arraycopy( _values, 0, values, 0, _size );
+                _values = values;
+
+            }
+
+        }
+
+        private String get( int ix ) {
+
+            return _values == null ? _dictionary[_codes[ix]] : _values[ix];
+
+        }
+
+    }
+
+    /**
+     * The values in one column of the file which are stored as numbers or dates rather than as text.
+     * <p/>
+     * Values are converted straight from the {@link CSVParser.Field} views which the parser hands us so that a value
+     * costs no allocations.  Missing values are recorded in a bitmap.
+     */
+
+    private static class TypedColumn {
+
+        private static final long MAX_FAST_MANTISSA = 1L << 53;
+
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+                1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private final ColumnType _type;
+
+        private int _size = 0;
+
+        private int[] _ints = null;
+
+        private long[] _longs = null;
+
+        private double[] _doubles = null;
+
+        private long[] _missing = new long[Column.INITIAL_CAPACITY >> 6];
+
+        // The value most recently converted by one of the parse methods.
+
+        private long _parsedLong;
+
+        private double _parsedDouble;
+
+        // Dates are converted with our own calendar.  Converting the year, month, day and hour is the expensive part
+        // so the start of the most recently seen hour is remembered.
+
+        private Calendar _calendar = null;
+
+        private long _cachedHourKey = -1L;
+
+        private long _cachedHourStart;
+
+        private TypedColumn( ColumnType type ) {
+            super();
+
+            _type = type;
+            switch ( type ) {
+
+                case INT:
+                    _ints = new int[Column.INITIAL_CAPACITY];
+                    break;
+
+                case LONG:
+                    _longs = new long[Column.INITIAL_CAPACITY];
+                    break;
+
+                case DOUBLE:
+                    _doubles = new double[Column.INITIAL_CAPACITY];
+                    break;
+
+                case DATE:
+                    _longs = new long[Column.INITIAL_CAPACITY];
+                    _calendar = Calendar.getInstance();
+                    break;
+
+                default:
+                    throw new IllegalArgumentException( "a " + type + " column is not a typed column" );
+
+            }
+
+        }
+
+        private int capacity() {
+
+            return _ints != null ? _ints.length : _longs != null ? _longs.length : _doubles.length;
+
+        }
+
+        private void ensureCapacity( int capacity ) {
+
+            int oldCapacity = capacity();
+            if ( capacity <= oldCapacity ) {
+
+                return;
+
+            }
+
+            int newCapacity = Math.max( capacity, oldCapacity * 2 );
+            if ( _ints != null ) {
+
+                int[] ints = new int[newCapacity];
+                System.arraycopy( _ints, 0, ints, 0, _size );
+                _ints = ints;
+
+            } else if ( _longs != null ) {
+
+                long[] longs = new long[newCapacity];
+                System.arraycopy( _longs, 0, longs, 0, _size );
+                _longs = longs;
+
+            } else {
+
+                double[] doubles = new double[newCapacity];
+                System.arraycopy( _doubles, 0, doubles, 0, _size );
+                _doubles = doubles;
+
+            }
+
+            long[] missing = new long[( newCapacity + 63 ) >> 6];
+            System.arraycopy( _missing, 0, missing, 0, _missing.length );
+            _missing = missing;
+
+        }
+
+        /**
+         * Convert and add a value to this column.
+         *
+         * @param value the value (null or empty if the value is missing).
+         * @return true if it worked; false if the value is not valid for this column's type.
+         */
+
+        private boolean add( CharSequence value ) {
+
+            ensureCapacity( _size + 1 );
+
+            if ( value == null || value.length() == 0 ) {
+
+                _missing[_size >> 6] |= 1L << _size;
+                _size += 1;
+
+                return true;
+
+            }
+
+            switch ( _type ) {
+
+                case INT:
+                    if ( !parseLong( value, (long)Integer.MIN_VALUE, (long)Integer.MAX_VALUE ) ) {
+
+                        return false;
+
+                    }
+
+                    _ints[_size] = (int)_parsedLong;
+                    break;
+
+                case LONG:
+                    if ( !parseLong( value, Long.MIN_VALUE, Long.MAX_VALUE ) ) {
+
+                        return false;
+
+                    }
+
+                    _longs[_size] = _parsedLong;
+                    break;
+
+                case DOUBLE:
+                    if ( !parseDouble( value ) ) {
+
+                        return false;
+
+                    }
+
+                    _doubles[_size] = _parsedDouble;
+                    break;
+
+                default:
+                    if ( !parseDate( value ) ) {
+
+                        return false;
+
+                    }
+
+                    _longs[_size] = _parsedLong;
+                    break;
+
+            }
+
+            _size += 1;
+
+            return true;
+
+        }
+
+        /**
+         * Parse an optionally signed decimal integer (the same way that {@link Long#parseLong} does).
+         *
+         * @param value the text.
+         * @param min   the smallest acceptable value.
+         * @param max   the largest acceptable value.
+         * @return true if it worked (the value is left in {@link #_parsedLong}); false otherwise.
+         */
+
+        private boolean parseLong( CharSequence value, long min, long max ) {
+
+            int length = value.length();
+            int ix = 0;
+            boolean negative = false;
+            char first = value.charAt( 0 );
+            if ( first == '-' || first == '+' ) {
+
+                if ( length == 1 ) {
+
+                    return false;
+
+                }
+
+                negative = first == '-';
+                ix = 1;
+
+            }
+
+            // Accumulate negatively since there is one more negative value than there are positive values.
+
+            long limit = negative ? min : -max;
+            long multiplyLimit = limit / 10L;
+            long result = 0L;
+            while ( ix < length ) {
+
+                int digit = value.charAt( ix ) - '0';
+                if ( digit < 0 || digit > 9 || result < multiplyLimit ) {
+
+                    return false;
+
+                }
+
+                result *= 10L;
+                if ( result < limit + (long)digit ) {
+
+                    return false;
+
+                }
+
+                result -= (long)digit;
+                ix += 1;
+
+            }
+
+            _parsedLong = negative ? result : -result;
+
+            return true;
+
+        }
+
+        /**
+         * Parse a floating point value.
+         * <p/>
+         * Plain decimal values with no more than 15 or so significant digits and a modest exponent are converted
+         * directly (both the digits and the power of ten are exactly representable as doubles so a single
+         * multiplication or division yields the correctly rounded result).  Anything else is handed to
+         * {@link Double#parseDouble}.  Either way, the result is exactly what {@link Double#parseDouble} would return.
+         *
+         * @param value the text.
+         * @return true if it worked (the value is left in {@link #_parsedDouble}); false otherwise.
+         */
+
+        private boolean parseDouble( CharSequence value ) {
+
+            if ( fastParseDouble( value ) ) {
+
+                return true;
+
+            }
+
+            try {
+
+                _parsedDouble = Double.parseDouble( value.toString() );
+
+                return true;
+
+            } catch ( NumberFormatException e ) {
+
+                return false;
+
+            }
+
+        }
+
+        private boolean fastParseDouble( CharSequence value ) {
+
+            int length = value.length();
+            int ix = 0;
+            boolean negative = false;
+            char ch = value.charAt( 0 );
+            if ( ch == '-' || ch == '+' ) {
+
+                negative = ch == '-';
+                ix = 1;
+
+            }
+
+            long mantissa = 0L;
+            int digits = 0;
+            int scale = 0;
+            boolean sawDigit = false;
+            boolean sawPoint = false;
+            while ( ix < length ) {
+
+                ch = value.charAt( ix );
+                if ( ch >= '0' && ch <= '9' ) {
+
+                    sawDigit = true;
+                    if ( mantissa != 0L || ch != '0' ) {
+
+                        //noinspection MagicNumber
+                        if ( digits == 18 ) {
+
+                            return false;
+
+                        }
+
+                        mantissa = mantissa * 10L + (long)( ch - '0' );
+                        digits += 1;
+
+                    }
+
+                    if ( sawPoint ) {
+
+                        scale -= 1;
+
+                    }
+
+                } else if ( ch == '.' && !sawPoint ) {
+
+                    sawPoint = true;
+
+                } else {
+
+                    break;
+
+                }
+
+                ix += 1;
+
+            }
+
+            if ( !sawDigit ) {
+
+                return false;
+
+            }
+
+            if ( ix < length ) {
+
+                if ( ch != 'e' && ch != 'E' ) {
+
+                    return false;
+
+                }
+
+                ix += 1;
+                boolean negativeExponent = false;
+                if ( ix < length && ( value.charAt( ix ) == '-' || value.charAt( ix ) == '+' ) ) {
+
+                    negativeExponent = value.charAt( ix ) == '-';
+                    ix += 1;
+
+                }
+
+                if ( ix == length ) {
+
+                    return false;
+
+                }
+
+                int exponent = 0;
+                while ( ix < length ) {
+
+                    int digit = value.charAt( ix ) - '0';
+                    //noinspection MagicNumber
+                    if ( digit < 0 || digit > 9 || exponent > 1000 ) {
+
+                        return false;
+
+                    }
+
+                    exponent = exponent * 10 + digit;
+                    ix += 1;
+
+                }
+
+                scale += negativeExponent ? -exponent : exponent;
+
+            }
+
+            if ( mantissa > TypedColumn.MAX_FAST_MANTISSA || Math.abs( scale ) >= TypedColumn.POWERS_OF_TEN.length ) {
+
+                return false;
+
+            }
+
+            double rval = (double)mantissa;
+            rval = scale >= 0 ? rval * TypedColumn.POWERS_OF_TEN[scale] : rval / TypedColumn.POWERS_OF_TEN[-scale];
+            _parsedDouble = negative ? -rval : rval;
+
+            return true;
+
+        }
+
+        /**
+         * Parse a date of the format "YYYY-MM-DD HH:MM:SS" in the default time zone.
+         * Like the {@link java.text.SimpleDateFormat} used by {@link CSVParser#parseDate}, each part may have any
+         * number of digits and out of range parts roll over into the next larger part.
+         *
+         * @param value the text.
+         * @return true if it worked (the value is left in {@link #_parsedLong}); false otherwise.
+         */
+
+        private boolean parseDate( CharSequence value ) {
+
+            int length = value.length();
+            int year = 0;
+            int month = 0;
+            int day = 0;
+            int hour = 0;
+            int minute = 0;
+            int second = 0;
+
+            int ix = 0;
+            for ( int part = 0; part < 6; part += 1 ) {
+
+                if ( part > 0 ) {
+
+                    //noinspection MagicNumber
+                    char separator = part < 3 ? '-' : part == 3 ? ' ' : ':';
+                    if ( ix == length || value.charAt( ix ) != separator ) {
+
+                        return false;
+
+                    }
+
+                    ix += 1;
+
+                }
+
+                int start = ix;
+                int partValue = 0;
+                while ( ix < length ) {
+
+                    int digit = value.charAt( ix ) - '0';
+                    if ( digit < 0 || digit > 9 ) {
+
+                        break;
+
+                    }
+
+                    //noinspection MagicNumber
+                    if ( ix - start == 9 ) {
+
+                        return false;
+
+                    }
+
+                    partValue = partValue * 10 + digit;
+                    ix += 1;
+
+                }
+
+                if ( ix == start ) {
+
+                    return false;
+
+                }
+
+                //noinspection MagicNumber
+                switch ( part ) {
+
+                    case 0:
+                        year = partValue;
+                        break;
+
+                    case 1:
+                        month = partValue;
+                        break;
+
+                    case 2:
+                        day = partValue;
+                        break;
+
+                    case 3:
+                        hour = partValue;
+                        break;
+
+                    case 4:
+                        minute = partValue;
+                        break;
+
+                    default:
+                        second = partValue;
+                        break;
+
+                }
+
+            }
+
+            if ( ix != length ) {
+
+                return false;
+
+            }
+
+            //noinspection MagicNumber
+            if ( year < 100000 && month < 100 && day < 100 && hour < 100 && minute < 60 && second < 60 ) {
+
+                //noinspection MagicNumber
+                long hourKey = ( ( (long)year * 100L + (long)month ) * 100L + (long)day ) * 100L + (long)hour;
+                if ( hourKey != _cachedHourKey ) {
+
+                    long hourStart = convertDate( year, month, day, hour, 0, 0 );
+                    TimeZone zone = _calendar.getTimeZone();
+                    //noinspection MagicNumber
+                    if ( zone.getOffset( hourStart ) != zone.getOffset( hourStart + 3599999L ) ) {
+
+                        // The clocks change during this hour.
+
+                        _parsedLong = convertDate( year, month, day, hour, minute, second );
+                        return true;
+
+                    }
+
+                    _cachedHourKey = hourKey;
+                    _cachedHourStart = hourStart;
+
+                }
+
+                //noinspection MagicNumber
+                _parsedLong = _cachedHourStart + (long)( minute * 60 + second ) * 1000L;
+
+            } else {
+
+                _parsedLong = convertDate( year, month, day, hour, minute, second );
+
+            }
+
+            return true;
+
+        }
+
+        private long convertDate( int year, int month, int day, int hour, int minute, int second ) {
+
+            _calendar.clear();
+            _calendar.set( year, month - 1, day, hour, minute, second );
+
+            return _calendar.getTimeInMillis();
+
+        }
+
+        /**
+         * Append all the values in another column of the same type to this column.
+         *
+         * @param other the other column.
+         */
+
+        private void append( TypedColumn other ) {
+
+            ensureCapacity( _size + other._size );
+            if ( _ints != null ) {
+
+                System.arraycopy( other._ints, 0, _ints, _size, other._size );
+
+            } else if ( _longs != null ) {
+
+                System.arraycopy( other._longs, 0, _longs, _size, other._size );
+
+            } else {
+
+                System.arraycopy( other._doubles, 0, _doubles, _size, other._size );
+
+            }
+
+            for ( int word = 0; word < other._missing.length; word += 1 ) {
+
+                long bits = other._missing[word];
+                while ( bits != 0L ) {
+
+                    int ix = _size + ( word << 6 ) + Long.numberOfTrailingZeros( bits );
+                    _missing[ix >> 6] |= 1L << ix;
+                    bits &= bits - 1L;
+
+                }
+
+            }
+
+            _size += other._size;
+
+        }
+
+        private void trim() {
+
+            if ( capacity() > _size ) {
+
+                if ( _ints != null ) {
+
+                    int[] ints = new int[_size];
+                    System.arraycopy( _ints, 0, ints, 0, _size );
+                    _ints = ints;
+
+                } else if ( _longs != null ) {
+
+                    long[] longs = new long[_size];
+                    System.arraycopy( _longs, 0, longs, 0, _size );
+                    _longs = longs;
+
+                } else {
+
+                    double[] doubles = new double[_size];
+                    System.arraycopy( _doubles, 0, doubles, 0, _size );
+                    _doubles = doubles;
+
+                }
+
+                long[] missing = new long[( _size + 63 ) >> 6];
+                System.arraycopy( _missing, 0, missing, 0, missing.length );
+                _missing = missing;
+
+            }
+
+            _calendar = null;
+
+        }
+
+        private boolean hasValue( int ix ) {
+
+            return ( _missing[ix >> 6] & 1L << ix ) == 0L;
+
+        }
+
+    }
+
+    /**
+     * Load records into a fresh set of columns.
+     * Only the columns which have a type are loaded (the others are left null and their fields are never touched).
+     */
+
+    private static class ColumnLoader implements RecordHandler {
+
+        private final ColumnType[] _types;
+
+        private final Column[] _loadedColumns;
+
+        private final TypedColumn[] _loadedTypedColumns;
+
+        // The indices of the columns which are loaded.
+
+        private final int[] _loadedIndices;
+
+        private final boolean _skipFirstRecord;
+
+        private final List<String> _titles;
+
+        // Where our chunk of the file starts (-1 if we are parsing the whole file).
+
+        private final long _chunkStart;
+
+        private int _lineCount = 0;
+
+        private ColumnLoader( ColumnType[] types, List<String> titles, boolean skipFirstRecord, long chunkStart ) {
+            super();
+
+            _types = types;
+            _titles = titles;
+            _loadedColumns = new Column[types.length];
+            _loadedTypedColumns = new TypedColumn[types.length];
+
+            int loadedCount = 0;
+            for ( ColumnType type : types ) {
+
+                if ( type != null ) {
+
+                    loadedCount += 1;
+
+                }
+
+            }
+
+            _loadedIndices = new int[loadedCount];
+            loadedCount = 0;
+            for ( int i = 0; i < types.length; i += 1 ) {
+
+                if ( types[i] == ColumnType.STRING ) {
+
+                    _loadedColumns[i] = new Column();
+
+                } else if ( types[i] != null ) {
+
+                    _loadedTypedColumns[i] = new TypedColumn( types[i] );
+
+                }
+
+                if ( types[i] != null ) {
+
+                    _loadedIndices[loadedCount] = i;
+                    loadedCount += 1;
+
+                }
+
+            }
+
+            _skipFirstRecord = skipFirstRecord;
+            _chunkStart = chunkStart;
+
+        }
+
+        public boolean handleRecord( int recordNumber, Field[] fields, int fieldCount )
+                throws SyntaxErrorException {
+
+            if ( _skipFirstRecord && recordNumber == 1 ) {
+
+                return true;
+
+            }
+
+            for ( int ix : _loadedIndices ) {
+
+                Field value = ix < fieldCount ? fields[ix] : null;
+                if ( _loadedColumns[ix] != null ) {
+
+                    _loadedColumns[ix].add( value );
+
+                } else if ( !_loadedTypedColumns[ix].add( value ) ) {
+
+                    throw new SyntaxErrorException(
+                            (
+                                    _chunkStart < 0L
+                                            ? "line " + ( _lineCount + 1 )
+                                            : "record " + recordNumber + " of the chunk starting at byte " + _chunkStart
+                            ) + ", column \"" + _titles.get( ix ) + "\":  \"" + value + "\" is not a valid " + _types[ix]
+                    );
+
+                }
+
+            }
+
+            _lineCount += 1;
+
+            return true;
+
+        }
+
+        /**
+         * Append the columns loaded by another loader (with the same types) to our columns.
+         *
+         * @param other the other loader.
+         */
+
+        private void append( ColumnLoader other ) {
+
+            for ( int ix : _loadedIndices ) {
+
+                if ( _loadedColumns[ix] != null ) {
+
+                    _loadedColumns[ix].append( other._loadedColumns[ix] );
+
+                } else {
+
+                    _loadedTypedColumns[ix].append( other._loadedTypedColumns[ix] );
+
+                }
+
+            }
+
+            _lineCount += other._lineCount;
+
+        }
+
+    }
+
+    /**
+     * An input stream which delivers at most a specified number of bytes from an underlying input stream.
+     */
+
+    private static class RangeInputStream extends FilterInputStream {
+
+        private long _remaining;
+
+        private RangeInputStream( InputStream in, long length ) {
+            super( in );
+
+            _remaining = length;
+
+        }
+
+        public int read()
+                throws IOException {
+
+            if ( _remaining <= 0L ) {
+
+                return -1;
+
+            }
+
+            int b = super.read();
+            if ( b >= 0 ) {
+
+                _remaining -= 1L;
+
+            }
+
+            return b;
+
+        }
+
+        public int read( byte[] b, int off, int len )
+                throws IOException {
+
+            if ( _remaining <= 0L ) {
+
+                return -1;
+
+            }
+
+            int count = super.read( b, off, (int)Math.min( (long)len, _remaining ) );
+            if ( count > 0 ) {
+
+                _remaining -= (long)count;
+
+            }
+
+            return count;
+
+        }
+
+        public long skip( long n )
+                throws IOException {
+
+            long skipped = super.skip( Math.min( n, _remaining ) );
+            _remaining -= skipped;
+
+            return skipped;
+
+        }
+
+        public int available()
+                throws IOException {
+
+            return (int)Math.min( (long)super.available(), _remaining );
+
+        }
+
+    }
+
+    /**
+     * Chunks handed to parsing threads are at least this big (unless the file is smaller).
+     */
+
+    private static final long MIN_CHUNK_SIZE = 1024L * 1024L;
+
+    /**
+     * How many chunks each parsing thread gets (on average).
+     * More chunks than threads keeps all the threads busy if some chunks take longer than others.
+     */
+
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final String _description;
+    private final File _file;
+    private final boolean _memoryMapped;
+    private final List<String> _titles;
+    private final Map<String,Integer> _columnIndices = new HashMap<String,Integer>();
+    private final int[] _previousColumnWithSameTitle;
+    private ColumnType[] _columnTypes = null;
+    private Column[] _columns = null;
+    private TypedColumn[] _typedColumns = null;
+    private int _nextLnum = 0;
+
+//    private class ParsedCsvLine {
+//
+//        private final SortedMap<Integer,String> _fields = new TreeMap<Integer,String>();
+//        private int _nextFieldIx;
+//
+//        private ParsedCsvLine() {
+//            super();
+//
+//            _nextFieldIx = 0;
+//
+//        }
+//    }
+
+    public GenericCsvParser( String fileName )
+            throws FileNotFoundException, SyntaxErrorException {
+        this( fileName, new BufferedReader( new FileReader( fileName ) ), new File( fileName ), false );
+
+    }
+
+    /**
+     * Create a parser for a file which is optionally read by mapping it into memory.
+     * <p/>
+     * A memory mapped file is decoded as UTF-8 (which includes plain ASCII) by a {@link MappedFileReader} regardless
+     * of the platform's default character set.  Otherwise, this constructor is equivalent to
+     * {@link #GenericCsvParser(String)}.
+     *
+     * @param fileName     the file.
+     * @param memoryMapped true if the file is to be memory mapped.
+     * @throws IOException          if the file cannot be opened or mapped.
+     * @throws SyntaxErrorException if the titles line is malformed.
+     */
+
+    public GenericCsvParser( String fileName, boolean memoryMapped )
+            throws IOException, SyntaxErrorException {
+        this(
+                fileName,
+                memoryMapped
+                        ? new BufferedReader( new MappedFileReader( new File( fileName ) ) )
+                        : new BufferedReader( new FileReader( fileName ) ),
+                new File( fileName ),
+                memoryMapped
+        );
+
+    }
+
+    public GenericCsvParser( String description, BufferedReader input )
+            throws SyntaxErrorException {
+        this( description, input, null, false );
+
+    }
+
+    private GenericCsvParser( String description, BufferedReader input, File file, boolean memoryMapped )
+            throws SyntaxErrorException {
+        super( input );
+
+        _description = description;
+        _file = file;
+        _memoryMapped = memoryMapped;
+
+        _titles = parseRawLine();
+
+        // When a title appears more than once, the last column with that title that a line actually reaches is the
+        // one that counts.  Each column remembers the previous column with the same title so that getString()
+        // can fall back to it.
+
+        _previousColumnWithSameTitle = new int[_titles.size()];
+        int ix = 0;
+        for ( String title : _titles ) {
+
+            Integer previous = _columnIndices.put( title, ix );
+            _previousColumnWithSameTitle[ix] = previous == null ? -1 : previous.intValue();
+            ix += 1;
+
+        }
+
+    }
+
+    public void parse()
+            throws SyntaxErrorException {
+
+        parse( null );
+
+    }
+
+    /**
+     * Parse the file keeping only the columns mentioned in a schema.
+     * <p/>
+     * Columns which are not in the schema are skipped without being converted or copied.  Numeric and date columns
+     * are converted as they are parsed (see {@link ColumnType}) and retrieved via {@link #getInt}, {@link #getLong},
+     * {@link #getDouble} or {@link #getDate}.  All the columns with a title that is in the schema are kept.
+     *
+     * @param schema which columns to keep and how (null means to keep every column as text).
+     * @throws SyntaxErrorException if the file is malformed or a value is not valid for its column's type.
+     * @throws IllegalArgumentException if the file has already been parsed or the schema mentions a title which is not
+     *                                  in the file.
+     */
+
+    public void parse( Schema schema )
+            throws SyntaxErrorException {
+
+        ColumnType[] types = resolveSchema( schema );
+
+        if ( _nextLnum > 0 ) {
+
+            throw new IllegalArgumentException( "file may only be parsed once" );
+
+        }
+
+        _nextLnum = 1;
+
+        ColumnLoader loader = new ColumnLoader( types, _titles, false, -1L );
+        parseRecords( loader );
+
+        finishParse( loader );
 
-    private final String _description;
-    private final TwoDimensionalSortedMap<Integer,String,String> _parsedData = new TwoDimensionalTreeMap<Integer,String,String>();
-    private final List<String> _titles;
-    private int _nextLnum = 0;
+    }
 
-//    private class ParsedCsvLine {
-//
-//        private final SortedMap<Integer,String> _fields = new TreeMap<Integer,String>();
-//        private int _nextFieldIx;
-//
-//        private ParsedCsvLine() {
-//            super();
-//
-//            _nextFieldIx = 0;
-//
-//        }
-//    }
+    /**
+     * Parse the file using several threads.
+     * <p/>
+     * The file is split into chunks of roughly equal size.  Every newline ends a record (a newline within a quoted
+     * field is a syntax error) so each chunk boundary is moved forward to just past the next newline.  The chunks are
+     * parsed concurrently and their columns (and line numbers) are stitched together in file order.  The result is
+     * exactly what {@link #parse()} would have produced.
+     * <p/>
+     * This parser must have been created from a file name.  Unless the file is memory mapped, the platform's default
+     * character set must also be one in which a newline is always the single byte <tt>0x0A</tt> (e.g. ASCII,
+     * ISO-8859-x or UTF-8).  Otherwise, or if <tt>threadCount</tt> is less than two, this method quietly does a
+     * sequential {@link #parse()}.
+     *
+     * @param threadCount how many threads to parse with.
+     * @throws SyntaxErrorException if the file is malformed (the first error in the file is the one reported) or
+     *                              cannot be read.
+     * @throws IllegalArgumentException if the file has already been parsed.
+     */
+
+    public void parse( int threadCount )
+            throws SyntaxErrorException {
 
-    public GenericCsvParser( String fileName )
-            throws FileNotFoundException, SyntaxErrorException {
-        this( fileName, new BufferedReader( new FileReader( fileName ) ) );
+        parse( null, threadCount );
 
     }
 
-    public GenericCsvParser( String description, BufferedReader input )
+    /**
+     * Parse the file using several threads, keeping only the columns mentioned in a schema.
+     * See {@link #parse(Schema)} and {@link #parse(int)}.
+     *
+     * @param schema      which columns to keep and how (null means to keep every column as text).
+     * @param threadCount how many threads to parse with.
+     * @throws SyntaxErrorException if the file is malformed, cannot be read or a value is not valid for its column's
+     *                              type.
+     * @throws IllegalArgumentException if the file has already been parsed or the schema mentions a title which is not
+     *                                  in the file.
+     */
+
+    public void parse( Schema schema, int threadCount )
             throws SyntaxErrorException {
-        super( input );
 
-        _description = description;
+        final Charset charset = Charset.defaultCharset();
+        if ( threadCount < 2 || _file == null || !( _memoryMapped || GenericCsvParser.isNewlineSafe( charset ) ) ) {
 
-        _titles = parseRawLine();
+            parse( schema );
+            return;
 
-    }
+        }
 
-    public void parse()
-            throws SyntaxErrorException {
+        final ColumnType[] types = resolveSchema( schema );
 
         if ( _nextLnum > 0 ) {
 
@@ -68,38 +1433,300 @@ public class GenericCsvParser extends CSVParser {
 
         _nextLnum = 1;
 
-        while ( true ) {
+        long[] boundaries;
+        try {
 
-            int iCh = nextCh();
-            if ( iCh == -1 ) {
+            boundaries = findChunkBoundaries( threadCount * GenericCsvParser.CHUNKS_PER_THREAD );
 
-                return;
+        } catch ( IOException e ) {
+
+            throw new SyntaxErrorException( "unable to split \"" + _file + "\" into chunks", e );
+
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( threadCount );
+        try {
+
+            List<Future<ColumnLoader>> chunks = new ArrayList<Future<ColumnLoader>>();
+            for ( int i = 0; i + 1 < boundaries.length; i += 1 ) {
+
+                final long start = boundaries[i];
+                final long end = boundaries[i + 1];
+                chunks.add(
+                        executor.submit(
+                                new Callable<ColumnLoader>() {
+
+                                    public ColumnLoader call()
+                                            throws IOException, SyntaxErrorException {
+
+                                        // The titles are at the start of the first chunk.
+
+                                        return loadChunk( types, charset, start, end, start == 0L );
+
+                                    }
+
+                                }
+                        )
+                );
 
             }
 
-            char ch = (char)iCh;
+            // Stitch the chunks together in order (while the later ones are still being parsed).
 
-            pushback( ch );
-            List<String> fields = parseRawLine();
+            ColumnLoader all = new ColumnLoader( types, _titles, false, -1L );
+            for ( Future<ColumnLoader> chunk : chunks ) {
+
+                all.append( chunk.get() );
+
+            }
+
+            finishParse( all );
+
+        } catch ( InterruptedException e ) {
+
+            Thread.currentThread().interrupt();
+            throw new SyntaxErrorException( "interrupted while parsing \"" + _file + "\"", e );
+
+        } catch ( ExecutionException e ) {
+
+            Throwable cause = e.getCause();
+            if ( cause instanceof SyntaxErrorException ) {
+
+                throw (SyntaxErrorException)cause;
+
+            } else if ( cause instanceof RuntimeException ) {
+
+                throw (RuntimeException)cause;
+
+            } else if ( cause instanceof Error ) {
+
+                throw (Error)cause;
+
+            } else {
+
+                throw new SyntaxErrorException( "unable to read \"" + _file + "\"", cause );
+
+            }
+
+        } finally {
+
+            executor.shutdownNow();
+
+        }
+
+    }
+
+    /**
+     * Determine whether a newline is always the single byte <tt>0x0A</tt> in a character set (and never part of some
+     * other character's encoding).
+     *
+     * @param charset the character set.
+     * @return true if it is safe to split text encoded in the character set at <tt>0x0A</tt> bytes.
+     */
+
+    private static boolean isNewlineSafe( Charset charset ) {
+
+        return Arrays.equals( "\n,\"".getBytes( charset ), new byte[] { (byte)'\n', (byte)',', (byte)'"' } );
+
+    }
+
+    /**
+     * Split the file into roughly equal chunks which each start at the beginning of a record.
+     *
+     * @param maxChunks how many chunks we would like.
+     * @return the byte offset at which each chunk starts followed by the length of the file.
+     * @throws IOException if the file cannot be read.
+     */
+
+    private long[] findChunkBoundaries( int maxChunks )
+            throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile( _file, "r" );
+        try {
+
+            long length = raf.length();
+            int chunkCount = (int)Math.max( 1L, Math.min( (long)maxChunks, length / GenericCsvParser.MIN_CHUNK_SIZE ) );
+            long chunkSize = length / (long)chunkCount;
+
+            List<Long> boundaries = new ArrayList<Long>();
+            boundaries.add( 0L );
+            byte[] block = new byte[8192];
+            for ( int i = 1; i < chunkCount; i += 1 ) {
+
+                long offset = Math.max( chunkSize * (long)i, boundaries.get( boundaries.size() - 1 ) );
+                long boundary = length;
+
+                raf.seek( offset );
+                scan:
+                while ( true ) {
+
+                    int count = raf.read( block );
+                    if ( count < 0 ) {
+
+                        break;
+
+                    }
+
+                    for ( int j = 0; j < count; j += 1 ) {
+
+                        if ( block[j] == (byte)'\n' ) {
+
+                            boundary = offset + (long)j + 1L;
+                            break scan;
+
+                        }
+
+                    }
+
+                    offset += (long)count;
+
+                }
+
+                if ( boundary < length ) {
+
+                    boundaries.add( boundary );
+
+                }
+
+            }
+
+            boundaries.add( length );
+
+            long[] rval = new long[boundaries.size()];
+            for ( int i = 0; i < rval.length; i += 1 ) {
+
+                rval[i] = boundaries.get( i );
+
+            }
+
+            return rval;
+
+        } finally {
+
+            ObtuseUtil.closeQuietly( raf );
+
+        }
+
+    }
+
+    /**
+     * Parse one chunk of the file into a fresh set of columns.
+     *
+     * @param types           the type of each column (null for columns which are not to be loaded).
+     * @param charset         the file's character set (ignored if the file is memory mapped).
+     * @param start           where the chunk starts.
+     * @param end             where the next chunk starts.
+     * @param skipFirstRecord true if the first record in the chunk is the titles record.
+     * @return the chunk's columns.
+     * @throws IOException          if the file cannot be opened.
+     * @throws SyntaxErrorException if the chunk contains a malformed record.
+     */
+
+    private ColumnLoader loadChunk( ColumnType[] types, Charset charset, long start, long end, boolean skipFirstRecord )
+            throws IOException, SyntaxErrorException {
+
+        Reader reader;
+        if ( _memoryMapped ) {
+
+            reader = new MappedFileReader( _file, start, end - start, MappedFileReader.DEFAULT_WINDOW_SIZE );
+
+        } else {
+
+            FileInputStream fis = new FileInputStream( _file );
+            try {
+
+                fis.getChannel().position( start );
+
+            } catch ( IOException e ) {
+
+                ObtuseUtil.closeQuietly( fis );
+                throw e;
+
+            }
+
+            reader = new InputStreamReader( new RangeInputStream( fis, end - start ), charset );
+
+        }
+
+        CSVParser chunkParser = new CSVParser( new BufferedReader( reader ) );
+        try {
+
+            ColumnLoader loader = new ColumnLoader( types, _titles, skipFirstRecord, start );
+            chunkParser.parseRecords( loader );
 
-            Iterator<String> titleIter = _titles.iterator();
-            Iterator<String> fieldIter = fields.iterator();
+            return loader;
 
-            while ( titleIter.hasNext() && fieldIter.hasNext() ) {
+        } finally {
 
-                String nextTitle = titleIter.next();
-                String nextField = fieldIter.next();
+            ObtuseUtil.closeQuietly( chunkParser );
 
-                _parsedData.put( _nextLnum, nextTitle, nextField );
+        }
+
+    }
+
+    /**
+     * Work out the type of each column.
+     *
+     * @param schema which columns to keep and how (null means to keep every column as text).
+     * @return the type of each column (null for columns which are not to be kept).
+     * @throws IllegalArgumentException if the schema mentions a title which is not in the file.
+     */
+
+    private ColumnType[] resolveSchema( Schema schema ) {
+
+        ColumnType[] rval = new ColumnType[_titles.size()];
+        if ( schema == null ) {
+
+            Arrays.fill( rval, ColumnType.STRING );
+
+            return rval;
+
+        }
+
+        for ( String title : schema.getTitles() ) {
+
+            if ( !_columnIndices.containsKey( title ) ) {
+
+                throw new IllegalArgumentException( "\"" + _description + "\" has no column titled \"" + title + "\"" );
 
             }
 
-            _nextLnum += 1;
+        }
+
+        int ix = 0;
+        for ( String title : _titles ) {
+
+            rval[ix] = schema.getType( title );
+            ix += 1;
 
         }
 
+        return rval;
+
     }
 
+    private void finishParse( ColumnLoader loader ) {
+
+        for ( int ix : loader._loadedIndices ) {
+
+            if ( loader._loadedColumns[ix] != null ) {
+
+                loader._loadedColumns[ix].trim();
+
+            } else {
+
+                loader._loadedTypedColumns[ix].trim();
+
+            }
+
+        }
+
+        _columnTypes = loader._types;
+        _columns = loader._loadedColumns;
+        _typedColumns = loader._loadedTypedColumns;
+        _nextLnum = loader._lineCount + 1;
+
+    }
 
     private List<String> parseRawLine()
             throws SyntaxErrorException {
@@ -157,7 +1784,244 @@ public class GenericCsvParser extends CSVParser {
 
     public String getString( int lnum, String title ) {
 
-        return _parsedData.get( lnum, title );
+        int ix = findColumnWithValue( lnum, title );
+
+        return ix < 0 ? null : getString( lnum, ix );
+
+    }
+
+    /**
+     * Find the column that a line's value for a title is in.
+     * When a title appears more than once, the last column with that title that the line actually has a value in
+     * is the one that counts.
+     *
+     * @param lnum  the line number.
+     * @param title the title.
+     * @return the index of the column or -1 if the line has no value for the title.
+     */
+
+    private int findColumnWithValue( int lnum, String title ) {
+
+        Integer columnIndex = _columnIndices.get( title );
+        if ( columnIndex == null ) {
+
+            return -1;
+
+        }
+
+        int ix = columnIndex.intValue();
+        while ( ix >= 0 && !hasValue( lnum, ix ) ) {
+
+            ix = _previousColumnWithSameTitle[ix];
+
+        }
+
+        return ix;
+
+    }
+
+    /**
+     * Get the index of the column with a specified title.
+     * Fetching values by column index avoids looking up the title on every call.
+     * Note that {@link #getString(int, int)} only ever looks in the specified column (if a title appears more than
+     * once, {@link #getString(int, String)} also looks in the earlier columns with the same title when a line is
+     * too short to reach the last one).
+     *
+     * @param title the title.
+     * @return the index of the (last) column with that title or -1 if there is no such column.
+     */
+
+    public int getColumnIndex( String title ) {
+
+        Integer columnIndex = _columnIndices.get( title );
+
+        return columnIndex == null ? -1 : columnIndex.intValue();
+
+    }
+
+    /**
+     * Get how a column was stored when the file was parsed.
+     *
+     * @param columnIndex the column's index (see {@link #getColumnIndex}).
+     * @return the column's type or null if the column was not kept (or the file has not been parsed yet).
+     */
+
+    public ColumnType getColumnType( int columnIndex ) {
+
+        if ( _columnTypes == null || columnIndex < 0 || columnIndex >= _columnTypes.length ) {
+
+            return null;
+
+        }
+
+        return _columnTypes[columnIndex];
+
+    }
+
+    /**
+     * Determine if a line has a value in a specified column.
+     *
+     * @param lnum        the line number (the line after the titles is line 1).
+     * @param columnIndex the column's index (see {@link #getColumnIndex}).
+     * @return true if the line exists and has a value in the column (and the column was kept).
+     */
+
+    public boolean hasValue( int lnum, int columnIndex ) {
+
+        ColumnType type = getColumnType( columnIndex );
+        if ( type == null || !hasLine( lnum ) ) {
+
+            return false;
+
+        }
+
+        return type == ColumnType.STRING
+               ? _columns[columnIndex].get( lnum - 1 ) != null
+               : _typedColumns[columnIndex].hasValue( lnum - 1 );
+
+    }
+
+    /**
+     * Get the value in a specified column on a specified line.
+     *
+     * @param lnum        the line number (the line after the titles is line 1).
+     * @param columnIndex the column's index (see {@link #getColumnIndex}).
+     * @return the value or null if the line does not exist or does not have a value in the specified column (or the
+     *         column was not kept).
+     * @throws IllegalArgumentException if the column was kept as something other than text.
+     */
+
+    public String getString( int lnum, int columnIndex ) {
+
+        getColumn( columnIndex, ColumnType.STRING );
+
+        return hasValue( lnum, columnIndex ) ? _columns[columnIndex].get( lnum - 1 ) : null;
+
+    }
+
+    /**
+     * Get an <tt>INT</tt> column's value on a specified line.
+     *
+     * @param lnum  the line number (the line after the titles is line 1).
+     * @param title the column's title.
+     * @return the value or 0 if the line does not exist or does not have a value for the title.
+     * @throws IllegalArgumentException if the column was kept as something other than an <tt>INT</tt>.
+     */
+
+    public int getInt( int lnum, String title ) {
+
+        int ix = findColumnWithValue( lnum, title );
+
+        return ix < 0 ? 0 : getInt( lnum, ix );
+
+    }
+
+    public int getInt( int lnum, int columnIndex ) {
+
+        TypedColumn column = getColumn( columnIndex, ColumnType.INT );
+
+        return hasValue( lnum, columnIndex ) ? column._ints[lnum - 1] : 0;
+
+    }
+
+    /**
+     * Get a <tt>LONG</tt> column's value on a specified line.
+     *
+     * @param lnum  the line number (the line after the titles is line 1).
+     * @param title the column's title.
+     * @return the value or 0 if the line does not exist or does not have a value for the title.
+     * @throws IllegalArgumentException if the column was kept as something other than a <tt>LONG</tt>.
+     */
+
+    public long getLong( int lnum, String title ) {
+
+        int ix = findColumnWithValue( lnum, title );
+
+        return ix < 0 ? 0L : getLong( lnum, ix );
+
+    }
+
+    public long getLong( int lnum, int columnIndex ) {
+
+        TypedColumn column = getColumn( columnIndex, ColumnType.LONG );
+
+        return hasValue( lnum, columnIndex ) ? column._longs[lnum - 1] : 0L;
+
+    }
+
+    /**
+     * Get a <tt>DOUBLE</tt> column's value on a specified line.
+     *
+     * @param lnum  the line number (the line after the titles is line 1).
+     * @param title the column's title.
+     * @return the value or NaN if the line does not exist or does not have a value for the title.
+     * @throws IllegalArgumentException if the column was kept as something other than a <tt>DOUBLE</tt>.
+     */
+
+    public double getDouble( int lnum, String title ) {
+
+        int ix = findColumnWithValue( lnum, title );
+
+        return ix < 0 ? Double.NaN : getDouble( lnum, ix );
+
+    }
+
+    public double getDouble( int lnum, int columnIndex ) {
+
+        TypedColumn column = getColumn( columnIndex, ColumnType.DOUBLE );
+
+        return hasValue( lnum, columnIndex ) ? column._doubles[lnum - 1] : Double.NaN;
+
+    }
+
+    /**
+     * Get a <tt>DATE</tt> column's value on a specified line.
+     * Dates are stored as milliseconds since the epoch.  The {@link ImmutableDate} is only created when it is asked for.
+     *
+     * @param lnum  the line number (the line after the titles is line 1).
+     * @param title the column's title.
+     * @return the value or null if the line does not exist or does not have a value for the title.
+     * @throws IllegalArgumentException if the column was kept as something other than a <tt>DATE</tt>.
+     */
+
+    public ImmutableDate getDate( int lnum, String title ) {
+
+        int ix = findColumnWithValue( lnum, title );
+
+        return ix < 0 ? null : getDate( lnum, ix );
+
+    }
+
+    public ImmutableDate getDate( int lnum, int columnIndex ) {
+
+        TypedColumn column = getColumn( columnIndex, ColumnType.DATE );
+
+        return hasValue( lnum, columnIndex ) ? new ImmutableDate( column._longs[lnum - 1] ) : null;
+
+    }
+
+    /**
+     * Make sure that a column was kept with a particular type.
+     *
+     * @param columnIndex the column's index.
+     * @param type        the type that the caller expects.
+     * @return the column's typed values (null if the column is a <tt>STRING</tt> column or was not kept).
+     * @throws IllegalArgumentException if the column was kept as some other type.
+     */
+
+    private TypedColumn getColumn( int columnIndex, ColumnType type ) {
+
+        ColumnType actualType = getColumnType( columnIndex );
+        if ( actualType != null && actualType != type ) {
+
+            throw new IllegalArgumentException(
+                    "column " + columnIndex + " (\"" + _titles.get( columnIndex ) + "\") holds " + actualType +
+                    " values (not " + type + " values)"
+            );
+
+        }
+
+        return actualType == null ? null : _typedColumns[columnIndex];
 
     }
 
@@ -0,0 +1,325 @@
+package com.obtuse.util;
+
+import com.obtuse.util.exceptions.SyntaxErrorException;
+
+import java.io.*;
+import java.util.List;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Exercise {@link GenericCsvParser} on a large synthetic file.
+ * <p/>
+ * Reports how much heap the parsed data occupies in the parser's columnar form and how much the same data
+ * occupies when stored the way the parser used to store it (one {@link TwoDimensionalTreeMap} entry per cell).
+ * Then reports the parsing throughput with one thread up to one thread per available processor (verifying that each
+ * parallel parse matches the sequential one).  Finally, compares converting the numeric and date columns from text
+ * on every access with having the parser convert them once via a {@link GenericCsvParser.Schema}.
+ * <p/>
+ * Usage:  <tt>GenericCsvParserBenchmark [rows [maxThreads]]</tt>
+ */
+
+public class GenericCsvParserBenchmark {
+
+    private static final int DEFAULT_ROWS = 1000000;
+
+    private static final String[] REGIONS = {
+            "north", "south", "east", "west", "central", "northeast", "northwest", "southeast", "southwest", "offshore"
+    };
+
+    private GenericCsvParserBenchmark() {
+        super();
+
+    }
+
+    /**
+     * Write a synthetic file with a mix of unique, low cardinality and quoted columns.
+     *
+     * @param file where to put it.
+     * @param rows how many rows (not counting the titles) to generate.
+     * @throws IOException if the file cannot be written.
+     */
+
+    public static void generateFile( File file, int rows )
+            throws IOException {
+
+        Writer writer = new BufferedWriter( new FileWriter( file ) );
+        try {
+
+            writer.write( "id,region,product,when,amount,flag,comment\n" );
+            for ( int row = 0; row < rows; row += 1 ) {
+
+                StringBuilder sb = new StringBuilder();
+                sb.append( row )
+                  .append( ',' ).append( GenericCsvParserBenchmark.REGIONS[row % GenericCsvParserBenchmark.REGIONS.length] )
+                  .append( ",product_" ).append( ( row * 7 ) % 200 )
+                  .append( ",\"2012-" ).append( 1 + row % 12 ).append( '-' ).append( 1 + row % 28 ).append( " 12:00:00\"" )
+                  .append( ',' ).append( row * 0.25 )
+                  .append( ',' ).append( row % 3 == 0 ? "Y" : "N" )
+                  .append( ",\"row " ).append( row ).append( ", with a comma\"" )
+                  .append( '\n' );
+                writer.write( sb.toString() );
+
+            }
+
+        } finally {
+
+            writer.close();
+
+        }
+
+    }
+
+    /**
+     * Get a reasonably stable estimate of how much heap is in use.
+     *
+     * @return the number of bytes of heap that survive a few garbage collections.
+     */
+
+    public static long usedHeap() {
+
+        Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0; i < 4; i += 1 ) {
+
+            //noinspection CallToSystemGC
+            System.gc();
+            //noinspection MagicNumber
+            ObtuseUtil.safeSleepMillis( 100L );
+
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+
+    }
+
+    /**
+     * Determine if two parsers ended up with exactly the same data.
+     *
+     * @param lhs one parser.
+     * @param rhs the other parser.
+     * @return true if they have the same titles, the same number of lines and the same value in every cell.
+     */
+
+    public static boolean sameData( GenericCsvParser lhs, GenericCsvParser rhs ) {
+
+        if ( !lhs.getTitles().equals( rhs.getTitles() ) || lhs.getLineCount() != rhs.getLineCount() ) {
+
+            return false;
+
+        }
+
+        for ( String title : lhs.getTitles() ) {
+
+            for ( int lnum = 1; lhs.hasLine( lnum ); lnum += 1 ) {
+
+                String lhsValue = lhs.getString( lnum, title );
+                String rhsValue = rhs.getString( lnum, title );
+                if ( lhsValue == null ? rhsValue != null : !lhsValue.equals( rhsValue ) ) {
+
+                    return false;
+
+                }
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Sum the id, when and amount columns of a file, first by converting the text on every access and then by
+     * having the parser convert them once.
+     *
+     * @param file the file.
+     * @throws FileNotFoundException if the file vanished.
+     * @throws SyntaxErrorException  if the file failed to parse.
+     */
+
+    private static void compareTypedAccess( File file )
+            throws FileNotFoundException, SyntaxErrorException {
+
+        GenericCsvParser text = new GenericCsvParser( file.getPath() );
+        Measure m = new Measure( "text parse and convert" );
+        text.parse();
+        double textSum = 0.0;
+        for ( int lnum = 1; text.hasLine( lnum ); lnum += 1 ) {
+
+            textSum += (double)Integer.parseInt( text.getString( lnum, "id" ) ) +
+                       (double)CSVParser.parseDate( text.getString( lnum, "when" ) ).getTime() +
+                       Double.parseDouble( text.getString( lnum, "amount" ) );
+
+        }
+
+        m.done();
+
+        GenericCsvParser typed = new GenericCsvParser( file.getPath() );
+        m = new Measure( "typed parse and access" );
+        typed.parse(
+                new GenericCsvParser.Schema()
+                        .add( "id", GenericCsvParser.ColumnType.INT )
+                        .add( "when", GenericCsvParser.ColumnType.DATE )
+                        .add( "amount", GenericCsvParser.ColumnType.DOUBLE )
+        );
+        int idColumn = typed.getColumnIndex( "id" );
+        int whenColumn = typed.getColumnIndex( "when" );
+        int amountColumn = typed.getColumnIndex( "amount" );
+        double typedSum = 0.0;
+        for ( int lnum = 1; typed.hasLine( lnum ); lnum += 1 ) {
+
+            typedSum += (double)typed.getInt( lnum, idColumn ) +
+                        (double)typed.getDate( lnum, whenColumn ).getTime() +
+                        typed.getDouble( lnum, amountColumn );
+
+        }
+
+        m.done();
+
+        Logger.logMsg(
+                "text sum " + textSum + ", typed sum " + typedSum +
+                ( textSum == typedSum ? "" : " (*** typed values differ from converted text ***)" )
+        );
+
+    }
+
+    private static String megabytes( long bytes ) {
+
+        //noinspection MagicNumber
+        return String.format( "%.1fMB", (double)bytes / ( 1024.0 * 1024.0 ) );
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "GenericCsvParserBenchmark", null );
+
+        int rows = args.length > 0 ? Integer.parseInt( args[0] ) : GenericCsvParserBenchmark.DEFAULT_ROWS;
+
+        File file;
+        try {
+
+            file = File.createTempFile( "GenericCsvParserBenchmark", ".csv" );
+            file.deleteOnExit();
+            GenericCsvParserBenchmark.generateFile( file, rows );
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "unable to generate test file", e );
+            System.exit( 1 );
+            return;
+
+        }
+
+        Logger.logMsg( "parsing " + rows + " rows (" + GenericCsvParserBenchmark.megabytes( file.length() ) + ")" );
+
+        long baseline = GenericCsvParserBenchmark.usedHeap();
+
+        GenericCsvParser gcp;
+        try {
+
+            gcp = new GenericCsvParser( file.getPath() );
+            Measure m = new Measure( "columnar parse" );
+            gcp.parse();
+            m.done();
+
+        } catch ( FileNotFoundException e ) {
+
+            Logger.logErr( "test file vanished", e );
+            System.exit( 1 );
+            return;
+
+        } catch ( SyntaxErrorException e ) {
+
+            Logger.logErr( "test file failed to parse", e );
+            System.exit( 1 );
+            return;
+
+        }
+
+        long columnar = GenericCsvParserBenchmark.usedHeap() - baseline;
+        Logger.logMsg( "columnar storage:  " + GenericCsvParserBenchmark.megabytes( columnar ) );
+
+        // Rebuild the data the way it used to be stored (each cell was its own String).
+
+        List<String> titles = gcp.getTitles();
+        Measure m = new Measure( "tree map copy" );
+        TwoDimensionalSortedMap<Integer,String,String> treeMap = new TwoDimensionalTreeMap<Integer,String,String>();
+        for ( int lnum = 1; gcp.hasLine( lnum ); lnum += 1 ) {
+
+            for ( String title : titles ) {
+
+                //noinspection RedundantStringConstructorCall
+                treeMap.put( lnum, title, new String( gcp.getString( lnum, title ) ) );
+
+            }
+
+        }
+
+        m.done();
+
+        long both = GenericCsvParserBenchmark.usedHeap() - baseline;
+        Logger.logMsg( "tree map storage:  " + GenericCsvParserBenchmark.megabytes( both - columnar ) );
+
+        // Make sure that neither copy gets collected before we're done measuring.
+
+        Logger.logMsg( "spot check:  " + gcp.getString( rows, "comment" ) + " / " + treeMap.get( rows, "comment" ) );
+
+        //noinspection UnusedAssignment
+        treeMap = null;
+
+        int maxThreads = args.length > 1 ? Integer.parseInt( args[1] ) : Runtime.getRuntime().availableProcessors();
+        for ( int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1 : Math.min( threads * 2, maxThreads ) ) {
+
+            try {
+
+                GenericCsvParser parallel = new GenericCsvParser( file.getPath() );
+                long startTime = System.currentTimeMillis();
+                parallel.parse( threads );
+                long elapsed = Math.max( 1L, System.currentTimeMillis() - startTime );
+
+                //noinspection MagicNumber
+                Logger.logMsg(
+                        ObtuseUtil.lpad( (long)threads, 3 ) + " thread(s):  " + ObtuseUtil.lpad( elapsed, 6 ) + "ms, " +
+                        GenericCsvParserBenchmark.megabytes( file.length() * 1000L / elapsed ) + "/second" +
+                        ( GenericCsvParserBenchmark.sameData( gcp, parallel ) ? "" : " (*** results differ from sequential parse ***)" )
+                );
+
+            } catch ( FileNotFoundException e ) {
+
+                Logger.logErr( "test file vanished", e );
+                System.exit( 1 );
+
+            } catch ( SyntaxErrorException e ) {
+
+                Logger.logErr( "test file failed to parse", e );
+                System.exit( 1 );
+
+            }
+
+        }
+
+        try {
+
+            GenericCsvParserBenchmark.compareTypedAccess( file );
+
+        } catch ( FileNotFoundException e ) {
+
+            Logger.logErr( "test file vanished", e );
+            System.exit( 1 );
+
+        } catch ( SyntaxErrorException e ) {
+
+            Logger.logErr( "test file failed to parse", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
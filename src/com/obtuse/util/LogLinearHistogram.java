@@ -0,0 +1,217 @@
+package com.obtuse.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * A histogram of non-negative values (typically durations in nanoseconds) with log-linear buckets.
+ * <p/>
+ * Values below {@link #SUB_BUCKETS} get a bucket each.  Beyond that, each power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets so that any value is known to within about 3% no matter how big it is (this is
+ * the same idea as HdrHistogram's).  Values beyond {@link #MAX_VALUE} are counted in the last bucket.
+ * <p/>
+ * Recording with {@link #record} is lock-free and safe from any number of threads.  Reading while values are being
+ * recorded gives a slightly fuzzy but never corrupt answer.
+ */
+
+public class LogLinearHistogram {
+
+    /**
+     * How many bits of each value (after its leading one bit) decide which bucket it goes into.
+     */
+
+    public static final int SUB_BUCKET_BITS = 5;
+
+    public static final int SUB_BUCKETS = 1 << LogLinearHistogram.SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 42;
+
+    /**
+     * The largest value which gets a bucket of its own (about 73 minutes worth of nanoseconds).
+     */
+
+    public static final long MAX_VALUE = ( 1L << ( LogLinearHistogram.MAX_EXPONENT + 1 ) ) - 1L;
+
+    public static final int BUCKETS =
+            ( LogLinearHistogram.MAX_EXPONENT - LogLinearHistogram.SUB_BUCKET_BITS + 2 ) * LogLinearHistogram.SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray( LogLinearHistogram.BUCKETS );
+
+    public LogLinearHistogram() {
+        super();
+
+    }
+
+    /**
+     * Count a value.
+     *
+     * @param value the value (negative values are counted as zero).
+     */
+
+    public void record( long value ) {
+
+        _counts.incrementAndGet( LogLinearHistogram.indexOf( value ) );
+
+    }
+
+    /**
+     * Count a value more cheaply than {@link #record} does.
+     * Only use this if just one thread ever records values in this histogram.
+     *
+     * @param value the value (negative values are counted as zero).
+     */
+
+    public void recordByOwner( long value ) {
+
+        int ix = LogLinearHistogram.indexOf( value );
+        _counts.lazySet( ix, _counts.get( ix ) + 1L );
+
+    }
+
+    /**
+     * Add this histogram's counts to an array of counts.
+     *
+     * @param counts the array (must have {@link #BUCKETS} elements).
+     */
+
+    public void addTo( long[] counts ) {
+
+        for ( int i = 0; i < LogLinearHistogram.BUCKETS; i += 1 ) {
+
+            counts[i] += _counts.get( i );
+
+        }
+
+    }
+
+    /**
+     * Get a copy of this histogram's counts.
+     */
+
+    public long[] getCounts() {
+
+        long[] counts = new long[LogLinearHistogram.BUCKETS];
+        addTo( counts );
+
+        return counts;
+
+    }
+
+    /**
+     * Find the bucket that a value goes into.
+     */
+
+    public static int indexOf( long value ) {
+
+        if ( value < (long)LogLinearHistogram.SUB_BUCKETS ) {
+
+            return value < 0L ? 0 : (int)value;
+
+        }
+
+        if ( value > LogLinearHistogram.MAX_VALUE ) {
+
+            return LogLinearHistogram.BUCKETS - 1;
+
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int)( value >>> ( exponent - LogLinearHistogram.SUB_BUCKET_BITS ) ) & ( LogLinearHistogram.SUB_BUCKETS - 1 );
+
+        return ( exponent - LogLinearHistogram.SUB_BUCKET_BITS + 1 ) * LogLinearHistogram.SUB_BUCKETS + subBucket;
+
+    }
+
+    /**
+     * Get the smallest value which goes into a bucket.
+     */
+
+    public static long lowestValueAt( int index ) {
+
+        if ( index < LogLinearHistogram.SUB_BUCKETS ) {
+
+            return (long)index;
+
+        }
+
+        int exponent = index / LogLinearHistogram.SUB_BUCKETS + LogLinearHistogram.SUB_BUCKET_BITS - 1;
+        long subBucket = (long)( index % LogLinearHistogram.SUB_BUCKETS );
+
+        return ( 1L << exponent ) + ( subBucket << ( exponent - LogLinearHistogram.SUB_BUCKET_BITS ) );
+
+    }
+
+    /**
+     * Get the value in the middle of a bucket (which is what we report for every value in the bucket).
+     */
+
+    public static long middleValueAt( int index ) {
+
+        if ( index < LogLinearHistogram.SUB_BUCKETS ) {
+
+            return (long)index;
+
+        }
+
+        int exponent = index / LogLinearHistogram.SUB_BUCKETS + LogLinearHistogram.SUB_BUCKET_BITS - 1;
+        long width = 1L << ( exponent - LogLinearHistogram.SUB_BUCKET_BITS );
+
+        return LogLinearHistogram.lowestValueAt( index ) + width / 2L;
+
+    }
+
+    /**
+     * Find the value at a percentile of a set of counts.
+     *
+     * @param counts     the counts (as returned by {@link #getCounts}, possibly added together from several histograms).
+     * @param percentile the percentile (0 to 100).
+     * @return the value at the percentile (0 if there are no counts).
+     */
+
+    public static long getValueAtPercentile( long[] counts, double percentile ) {
+
+        long total = 0L;
+        for ( long count : counts ) {
+
+            total += count;
+
+        }
+
+        if ( total == 0L ) {
+
+            return 0L;
+
+        }
+
+        //noinspection MagicNumber
+        long wanted = Math.max( 1L, (long)Math.ceil( Math.min( percentile, 100.0 ) / 100.0 * (double)total ) );
+        long seen = 0L;
+        for ( int i = 0; i < counts.length; i += 1 ) {
+
+            seen += counts[i];
+            if ( seen >= wanted ) {
+
+                return LogLinearHistogram.middleValueAt( i );
+
+            }
+
+        }
+
+        return LogLinearHistogram.middleValueAt( counts.length - 1 );
+
+    }
+
+    public String toString() {
+
+        long[] counts = getCounts();
+
+        //noinspection MagicNumber
+        return "LogLinearHistogram( p50 = " + LogLinearHistogram.getValueAtPercentile( counts, 50.0 ) +
+               ", p99 = " + LogLinearHistogram.getValueAtPercentile( counts, 99.0 ) + " )";
+
+    }
+
+}
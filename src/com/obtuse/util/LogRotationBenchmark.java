@@ -0,0 +1,258 @@
+package com.obtuse.util;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Log lots of lines to a {@link Logger} which rotates its file every so many bytes and make sure that every line ends
+ * up in exactly one (compressed) segment or in the current file.  Then do it again with a retention limit and make
+ * sure that the old segments go away.
+ * <p/>
+ * Usage:  <tt>LogRotationBenchmark [lines [maxBytes]]</tt>
+ */
+
+public class LogRotationBenchmark {
+
+    private static final int RETAINED_SEGMENTS = 3;
+
+    private static final long COMPRESSION_WAIT_MILLIS = 60000L;
+
+    private LogRotationBenchmark() {
+        super();
+
+    }
+
+    private static File makeDirectory()
+            throws IOException {
+
+        File directory = File.createTempFile( "LogRotationBenchmark", "" );
+        if ( !directory.delete() || !directory.mkdir() ) {
+
+            throw new IOException( "unable to create \"" + directory + "\"" );
+
+        }
+
+        return directory;
+
+    }
+
+    private static void deleteDirectory( File directory ) {
+
+        File[] files = directory.listFiles();
+        if ( files != null ) {
+
+            for ( File file : files ) {
+
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+
+            }
+
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+
+    }
+
+    /**
+     * Log some lines.
+     *
+     * @return the directory containing the log file and its segments once every segment has been compressed.
+     */
+
+    private static File log( String name, int lines, long maxBytes, int retainedSegments, boolean async )
+            throws IOException, InterruptedException {
+
+        File directory = LogRotationBenchmark.makeDirectory();
+        Logger logger = new Logger( new File( directory, "log.txt" ), false );
+        logger.setRotation( maxBytes, 0L, retainedSegments );
+        if ( async ) {
+
+            logger.startAsync( Logger.DEFAULT_ASYNC_CAPACITY, Logger.OverflowPolicy.BLOCK );
+
+        }
+
+        Measure m = new Measure( name );
+        for ( int i = 0; i < lines; i += 1 ) {
+
+            logger.println( "line " + i );
+
+        }
+
+        logger.flush();
+        m.done();
+        logger.close();
+
+        // Wait for the compressor to catch up.
+
+        long deadline = System.currentTimeMillis() + LogRotationBenchmark.COMPRESSION_WAIT_MILLIS;
+        while ( LogRotationBenchmark.countSegments( directory, false ) > 0 ) {
+
+            if ( System.currentTimeMillis() > deadline ) {
+
+                throw new IOException( "segments in \"" + directory + "\" were not compressed" );
+
+            }
+
+            //noinspection BusyWait,MagicNumber
+            Thread.sleep( 50L );
+
+        }
+
+        // Give the compressor a moment to enforce the retention limit after compressing the last segment.
+
+        //noinspection MagicNumber
+        Thread.sleep( 200L );
+
+        return directory;
+
+    }
+
+    private static int countSegments( File directory, boolean compressed ) {
+
+        int count = 0;
+        File[] files = directory.listFiles();
+        if ( files != null ) {
+
+            for ( File file : files ) {
+
+                String name = file.getName();
+                if ( name.startsWith( "log.txt." ) && !name.endsWith( ".tmp" ) && name.endsWith( ".gz" ) == compressed ) {
+
+                    count += 1;
+
+                }
+
+            }
+
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Read every line in the log file and its segments.
+     *
+     * @return how many times each line number appears.
+     */
+
+    private static int[] readLines( File directory, int lines )
+            throws IOException {
+
+        int[] seen = new int[lines];
+        File[] files = directory.listFiles();
+        if ( files == null ) {
+
+            throw new IOException( "unable to list \"" + directory + "\"" );
+
+        }
+
+        for ( File file : files ) {
+
+            InputStream in = new FileInputStream( file );
+            if ( file.getName().endsWith( ".gz" ) ) {
+
+                in = new GZIPInputStream( in );
+
+            }
+
+            BufferedReader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+            try {
+
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+
+                    int ix = line.indexOf( ":  line " );
+                    if ( ix >= 0 ) {
+
+                        //noinspection MagicNumber
+                        seen[Integer.parseInt( line.substring( ix + 8 ) )] += 1;
+
+                    }
+
+                }
+
+            } finally {
+
+                reader.close();
+
+            }
+
+        }
+
+        return seen;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "LogRotationBenchmark", null );
+
+        int lines = args.length > 0 ? Integer.parseInt( args[0] ) : 500000;
+        long maxBytes = args.length > 1 ? Long.parseLong( args[1] ) : 1000000L;
+
+        try {
+
+            for ( boolean async : new boolean[] { false, true } ) {
+
+                String mode = async ? "async" : "synchronous";
+
+                File directory = LogRotationBenchmark.log( mode + ", keep everything", lines, maxBytes, 0, async );
+                int segments = LogRotationBenchmark.countSegments( directory, true );
+                int[] seen = LogRotationBenchmark.readLines( directory, lines );
+                for ( int i = 0; i < lines; i += 1 ) {
+
+                    if ( seen[i] != 1 ) {
+
+                        Logger.logErr( mode + ":  line " + i + " appears " + seen[i] + " times" );
+                        System.exit( 1 );
+
+                    }
+
+                }
+
+                LogRotationBenchmark.deleteDirectory( directory );
+                Logger.logMsg( mode + ":  " + lines + " lines in " + segments + " compressed segments and the current file" );
+
+                directory = LogRotationBenchmark.log(
+                        mode + ", keep " + LogRotationBenchmark.RETAINED_SEGMENTS, lines, maxBytes,
+                        LogRotationBenchmark.RETAINED_SEGMENTS, async
+                );
+                segments = LogRotationBenchmark.countSegments( directory, true );
+                LogRotationBenchmark.deleteDirectory( directory );
+                if ( segments > LogRotationBenchmark.RETAINED_SEGMENTS ) {
+
+                    Logger.logErr(
+                            mode + ":  " + segments + " segments were kept (the limit is " +
+                            LogRotationBenchmark.RETAINED_SEGMENTS + ")"
+                    );
+                    System.exit( 1 );
+
+                }
+
+            }
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "I/O error", e );
+            System.exit( 1 );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
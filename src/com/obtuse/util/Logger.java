@@ -5,6 +5,14 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * Copyright © 2005, 2006, 2007 Daniel Boulet.
@@ -18,6 +26,10 @@ import java.util.*;
  * which triggers
  * the invocation of this class's static initializer(s).  Experience seems to indicate that it is sufficient to call
  * {@link BasicProgramConfigInfo#init} before invoking any method defined by this class (your mileage may vary).
+ * <p/>
+ * A logger normally writes each message before the call which logged it returns and all of the threads using it take
+ * turns.  A logger can instead be made asynchronous (see {@link #startAsync} and {@link #startAsyncLogging}) in which
+ * case messages are handed to a background writer thread via a lock-free ring buffer and written out in batches.
  *
  * @noinspection ClassWithoutToString, ForLoopReplaceableByForEach, RawUseOfParameterizedType,
  * UseOfSystemOutOrSystemErr, UnusedDeclaration
@@ -25,7 +37,393 @@ import java.util.*;
 
 public class Logger {
 
-    private List<LoggerListener> _listeners = new LinkedList<LoggerListener>();
+    /**
+     * What an asynchronous logger does with a message when its ring buffer is full.
+     */
+
+    public static enum OverflowPolicy {
+
+        /**
+         * Wait for the writer thread to make room.
+         */
+
+        BLOCK,
+
+        /**
+         * Throw the message away.  The writer logs how many messages were thrown away once it catches up.
+         */
+
+        DROP,
+
+        /**
+         * Put the message in an unbounded overflow queue.  The writer empties the overflow queue once it has caught up
+         * with the ring buffer.
+         */
+
+        SPILL
+
+    }
+
+    /**
+     * The default size of an asynchronous logger's ring buffer.
+     */
+
+    public static final int DEFAULT_ASYNC_CAPACITY = 8192;
+
+    /**
+     * The most messages that the writer thread writes before flushing.
+     */
+
+    private static final int MAX_ASYNC_BATCH = 1024;
+
+    /**
+     * How long the writer thread sleeps when it has nothing to do (it is woken up as soon as there is something to
+     * do;  this is just a safety net).
+     */
+
+    private static final long WRITER_NAP_NANOS = 100000000L;
+
+    /**
+     * How long a producer waits before trying again when the ring buffer is full and the policy is BLOCK.
+     */
+
+    private static final long BLOCKED_PRODUCER_NAP_NANOS = 100000L;
+
+    /**
+     * A message on its way to the writer thread.
+     * A record with a latch is a flush barrier (see {@link #flush}).
+     */
+
+    private static class LogRecord {
+
+        private final long _when;
+
+        private final String _text;
+
+        private final boolean _newline;
+
+        private final CountDownLatch _barrier;
+
+        private LogRecord( long when, String text, boolean newline, CountDownLatch barrier ) {
+            super();
+
+            _when = when;
+            _text = text;
+            _newline = newline;
+            _barrier = barrier;
+
+        }
+
+    }
+
+    /**
+     * The background thread which does the actual writing for an asynchronous logger.
+     */
+
+    private class AsyncWriter extends Thread {
+
+        private final MpscRingBuffer<LogRecord> _ring;
+
+        private final OverflowPolicy _policy;
+
+        private final Queue<LogRecord> _spill = new ConcurrentLinkedQueue<LogRecord>();
+
+        // How many records are in (or on their way into) the spill queue or are waiting in _spillPending.  Producers
+        // don't use the ring while this is non-zero so that each thread's messages stay in order.
+
+        private final AtomicInteger _spilled = new AtomicInteger();
+
+        // Records taken from the spill queue which can't be written until everything that went into the ring before
+        // them has been (see writeAvailable()).  Only touched while the logger is locked.
+
+        private final List<LogRecord> _spillPending = new ArrayList<LogRecord>();
+
+        private final AtomicLong _dropped = new AtomicLong();
+
+        private final List<LogRecord> _batch = new ArrayList<LogRecord>();
+
+        private volatile boolean _stopping = false;
+
+        private volatile boolean _finished = false;
+
+        private volatile boolean _parked = false;
+
+        private AsyncWriter( int capacity, OverflowPolicy policy ) {
+            super( "Logger writer (" + getOutputFileName() + ")" );
+
+            _ring = new MpscRingBuffer<LogRecord>( capacity );
+            _policy = policy;
+            setDaemon( true );
+
+        }
+
+        /**
+         * Hand a record to the writer.
+         * Never blocks unless the policy is BLOCK (or the record is a flush barrier) and the ring buffer is full.
+         */
+
+        private void enqueue( LogRecord record ) {
+
+            if ( _spilled.get() == 0 && _ring.offer( record ) ) {
+
+                wakeUp();
+
+            } else if ( _policy == OverflowPolicy.SPILL ) {
+
+                _spilled.incrementAndGet();
+                _spill.add( record );
+                wakeUp();
+
+            } else if ( _policy == OverflowPolicy.DROP && record._barrier == null ) {
+
+                _dropped.incrementAndGet();
+
+            } else {
+
+                while ( !_ring.offer( record ) ) {
+
+                    if ( _finished ) {
+
+                        // The writer has quit so nobody else is going to make room.  Make some ourselves.
+
+                        writeAvailable();
+
+                    } else {
+
+                        wakeUp();
+                        LockSupport.parkNanos( Logger.BLOCKED_PRODUCER_NAP_NANOS );
+
+                    }
+
+                }
+
+                wakeUp();
+
+            }
+
+            if ( _finished ) {
+
+                // The writer quit while we were adding the record.  Write it (and anything else left behind) ourselves.
+
+                //noinspection StatementWithEmptyBody
+                while ( writeAvailable() ) {
+
+                }
+
+            }
+
+        }
+
+        private void wakeUp() {
+
+            if ( _parked ) {
+
+                LockSupport.unpark( this );
+
+            }
+
+        }
+
+        public void run() {
+
+            while ( true ) {
+
+                // Look before draining so that everything queued before stopAsync() was called gets written.
+
+                boolean stopping = _stopping;
+                if ( !writeAvailable() ) {
+
+                    if ( stopping ) {
+
+                        break;
+
+                    }
+
+                    _parked = true;
+                    if ( _ring.isEmpty() && _spilled.get() == 0 && !_stopping ) {
+
+                        LockSupport.parkNanos( this, Logger.WRITER_NAP_NANOS );
+
+                    }
+
+                    _parked = false;
+
+                }
+
+            }
+
+            _finished = true;
+
+            // Catch anything that arrived while we were finishing up.
+
+            //noinspection StatementWithEmptyBody
+            while ( writeAvailable() ) {
+
+            }
+
+        }
+
+        /**
+         * Write a batch of whatever has been queued.
+         * Only one thread at a time gets very far since it has to lock the logger.
+         *
+         * @return true if anything was written (or is waiting to be).
+         */
+
+        private boolean writeAvailable() {
+
+            List<LogRecord> batch = _batch;
+            synchronized ( Logger.this ) {
+
+                int count = _ring.drainTo( batch, Logger.MAX_ASYNC_BATCH );
+
+                // A producer which saw nothing spilled may still be adding a record to the ring after another producer
+                // has started spilling, and that producer's next record goes into the spill queue.  A spilled record
+                // can therefore only be written once the ring has been seen to be empty (counting records that are
+                // still on their way in) after the spilled record was taken from the spill queue.
+
+                if ( count < Logger.MAX_ASYNC_BATCH && _spilled.get() > 0 ) {
+
+                    while ( _spillPending.size() < Logger.MAX_ASYNC_BATCH ) {
+
+                        LogRecord record = _spill.poll();
+                        if ( record == null ) {
+
+                            break;
+
+                        }
+
+                        _spillPending.add( record );
+
+                    }
+
+                    if ( _ring.isEmpty() ) {
+
+                        int taken = Math.min( _spillPending.size(), Logger.MAX_ASYNC_BATCH - batch.size() );
+                        List<LogRecord> ready = _spillPending.subList( 0, taken );
+                        batch.addAll( ready );
+                        ready.clear();
+                        _spilled.addAndGet( -taken );
+
+                    }
+
+                }
+
+                long dropped = _dropped.getAndSet( 0L );
+                if ( batch.isEmpty() && dropped == 0L ) {
+
+                    return !_spillPending.isEmpty();
+
+                }
+
+                _batching = true;
+                try {
+
+                    if ( dropped > 0L ) {
+
+                        writeRecord(
+                                new LogRecord(
+                                        System.currentTimeMillis(),
+                                        "%%% " + dropped + " message" + ( dropped == 1L ? "" : "s" ) +
+                                        " dropped (logger buffer full)",
+                                        true,
+                                        null
+                                )
+                        );
+
+                    }
+
+                    for ( LogRecord record : batch ) {
+
+                        writeRecord( record );
+
+                    }
+
+                } finally {
+
+                    _batching = false;
+
+                }
+
+                flushStreams();
+
+                for ( LogRecord record : batch ) {
+
+                    if ( record._barrier != null ) {
+
+                        record._barrier.countDown();
+
+                    }
+
+                }
+
+                batch.clear();
+
+            }
+
+            return true;
+
+        }
+
+        private void writeRecord( LogRecord record ) {
+
+            if ( record._barrier != null ) {
+
+                return;
+
+            }
+
+            try {
+
+                doPrint( record._text, record._when );
+                if ( record._newline ) {
+
+                    printNewline( record._when );
+
+                }
+
+            } catch ( RuntimeException e ) {
+
+                // Don't let one bad listener take the writer down.
+
+                Trace.event( "asynchronous logger could not write a message", e );
+
+            }
+
+        }
+
+    }
+
+    private static final List<Logger> s_asyncLoggers = new ArrayList<Logger>();
+
+    private static boolean s_shutdownHookInstalled = false;
+
+    private volatile AsyncWriter _asyncWriter = null;
+
+    // Set while the writer thread is writing a batch (it flushes once at the end of the batch instead of after every
+    // line).
+
+    private boolean _batching = false;
+
+    private static final LoggerListener[] NO_LISTENERS = new LoggerListener[0];
+
+    // Never modified once published.  addListener() and removeListener() replace the whole array.
+
+    private volatile LoggerListener[] _listeners = Logger.NO_LISTENERS;
+
+    private volatile ExecutorService _listenerExecutor = null;
+
+    // While asynchronous delivery is being turned off, messages keep going to the old executor until it is idle so
+    // that they are delivered in order and by one thread at a time.  Only touched while the logger is locked.
+
+    private ExecutorService _retiringListenerExecutor = null;
+
+    // Messages handed to a listener executor which haven't been delivered yet (only incremented while the logger is
+    // locked).
+
+    private final AtomicInteger _pendingDeliveries = new AtomicInteger();
+
+    private volatile Thread _listenerThread = null;
 
     private StringBuffer _currentMessage = new StringBuffer();
 
@@ -39,6 +437,26 @@ public class Logger {
 
     private PrintStream _mirror = null;     // If non-null, all messages sent to this logger are also sent here.
 
+    private String _mirrorFileName = null;
+
+    // Rotation (see setRotation()).  The rotators are null unless the corresponding stream is a rotating file.
+
+    private long _rotationMaxBytes = 0L;
+
+    private long _rotationMaxAgeMillis = 0L;
+
+    private int _rotationRetainedSegments = 0;
+
+    private RotatingFileOutputStream _outputRotator = null;
+
+    private RotatingFileOutputStream _mirrorRotator = null;
+
+    private static long s_defaultRotationMaxBytes = 0L;
+
+    private static long s_defaultRotationMaxAgeMillis = 0L;
+
+    private static int s_defaultRotationRetainedSegments = 0;
+
     private static Logger s_stdout = null;
 
     private static Logger s_stderr = null;
@@ -47,6 +465,8 @@ public class Logger {
 
     private static final DateFormat OUR_DATE_FORMAT;
 
+    private static final CachedTimestampFormat TIMESTAMP_FORMAT;
+
     private static final String COMPONENT_NAME;
 
     public static final File LOGS_DIRECTORY;
@@ -70,243 +490,699 @@ public class Logger {
 
             OUR_DATE_FORMAT = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS Z" );
 
-        } else {
+        } else {
+
+            OUR_DATE_FORMAT = BasicProgramConfigInfo.getDateFormat();
+
+        }
+
+        TIMESTAMP_FORMAT = new CachedTimestampFormat( Logger.OUR_DATE_FORMAT );
+
+        if ( BasicProgramConfigInfo.getLogFileNameFormat() == null ) {
+
+            LOG_FILE_NAME_FORMATTER = new SimpleDateFormat( "yyyy-MM-dd_HH.mm.ss.SSS'.txt'" );
+
+        } else {
+
+            LOG_FILE_NAME_FORMATTER = new SimpleDateFormat( BasicProgramConfigInfo.getLogFileNameFormat() );
+
+        }
+
+        LOGS_DIRECTORY = new File( BasicProgramConfigInfo.getWorkingDirectory(), "logs" );
+
+    }
+
+    public Logger( File outputFile, boolean append )
+            throws
+            FileNotFoundException {
+
+        super();
+
+        _outputFile = outputFile;
+        _outputStream = new PrintStream( new FileOutputStream( outputFile, append ), true );
+
+    }
+
+    public Logger( String outputFileName, PrintStream outputStream ) {
+
+        super();
+
+        _outputFileName = outputFileName;
+        _outputStream = outputStream;
+
+    }
+
+    /**
+     * Close this logger and set our mirror to null (this has the side-effect of closing our mirror if it is open and
+     * neither {@link System#out} nor {@link System#err}).
+     */
+
+    public void close() {
+
+        stopAsync();
+        closeStreams();
+
+    }
+
+    private synchronized void closeStreams() {
+
+        // Make sure we don't accidentally close stdout or stderr.
+        // Note:  use of != instead of equals() is deliberate!
+
+        //noinspection ObjectEquality
+        if ( _outputStream != System.out && _outputStream != System.err && _outputStream != null ) {
+
+            _outputStream.close();
+
+        }
+
+        _outputRotator = null;
+
+        //noinspection NullableProblems
+        internalSetMirror( null, null );
+    }
+
+    /**
+     * Set this logger's mirror to the specified {@link java.io.PrintStream}. Any existing mirror is closed if it is
+     * open and
+     * neither {@link System#out} nor {@link System#err}).
+     *
+     * @param mirrorName the name of the mirror file/device/whatever.
+     * @param mirror     the PrintStream which is to be sent a copy of everything which is emitted by this Logger.
+     */
+
+    private synchronized void internalSetMirror( String mirrorName, PrintStream mirror ) {
+
+        // Make sure we don't accidentally close stdout or stderr.
+        // Note:  use of != instead of equals() is deliberate!
+
+        //noinspection ObjectEquality
+        if ( _mirror != null && _mirror != System.out && _mirror != System.err ) {
+
+            printlnNow( "\n%%% mirror file closed" );
+            _mirror.close();
+
+        }
+
+        _mirror = mirror;
+        if ( _mirror == null ) {
+
+            _mirrorFileName = null;
+            _mirrorRotator = null;
+
+        } else {
+
+            if ( mirrorName == null ) {
+
+                printlnNow( "%%% mirror file (re)opened" );
+
+            } else {
+
+                printlnNow( "%%% mirror file \"" + mirrorName + "\" (re)opened" );
+
+            }
+
+        }
+
+    }
+
+    public void setMirror( String mirrorFilename, long key )
+            throws
+            FileNotFoundException {
+
+        // Make sure that anything already logged asynchronously goes to the old mirror.
+
+        flush();
+        synchronized ( this ) {
+
+            RotatingFileOutputStream rotator = openRotator( new File( mirrorFilename ) );
+            internalSetMirror(
+                    mirrorFilename,
+                    new PrintStream(
+                            rotator == null ? new FileOutputStream( mirrorFilename, true ) : rotator,
+                            true
+                    )
+            );
+            _mirrorFileName = mirrorFilename;
+            _mirrorRotator = rotator;
+
+        }
+
+    }
+
+    /**
+     * Rotate this logger's output file and mirror file once they get too big or too old.
+     * <p/>
+     * Each rotated segment is renamed with the time of the rotation appended and is then gzipped (and the oldest
+     * segments beyond the retention limit deleted) on a background thread (see {@link RotatingFileOutputStream}).
+     * The checks happen between lines so a line is never split across segments.  Only the rename and the opening of
+     * the new file happen on the thread which is logging (on the writer thread if this logger is asynchronous).
+     * <p/>
+     * Applies to the output file if this logger was created with {@link #Logger(java.io.File, boolean)} and to the
+     * mirror if it is a file.  The streams are reopened (in append mode) right away.
+     *
+     * @param maxBytes         rotate once a file holds at least this many bytes (0 if size doesn't matter).
+     * @param maxAgeMillis     rotate once a file has been open for this many milliseconds (0 if age doesn't matter).
+     *                         Rotation stops if both this and <tt>maxBytes</tt> are 0.
+     * @param retainedSegments how many compressed segments of each file to keep (0 to keep them all).
+     * @throws FileNotFoundException if a file cannot be reopened.
+     */
+
+    public void setRotation( long maxBytes, long maxAgeMillis, int retainedSegments )
+            throws FileNotFoundException {
+
+        flush();
+        synchronized ( this ) {
+
+            _rotationMaxBytes = maxBytes;
+            _rotationMaxAgeMillis = maxAgeMillis;
+            _rotationRetainedSegments = retainedSegments;
+
+            if ( _outputFile != null ) {
+
+                _outputStream.close();
+                _outputRotator = openRotator( _outputFile );
+                _outputStream = new PrintStream(
+                        _outputRotator == null ? new FileOutputStream( _outputFile, true ) : _outputRotator, true
+                );
+
+            }
+
+            if ( _mirrorFileName != null ) {
+
+                _mirror.close();
+                _mirrorRotator = openRotator( new File( _mirrorFileName ) );
+                _mirror = new PrintStream(
+                        _mirrorRotator == null ? new FileOutputStream( _mirrorFileName, true ) : _mirrorRotator, true
+                );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Set the rotation limits for the stdout and stderr loggers' mirror files (see {@link #setRotation}).
+     * Applies to the loggers that already exist and to the ones created later.
+     *
+     * @param maxBytes         rotate once a file holds at least this many bytes (0 if size doesn't matter).
+     * @param maxAgeMillis     rotate once a file has been open for this many milliseconds (0 if age doesn't matter).
+     * @param retainedSegments how many compressed segments of each file to keep (0 to keep them all).
+     * @throws FileNotFoundException if a mirror file cannot be reopened.
+     */
+
+    public static void setDefaultRotation( long maxBytes, long maxAgeMillis, int retainedSegments )
+            throws FileNotFoundException {
+
+        Logger.s_defaultRotationMaxBytes = maxBytes;
+        Logger.s_defaultRotationMaxAgeMillis = maxAgeMillis;
+        Logger.s_defaultRotationRetainedSegments = retainedSegments;
+
+        if ( Logger.s_stdout != null ) {
+
+            Logger.s_stdout.setRotation( maxBytes, maxAgeMillis, retainedSegments );
+
+        }
+
+        if ( Logger.s_stderr != null ) {
+
+            Logger.s_stderr.setRotation( maxBytes, maxAgeMillis, retainedSegments );
+
+        }
+
+    }
+
+    private RotatingFileOutputStream openRotator( File file )
+            throws FileNotFoundException {
+
+        if ( _rotationMaxBytes == 0L && _rotationMaxAgeMillis == 0L ) {
+
+            return null;
+
+        }
+
+        return new RotatingFileOutputStream( file, _rotationMaxBytes, _rotationMaxAgeMillis, _rotationRetainedSegments );
+
+    }
+
+    private static void rotateIfDue( RotatingFileOutputStream rotator ) {
+
+        try {
+
+            rotator.rotateIfDue();
+
+        } catch ( IOException e ) {
+
+            Trace.event( "unable to rotate \"" + rotator.getFile() + "\"", e );
+
+        }
+
+    }
+
+    /**
+     * Format a time of day the way that log messages are timestamped.
+     * Safe to call from any thread.  Successive calls within the same second are cheap.
+     *
+     * @param when the time.
+     * @return the formatted time.
+     */
+
+    public static String formatTOD( Date when ) {
+
+        return Logger.TIMESTAMP_FORMAT.format( when );
+
+    }
+
+    private void printSegment( String s, long when ) {
+
+        if ( _messageStartTime == null ) {
+
+            _messageStartTime = new Date( when );
+        }
+
+        _currentMessage.append( s );
+
+    }
+
+    private void printNewline( long when ) {
+
+        if ( _messageStartTime == null ) {
+
+            _messageStartTime = new Date( when );
+
+        }
+
+        String line = Logger.formatTOD( _messageStartTime ) + ":  " + _currentMessage.toString();
+        if ( _outputRotator != null ) {
+
+            Logger.rotateIfDue( _outputRotator );
+
+        }
+
+        if ( _mirrorRotator != null ) {
+
+            Logger.rotateIfDue( _mirrorRotator );
+
+        }
+
+        if ( _outputStream != null ) {
+
+            _outputStream.println( line );
+
+        }
+
+        if ( _mirror != null ) {
+
+            _mirror.println( line );
+
+        }
+
+        if ( !_batching ) {
+
+            flushStreams();
+
+        }
+
+        // The listeners array is never modified (addListener() replaces it) so we can use whatever we see without
+        // copying or locking it.
+
+        final LoggerListener[] listeners = _listeners;
+        if ( listeners.length > 0 ) {
+
+            final Date messageTime = _messageStartTime;
+            final String message = _currentMessage.toString();
+
+            // We have the logger locked and setAsyncListeners() only swaps or shuts down executors while it has the
+            // logger locked so whichever executor we pick is still accepting work.
+
+            final ExecutorService listenerExecutor =
+                    _listenerExecutor == null ? _retiringListenerExecutor : _listenerExecutor;
+            if ( listenerExecutor == null ) {
+
+                Logger.notifyListeners( listeners, messageTime, message );
+
+            } else {
+
+                _pendingDeliveries.incrementAndGet();
+                listenerExecutor.execute(
+                        new Runnable() {
+
+                            public void run() {
+
+                                try {
+
+                                    Logger.notifyListeners( listeners, messageTime, message );
+
+                                } finally {
+
+                                    deliveryDone( listenerExecutor );
+
+                                }
+
+                            }
+
+                        }
+                );
+
+            }
+
+        }
+
+        _currentMessage = new StringBuffer();
+        _messageStartTime = null;
+
+    }
+
+    public void print( String s ) {
+
+        AsyncWriter asyncWriter = _asyncWriter;
+        if ( asyncWriter == null || asyncWriter == Thread.currentThread() ) {
+
+            synchronized ( this ) {
+
+                doPrint( s, System.currentTimeMillis() );
+
+            }
+
+        } else {
+
+            asyncWriter.enqueue( new LogRecord( System.currentTimeMillis(), s, false, null ) );
+
+        }
+
+    }
+
+    private void doPrint( String s, long when ) {
+
+        int last = 0;
+
+        while ( true ) {
+
+            int ix = s.indexOf( (int)'\n', last );
+            if ( ix < last ) {
+
+                break;
+
+            }
+
+            String nextSection = s.substring( last, ix );
+            printSegment( nextSection, when );
+            printNewline( when );
+            last = ix + 1;
+
+        }
+
+        if ( last < s.length() ) {
+
+            String lastSection = s.substring( last );
+            printSegment( lastSection, when );
+
+        } else {
+
+            printSegment( "", when );   // needed to properly handle \n at the end of the string and harmless otherwise.
+
+        }
+
+    }
+
+    public void println( String s ) {
+
+        AsyncWriter asyncWriter = _asyncWriter;
+        if ( asyncWriter == null || asyncWriter == Thread.currentThread() ) {
+
+            printlnNow( s );
+
+        } else {
+
+            asyncWriter.enqueue( new LogRecord( System.currentTimeMillis(), s, true, null ) );
+
+        }
+
+    }
+
+    private synchronized void printlnNow( String s ) {
+
+        long now = System.currentTimeMillis();
+        doPrint( s, now );
+        printNewline( now );
+
+        // The Java 1.4.2 docs are not clear as to whether System.out or System.err are
+        // opened with autoflushing enabled so we force a flush here just to be sure.
+
+        if ( !_batching ) {
 
-            OUR_DATE_FORMAT = BasicProgramConfigInfo.getDateFormat();
+            flushStreams();
 
         }
 
-        if ( BasicProgramConfigInfo.getLogFileNameFormat() == null ) {
+    }
 
-            LOG_FILE_NAME_FORMATTER = new SimpleDateFormat( "yyyy-MM-dd_HH.mm.ss.SSS'.txt'" );
+    /**
+     * Flush the underlying {@link java.io.PrintStream}. Calling this method is generally not necessary as it is called
+     * implicitly after each newline is written.
+     * <p/>
+     * If this logger is asynchronous then this method is a barrier:  it waits until the writer thread has written and
+     * flushed everything which was logged by the calling thread before the call.
+     */
 
-        } else {
+    public void flush() {
 
-            LOG_FILE_NAME_FORMATTER = new SimpleDateFormat( BasicProgramConfigInfo.getLogFileNameFormat() );
+        AsyncWriter asyncWriter = _asyncWriter;
+        if ( asyncWriter == null || asyncWriter == Thread.currentThread() ) {
 
-        }
+            flushStreams();
 
-        LOGS_DIRECTORY = new File( BasicProgramConfigInfo.getWorkingDirectory(), "logs" );
+        } else {
 
-    }
+            CountDownLatch barrier = new CountDownLatch( 1 );
+            asyncWriter.enqueue( new LogRecord( 0L, null, false, barrier ) );
+            Logger.awaitBarrier( barrier );
 
-    public Logger( File outputFile, boolean append )
-            throws
-            FileNotFoundException {
+        }
 
-        super();
+    }
 
-        _outputFile = outputFile;
-        _outputStream = new PrintStream( new FileOutputStream( outputFile, append ), true );
+    private static void awaitBarrier( CountDownLatch barrier ) {
 
-    }
+        boolean interrupted = false;
+        while ( true ) {
 
-    public Logger( String outputFileName, PrintStream outputStream ) {
+            try {
 
-        super();
+                barrier.await();
+                break;
 
-        _outputFileName = outputFileName;
-        _outputStream = outputStream;
+            } catch ( InterruptedException e ) {
 
-    }
+                // The writer will get to the barrier soon enough.  Wait for it regardless.
 
-    /**
-     * Close this logger and set our mirror to null (this has the side-effect of closing our mirror if it is open and
-     * neither {@link System#out} nor {@link System#err}).
-     */
+                interrupted = true;
 
-    public synchronized void close() {
+            }
 
-        // Make sure we don't accidentally close stdout or stderr.
-        // Note:  use of != instead of equals() is deliberate!
+        }
 
-        //noinspection ObjectEquality
-        if ( _outputStream != System.out && _outputStream != System.err && _outputStream != null ) {
+        if ( interrupted ) {
 
-            _outputStream.close();
+            Thread.currentThread().interrupt();
 
         }
 
-        //noinspection NullableProblems
-        internalSetMirror( null, null );
     }
 
     /**
-     * Set this logger's mirror to the specified {@link java.io.PrintStream}. Any existing mirror is closed if it is
-     * open and
-     * neither {@link System#out} nor {@link System#err}).
+     * Make this logger asynchronous.
+     * <p/>
+     * From now on, messages logged via this logger are put in a lock-free ring buffer and the calling thread carries on
+     * immediately.  A background writer thread formats the timestamps, writes the messages to the output stream and the
+     * mirror in batches (flushing once per batch) and calls the listeners.  Each thread's messages appear in the order
+     * in which they were logged.  Use {@link #flush} to wait for everything to be written.  Anything still in the
+     * buffer when the JVM shuts down normally is written by a shutdown hook.
+     * <p/>
+     * Note that listeners are called by the writer thread rather than by the thread which logged the message.
      *
-     * @param mirrorName the name of the mirror file/device/whatever.
-     * @param mirror     the PrintStream which is to be sent a copy of everything which is emitted by this Logger.
+     * @param capacity the size of the ring buffer (rounded up to a power of two).
+     * @param policy   what to do with a message when the ring buffer is full.
+     * @throws IllegalArgumentException if the capacity is not positive.
      */
 
-    private void internalSetMirror( String mirrorName, PrintStream mirror ) {
+    public void startAsync( int capacity, OverflowPolicy policy ) {
 
-        // Make sure we don't accidentally close stdout or stderr.
-        // Note:  use of != instead of equals() is deliberate!
+        // Finish off the current writer (if there is one) first so that what it has queued comes out before anything
+        // that the new writer gets.
 
-        //noinspection ObjectEquality
-        if ( _mirror != null && _mirror != System.out && _mirror != System.err ) {
+        stopAsync();
 
-            println( "\n%%% mirror file closed" );
-            _mirror.close();
+        AsyncWriter replaced;
+        synchronized ( Logger.s_asyncLoggers ) {
 
-        }
+            // Somebody else might have made this logger asynchronous while we weren't looking.
 
-        _mirror = mirror;
-        if ( _mirror != null ) {
+            replaced = detachAsyncWriter();
 
-            if ( mirrorName == null ) {
+            AsyncWriter asyncWriter = new AsyncWriter( capacity, policy );
+            asyncWriter.start();
+            _asyncWriter = asyncWriter;
 
-                println( "%%% mirror file (re)opened" );
+            Logger.s_asyncLoggers.add( this );
+            if ( !Logger.s_shutdownHookInstalled ) {
 
-            } else {
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread( "Logger shutdown" ) {
 
-                println( "%%% mirror file \"" + mirrorName + "\" (re)opened" );
+                            public void run() {
 
-            }
+                                Logger.stopAsyncLogging();
 
-        }
+                            }
 
-    }
+                        }
+                );
+                Logger.s_shutdownHookInstalled = true;
 
-    public void setMirror( String mirrorFilename, long key )
-            throws
-            FileNotFoundException {
+            }
+
+        }
 
-        internalSetMirror( mirrorFilename, new PrintStream( new FileOutputStream( mirrorFilename, true ), true ) );
+        Logger.awaitWriter( replaced );
 
     }
 
-    public static String formatTOD( Date when ) {
-
-        return Logger.OUR_DATE_FORMAT.format( when );
+    /**
+     * Make this logger synchronous again.
+     * Waits for the writer thread to write everything that has been queued.  Does nothing if this logger is not
+     * asynchronous.
+     */
 
-    }
+    public void stopAsync() {
 
-    private void printSegment( String s ) {
+        AsyncWriter asyncWriter;
+        synchronized ( Logger.s_asyncLoggers ) {
 
-        if ( _messageStartTime == null ) {
+            asyncWriter = detachAsyncWriter();
 
-            _messageStartTime = new Date();
         }
 
-        _currentMessage.append( s );
+        // Wait outside the lock since a listener running on the writer thread might start or stop a logger.
+
+        Logger.awaitWriter( asyncWriter );
 
     }
 
-    private void printNewline() {
+    /**
+     * Tell this logger's writer (if it has one) to finish off what's already queued and quit.  Messages logged from now
+     * on are written synchronously.
+     * <p/>
+     * The caller must be synchronized on {@link #s_asyncLoggers}.
+     *
+     * @return the writer (null if this logger wasn't asynchronous).
+     */
+
+    @Nullable
+    private AsyncWriter detachAsyncWriter() {
 
-        if ( _messageStartTime == null ) {
+        AsyncWriter asyncWriter = _asyncWriter;
+        if ( asyncWriter != null ) {
 
-            _messageStartTime = new Date();
+            _asyncWriter = null;
+            asyncWriter._stopping = true;
+            Logger.s_asyncLoggers.remove( this );
 
         }
 
-        String formattedMessageStartTime = Logger.OUR_DATE_FORMAT.format( _messageStartTime );
-        if ( _outputStream != null ) {
+        return asyncWriter;
 
-            //noinspection UnnecessaryParentheses
-            _outputStream.println(
-                    MessageFormat.format(
-                            "{0}:  {1}",
-                            formattedMessageStartTime,
-                            _currentMessage.toString()
-                    )
-            );
+    }
 
-        }
+    /**
+     * Wait for a writer which has been told to stop to write everything it has queued and quit.
+     */
 
-        if ( _mirror != null ) {
+    private static void awaitWriter( @Nullable AsyncWriter asyncWriter ) {
+
+        if ( asyncWriter == null ) {
 
-            _mirror.println( formattedMessageStartTime + ":  " + _currentMessage.toString() );
+            return;
 
         }
 
-        flush();
+        LockSupport.unpark( asyncWriter );
+        if ( asyncWriter == Thread.currentThread() ) {
 
-        // Make a copy of our listeners list from within a synchronized block.
-        // Use this list outside the block to call all the listeners.
-        // While somewhat awkward, this ensures that the list of listeners does not change
-        // while we're sending the message to them without having to call the listeners
-        // from within a synchronized block (which just seems ugly and risks deadlocks).
+            // A listener wants out.  The writer finishes off what's queued and quits once it gets back to its loop.
 
-        List<LoggerListener> tmpListeners;
+            return;
 
-        synchronized ( this ) {
+        }
 
-            tmpListeners = new LinkedList<LoggerListener>( _listeners );
+        boolean interrupted = false;
+        while ( asyncWriter.isAlive() ) {
 
-        }
+            try {
 
-        Trace.event( "processing listeners" );
+                asyncWriter.join();
 
-        for ( LoggerListener listener : tmpListeners ) {
+            } catch ( InterruptedException e ) {
 
-            listener.logMessage( _messageStartTime, _currentMessage.toString() );
+                interrupted = true;
+
+            }
 
         }
 
-        Trace.event( "done processing listeners" );
+        if ( interrupted ) {
 
-        _currentMessage = new StringBuffer();
-        _messageStartTime = null;
+            Thread.currentThread().interrupt();
 
-    }
+        }
 
-    public synchronized void print( String Xs ) {
+    }
 
-        //noinspection UnnecessaryLocalVariable
-        String s = Xs;
-        int last = 0;
+    public boolean isAsync() {
 
-        while ( true ) {
+        return _asyncWriter != null;
 
-            int ix = s.indexOf( (int)'\n', last );
-            if ( ix < last ) {
+    }
 
-                break;
+    /**
+     * Make the stdout, stderr and 'user friendly' loggers asynchronous (see {@link #startAsync}).
+     *
+     * @param capacity the size of each logger's ring buffer.
+     * @param policy   what to do with a message when a ring buffer is full.
+     */
 
-            }
+    public static void startAsyncLogging( int capacity, OverflowPolicy policy ) {
 
-            String nextSection = s.substring( last, ix );
-            printSegment( nextSection );
-            printNewline();
-            last = ix + 1;
+        Logger.getStdout().startAsync( capacity, policy );
+        Logger.getStderr().startAsync( capacity, policy );
+        Logger.getFriendly().startAsync( capacity, policy );
 
-        }
+    }
 
-        if ( last < s.length() ) {
+    /**
+     * Make all asynchronous loggers synchronous again (waiting for everything they have queued to be written).
+     * This is the flush barrier to use before shutting down.
+     */
 
-            String lastSection = s.substring( last );
-            printSegment( lastSection );
+    public static void stopAsyncLogging() {
 
-        } else {
+        List<Logger> asyncLoggers;
+        synchronized ( Logger.s_asyncLoggers ) {
 
-            printSegment( "" );   // needed to properly handle \n at the end of the string and harmless otherwise.
+            asyncLoggers = new ArrayList<Logger>( Logger.s_asyncLoggers );
 
         }
 
-    }
-
-    public synchronized void println( String s ) {
-
-        print( s );
-        printNewline();
+        for ( Logger logger : asyncLoggers ) {
 
-        // The Java 1.4.2 docs are not clear as to whether System.out or System.err are
-        // opened with autoflushing enabled so we force a flush here just to be sure.
+            logger.stopAsync();
 
-        flush();
+        }
 
     }
 
-    /**
-     * Flush the underlying {@link java.io.PrintStream}. Calling this method is generally not necessary as it is called
-     * implicitly after each newline is written.
-     */
-
-    public synchronized void flush() {
+    private synchronized void flushStreams() {
 
         if ( _outputStream != null ) {
 
@@ -398,6 +1274,9 @@ public class Logger {
         if ( Logger.s_stdout == null ) {
 
             Logger.s_stdout = new Logger( "<stdout>", System.out );
+            Logger.s_stdout._rotationMaxBytes = Logger.s_defaultRotationMaxBytes;
+            Logger.s_stdout._rotationMaxAgeMillis = Logger.s_defaultRotationMaxAgeMillis;
+            Logger.s_stdout._rotationRetainedSegments = Logger.s_defaultRotationRetainedSegments;
 
             try {
 
@@ -434,6 +1313,9 @@ public class Logger {
         if ( Logger.s_stderr == null ) {
 
             Logger.s_stderr = new Logger( "<stderr>", System.err );
+            Logger.s_stderr._rotationMaxBytes = Logger.s_defaultRotationMaxBytes;
+            Logger.s_stderr._rotationMaxAgeMillis = Logger.s_defaultRotationMaxAgeMillis;
+            Logger.s_stderr._rotationRetainedSegments = Logger.s_defaultRotationRetainedSegments;
 
             try {
 
@@ -691,7 +1573,210 @@ public class Logger {
 
     public synchronized void addListener( LoggerListener listener ) {
 
-        _listeners.add( listener );
+        LoggerListener[] listeners = new LoggerListener[_listeners.length + 1];
+        System.arraycopy( _listeners, 0, listeners, 0, _listeners.length );
+        listeners[_listeners.length] = listener;
+        _listeners = listeners;
+
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener the listener to be removed from this instance's list of listeners.
+     * @return true if the listener was found (and removed); false otherwise.
+     */
+
+    public synchronized boolean removeListener( LoggerListener listener ) {
+
+        for ( int i = 0; i < _listeners.length; i += 1 ) {
+
+            if ( _listeners[i] == listener ) {
+
+                LoggerListener[] listeners = new LoggerListener[_listeners.length - 1];
+                System.arraycopy( _listeners, 0, listeners, 0, i );
+                System.arraycopy( _listeners, i + 1, listeners, i, listeners.length - i );
+                _listeners = listeners;
+
+                return true;
+
+            }
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Note that a message handed to a listener executor has been delivered.
+     * The last one delivered by an executor which is being retired shuts it down.
+     */
+
+    private void deliveryDone( ExecutorService listenerExecutor ) {
+
+        if ( _pendingDeliveries.decrementAndGet() == 0 ) {
+
+            synchronized ( this ) {
+
+                // Nobody can hand the executor another message while we have the logger locked.
+
+                if ( _retiringListenerExecutor == listenerExecutor && _pendingDeliveries.get() == 0 ) {
+
+                    _retiringListenerExecutor = null;
+                    listenerExecutor.shutdown();
+
+                }
+
+            }
+
+        }
+
+    }
+
+    private static void notifyListeners( LoggerListener[] listeners, Date messageTime, String message ) {
+
+        Trace.event( "processing listeners" );
+
+        for ( LoggerListener listener : listeners ) {
+
+            listener.logMessage( messageTime, message );
+
+        }
+
+        Trace.event( "done processing listeners" );
+
+    }
+
+    /**
+     * Arrange for this logger's listeners to be called on a background thread.
+     * <p/>
+     * Normally listeners are called by whichever thread writes the message (the thread which logged it or, if this
+     * logger is asynchronous, the writer thread) so a slow listener slows down logging.  With asynchronous delivery
+     * each message is handed to a dedicated thread which calls the listeners in the order that the messages were
+     * written.  The hand-off never blocks;  messages pile up in memory if the listeners can't keep up.
+     * Messages that haven't been delivered when the JVM exits are lost.
+     *
+     * <p/>
+     * Turning asynchronous delivery off waits until the messages logged before the call have been delivered (unless
+     * it is called by a listener or with the logger locked, since that would mean waiting for ourselves).  Messages
+     * logged after the call keep going to the background thread until it has nothing left to deliver (so that they
+     * are still delivered in order) and are delivered directly from then on.  The caller never waits for them.
+     *
+     * @param async true if listeners are to be called on a background thread; false if they are to be called directly.
+     */
+
+    public void setAsyncListeners( boolean async ) {
+
+        final CountDownLatch caughtUp = new CountDownLatch( 1 );
+        synchronized ( this ) {
+
+            if ( async == ( _listenerExecutor != null ) ) {
+
+                return;
+
+            }
+
+            if ( async ) {
+
+                if ( _retiringListenerExecutor != null ) {
+
+                    // The old executor hasn't caught up yet.  Just keep using it.
+
+                    _listenerExecutor = _retiringListenerExecutor;
+                    _retiringListenerExecutor = null;
+
+                    return;
+
+                }
+
+                final String threadName = "Logger listeners (" + getOutputFileName() + ")";
+                _listenerExecutor = Executors.newSingleThreadExecutor(
+                        new ThreadFactory() {
+
+                            public Thread newThread( Runnable runnable ) {
+
+                                Thread thread = new Thread( runnable, threadName );
+                                thread.setDaemon( true );
+                                _listenerThread = thread;
+
+                                return thread;
+
+                            }
+
+                        }
+                );
+
+                return;
+
+            }
+
+            // Messages keep going to the old executor until it is idle.  Then the last delivery shuts it down (see
+            // deliveryDone()).  The caller only waits for a marker queued behind the messages that are already waiting.
+
+            ExecutorService retiring = _listenerExecutor;
+            _listenerExecutor = null;
+            if ( _pendingDeliveries.get() == 0 ) {
+
+                retiring.shutdown();
+
+                return;
+
+            }
+
+            _retiringListenerExecutor = retiring;
+            retiring.execute(
+                    new Runnable() {
+
+                        public void run() {
+
+                            caughtUp.countDown();
+
+                        }
+
+                    }
+            );
+
+        }
+
+        if ( Thread.currentThread() == _listenerThread || Thread.holdsLock( this ) ) {
+
+            // A listener turned asynchronous delivery off (or the caller has the logger locked, which the retiring
+            // executor needs).  Waiting for the executor would mean waiting for ourselves.
+
+            return;
+
+        }
+
+        // Wait outside the lock since a listener might well log something.
+
+        boolean interrupted = false;
+        while ( true ) {
+
+            try {
+
+                caughtUp.await();
+                break;
+
+            } catch ( InterruptedException e ) {
+
+                interrupted = true;
+
+            }
+
+        }
+
+        if ( interrupted ) {
+
+            Thread.currentThread().interrupt();
+
+        }
+
+    }
+
+    public boolean hasAsyncListeners() {
+
+        return _listenerExecutor != null;
 
     }
 
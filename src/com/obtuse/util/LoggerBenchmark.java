@@ -0,0 +1,288 @@
+package com.obtuse.util;
+
+import java.io.*;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare how long threads spend logging with a synchronous {@link Logger} and with asynchronous ones.
+ * <p/>
+ * A number of threads each log a number of messages to a logger which writes to a temporary file.  The file is then
+ * read back to make sure that nothing went missing (except when the overflow policy is DROP) and that each thread's
+ * messages appear in the order in which they were logged.
+ * <p/>
+ * Then it compares calling a slow {@link LoggerListener} directly with calling it on a background thread (see
+ * {@link Logger#setAsyncListeners}) and makes sure that the listener sees every message either way.
+ * <p/>
+ * Usage:  <tt>LoggerBenchmark [threads [messages]]</tt>
+ */
+
+public class LoggerBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final int SMALL_CAPACITY = 256;
+
+    private static final long LISTENER_NANOS = 20000L;
+
+    /**
+     * A listener which takes its time.
+     */
+
+    private static class SlowListener implements LoggerListener {
+
+        private final AtomicLong _messages = new AtomicLong();
+
+        public void logMessage( Date messageTime, String msg ) {
+
+            long start = System.nanoTime();
+            //noinspection StatementWithEmptyBody
+            while ( System.nanoTime() - start < LoggerBenchmark.LISTENER_NANOS ) {
+
+            }
+
+            _messages.incrementAndGet();
+
+        }
+
+    }
+
+    private LoggerBenchmark() {
+        super();
+
+    }
+
+    /**
+     * Have a number of threads log a number of messages each.
+     *
+     * @return the number of messages written to the file.
+     */
+
+    private static int run( String name, int threadCount, final int messages, int capacity, Logger.OverflowPolicy policy )
+            throws IOException, InterruptedException {
+
+        return LoggerBenchmark.run( name, threadCount, messages, capacity, policy, null, false );
+
+    }
+
+    private static int run(
+            String name, int threadCount, final int messages, int capacity, Logger.OverflowPolicy policy,
+            SlowListener listener, boolean asyncListeners
+    )
+            throws IOException, InterruptedException {
+
+        File file = File.createTempFile( "LoggerBenchmark", ".txt" );
+        try {
+
+            final Logger logger = new Logger( file, false );
+            if ( policy != null ) {
+
+                logger.startAsync( capacity, policy );
+
+            }
+
+            if ( listener != null ) {
+
+                logger.addListener( listener );
+                logger.setAsyncListeners( asyncListeners );
+
+            }
+
+            Thread[] threads = new Thread[threadCount];
+            for ( int t = 0; t < threadCount; t += 1 ) {
+
+                final int threadNumber = t;
+                threads[t] = new Thread( "logger " + t ) {
+
+                    public void run() {
+
+                        for ( int i = 0; i < messages; i += 1 ) {
+
+                            logger.println( "thread " + threadNumber + " message " + i );
+
+                        }
+
+                    }
+
+                };
+
+            }
+
+            Measure m = new Measure( name );
+            for ( Thread thread : threads ) {
+
+                thread.start();
+
+            }
+
+            for ( Thread thread : threads ) {
+
+                thread.join();
+
+            }
+
+            m.done();
+
+            Measure f = new Measure( name + " (flush)" );
+            logger.flush();
+            logger.setAsyncListeners( false );
+            f.done();
+
+            logger.close();
+
+            return LoggerBenchmark.check( file, threadCount, messages, policy != Logger.OverflowPolicy.DROP );
+
+        } finally {
+
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+        }
+
+    }
+
+    /**
+     * Make sure that each thread's messages are in order (and all there unless some may have been dropped).
+     *
+     * @return the number of messages found.
+     */
+
+    private static int check( File file, int threadCount, int messages, boolean complete )
+            throws IOException {
+
+        Map<Integer,Integer> nextMessage = new HashMap<Integer,Integer>();
+        int found = 0;
+        BufferedReader reader = new BufferedReader( new FileReader( file ) );
+        try {
+
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+
+                int ix = line.indexOf( ":  thread " );
+                if ( ix < 0 ) {
+
+                    continue;
+
+                }
+
+                String[] words = line.substring( ix + 3 ).split( " " );
+                int thread = Integer.parseInt( words[1] );
+                int message = Integer.parseInt( words[3] );
+                Integer expected = nextMessage.get( thread );
+                if ( expected != null && message < expected ) {
+
+                    throw new IllegalStateException( "thread " + thread + "'s messages are out of order:  " + line );
+
+                }
+
+                if ( complete && message != ( expected == null ? 0 : expected ) ) {
+
+                    throw new IllegalStateException( "thread " + thread + " lost a message before:  " + line );
+
+                }
+
+                nextMessage.put( thread, message + 1 );
+                found += 1;
+
+            }
+
+        } finally {
+
+            reader.close();
+
+        }
+
+        if ( complete && found != threadCount * messages ) {
+
+            throw new IllegalStateException( "expected " + threadCount * messages + " messages, found " + found );
+
+        }
+
+        return found;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "LoggerBenchmark", null );
+
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 4;
+        int messages = args.length > 1 ? Integer.parseInt( args[1] ) : 100000;
+
+        Logger.logMsg( threads + " threads logging " + messages + " messages each" );
+
+        try {
+
+            int dropped = 0;
+            for ( int round = 0; round < LoggerBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                LoggerBenchmark.run( "synchronous", threads, messages, 0, null );
+                LoggerBenchmark.run(
+                        "async BLOCK", threads, messages, Logger.DEFAULT_ASYNC_CAPACITY, Logger.OverflowPolicy.BLOCK
+                );
+                LoggerBenchmark.run(
+                        "async SPILL (small buffer)", threads, messages, LoggerBenchmark.SMALL_CAPACITY,
+                        Logger.OverflowPolicy.SPILL
+                );
+                int written = LoggerBenchmark.run(
+                        "async DROP (small buffer)", threads, messages, LoggerBenchmark.SMALL_CAPACITY,
+                        Logger.OverflowPolicy.DROP
+                );
+                dropped += threads * messages - written;
+
+            }
+
+            Logger.logMsg( "DROP policy dropped " + dropped + " messages in total" );
+
+            int listenerMessages = messages / 10;
+            for ( boolean asyncListeners : new boolean[] { false, true } ) {
+
+                SlowListener listener = new SlowListener();
+                LoggerBenchmark.run(
+                        asyncListeners ? "slow listener (async delivery)" : "slow listener", threads, listenerMessages,
+                        0, null, listener, asyncListeners
+                );
+                if ( listener._messages.get() != (long)threads * (long)listenerMessages ) {
+
+                    Logger.logErr(
+                            "listener saw " + listener._messages.get() + " messages instead of " +
+                            threads * listenerMessages
+                    );
+                    System.exit( 1 );
+
+                }
+
+            }
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "I/O error", e );
+            System.exit( 1 );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,332 @@
+package com.obtuse.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Read a UTF-8 (or plain ASCII) file by mapping it into memory.
+ * <p/>
+ * Characters are decoded straight out of the mapped bytes, without copying them through the kernel or an
+ * intermediate byte buffer first.  The file is mapped a window at a time so files which are far larger than the
+ * heap (or the 2GB limit on a single mapping) can be read.
+ * <p/>
+ * Malformed UTF-8 sequences are replaced by <tt>U+FFFD</tt> (much like {@link java.io.InputStreamReader} does although
+ * the number of replacement characters produced for a particular malformed sequence might differ).
+ */
+
+public class MappedFileReader extends Reader {
+
+    /**
+     * How much of the file is mapped at once unless the caller says otherwise.
+     */
+
+    public static final long DEFAULT_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
+
+    private final RandomAccessFile _file;
+
+    private final FileChannel _channel;
+
+    private final long _end;
+
+    private final long _windowSize;
+
+    private MappedByteBuffer _window = null;
+
+    private long _windowStart;
+
+    private int _windowPos = 0;
+
+    private int _windowLimit = 0;
+
+    // The second half of a surrogate pair that did not fit in the caller's buffer.
+
+    private boolean _havePendingLowSurrogate = false;
+
+    private char _pendingLowSurrogate;
+
+    private boolean _closed = false;
+
+    /**
+     * Read an entire file.
+     *
+     * @param file the file.
+     * @throws IOException if the file cannot be opened.
+     */
+
+    public MappedFileReader( File file )
+            throws IOException {
+        this( file, 0L, -1L, MappedFileReader.DEFAULT_WINDOW_SIZE );
+
+    }
+
+    /**
+     * Read a range of bytes within a file.
+     * The range should start at the beginning of a character.
+     *
+     * @param file       the file.
+     * @param start      the offset of the first byte to be read.
+     * @param length     how many bytes to read (-1 means to read to the end of the file).
+     * @param windowSize how much of the file to map at once.
+     * @throws IOException if the file cannot be opened.
+     * @throws IllegalArgumentException if the range or window size make no sense.
+     */
+
+    public MappedFileReader( File file, long start, long length, long windowSize )
+            throws IOException {
+        super();
+
+        //noinspection MagicNumber
+        if ( windowSize < 4L || windowSize > (long)Integer.MAX_VALUE ) {
+
+            throw new IllegalArgumentException( "window size " + windowSize + " is not within [4," + Integer.MAX_VALUE + "]" );
+
+        }
+
+        _file = new RandomAccessFile( file, "r" );
+        _channel = _file.getChannel();
+
+        long fileLength = _channel.size();
+        if ( start < 0L || start > fileLength ) {
+
+            ObtuseUtil.closeQuietly( _file );
+            throw new IllegalArgumentException( "start " + start + " is not within [0," + fileLength + "]" );
+
+        }
+
+        _end = length < 0L ? fileLength : Math.min( fileLength, start + length );
+        _windowStart = start;
+        _windowSize = windowSize;
+
+    }
+
+    /**
+     * Map the next window of the file, starting at the first byte not yet decoded.
+     *
+     * @return true if there is at least one more byte to decode; false if we've reached the end of our range.
+     * @throws IOException if the mapping fails.
+     */
+
+    private boolean nextWindow()
+            throws IOException {
+
+        _windowStart += (long)_windowPos;
+        _windowPos = 0;
+        _windowLimit = 0;
+        _window = null;
+
+        if ( _windowStart >= _end ) {
+
+            return false;
+
+        }
+
+        _window = _channel.map( FileChannel.MapMode.READ_ONLY, _windowStart, Math.min( _windowSize, _end - _windowStart ) );
+        _windowLimit = _window.limit();
+
+        return true;
+
+    }
+
+    public int read( char[] cbuf, int off, int len )
+            throws IOException {
+
+        if ( _closed ) {
+
+            throw new IOException( "reader is closed" );
+
+        }
+
+        if ( off < 0 || len < 0 || off + len > cbuf.length ) {
+
+            throw new IndexOutOfBoundsException( "[" + off + "," + ( off + len ) + ") is not within [0," + cbuf.length + ")" );
+
+        }
+
+        if ( len == 0 ) {
+
+            return 0;
+
+        }
+
+        int n = 0;
+        if ( _havePendingLowSurrogate ) {
+
+            cbuf[off] = _pendingLowSurrogate;
+            _havePendingLowSurrogate = false;
+            n = 1;
+
+        }
+
+        while ( n < len ) {
+
+            // A character is never more than four bytes long so, unless this window runs to the end of our range,
+            // we slide the window forward before decoding anything within the last three bytes of the window.
+
+            boolean lastWindow = _windowStart + (long)_windowLimit >= _end;
+            int safeLimit = lastWindow ? _windowLimit : _windowLimit - 3;
+            if ( _windowPos >= safeLimit ) {
+
+                if ( !nextWindow() ) {
+
+                    break;
+
+                }
+
+                continue;
+
+            }
+
+            MappedByteBuffer window = _window;
+            int pos = _windowPos;
+            while ( n < len && pos < safeLimit ) {
+
+                int b = window.get( pos );
+                if ( b >= 0 ) {
+
+                    cbuf[off + n] = (char)b;
+                    n += 1;
+                    pos += 1;
+                    continue;
+
+                }
+
+                int lead = b & 0xff;
+                int needed;
+                int codePoint;
+                int min2;
+                int max2;
+                if ( lead >= 0xc2 && lead <= 0xdf ) {
+
+                    needed = 1;
+                    codePoint = lead & 0x1f;
+                    min2 = 0x80;
+                    max2 = 0xbf;
+
+                } else if ( lead >= 0xe0 && lead <= 0xef ) {
+
+                    needed = 2;
+                    codePoint = lead & 0x0f;
+                    min2 = lead == 0xe0 ? 0xa0 : 0x80;     // no overlong encodings
+                    max2 = lead == 0xed ? 0x9f : 0xbf;     // no encoded surrogates
+
+                } else if ( lead >= 0xf0 && lead <= 0xf4 ) {
+
+                    needed = 3;
+                    codePoint = lead & 0x07;
+                    min2 = lead == 0xf0 ? 0x90 : 0x80;     // no overlong encodings
+                    max2 = lead == 0xf4 ? 0x8f : 0xbf;     // nothing beyond U+10FFFF
+
+                } else {
+
+                    cbuf[off + n] = MappedFileReader.REPLACEMENT_CHARACTER;
+                    n += 1;
+                    pos += 1;
+                    continue;
+
+                }
+
+                int consumed = 1;
+                boolean valid = true;
+                while ( consumed <= needed ) {
+
+                    if ( pos + consumed >= _windowLimit ) {
+
+                        valid = false;
+                        break;
+
+                    }
+
+                    int c = window.get( pos + consumed ) & 0xff;
+                    if ( consumed == 1 ? c < min2 || c > max2 : ( c & 0xc0 ) != 0x80 ) {
+
+                        valid = false;
+                        break;
+
+                    }
+
+                    codePoint = ( codePoint << 6 ) | ( c & 0x3f );
+                    consumed += 1;
+
+                }
+
+                if ( !valid ) {
+
+                    cbuf[off + n] = MappedFileReader.REPLACEMENT_CHARACTER;
+                    n += 1;
+                    pos += consumed;
+                    continue;
+
+                }
+
+                pos += consumed;
+                //noinspection MagicNumber
+                if ( codePoint < 0x10000 ) {
+
+                    cbuf[off + n] = (char)codePoint;
+                    n += 1;
+
+                } else {
+
+                    //noinspection MagicNumber
+                    int offset = codePoint - 0x10000;
+                    //noinspection MagicNumber
+                    char high = (char)( 0xd800 + ( offset >>> 10 ) );
+                    //noinspection MagicNumber
+                    char low = (char)( 0xdc00 + ( offset & 0x3ff ) );
+
+                    cbuf[off + n] = high;
+                    n += 1;
+                    if ( n < len ) {
+
+                        cbuf[off + n] = low;
+                        n += 1;
+
+                    } else {
+
+                        _pendingLowSurrogate = low;
+                        _havePendingLowSurrogate = true;
+
+                    }
+
+                }
+
+            }
+
+            _windowPos = pos;
+
+        }
+
+        return n == 0 ? -1 : n;
+
+    }
+
+    public void close()
+            throws IOException {
+
+        if ( !_closed ) {
+
+            _closed = true;
+            _window = null;
+            _file.close();
+
+        }
+
+    }
+
+    public String toString() {
+
+        return "MappedFileReader( [" + _windowStart + "," + _end + ") )";
+
+    }
+
+}
@@ -1,13 +1,21 @@
 package com.obtuse.util;
 
 import java.io.PrintStream;
-import java.util.Comparator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Measure how long things take.
  * <p/>
+ * Measurements are taken with {@link System#nanoTime} and recorded without any locks:  each thread has its own
+ * accumulator in each category and the accumulators are only merged when someone looks at them.  Each accumulator
+ * keeps a log-linear histogram (see {@link LogLinearHistogram}) so that percentiles are available as well as the mean
+ * and standard deviation.
+ * <p/>
  * Copyright © 2008 Obtuse Systems Corporation.
  */
 
@@ -15,55 +23,360 @@ public class Measure {
 
     private final String _categoryName;
 
-    private final long _startTimeMillis;
+    private final long _startTimeNanos;
+
+    /**
+     * A snapshot of a category's measurements (in seconds).
+     */
 
     public static class CategoryStats extends Stats {
 
+        private final long[] _counts;
+
+        public CategoryStats() {
+            super();
+
+            _counts = new long[LogLinearHistogram.BUCKETS];
+
+        }
+
+        private CategoryStats( long count, long sumNanos, double sumSq, long[] counts ) {
+            super();
+
+            //noinspection MagicNumber
+            datum( (double)sumNanos / 1.0e9, sumSq, count );
+            _counts = counts;
+
+        }
+
+        /**
+         * Get a percentile of the measurements.
+         *
+         * @param percentile the percentile (0 to 100).
+         * @return the measurement at the percentile in seconds (accurate to within about 2%).
+         */
+
+        public double getPercentile( double percentile ) {
+
+            //noinspection MagicNumber
+            return (double)LogLinearHistogram.getValueAtPercentile( _counts, percentile ) / 1.0e9;
+
+        }
+
+    }
+
+    /**
+     * One thread's measurements in a category.
+     * <p/>
+     * Only the owning thread ever records into an accumulator so recording needs no locks or atomic read-modify-write
+     * operations.  Values are published via lazySet so that other threads can read them (slightly out of date) at any
+     * time.
+     */
+
+    private static class Accumulator {
+
+        private static final int COUNT = 0;
+
+        private static final int SUM_NANOS = 1;
+
+        private static final int SUM_SQ_BITS = 2;       // The sum of the squares in seconds (as a double).
+
+        private final WeakReference<Thread> _thread = new WeakReference<Thread>( Thread.currentThread() );
+
+        private final AtomicLongArray _values = new AtomicLongArray( 3 );
+
+        private final LogLinearHistogram _histogram = new LogLinearHistogram();
+
+        private void record( long nanos ) {
+
+            //noinspection MagicNumber
+            double seconds = (double)nanos / 1.0e9;
+            _histogram.recordByOwner( nanos );
+            _values.lazySet( Accumulator.SUM_NANOS, _values.get( Accumulator.SUM_NANOS ) + nanos );
+            _values.lazySet(
+                    Accumulator.SUM_SQ_BITS,
+                    Double.doubleToRawLongBits(
+                            Double.longBitsToDouble( _values.get( Accumulator.SUM_SQ_BITS ) ) + seconds * seconds
+                    )
+            );
+            _values.lazySet( Accumulator.COUNT, _values.get( Accumulator.COUNT ) + 1L );
+
+        }
+
+        private boolean isAlive() {
+
+            Thread thread = _thread.get();
+
+            return thread != null && thread.isAlive();
+
+        }
+
+    }
+
+    /**
+     * A category's measurements, spread across one accumulator per thread and merged when someone wants to see them.
+     */
+
+    private static class Category {
+
+        private final ThreadLocal<Accumulator> _accumulator = new ThreadLocal<Accumulator>() {
+
+            protected Accumulator initialValue() {
+
+                Accumulator accumulator = new Accumulator();
+                _accumulators.add( accumulator );
+
+                return accumulator;
+
+            }
+
+        };
+
+        // Recording threads add themselves without locking so that they never wait for someone taking a snapshot.
+
+        private final Queue<Accumulator> _accumulators = new ConcurrentLinkedQueue<Accumulator>();
+
+        // What threads which have since ended measured.
+
+        private long _retiredCount = 0L;
+
+        private long _retiredSumNanos = 0L;
+
+        private double _retiredSumSq = 0.0;
+
+        private final long[] _retiredCounts = new long[LogLinearHistogram.BUCKETS];
+
+        private void record( long nanos ) {
+
+            _accumulator.get().record( nanos );
+
+        }
+
+        private synchronized CategoryStats getStats() {
+
+            long count = _retiredCount;
+            long sumNanos = _retiredSumNanos;
+            double sumSq = _retiredSumSq;
+            long[] counts = _retiredCounts.clone();
+            for ( Iterator<Accumulator> iter = _accumulators.iterator(); iter.hasNext(); ) {
+
+                // Everything a thread did happens-before anyone sees that it is no longer alive so a dead thread's
+                // accumulator is complete and can be folded into the retired totals.
+
+                Accumulator accumulator = iter.next();
+                boolean retire = !accumulator.isAlive();
+                long accumulatorCount = accumulator._values.get( Accumulator.COUNT );
+                long accumulatorSumNanos = accumulator._values.get( Accumulator.SUM_NANOS );
+                double accumulatorSumSq = Double.longBitsToDouble( accumulator._values.get( Accumulator.SUM_SQ_BITS ) );
+                count += accumulatorCount;
+                sumNanos += accumulatorSumNanos;
+                sumSq += accumulatorSumSq;
+                accumulator._histogram.addTo( counts );
+                if ( retire ) {
+
+                    _retiredCount += accumulatorCount;
+                    _retiredSumNanos += accumulatorSumNanos;
+                    _retiredSumSq += accumulatorSumSq;
+                    accumulator._histogram.addTo( _retiredCounts );
+                    iter.remove();
+
+                }
+
+            }
+
+            return new CategoryStats( count, sumNanos, sumSq, counts );
+
+        }
+
     }
 
     @SuppressWarnings( { "ConstantNamingConvention" })
-    private static final SortedMap<String,CategoryStats> STATS = new TreeMap<String, CategoryStats>();
+    private static final ConcurrentMap<String,Category> STATS = new ConcurrentHashMap<String, Category>();
+
+    private static volatile long s_measuringSinceMillis = System.currentTimeMillis();
+
+    // Bumped by restart() so that timers know to look up their categories again.
 
-    private static int s_maxCategoryNameLength = 0;
+    private static volatile int s_generation = 0;
 
-    private static long s_measuringSinceMillis = System.currentTimeMillis();
+    /**
+     * A reusable handle on a category (see {@link Measure#category}).
+     * <p/>
+     * Timing something with a handle neither allocates anything nor looks the category up by name:
+     * <blockquote><pre>
+     * private static final Measure.Timer PARSE_TIMER = Measure.category( "parse" );
+     * ...
+     * long start = PARSE_TIMER.start();
+     * try {
+     *     ...
+     * } finally {
+     *     PARSE_TIMER.stop( start );
+     * }
+     * </pre></blockquote>
+     * Handles are safe to share between threads and keep working across {@link Measure#restart}.
+     */
+
+    public static class Timer {
+
+        private final String _categoryName;
+
+        private volatile Binding _binding;
+
+        /**
+         * The category that a timer records into and the {@link Measure#restart} generation it belongs to.
+         */
+
+        private static class Binding {
+
+            private final int _generation;
+
+            private final Category _category;
+
+            private Binding( int generation, Category category ) {
+                super();
+
+                _generation = generation;
+                _category = category;
+
+            }
+
+        }
+
+        private Timer( String categoryName ) {
+            super();
+
+            _categoryName = categoryName;
+            _binding = new Binding( Measure.s_generation, Measure.getCategory( categoryName ) );
+
+        }
+
+        /**
+         * Start timing something.
+         *
+         * @return the start time to pass to {@link #stop}.
+         */
+
+        @SuppressWarnings("MethodMayBeStatic")
+        public long start() {
+
+            return System.nanoTime();
+
+        }
+
+        /**
+         * Stop timing something and record how long it took.
+         *
+         * @param startNanos what {@link #start} returned.
+         */
+
+        public void stop( long startNanos ) {
+
+            record( System.nanoTime() - startNanos );
+
+        }
+
+        /**
+         * Record a measurement which was taken some other way.
+         *
+         * @param nanos how long something took in nanoseconds.
+         */
+
+        public void record( long nanos ) {
+
+            Binding binding = _binding;
+            if ( binding._generation != Measure.s_generation ) {
+
+                int generation = Measure.s_generation;
+                binding = new Binding( generation, Measure.getCategory( _categoryName ) );
+                _binding = binding;
+
+            }
+
+            binding._category.record( nanos );
+
+        }
+
+        public String getCategoryName() {
+
+            return _categoryName;
+
+        }
+
+        public String toString() {
+
+            return "Measure.Timer( \"" + _categoryName + "\" )";
+
+        }
+
+    }
 
     public Measure( String categoryName ) {
         super();
 
         _categoryName = categoryName;
-        _startTimeMillis = System.currentTimeMillis();
+        _startTimeNanos = System.nanoTime();
 
     }
 
     public void done() {
 
-        long now = System.currentTimeMillis();
-        long delta = now - _startTimeMillis;
+        long delta = System.nanoTime() - _startTimeNanos;
 
-        synchronized ( Measure.STATS ) {
+        Measure.getCategory( _categoryName ).record( delta );
 
-            CategoryStats stats = Measure.STATS.get( _categoryName );
-            if ( stats == null ) {
+    }
 
-                stats = new CategoryStats();
+    /**
+     * Get a reusable handle on a category.
+     * Use this instead of creating a new instance for each measurement when the measurements are frequent enough for
+     * the allocation and the lookup by name to matter.
+     *
+     * @param categoryName the category's name.
+     * @return the handle.
+     */
 
-                Measure.STATS.put( _categoryName, stats );
+    public static Timer category( String categoryName ) {
 
-                if ( _categoryName.length() > Measure.s_maxCategoryNameLength ) {
+        return new Timer( categoryName );
 
-                    //noinspection AssignmentToStaticFieldFromInstanceMethod
-                    Measure.s_maxCategoryNameLength = _categoryName.length();
+    }
 
-                }
+    private static Category getCategory( String categoryName ) {
+
+        Category category = Measure.STATS.get( categoryName );
+        if ( category == null ) {
+
+            Category newCategory = new Category();
+            category = Measure.STATS.putIfAbsent( categoryName, newCategory );
+            if ( category == null ) {
+
+                category = newCategory;
 
             }
 
-            //noinspection MagicNumber
-            stats.datum( (double)delta / 1.0e3 );
+        }
+
+        return category;
+
+    }
+
+    /**
+     * Get a snapshot of every category's measurements.
+     *
+     * @return the snapshots, by category name.
+     */
+
+    public static SortedMap<String,CategoryStats> getStats() {
+
+        SortedMap<String,CategoryStats> stats = new TreeMap<String, CategoryStats>();
+        for ( Map.Entry<String,Category> entry : Measure.STATS.entrySet() ) {
+
+            stats.put( entry.getKey(), entry.getValue().getStats() );
 
         }
 
+        return stats;
+
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -84,11 +397,14 @@ public class Measure {
                 }
         );
 
-        for ( String categoryName : Measure.STATS.keySet() ) {
+        SortedMap<String,CategoryStats> allStats = Measure.getStats();
+        int maxCategoryNameLength = 0;
+        for ( String categoryName : allStats.keySet() ) {
 
-            CategoryStats stats = Measure.STATS.get( categoryName );
+            CategoryStats stats = allStats.get( categoryName );
+            maxCategoryNameLength = Math.max( maxCategoryNameLength, categoryName.length() );
 
-            double value = (double)stats.n() * stats.mean();
+            double value = (double)stats.count() * stats.mean();
             while ( sorted.containsKey( value ) ) {
 
                 //noinspection MagicNumber
@@ -103,7 +419,7 @@ public class Measure {
         if ( showTitle ) {
 
                 where.println(
-                    ObtuseUtil.rpad( "category", Measure.s_maxCategoryNameLength + 2 )
+                    ObtuseUtil.rpad( "category", maxCategoryNameLength + 2 )
                     + "   " +
                     ObtuseUtil.lpad( "count", 10 )
                     + "   " +
@@ -111,6 +427,12 @@ public class Measure {
                     + "   " +
                     ObtuseUtil.lpad( "stdev", 10 )
                     + "   " +
+                    ObtuseUtil.lpad( "p50", 10 )
+                    + "   " +
+                    ObtuseUtil.lpad( "p99", 10 )
+                    + "   " +
+                    ObtuseUtil.lpad( "p99.9", 10 )
+                    + "   " +
                     ObtuseUtil.lpad( "total", 10 )
             );
 
@@ -118,18 +440,25 @@ public class Measure {
 
         for ( String categoryName : sorted.values() ) {
 
-            CategoryStats stats = Measure.STATS.get( categoryName );
+            CategoryStats stats = allStats.get( categoryName );
 
+            //noinspection MagicNumber
             where.println(
-                    ObtuseUtil.rpad( categoryName, Measure.s_maxCategoryNameLength + 2 )
+                    ObtuseUtil.rpad( categoryName, maxCategoryNameLength + 2 )
                     + " : " +
-                    ObtuseUtil.lpad( (long) stats.n(), 10 )
+                    ObtuseUtil.lpad( stats.count(), 10 )
                     + " : " +
                     String.format( "%10.6f", stats.mean() )
                     + " : " +
                     String.format( "%10.6f", stats.populationStdev() )
                     + " : " +
-                    String.format( "%10.3f", (double)stats.n() * stats.mean() )
+                    String.format( "%10.6f", stats.getPercentile( 50.0 ) )
+                    + " : " +
+                    String.format( "%10.6f", stats.getPercentile( 99.0 ) )
+                    + " : " +
+                    String.format( "%10.6f", stats.getPercentile( 99.9 ) )
+                    + " : " +
+                    String.format( "%10.3f", (double)stats.count() * stats.mean() )
             );
 
         }
@@ -144,8 +473,10 @@ public class Measure {
     @SuppressWarnings("UnusedDeclaration")
     public static void restart() {
 
+        // Clear first so that a timer which notices the new generation can't find its old category.
+
         Measure.STATS.clear();
-        Measure.s_maxCategoryNameLength = 0;
+        Measure.s_generation += 1;
         Measure.s_measuringSinceMillis = System.currentTimeMillis();
 
     }
@@ -0,0 +1,196 @@
+package com.obtuse.util;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare the cost of {@link Measure} with the way that it used to work (a global lock around a map of {@link Stats}
+ * and millisecond timestamps) with one thread and with several threads measuring tiny operations at once.  Then make
+ * sure that nothing was lost and that the percentiles of something which takes a known time look right.
+ * <p/>
+ * Usage:  <tt>MeasureBenchmark [threads [measurements]]</tt>
+ */
+
+public class MeasureBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final long SLEEP_MILLIS = 2L;
+
+    private static final int SLEEPS = 200;
+
+    private static final SortedMap<String, Stats> s_lockedStats = new TreeMap<String, Stats>();
+
+    private static long s_sink = 0L;
+
+    private MeasureBenchmark() {
+        super();
+
+    }
+
+    /**
+     * What {@link Measure#done} used to do.
+     */
+
+    private static void lockedDone( String categoryName, long startMillis ) {
+
+        long delta = System.currentTimeMillis() - startMillis;
+        synchronized ( MeasureBenchmark.s_lockedStats ) {
+
+            Stats stats = MeasureBenchmark.s_lockedStats.get( categoryName );
+            if ( stats == null ) {
+
+                stats = new Stats();
+                MeasureBenchmark.s_lockedStats.put( categoryName, stats );
+
+            }
+
+            //noinspection MagicNumber
+            stats.datum( (double)delta / 1.0e3 );
+
+        }
+
+    }
+
+    private static void run( String name, int threadCount, final int measurements, final boolean locked )
+            throws InterruptedException {
+
+        Thread[] threads = new Thread[threadCount];
+        for ( int t = 0; t < threadCount; t += 1 ) {
+
+            threads[t] = new Thread( "measurer " + t ) {
+
+                public void run() {
+
+                    long sink = 0L;
+                    for ( int i = 0; i < measurements; i += 1 ) {
+
+                        if ( locked ) {
+
+                            long start = System.currentTimeMillis();
+                            sink += (long)i;
+                            MeasureBenchmark.lockedDone( "tiny", start );
+
+                        } else {
+
+                            Measure m = new Measure( "tiny" );
+                            sink += (long)i;
+                            m.done();
+
+                        }
+
+                    }
+
+                    synchronized ( MeasureBenchmark.s_lockedStats ) {
+
+                        MeasureBenchmark.s_sink += sink;
+
+                    }
+
+                }
+
+            };
+
+        }
+
+        Measure m = new Measure( name );
+        for ( Thread thread : threads ) {
+
+            thread.start();
+
+        }
+
+        for ( Thread thread : threads ) {
+
+            thread.join();
+
+        }
+
+        m.done();
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "MeasureBenchmark", null );
+
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 4;
+        int measurements = args.length > 1 ? Integer.parseInt( args[1] ) : 2000000;
+
+        Logger.logMsg( threads + " threads taking " + measurements + " measurements each" );
+
+        try {
+
+            for ( int round = 0; round < MeasureBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                MeasureBenchmark.run( "locked, 1 thread", 1, measurements, true );
+                MeasureBenchmark.run( "Measure, 1 thread", 1, measurements, false );
+                MeasureBenchmark.run( "locked, " + threads + " threads", threads, measurements, true );
+                MeasureBenchmark.run( "Measure, " + threads + " threads", threads, measurements, false );
+
+            }
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        }
+
+        // Two rounds (after the warmup) of one thread and of several threads.
+
+        long expected = ( MeasureBenchmark.ROUNDS - 1L ) * ( 1L + (long)threads ) * (long)measurements;
+        Measure.CategoryStats tiny = Measure.getStats().get( "tiny" );
+        if ( (long)tiny.n() != expected ) {
+
+            Logger.logErr( "found " + tiny.n() + " measurements instead of " + expected );
+            System.exit( 1 );
+
+        }
+
+        //noinspection MagicNumber
+        Logger.logMsg(
+                "tiny operations:  p50 " + tiny.getPercentile( 50.0 ) * 1.0e9 + "ns, p99.9 " +
+                tiny.getPercentile( 99.9 ) * 1.0e9 + "ns (the old way saw a mean of " +
+                MeasureBenchmark.s_lockedStats.get( "tiny" ).mean() * 1.0e9 + "ns)"
+        );
+
+        for ( int i = 0; i < MeasureBenchmark.SLEEPS; i += 1 ) {
+
+            Measure m = new Measure( "sleep" );
+            ObtuseUtil.safeSleepMillis( MeasureBenchmark.SLEEP_MILLIS );
+            m.done();
+
+        }
+
+        // Sleeps take at least as long as we ask for and usually not much longer.
+
+        Measure.CategoryStats sleep = Measure.getStats().get( "sleep" );
+        //noinspection MagicNumber
+        double p50Millis = sleep.getPercentile( 50.0 ) * 1.0e3;
+        //noinspection MagicNumber
+        if ( p50Millis < (double)MeasureBenchmark.SLEEP_MILLIS * 0.97 || p50Millis > (double)MeasureBenchmark.SLEEP_MILLIS * 2.0 ) {
+
+            Logger.logErr( "the median " + MeasureBenchmark.SLEEP_MILLIS + "ms sleep took " + p50Millis + "ms" );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
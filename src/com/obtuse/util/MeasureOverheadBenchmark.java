@@ -0,0 +1,197 @@
+package com.obtuse.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Find out how much it costs to time something with {@link Measure}, both with a new instance per measurement and
+ * with a reusable {@link Measure.Timer}, by timing loops of empty measurements and subtracting the cost of the bare
+ * loop.  Also make sure that timing with a handle doesn't allocate anything.
+ * <p/>
+ * Usage:  <tt>MeasureOverheadBenchmark [iterations]</tt>
+ */
+
+public class MeasureOverheadBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    private static final Measure.Timer TIMER = Measure.category( "handle" );
+
+    private static long s_sink = 0L;
+
+    private MeasureOverheadBenchmark() {
+        super();
+
+    }
+
+    private static long bareLoop( int iterations ) {
+
+        long start = System.nanoTime();
+        long sink = 0L;
+        for ( int i = 0; i < iterations; i += 1 ) {
+
+            sink += (long)i;
+
+        }
+
+        MeasureOverheadBenchmark.s_sink += sink;
+
+        return System.nanoTime() - start;
+
+    }
+
+    private static long instanceLoop( int iterations ) {
+
+        long start = System.nanoTime();
+        long sink = 0L;
+        for ( int i = 0; i < iterations; i += 1 ) {
+
+            Measure m = new Measure( "instance" );
+            sink += (long)i;
+            m.done();
+
+        }
+
+        MeasureOverheadBenchmark.s_sink += sink;
+
+        return System.nanoTime() - start;
+
+    }
+
+    private static long handleLoop( int iterations ) {
+
+        long start = System.nanoTime();
+        long sink = 0L;
+        for ( int i = 0; i < iterations; i += 1 ) {
+
+            long timerStart = MeasureOverheadBenchmark.TIMER.start();
+            try {
+
+                sink += (long)i;
+
+            } finally {
+
+                MeasureOverheadBenchmark.TIMER.stop( timerStart );
+
+            }
+
+        }
+
+        MeasureOverheadBenchmark.s_sink += sink;
+
+        return System.nanoTime() - start;
+
+    }
+
+    private static long nanoTimeLoop( int iterations ) {
+
+        long start = System.nanoTime();
+        long sink = 0L;
+        for ( int i = 0; i < iterations; i += 1 ) {
+
+            sink += System.nanoTime();
+
+        }
+
+        MeasureOverheadBenchmark.s_sink += sink;
+
+        return System.nanoTime() - start;
+
+    }
+
+    private static String perIteration( long nanos, long bareNanos, int iterations ) {
+
+        return String.format( "%.1fns", (double)( nanos - bareNanos ) / (double)iterations );
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "MeasureOverheadBenchmark", null );
+
+        int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : 20000000;
+
+        long bare = Long.MAX_VALUE;
+        long instance = Long.MAX_VALUE;
+        long handle = Long.MAX_VALUE;
+        long nanoTime = Long.MAX_VALUE;
+        for ( int round = 0; round < MeasureOverheadBenchmark.ROUNDS; round += 1 ) {
+
+            // Take the best of several rounds (the first of which warms things up).
+
+            bare = Math.min( bare, MeasureOverheadBenchmark.bareLoop( iterations ) );
+            instance = Math.min( instance, MeasureOverheadBenchmark.instanceLoop( iterations ) );
+            handle = Math.min( handle, MeasureOverheadBenchmark.handleLoop( iterations ) );
+            nanoTime = Math.min( nanoTime, MeasureOverheadBenchmark.nanoTimeLoop( iterations ) );
+
+        }
+
+        Logger.logMsg(
+                "overhead per measurement:  new Measure/done " +
+                MeasureOverheadBenchmark.perIteration( instance, bare, iterations ) +
+                ", handle start/stop " + MeasureOverheadBenchmark.perIteration( handle, bare, iterations ) +
+                " (of which the two calls to System.nanoTime take " +
+                MeasureOverheadBenchmark.perIteration( 2L * nanoTime, 2L * bare, iterations ) + ")"
+        );
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean &&
+             ( (com.sun.management.ThreadMXBean)bean ).isThreadAllocatedMemorySupported() ) {
+
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)bean;
+            counter.setThreadAllocatedMemoryEnabled( true );
+            long tid = Thread.currentThread().getId();
+            long before = counter.getThreadAllocatedBytes( tid );
+            MeasureOverheadBenchmark.handleLoop( iterations );
+            long handleBytes = counter.getThreadAllocatedBytes( tid ) - before;
+            before = counter.getThreadAllocatedBytes( tid );
+            MeasureOverheadBenchmark.instanceLoop( iterations );
+            long instanceBytes = counter.getThreadAllocatedBytes( tid ) - before;
+            Logger.logMsg(
+                    "allocated " + handleBytes + " bytes with a handle and " + instanceBytes +
+                    " bytes with new instances (" + iterations + " measurements each)"
+            );
+
+            // A few hundred bytes of slack for the measuring itself.
+
+            //noinspection MagicNumber
+            if ( handleBytes > 1000L ) {
+
+                Logger.logErr( "timing with a handle allocates" );
+                System.exit( 1 );
+
+            }
+
+        }
+
+        Measure.CategoryStats stats = Measure.getStats().get( "handle" );
+        long expected = (long)( MeasureOverheadBenchmark.ROUNDS + 1 ) * (long)iterations;
+        if ( stats == null || (long)stats.n() != expected ) {
+
+            Logger.logErr( "found " + ( stats == null ? 0 : stats.n() ) + " measurements instead of " + expected );
+            System.exit( 1 );
+
+        }
+
+        // Handles survive a restart.
+
+        Measure.restart();
+        MeasureOverheadBenchmark.handleLoop( 1000 );
+        stats = Measure.getStats().get( "handle" );
+        if ( stats == null || stats.n() != 1000 ) {
+
+            Logger.logErr( "the handle didn't record into the new category after a restart" );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,378 @@
+package com.obtuse.util;
+
+import fi.iki.nanohttpd.NanoHTTPD;
+
+import javax.net.ServerSocketFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.util.*;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Periodically snapshot every {@link Measure} category (and any {@link Stats} which have been registered) and serve
+ * the latest snapshot over HTTP in the Prometheus text format.
+ * <p/>
+ * The snapshot is taken on a background thread and kept as rendered text so that scrapes are cheap and never hold
+ * anything up.  Taking a snapshot of the {@link Measure} categories doesn't block threads which are recording
+ * measurements.
+ * <p/>
+ * Each {@link Measure} category becomes a summary:
+ * <blockquote><pre>
+ * obtuse_measure_seconds{category="parse",quantile="0.5"} 1.2E-5
+ * obtuse_measure_seconds{category="parse",quantile="0.99"} 4.1E-5
+ * obtuse_measure_seconds{category="parse",quantile="0.999"} 2.3E-4
+ * obtuse_measure_seconds_sum{category="parse"} 1.75
+ * obtuse_measure_seconds_count{category="parse"} 140000
+ * </pre></blockquote>
+ * and each registered {@link Stats} becomes a set of gauges (<tt>obtuse_stats_count</tt>, <tt>obtuse_stats_mean</tt>
+ * and so on) labelled with the name it was registered under.
+ */
+
+public class MetricsExporter {
+
+    public static final String METRICS_PATH = "/metrics";
+
+    public static final long DEFAULT_PERIOD_MILLIS = 10000L;
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    private final NanoHTTPD _server;
+
+    private final Timer _timer = new Timer( "metrics snapshot", true );
+
+    private final SortedMap<String, Stats> _registeredStats = new TreeMap<String, Stats>();
+
+    private volatile String _rendered = "";
+
+    private volatile long _snapshots = 0L;
+
+    /**
+     * Start serving metrics on a local port.
+     *
+     * @param port         the port (0 to let the system pick one).
+     * @param periodMillis how often to take a snapshot.
+     * @throws IOException if the port cannot be opened.
+     */
+
+    public MetricsExporter( int port, long periodMillis )
+            throws IOException {
+        super();
+
+        snapshot();
+
+        _server = new NanoHTTPD( "127.0.0.1", port, ServerSocketFactory.getDefault() ) {
+
+            protected int getMaxUploadSize() {
+
+                return 0;
+
+            }
+
+            public Response serve(
+                    @SuppressWarnings("UnusedParameters") Socket sock,
+                    String uri,
+                    String method,
+                    @SuppressWarnings("UnusedParameters") Properties header,
+                    @SuppressWarnings("UnusedParameters") PostParameters parms,
+                    @SuppressWarnings("UnusedParameters") byte[] uploadContents
+            ) {
+
+                if ( !"GET".equals( method ) || !MetricsExporter.METRICS_PATH.equals( uri ) ) {
+
+                    return new Response( NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, "not found\n" );
+
+                }
+
+                try {
+
+                    return new Response(
+                            NanoHTTPD.HTTP_OK,
+                            MetricsExporter.CONTENT_TYPE,
+                            new ByteArrayInputStream( _rendered.getBytes( "UTF-8" ) )
+                    );
+
+                } catch ( UnsupportedEncodingException e ) {
+
+                    return new Response( NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, e.toString() );
+
+                }
+
+            }
+
+        };
+
+        _timer.scheduleAtFixedRate(
+                new TimerTask() {
+
+                    public void run() {
+
+                        try {
+
+                            MetricsExporter.this.snapshot();
+
+                        } catch ( RuntimeException e ) {
+
+                            Trace.event( "metrics snapshot failed", e );
+
+                        }
+
+                    }
+
+                },
+                periodMillis,
+                periodMillis
+        );
+
+    }
+
+    /**
+     * Include a set of statistics in the snapshots.
+     * <p/>
+     * {@link Stats} isn't thread-safe so whoever updates the statistics must do it while synchronized on them (the
+     * snapshot copies them while synchronized on them).
+     *
+     * @param name  the name to label them with.
+     * @param stats the statistics.
+     */
+
+    public void register( String name, Stats stats ) {
+
+        synchronized ( _registeredStats ) {
+
+            _registeredStats.put( name, stats );
+
+        }
+
+    }
+
+    public void unregister( String name ) {
+
+        synchronized ( _registeredStats ) {
+
+            _registeredStats.remove( name );
+
+        }
+
+    }
+
+    /**
+     * Take a snapshot now rather than waiting for the next scheduled one.
+     */
+
+    public synchronized void snapshot() {
+
+        SortedMap<String, Stats> registered = new TreeMap<String, Stats>();
+        synchronized ( _registeredStats ) {
+
+            for ( Map.Entry<String, Stats> entry : _registeredStats.entrySet() ) {
+
+                Stats stats = entry.getValue();
+                synchronized ( stats ) {
+
+                    registered.put( entry.getKey(), new Stats( stats ) );
+
+                }
+
+            }
+
+        }
+
+        _rendered = MetricsExporter.render( Measure.getStats(), registered, System.currentTimeMillis() );
+        _snapshots += 1L;
+
+    }
+
+    /**
+     * Render statistics in the Prometheus text format.
+     *
+     * @param categories      the {@link Measure} categories.
+     * @param registered      other statistics.
+     * @param timestampMillis when the statistics were collected.
+     * @return the text.
+     */
+
+    public static String render(
+            SortedMap<String, Measure.CategoryStats> categories,
+            SortedMap<String, Stats> registered,
+            long timestampMillis
+    ) {
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "# HELP obtuse_metrics_snapshot_timestamp_seconds When this snapshot was taken.\n" );
+        sb.append( "# TYPE obtuse_metrics_snapshot_timestamp_seconds gauge\n" );
+        //noinspection MagicNumber
+        sb.append( "obtuse_metrics_snapshot_timestamp_seconds " ).append( (double)timestampMillis / 1.0e3 ).append( '\n' );
+
+        if ( !categories.isEmpty() ) {
+
+            sb.append( "# HELP obtuse_measure_seconds How long things measured with Measure took.\n" );
+            sb.append( "# TYPE obtuse_measure_seconds summary\n" );
+            for ( Map.Entry<String, Measure.CategoryStats> entry : categories.entrySet() ) {
+
+                String label = "category=\"" + MetricsExporter.escape( entry.getKey() ) + "\"";
+                Measure.CategoryStats stats = entry.getValue();
+                for ( double quantile : MetricsExporter.QUANTILES ) {
+
+                    //noinspection MagicNumber
+                    MetricsExporter.sample(
+                            sb, "obtuse_measure_seconds", label + ",quantile=\"" + quantile + "\"",
+                            stats.count() == 0L ? Double.NaN : stats.getPercentile( quantile * 100.0 )
+                    );
+
+                }
+
+                MetricsExporter.sample( sb, "obtuse_measure_seconds_sum", label, stats.sum() );
+                MetricsExporter.sample( sb, "obtuse_measure_seconds_count", label, (double)stats.count() );
+
+            }
+
+        }
+
+        if ( !registered.isEmpty() ) {
+
+            // Each metric's samples have to be together so we go through the statistics once per metric.
+
+            for ( String stat : new String[] { "count", "sum", "mean", "stdev", "min", "max" } ) {
+
+                sb.append( "# TYPE obtuse_stats_" ).append( stat ).append( " gauge\n" );
+                for ( Map.Entry<String, Stats> entry : registered.entrySet() ) {
+
+                    Stats stats = entry.getValue();
+                    double value;
+                    if ( "count".equals( stat ) ) {
+
+                        value = (double)stats.count();
+
+                    } else if ( "sum".equals( stat ) ) {
+
+                        value = stats.sum();
+
+                    } else if ( stats.count() == 0L ) {
+
+                        value = Double.NaN;
+
+                    } else if ( "mean".equals( stat ) ) {
+
+                        value = stats.mean();
+
+                    } else if ( "stdev".equals( stat ) ) {
+
+                        value = stats.populationStdev();
+
+                    } else if ( "min".equals( stat ) ) {
+
+                        value = stats.getMinValue();
+
+                    } else {
+
+                        value = stats.getMaxValue();
+
+                    }
+
+                    MetricsExporter.sample(
+                            sb, "obtuse_stats_" + stat, "name=\"" + MetricsExporter.escape( entry.getKey() ) + "\"", value
+                    );
+
+                }
+
+            }
+
+        }
+
+        return sb.toString();
+
+    }
+
+    private static void sample( StringBuilder sb, String metric, String labels, double value ) {
+
+        sb.append( metric ).append( '{' ).append( labels ).append( "} " );
+        if ( Double.isNaN( value ) ) {
+
+            sb.append( "NaN" );
+
+        } else if ( Double.isInfinite( value ) ) {
+
+            sb.append( value > 0.0 ? "+Inf" : "-Inf" );
+
+        } else {
+
+            sb.append( value );
+
+        }
+
+        sb.append( '\n' );
+
+    }
+
+    /**
+     * Escape a label value the way that the Prometheus text format wants.
+     */
+
+    private static String escape( String value ) {
+
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < value.length(); i += 1 ) {
+
+            char ch = value.charAt( i );
+            if ( ch == '\\' || ch == '"' ) {
+
+                sb.append( '\\' ).append( ch );
+
+            } else if ( ch == '\n' ) {
+
+                sb.append( "\\n" );
+
+            } else {
+
+                sb.append( ch );
+
+            }
+
+        }
+
+        return sb.toString();
+
+    }
+
+    /**
+     * Stop taking snapshots and serving them.
+     */
+
+    public void stop() {
+
+        _timer.cancel();
+        _server.stop();
+
+    }
+
+    public int getPort() {
+
+        return _server.getLocalPort();
+
+    }
+
+    /**
+     * Get how many snapshots have been taken.
+     */
+
+    public long getSnapshots() {
+
+        return _snapshots;
+
+    }
+
+    public String toString() {
+
+        return "MetricsExporter( port " + getPort() + " )";
+
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.obtuse.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare how fast threads can record {@link Measure} measurements with and without a {@link MetricsExporter}
+ * snapshotting them very often, while scraping the exporter and making sure that what it serves makes sense.
+ * <p/>
+ * Usage:  <tt>MetricsExporterBenchmark [threads [measurements]]</tt>
+ */
+
+public class MetricsExporterBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final long PERIOD_MILLIS = 20L;
+
+    private static final String CATEGORY = "exported \"work\"";
+
+    private MetricsExporterBenchmark() {
+        super();
+
+    }
+
+    private static void record( String name, int threadCount, final int measurements )
+            throws InterruptedException {
+
+        final Measure.Timer timer = Measure.category( MetricsExporterBenchmark.CATEGORY );
+        Thread[] threads = new Thread[threadCount];
+        for ( int t = 0; t < threadCount; t += 1 ) {
+
+            threads[t] = new Thread( "recorder " + t ) {
+
+                public void run() {
+
+                    for ( int i = 0; i < measurements; i += 1 ) {
+
+                        long start = timer.start();
+                        timer.stop( start );
+
+                    }
+
+                }
+
+            };
+
+        }
+
+        Measure m = new Measure( name );
+        for ( Thread thread : threads ) {
+
+            thread.start();
+
+        }
+
+        for ( Thread thread : threads ) {
+
+            thread.join();
+
+        }
+
+        m.done();
+
+    }
+
+    private static List<String> scrape( int port, String path, int expectedStatus )
+            throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection)new URL( "http://127.0.0.1:" + port + path ).openConnection();
+        List<String> lines = new ArrayList<String>();
+        try {
+
+            if ( connection.getResponseCode() != expectedStatus ) {
+
+                throw new IOException( path + " got status " + connection.getResponseCode() );
+
+            }
+
+            if ( expectedStatus != HttpURLConnection.HTTP_OK ) {
+
+                return lines;
+
+            }
+
+            BufferedReader reader = new BufferedReader( new InputStreamReader( connection.getInputStream(), "UTF-8" ) );
+            try {
+
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+
+                    lines.add( line );
+
+                }
+
+            } finally {
+
+                reader.close();
+
+            }
+
+        } finally {
+
+            connection.disconnect();
+
+        }
+
+        return lines;
+
+    }
+
+    /**
+     * Make sure that a scrape looks right.
+     *
+     * @return the count for our category (-1 if it isn't there yet).
+     */
+
+    private static long check( List<String> lines ) {
+
+        String countPrefix = "obtuse_measure_seconds_count{category=\"exported \\\"work\\\"\"} ";
+        long count = -1L;
+        boolean typed = false;
+        for ( String line : lines ) {
+
+            if ( line.equals( "# TYPE obtuse_measure_seconds summary" ) ) {
+
+                typed = true;
+
+            } else if ( line.startsWith( "obtuse_measure_seconds" ) && !typed ) {
+
+                throw new IllegalStateException( "sample before its TYPE line:  " + line );
+
+            } else if ( !line.startsWith( "#" ) && line.split( " " ).length < 2 ) {
+
+                throw new IllegalStateException( "malformed line:  " + line );
+
+            }
+
+            if ( line.startsWith( countPrefix ) ) {
+
+                count = (long)Double.parseDouble( line.substring( countPrefix.length() ) );
+
+            }
+
+        }
+
+        return count;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "MetricsExporterBenchmark", null );
+
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 4;
+        int measurements = args.length > 1 ? Integer.parseInt( args[1] ) : 2000000;
+
+        Logger.logMsg(
+                threads + " threads recording " + measurements + " measurements each, snapshots every " +
+                MetricsExporterBenchmark.PERIOD_MILLIS + "ms"
+        );
+
+        MetricsExporter exporter = null;
+        try {
+
+            for ( int round = 0; round < MetricsExporterBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                MetricsExporterBenchmark.record( "no exporter", threads, measurements );
+
+            }
+
+            Stats registered = new Stats();
+            exporter = new MetricsExporter( 0, MetricsExporterBenchmark.PERIOD_MILLIS );
+            exporter.register( "example", registered );
+            final int port = exporter.getPort();
+
+            // Scrape as fast as we can while the threads are recording.
+
+            final long[] lastCount = { -1L };
+            final int[] scrapes = { 0 };
+            final boolean[] stopScraping = { false };
+            Thread scraper = new Thread( "scraper" ) {
+
+                public void run() {
+
+                    try {
+
+                        while ( !stopScraping[0] ) {
+
+                            long count = MetricsExporterBenchmark.check(
+                                    MetricsExporterBenchmark.scrape( port, MetricsExporter.METRICS_PATH, HttpURLConnection.HTTP_OK )
+                            );
+                            if ( count < lastCount[0] ) {
+
+                                throw new IllegalStateException( "count went from " + lastCount[0] + " to " + count );
+
+                            }
+
+                            lastCount[0] = count;
+                            scrapes[0] += 1;
+
+                        }
+
+                    } catch ( Exception e ) {
+
+                        Logger.logErr( "scrape failed", e );
+                        System.exit( 1 );
+
+                    }
+
+                }
+
+            };
+            scraper.start();
+
+            for ( int round = 0; round < MetricsExporterBenchmark.ROUNDS - 1; round += 1 ) {
+
+                MetricsExporterBenchmark.record( "exporter", threads, measurements );
+                synchronized ( registered ) {
+
+                    registered.datum( (double)round );
+
+                }
+
+            }
+
+            stopScraping[0] = true;
+            scraper.join();
+
+            MetricsExporterBenchmark.scrape( port, "/nothing/here", HttpURLConnection.HTTP_NOT_FOUND );
+
+            exporter.snapshot();
+            List<String> lines = MetricsExporterBenchmark.scrape( port, MetricsExporter.METRICS_PATH, HttpURLConnection.HTTP_OK );
+            long expected = ( MetricsExporterBenchmark.ROUNDS - 1L ) * 2L * (long)threads * (long)measurements;
+            long count = MetricsExporterBenchmark.check( lines );
+            if ( count != expected || !lines.contains( "obtuse_stats_count{name=\"example\"} 2.0" ) ) {
+
+                for ( String line : lines ) {
+
+                    Logger.logMsg( line );
+
+                }
+
+                Logger.logErr( "the final scrape has a count of " + count + " instead of " + expected );
+                System.exit( 1 );
+
+            }
+
+            Logger.logMsg( exporter.getSnapshots() + " snapshots taken, " + scrapes[0] + " scrapes" );
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "I/O error", e );
+            System.exit( 1 );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        } finally {
+
+            if ( exporter != null ) {
+
+                exporter.stop();
+
+            }
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.obtuse.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * A bounded, lock-free queue for any number of producer threads and a single consumer thread.
+ * <p/>
+ * Each slot has a sequence number which says whose turn it is to use the slot.  Producers claim a slot by advancing
+ * the tail with a compare-and-set, fill it in and then publish it by bumping its sequence number.  The consumer waits
+ * for the slot at the head to be published, empties it and hands it back to the producers by bumping its sequence
+ * number again (this is Dmitry Vyukov's bounded queue with the consumer side simplified for a single consumer).
+ * <p/>
+ * Neither side ever blocks.  {@link #offer} returns false when the buffer is full and {@link #poll} returns null when
+ * it is empty;  what to do about that is up to the caller.
+ * <p/>
+ * {@link #poll} and {@link #drainTo} must only ever be called by one thread at a time.
+ */
+
+public class MpscRingBuffer<T> {
+
+    private final int _mask;
+
+    private final AtomicReferenceArray<T> _slots;
+
+    private final AtomicLongArray _sequences;
+
+    private final AtomicLong _tail = new AtomicLong();
+
+    // Only touched by the consumer.
+
+    private long _head = 0L;
+
+    /**
+     * Create a ring buffer.
+     *
+     * @param capacity how many elements it can hold (rounded up to a power of two).
+     * @throws IllegalArgumentException if the capacity is not positive or is too large.
+     */
+
+    public MpscRingBuffer( int capacity ) {
+        super();
+
+        //noinspection MagicNumber
+        if ( capacity <= 0 || capacity > 1 << 30 ) {
+
+            throw new IllegalArgumentException( "capacity must be between 1 and 2^30 (" + capacity + " is not)" );
+
+        }
+
+        int size = Integer.highestOneBit( capacity );
+        if ( size < capacity ) {
+
+            size <<= 1;
+
+        }
+
+        _mask = size - 1;
+        _slots = new AtomicReferenceArray<T>( size );
+        _sequences = new AtomicLongArray( size );
+        for ( int i = 0; i < size; i += 1 ) {
+
+            _sequences.set( i, (long)i );
+
+        }
+
+    }
+
+    /**
+     * Add an element.
+     * May be called by any number of threads at once.
+     *
+     * @param element the element (must not be null).
+     * @return true if the element was added; false if the buffer is full.
+     */
+
+    public boolean offer( T element ) {
+
+        if ( element == null ) {
+
+            throw new IllegalArgumentException( "null elements are not allowed" );
+
+        }
+
+        long position = _tail.get();
+        while ( true ) {
+
+            int ix = (int)position & _mask;
+            long difference = _sequences.get( ix ) - position;
+            if ( difference == 0L ) {
+
+                if ( _tail.compareAndSet( position, position + 1L ) ) {
+
+                    _slots.lazySet( ix, element );
+                    _sequences.set( ix, position + 1L );
+
+                    return true;
+
+                }
+
+                position = _tail.get();
+
+            } else if ( difference < 0L ) {
+
+                // The consumer hasn't emptied this slot since its last trip around the ring.
+
+                return false;
+
+            } else {
+
+                // Another producer got here first.
+
+                position = _tail.get();
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Remove the oldest element.
+     * Must only be called by the consumer.
+     *
+     * @return the oldest element or null if the buffer is empty.
+     */
+
+    public T poll() {
+
+        int ix = (int)_head & _mask;
+        if ( _sequences.get( ix ) != _head + 1L ) {
+
+            // Either empty or the next slot has been claimed but not yet filled in.
+
+            return null;
+
+        }
+
+        T element = _slots.get( ix );
+        _slots.lazySet( ix, null );
+        _sequences.set( ix, _head + (long)_mask + 1L );
+        _head += 1L;
+
+        return element;
+
+    }
+
+    /**
+     * Remove the available elements (oldest first).
+     * Must only be called by the consumer.
+     *
+     * @param into where the elements go.
+     * @param max  the maximum number of elements to remove.
+     * @return the number of elements removed.
+     */
+
+    public int drainTo( Collection<? super T> into, int max ) {
+
+        int count = 0;
+        while ( count < max ) {
+
+            T element = poll();
+            if ( element == null ) {
+
+                break;
+
+            }
+
+            into.add( element );
+            count += 1;
+
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Determine if there is anything in the buffer.
+     * Must only be called by the consumer (producers may add something at any moment so a 'yes' is only a hint).
+     *
+     * @return true if the buffer appears to be empty.
+     */
+
+    public boolean isEmpty() {
+
+        return _tail.get() == _head;
+
+    }
+
+    public int getCapacity() {
+
+        return _mask + 1;
+
+    }
+
+    public String toString() {
+
+        return "MpscRingBuffer( capacity " + getCapacity() + " )";
+
+    }
+
+}
@@ -1,170 +1,1707 @@
 package com.obtuse.util;
 
-import java.io.Serializable;
+import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * A compact and fast set of integers.
- * Note that the implementation assumes that the integers are relatively tightly clustered together.
- * Sets with huge gaps in the member values will result in considerably more memory being consumed than one might like.
+ * <p/>
+ * The set is split into chunks of 65536 possible values (the same idea as a Roaring bitmap).  Each chunk which has
+ * any members is kept in whichever of three forms suits it:
+ * <ul>
+ * <li>a sorted array of the members (sparse chunks, up to {@link #MAX_ARRAY_CARDINALITY} members)</li>
+ * <li>a bitmap with a bit for each of the 65536 possible values (dense chunks)</li>
+ * <li>a sorted list of runs of consecutive members (chunks that are mostly long runs, see {@link #runOptimize})</li>
+ * </ul>
+ * Memory use is therefore roughly proportional to how many members there are (or how many runs they form), not to
+ * the distance between the smallest and largest member.  The chunks are grouped by the high 32 bits of their values
+ * so that adding a chunk never has to shuffle more than 65536 others along.
+ * <p/>
+ * Not thread-safe.
  * <p/>
  * Copyright © 2009 Obtuse Systems Corporation
  */
 
-public class MyIntSet implements Iterable<Long>, Serializable {
+public class MyIntSet implements Iterable<Long>, Serializable {
+
+    /**
+     * The most members that a chunk can have and still be kept as an array (beyond this a bitmap is smaller).
+     */
+
+    public static final int MAX_ARRAY_CARDINALITY = 4096;
+
+    private static final int CHUNK_BITS = 16;
+
+    private static final int BITMAP_WORDS = ( 1 << MyIntSet.CHUNK_BITS ) / Long.SIZE;
+
+    /**
+     * The most runs that a chunk can have and still be kept as runs (beyond this a bitmap is smaller).
+     */
+
+    private static final int MAX_RUNS = MyIntSet.BITMAP_WORDS * 2;
+
+    private static final int SERIAL_MAGIC = 0x4d495331;
+
+    private static final byte ARRAY = 0;
+
+    private static final byte BITMAP = 1;
+
+    private static final byte RUNS = 2;
+
+    private static final int LOW_MASK = ( 1 << MyIntSet.CHUNK_BITS ) - 1;
+
+    private transient int[] _highs = new int[4];
+
+    private transient Chunks[] _chunks = new Chunks[4];
+
+    private transient int _highCount = 0;
+
+    /**
+     * A primitive iterator over the members of a set (in ascending order).
+     */
+
+    public interface LongIterator {
+
+        boolean hasNext();
+
+        long next();
+
+    }
+
+    /**
+     * Iterates over the members of a chunk as values between 0 and 65535.
+     */
+
+    private abstract static class Cursor {
+
+        abstract boolean hasNext();
+
+        abstract int next();
+
+    }
+
+    /**
+     * The members of one chunk.
+     * <p/>
+     * Operations which change a container return the container which now holds the members (which may or may not be
+     * the one that they were invoked on).
+     */
+
+    private abstract static class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains( int v );
+
+        abstract Container add( int v );
+
+        abstract Container remove( int v );
+
+        abstract Container copy();
+
+        abstract Cursor cursor();
+
+        /**
+         * Count how many runs of consecutive members there are.
+         */
+
+        abstract int runCount();
+
+        /**
+         * Set the bits of this container's members in a bitmap.
+         */
+
+        abstract void addTo( long[] words );
+
+        abstract byte type();
+
+        abstract void writeTo( DataOutput out )
+                throws IOException;
+
+        long[] toWords() {
+
+            long[] words = new long[MyIntSet.BITMAP_WORDS];
+            addTo( words );
+
+            return words;
+
+        }
+
+        /**
+         * Get the members in whichever form takes the least space.
+         */
+
+        Container optimize() {
+
+            int card = cardinality();
+            int runs = runCount();
+            int runBytes = 4 * runs;
+            int otherBytes = card <= MyIntSet.MAX_ARRAY_CARDINALITY ? 2 * card : 8 * MyIntSet.BITMAP_WORDS;
+            if ( runBytes < otherBytes ) {
+
+                return this instanceof RunContainer ? this : RunContainer.of( this, runs );
+
+            }
+
+            if ( this instanceof RunContainer ) {
+
+                return MyIntSet.fromWords( toWords() );
+
+            }
+
+            return this;
+
+        }
+
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] _values;
+
+        private int _cardinality;
+
+        private ArrayContainer( char[] values, int cardinality ) {
+            super();
+
+            _values = values;
+            _cardinality = cardinality;
+
+        }
+
+        int cardinality() {
+
+            return _cardinality;
+
+        }
+
+        boolean contains( int v ) {
+
+            return Arrays.binarySearch( _values, 0, _cardinality, (char)v ) >= 0;
+
+        }
+
+        Container add( int v ) {
+
+            int ix = Arrays.binarySearch( _values, 0, _cardinality, (char)v );
+            if ( ix >= 0 ) {
+
+                return this;
+
+            }
+
+            if ( _cardinality == MyIntSet.MAX_ARRAY_CARDINALITY ) {
+
+                long[] words = toWords();
+                words[v >>> 6] |= 1L << v;
+
+                return new BitmapContainer( words, _cardinality + 1 );
+
+            }
+
+            if ( _cardinality == _values.length ) {
+
+                _values = Arrays.copyOf( _values, Math.min( MyIntSet.MAX_ARRAY_CARDINALITY, _values.length * 2 ) );
+
+            }
+
+            ix = -ix - 1;
+            System.arraycopy( _values, ix, _values, ix + 1, _cardinality - ix );
+            _values[ix] = (char)v;
+            _cardinality += 1;
+
+            return this;
+
+        }
+
+        Container remove( int v ) {
+
+            int ix = Arrays.binarySearch( _values, 0, _cardinality, (char)v );
+            if ( ix >= 0 ) {
+
+                System.arraycopy( _values, ix + 1, _values, ix, _cardinality - ix - 1 );
+                _cardinality -= 1;
+
+            }
+
+            return this;
+
+        }
+
+        Container copy() {
+
+            return new ArrayContainer( Arrays.copyOf( _values, Math.max( 1, _cardinality ) ), _cardinality );
+
+        }
+
+        Cursor cursor() {
+
+            return new Cursor() {
+
+                private int _ix = 0;
+
+                boolean hasNext() {
+
+                    return _ix < _cardinality;
+
+                }
+
+                int next() {
+
+                    int v = (int)_values[_ix];
+                    _ix += 1;
+
+                    return v;
+
+                }
+
+            };
+
+        }
+
+        int runCount() {
+
+            int runs = 0;
+            for ( int i = 0; i < _cardinality; i += 1 ) {
+
+                if ( i == 0 || _values[i] != _values[i - 1] + 1 ) {
+
+                    runs += 1;
+
+                }
+
+            }
+
+            return runs;
+
+        }
+
+        void addTo( long[] words ) {
+
+            for ( int i = 0; i < _cardinality; i += 1 ) {
+
+                int v = (int)_values[i];
+                words[v >>> 6] |= 1L << v;
+
+            }
+
+        }
+
+        byte type() {
+
+            return MyIntSet.ARRAY;
+
+        }
+
+        void writeTo( DataOutput out )
+                throws IOException {
+
+            out.writeShort( _cardinality - 1 );
+            for ( int i = 0; i < _cardinality; i += 1 ) {
+
+                out.writeChar( _values[i] );
+
+            }
+
+        }
+
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] _words;
+
+        private int _cardinality;
+
+        private BitmapContainer( long[] words, int cardinality ) {
+            super();
+
+            _words = words;
+            _cardinality = cardinality;
+
+        }
+
+        int cardinality() {
+
+            return _cardinality;
+
+        }
+
+        boolean contains( int v ) {
+
+            return ( _words[v >>> 6] & ( 1L << v ) ) != 0L;
+
+        }
+
+        Container add( int v ) {
+
+            long bit = 1L << v;
+            if ( ( _words[v >>> 6] & bit ) == 0L ) {
+
+                _words[v >>> 6] |= bit;
+                _cardinality += 1;
+
+            }
+
+            return this;
+
+        }
+
+        Container remove( int v ) {
+
+            long bit = 1L << v;
+            if ( ( _words[v >>> 6] & bit ) != 0L ) {
+
+                _words[v >>> 6] &= ~bit;
+                _cardinality -= 1;
+                if ( _cardinality <= MyIntSet.MAX_ARRAY_CARDINALITY ) {
+
+                    return MyIntSet.fromWords( _words );
+
+                }
+
+            }
+
+            return this;
+
+        }
+
+        Container copy() {
+
+            return new BitmapContainer( _words.clone(), _cardinality );
+
+        }
+
+        Cursor cursor() {
+
+            return new Cursor() {
+
+                private int _wordIx = 0;
+
+                private long _bits = _words[0];
+
+                boolean hasNext() {
+
+                    while ( _bits == 0L ) {
+
+                        if ( _wordIx == MyIntSet.BITMAP_WORDS - 1 ) {
+
+                            return false;
+
+                        }
+
+                        _wordIx += 1;
+                        _bits = _words[_wordIx];
+
+                    }
+
+                    return true;
+
+                }
+
+                int next() {
+
+                    if ( !hasNext() ) {
+
+                        throw new NoSuchElementException( "no more elements" );
+
+                    }
+
+                    int v = ( _wordIx << 6 ) + Long.numberOfTrailingZeros( _bits );
+                    _bits &= _bits - 1L;
+
+                    return v;
+
+                }
+
+            };
+
+        }
+
+        int runCount() {
+
+            int runs = 0;
+            long previous = 0L;
+            for ( long word : _words ) {
+
+                // A run starts at each member whose predecessor isn't a member.
+
+                runs += Long.bitCount( word & ~( ( word << 1 ) | ( previous >>> 63 ) ) );
+                previous = word;
+
+            }
+
+            return runs;
+
+        }
+
+        void addTo( long[] words ) {
+
+            for ( int i = 0; i < MyIntSet.BITMAP_WORDS; i += 1 ) {
+
+                words[i] |= _words[i];
+
+            }
+
+        }
+
+        long[] toWords() {
+
+            return _words.clone();
+
+        }
+
+        byte type() {
+
+            return MyIntSet.BITMAP;
+
+        }
+
+        void writeTo( DataOutput out )
+                throws IOException {
+
+            for ( long word : _words ) {
+
+                out.writeLong( word );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Runs of consecutive members, each kept as its first member and its length less one.
+     */
+
+    private static final class RunContainer extends Container {
+
+        private char[] _runs;
+
+        private int _runCount;
+
+        private int _cardinality;
+
+        private RunContainer( char[] runs, int runCount ) {
+            super();
+
+            _runs = runs;
+            _runCount = runCount;
+            _cardinality = 0;
+            for ( int i = 0; i < runCount; i += 1 ) {
+
+                _cardinality += length( i );
+
+            }
+
+        }
+
+        private static RunContainer of( Container container, int runs ) {
+
+            char[] pairs = new char[runs * 2];
+            int runCount = 0;
+            int end = -2;
+            for ( Cursor cursor = container.cursor(); cursor.hasNext(); ) {
+
+                int v = cursor.next();
+                if ( v == end + 1 ) {
+
+                    pairs[runCount * 2 - 1] += 1;
+
+                } else {
+
+                    pairs[runCount * 2] = (char)v;
+                    pairs[runCount * 2 + 1] = 0;
+                    runCount += 1;
+
+                }
+
+                end = v;
+
+            }
+
+            return new RunContainer( pairs, runCount );
+
+        }
+
+        private int start( int run ) {
+
+            return (int)_runs[run * 2];
+
+        }
+
+        private int end( int run ) {
+
+            return (int)_runs[run * 2] + (int)_runs[run * 2 + 1];
+
+        }
+
+        private int length( int run ) {
+
+            return (int)_runs[run * 2 + 1] + 1;
+
+        }
+
+        private void setRun( int run, int start, int end ) {
+
+            _runs[run * 2] = (char)start;
+            _runs[run * 2 + 1] = (char)( end - start );
+
+        }
+
+        /**
+         * Find the last run which starts at or before a value (-1 if there isn't one).
+         */
+
+        private int floorRun( int v ) {
+
+            int low = 0;
+            int high = _runCount - 1;
+            while ( low <= high ) {
+
+                int mid = ( low + high ) >>> 1;
+                if ( start( mid ) <= v ) {
+
+                    low = mid + 1;
+
+                } else {
+
+                    high = mid - 1;
+
+                }
+
+            }
+
+            return high;
+
+        }
+
+        private Container insertRun( int run, int start, int end ) {
+
+            if ( _runCount == MyIntSet.MAX_RUNS ) {
+
+                long[] words = toWords();
+                for ( int v = start; v <= end; v += 1 ) {
+
+                    words[v >>> 6] |= 1L << v;
+
+                }
+
+                return MyIntSet.fromWords( words );
+
+            }
+
+            if ( _runCount * 2 == _runs.length ) {
+
+                _runs = Arrays.copyOf( _runs, _runs.length * 2 );
+
+            }
+
+            System.arraycopy( _runs, run * 2, _runs, run * 2 + 2, ( _runCount - run ) * 2 );
+            _runCount += 1;
+            setRun( run, start, end );
+
+            return this;
+
+        }
+
+        private void deleteRun( int run ) {
+
+            System.arraycopy( _runs, run * 2 + 2, _runs, run * 2, ( _runCount - run - 1 ) * 2 );
+            _runCount -= 1;
+
+        }
+
+        int cardinality() {
+
+            return _cardinality;
+
+        }
+
+        boolean contains( int v ) {
+
+            int run = floorRun( v );
+
+            return run >= 0 && v <= end( run );
+
+        }
+
+        Container add( int v ) {
+
+            int run = floorRun( v );
+            if ( run >= 0 && v <= end( run ) ) {
+
+                return this;
+
+            }
+
+            _cardinality += 1;
+            boolean joinsLeft = run >= 0 && end( run ) + 1 == v;
+            boolean joinsRight = run + 1 < _runCount && start( run + 1 ) - 1 == v;
+            if ( joinsLeft && joinsRight ) {
+
+                setRun( run, start( run ), end( run + 1 ) );
+                deleteRun( run + 1 );
+
+            } else if ( joinsLeft ) {
+
+                setRun( run, start( run ), v );
+
+            } else if ( joinsRight ) {
+
+                setRun( run + 1, v, end( run + 1 ) );
+
+            } else {
+
+                return insertRun( run + 1, v, v );
+
+            }
+
+            return this;
+
+        }
+
+        Container remove( int v ) {
+
+            int run = floorRun( v );
+            if ( run < 0 || v > end( run ) ) {
+
+                return this;
+
+            }
+
+            _cardinality -= 1;
+            int start = start( run );
+            int end = end( run );
+            if ( start == end ) {
+
+                deleteRun( run );
+
+            } else if ( v == start ) {
+
+                setRun( run, start + 1, end );
+
+            } else if ( v == end ) {
+
+                setRun( run, start, end - 1 );
+
+            } else {
+
+                setRun( run, start, v - 1 );
+
+                return insertRun( run + 1, v + 1, end );
+
+            }
+
+            return this;
+
+        }
+
+        Container copy() {
+
+            RunContainer copy = new RunContainer( Arrays.copyOf( _runs, Math.max( 2, _runCount * 2 ) ), 0 );
+            copy._runCount = _runCount;
+            copy._cardinality = _cardinality;
+
+            return copy;
+
+        }
+
+        Cursor cursor() {
+
+            return new Cursor() {
+
+                private int _run = 0;
+
+                private int _next = _runCount == 0 ? 0 : start( 0 );
+
+                boolean hasNext() {
+
+                    return _run < _runCount;
+
+                }
+
+                int next() {
+
+                    int v = _next;
+                    if ( v == end( _run ) ) {
+
+                        _run += 1;
+                        if ( _run < _runCount ) {
+
+                            _next = start( _run );
+
+                        }
+
+                    } else {
+
+                        _next += 1;
+
+                    }
+
+                    return v;
+
+                }
+
+            };
+
+        }
+
+        int runCount() {
+
+            return _runCount;
+
+        }
+
+        void addTo( long[] words ) {
+
+            for ( int run = 0; run < _runCount; run += 1 ) {
+
+                int start = start( run );
+                int end = end( run );
+                int firstWord = start >>> 6;
+                int lastWord = end >>> 6;
+                for ( int w = firstWord; w <= lastWord; w += 1 ) {
+
+                    long mask = -1L;
+                    if ( w == firstWord ) {
+
+                        mask &= -1L << start;
+
+                    }
+
+                    if ( w == lastWord ) {
+
+                        mask &= -1L >>> ( 63 - ( end & 63 ) );
+
+                    }
+
+                    words[w] |= mask;
+
+                }
+
+            }
+
+        }
+
+        byte type() {
+
+            return MyIntSet.RUNS;
+
+        }
+
+        void writeTo( DataOutput out )
+                throws IOException {
+
+            out.writeShort( _runCount - 1 );
+            for ( int i = 0; i < _runCount * 2; i += 1 ) {
+
+                out.writeChar( _runs[i] );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * The chunks whose values share the same high 32 bits, ordered by the next 16 bits (each of which is a chunk's key).
+     */
+
+    private static final class Chunks {
+
+        private char[] _keys;
+
+        private Container[] _containers;
+
+        private int _count = 0;
+
+        private Chunks( int capacity ) {
+            super();
+
+            _keys = new char[Math.max( 4, capacity )];
+            _containers = new Container[_keys.length];
+
+        }
+
+        private Chunks copy() {
+
+            Chunks copy = new Chunks( _count );
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                copy._keys[i] = _keys[i];
+                copy._containers[i] = _containers[i].copy();
+
+            }
+
+            copy._count = _count;
+
+            return copy;
+
+        }
+
+        private int find( int key ) {
+
+            return Arrays.binarySearch( _keys, 0, _count, (char)key );
+
+        }
+
+        /**
+         * Add a chunk at a position (which must be where its key belongs).
+         */
+
+        private void insert( int ix, int key, Container container ) {
+
+            if ( _count == _keys.length ) {
+
+                _keys = Arrays.copyOf( _keys, _count * 2 );
+                _containers = Arrays.copyOf( _containers, _count * 2 );
+
+            }
+
+            System.arraycopy( _keys, ix, _keys, ix + 1, _count - ix );
+            System.arraycopy( _containers, ix, _containers, ix + 1, _count - ix );
+            _keys[ix] = (char)key;
+            _containers[ix] = container;
+            _count += 1;
+
+        }
+
+        private void delete( int ix ) {
+
+            System.arraycopy( _keys, ix + 1, _keys, ix, _count - ix - 1 );
+            System.arraycopy( _containers, ix + 1, _containers, ix, _count - ix - 1 );
+            _count -= 1;
+            _containers[_count] = null;
+
+        }
+
+        /**
+         * Add a chunk after all the others (unless it is empty).
+         */
+
+        private void append( int key, Container container ) {
+
+            if ( container.cardinality() > 0 ) {
+
+                insert( _count, key, container );
+
+            }
+
+        }
+
+        private boolean add( int value ) {
+
+            int key = value >>> MyIntSet.CHUNK_BITS;
+            int ix = find( key );
+            if ( ix < 0 ) {
+
+                insert( -ix - 1, key, new ArrayContainer( new char[] { (char)value, 0, 0, 0 }, 1 ) );
+
+                return true;
+
+            }
+
+            Container container = _containers[ix];
+            int before = container.cardinality();
+            _containers[ix] = container.add( value & MyIntSet.LOW_MASK );
+
+            return _containers[ix].cardinality() != before;
+
+        }
+
+        private boolean remove( int value ) {
+
+            int ix = find( value >>> MyIntSet.CHUNK_BITS );
+            if ( ix < 0 ) {
+
+                return false;
+
+            }
+
+            Container container = _containers[ix];
+            int before = container.cardinality();
+            container = container.remove( value & MyIntSet.LOW_MASK );
+            if ( container.cardinality() == 0 ) {
+
+                delete( ix );
+
+            } else {
+
+                _containers[ix] = container;
+
+            }
+
+            return container.cardinality() != before;
+
+        }
+
+        private boolean contains( int value ) {
+
+            int ix = find( value >>> MyIntSet.CHUNK_BITS );
+
+            return ix >= 0 && _containers[ix].contains( value & MyIntSet.LOW_MASK );
+
+        }
+
+        private long cardinality() {
+
+            long cardinality = 0L;
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                cardinality += (long)_containers[i].cardinality();
+
+            }
+
+            return cardinality;
+
+        }
+
+        private static Chunks union( Chunks a, Chunks b ) {
+
+            Chunks rval = new Chunks( a._count + b._count );
+            int i = 0;
+            int j = 0;
+            while ( i < a._count || j < b._count ) {
+
+                if ( j == b._count || i < a._count && a._keys[i] < b._keys[j] ) {
+
+                    rval.append( a._keys[i], a._containers[i].copy() );
+                    i += 1;
+
+                } else if ( i == a._count || b._keys[j] < a._keys[i] ) {
+
+                    rval.append( b._keys[j], b._containers[j].copy() );
+                    j += 1;
+
+                } else {
+
+                    rval.append( a._keys[i], MyIntSet.or( a._containers[i], b._containers[j] ) );
+                    i += 1;
+                    j += 1;
+
+                }
+
+            }
+
+            return rval;
+
+        }
+
+        private static Chunks intersection( Chunks a, Chunks b ) {
+
+            Chunks rval = new Chunks( Math.min( a._count, b._count ) );
+            int i = 0;
+            int j = 0;
+            while ( i < a._count && j < b._count ) {
+
+                if ( a._keys[i] < b._keys[j] ) {
+
+                    i += 1;
+
+                } else if ( b._keys[j] < a._keys[i] ) {
+
+                    j += 1;
+
+                } else {
+
+                    rval.append( a._keys[i], MyIntSet.and( a._containers[i], b._containers[j] ) );
+                    i += 1;
+                    j += 1;
+
+                }
+
+            }
+
+            return rval;
+
+        }
+
+        private static Chunks difference( Chunks a, Chunks b ) {
+
+            Chunks rval = new Chunks( a._count );
+            int j = 0;
+            for ( int i = 0; i < a._count; i += 1 ) {
+
+                while ( j < b._count && b._keys[j] < a._keys[i] ) {
+
+                    j += 1;
+
+                }
+
+                if ( j < b._count && b._keys[j] == a._keys[i] ) {
+
+                    rval.append( a._keys[i], MyIntSet.andNot( a._containers[i], b._containers[j] ) );
+
+                } else {
+
+                    rval.append( a._keys[i], a._containers[i].copy() );
+
+                }
+
+            }
+
+            return rval;
+
+        }
+
+        private void runOptimize() {
+
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                _containers[i] = _containers[i].optimize();
+
+            }
+
+        }
+
+        private void writeTo( DataOutput out )
+                throws IOException {
+
+            out.writeShort( _count - 1 );
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                Container container = _containers[i].optimize();
+                out.writeChar( _keys[i] );
+                out.writeByte( container.type() );
+                container.writeTo( out );
+
+            }
+
+        }
+
+        private static Chunks readFrom( DataInput in )
+                throws IOException {
+
+            int count = in.readUnsignedShort() + 1;
+            Chunks rval = new Chunks( count );
+            for ( int i = 0; i < count; i += 1 ) {
+
+                char key = in.readChar();
+                if ( i > 0 && key <= rval._keys[i - 1] ) {
+
+                    throw new IOException( "MyIntSet chunks out of order" );
+
+                }
+
+                byte type = in.readByte();
+                Container container;
+                if ( type == MyIntSet.ARRAY ) {
+
+                    int cardinality = in.readUnsignedShort() + 1;
+                    char[] values = new char[cardinality];
+                    for ( int j = 0; j < cardinality; j += 1 ) {
+
+                        values[j] = in.readChar();
+
+                    }
+
+                    container = new ArrayContainer( values, cardinality );
+
+                } else if ( type == MyIntSet.BITMAP ) {
+
+                    long[] words = new long[MyIntSet.BITMAP_WORDS];
+                    for ( int j = 0; j < MyIntSet.BITMAP_WORDS; j += 1 ) {
+
+                        words[j] = in.readLong();
+
+                    }
+
+                    container = MyIntSet.fromWords( words );
+
+                } else if ( type == MyIntSet.RUNS ) {
+
+                    int runCount = in.readUnsignedShort() + 1;
+                    char[] runs = new char[runCount * 2];
+                    for ( int j = 0; j < runs.length; j += 1 ) {
+
+                        runs[j] = in.readChar();
+
+                    }
+
+                    container = new RunContainer( runs, runCount );
+
+                } else {
+
+                    throw new IOException( "unknown MyIntSet chunk type " + type );
+
+                }
+
+                if ( container.cardinality() == 0 ) {
+
+                    throw new IOException( "empty MyIntSet chunk" );
+
+                }
+
+                rval.append( key, container );
+
+            }
+
+            return rval;
+
+        }
+
+        private boolean sameAs( Chunks x ) {
+
+            if ( x._count != _count ) {
+
+                return false;
+
+            }
+
+            for ( int i = 0; i < _count; i += 1 ) {
+
+                if ( _keys[i] != x._keys[i] || _containers[i].cardinality() != x._containers[i].cardinality() ) {
+
+                    return false;
+
+                }
+
+                Cursor mine = _containers[i].cursor();
+                Cursor theirs = x._containers[i].cursor();
+                while ( mine.hasNext() ) {
+
+                    if ( mine.next() != theirs.next() ) {
+
+                        return false;
+
+                    }
+
+                }
+
+            }
+
+            return true;
+
+        }
+
+    }
+
+    public MyIntSet() {
+
+        super();
+
+    }
+
+    /**
+     * Make a copy of a set.
+     *
+     * @param x the set to be copied.
+     */
+
+    public MyIntSet( MyIntSet x ) {
+
+        super();
+
+        _highs = Arrays.copyOf( x._highs, Math.max( 4, x._highCount ) );
+        _chunks = new Chunks[_highs.length];
+        for ( int i = 0; i < x._highCount; i += 1 ) {
+
+            _chunks[i] = x._chunks[i].copy();
+
+        }
+
+        _highCount = x._highCount;
+
+    }
+
+    private static int highBits( long value ) {
+
+        return (int)( value >> 32 );
+
+    }
+
+    private static Container fromWords( long[] words ) {
+
+        int cardinality = 0;
+        for ( long word : words ) {
+
+            cardinality += Long.bitCount( word );
 
-    private long[] _valueBits = null;
-    private long   _startValue = 0L;
+        }
 
-    public MyIntSet() {
+        if ( cardinality > MyIntSet.MAX_ARRAY_CARDINALITY ) {
 
-        super();
+            return new BitmapContainer( words, cardinality );
+
+        }
+
+        char[] values = new char[Math.max( 1, cardinality )];
+        int ix = 0;
+        for ( int w = 0; w < words.length; w += 1 ) {
+
+            for ( long bits = words[w]; bits != 0L; bits &= bits - 1L ) {
+
+                values[ix] = (char)( ( w << 6 ) + Long.numberOfTrailingZeros( bits ) );
+                ix += 1;
+
+            }
+
+        }
+
+        return new ArrayContainer( values, cardinality );
 
     }
 
-    public void add( long value ) {
+    private int highIndex( int high ) {
 
-        if ( _valueBits == null ) {
+        return Arrays.binarySearch( _highs, 0, _highCount, high );
 
-            // Take a wild guess that the first value is in the middle of a modest range of bits.
+    }
 
-            //noinspection MagicNumber
-            _valueBits = new long[25];
-            //noinspection MagicNumber
-            _startValue = value - 12 * Long.SIZE;
+    /**
+     * Add the chunks for some high bits at a position (which must be where the high bits belong).
+     */
+
+    private void insertHigh( int ix, int high, Chunks chunks ) {
+
+        if ( _highCount == _highs.length ) {
+
+            _highs = Arrays.copyOf( _highs, _highCount * 2 );
+            _chunks = Arrays.copyOf( _chunks, _highCount * 2 );
 
         }
-//        Logger.logMsg( "before adding " + value + ":  " + this );
 
-//        if ( value >= _startValue && value < _startValue + _valueBits.length * Long.SIZE ) {
-//
-//
-//        } else
-        if ( value < _startValue ) {
+        System.arraycopy( _highs, ix, _highs, ix + 1, _highCount - ix );
+        System.arraycopy( _chunks, ix, _chunks, ix + 1, _highCount - ix );
+        _highs[ix] = high;
+        _chunks[ix] = chunks;
+        _highCount += 1;
 
-            long newStartValue = _startValue - ( ( _startValue - value ) / Long.SIZE + 10 ) * Long.SIZE;
-            long lastValue = _startValue + Long.SIZE * _valueBits.length - 1;
-            long[] newArray = new long[( (int)( lastValue + 1 - newStartValue ) / Long.SIZE )];
-            System.arraycopy(
-                    _valueBits,
-                    0,
-                    newArray,
-                    (int)( _startValue - newStartValue ) / Long.SIZE,
-                    _valueBits.length
-            );
+    }
 
-            _valueBits = newArray;
-            _startValue = newStartValue;
-//            Logger.logMsg( "after growing left:  " + this );
+    /**
+     * Add the chunks for some high bits after all the others (unless there aren't any chunks).
+     */
 
-        } else if ( value >= _startValue + _valueBits.length * Long.SIZE ) {
+    private void appendHigh( int high, Chunks chunks ) {
 
-            long lastValue = _startValue + Long.SIZE * _valueBits.length - 1;
-            long newLastValue = lastValue + ( ( value - lastValue ) / Long.SIZE + 10 ) * Long.SIZE;
-            long[] newArray = new long[( (int)( newLastValue + 1 - _startValue ) / Long.SIZE )];
-            System.arraycopy( _valueBits, 0, newArray, 0, _valueBits.length );
+        if ( chunks._count > 0 ) {
 
-            _valueBits = newArray;
-//            Logger.logMsg( "after growing right:  " + this );
+            insertHigh( _highCount, high, chunks );
 
         }
 
-        //noinspection UnnecessaryParentheses
-        _valueBits[( (int)( value - _startValue ) / Long.SIZE )] |= 1L << ( ( value - _startValue ) & ( Long.SIZE - 1 ) );
+    }
+
+    /**
+     * Add a value to the set.
+     *
+     * @param value the value.
+     * @return true if the value wasn't already in the set.
+     */
+
+    public boolean add( long value ) {
 
-//        Logger.logMsg( "after adding " + value + ":  " + this );
+        int high = MyIntSet.highBits( value );
+        int ix = highIndex( high );
+        if ( ix < 0 ) {
+
+            ix = -ix - 1;
+            insertHigh( ix, high, new Chunks( 4 ) );
+
+        }
+
+        return _chunks[ix].add( (int)value );
 
     }
 
-    public Iterator<Long> iterator() {
+    /**
+     * Remove a value from the set.
+     *
+     * @param value the value.
+     * @return true if the value was in the set.
+     */
 
-        for ( int i = 0; i < _valueBits.length; i += 1 ) {
+    public boolean remove( long value ) {
 
-            for ( int j = 0; j < Long.SIZE; j += 1 ) {
+        int ix = highIndex( MyIntSet.highBits( value ) );
+        if ( ix < 0 || !_chunks[ix].remove( (int)value ) ) {
 
-                //noinspection UnnecessaryParentheses
-                if ( ( _valueBits[i] & ( 1L << j ) ) != 0 ) {
+            return false;
 
-                    final int nextI = i;
-                    final int nextJ = j;
-                    return new Iterator<Long>() {
+        }
 
-                        private int _nextI = nextI;
-                        private int _nextJ = nextJ;
-                        private boolean _done = false;
+        if ( _chunks[ix]._count == 0 ) {
 
-                        public boolean hasNext() {
+            System.arraycopy( _highs, ix + 1, _highs, ix, _highCount - ix - 1 );
+            System.arraycopy( _chunks, ix + 1, _chunks, ix, _highCount - ix - 1 );
+            _highCount -= 1;
+            _chunks[_highCount] = null;
 
-                            return !_done;
+        }
 
-                        }
+        return true;
 
-                        public Long next() {
+    }
 
-                            if ( _done ) {
+    public boolean contains( long value ) {
 
-                                throw new NoSuchElementException( "no more elements" );
+        int ix = highIndex( MyIntSet.highBits( value ) );
 
-                            } else {
+        return ix >= 0 && _chunks[ix].contains( (int)value );
 
-                                long rval = _startValue + _nextI * Long.SIZE + _nextJ;
-                                if ( _nextJ == Long.SIZE ) {
-                                    _nextI += 1;
-                                    _nextJ = 0;
-                                } else {
-                                    _nextJ += 1;
-                                }
+    }
 
-                                for ( int i = _nextI; i < _valueBits.length; i += 1 ) {
+    /**
+     * Get how many values are in the set.
+     */
 
-                                    for ( int j = _nextJ; j < Long.SIZE; j += 1 ) {
+    public long size() {
 
-                                        //noinspection UnnecessaryParentheses
-                                        if ( ( _valueBits[i] & ( 1L << j ) ) != 0 ) {
+        long size = 0L;
+        for ( int i = 0; i < _highCount; i += 1 ) {
 
-                                            _nextI = i;
-                                            _nextJ = j;
-                                            return rval;
+            size += _chunks[i].cardinality();
 
-                                        }
+        }
 
-                                    }
+        return size;
 
-                                    _nextJ = 0;
+    }
 
-                                }
+    public boolean isEmpty() {
 
-                                _done = true;
-                                return rval;
+        return _highCount == 0;
 
-                            }
-                        }
+    }
 
-                        public void remove() {
+    public void clear() {
 
-                            throw new UnsupportedOperationException( "remove not supported" );
+        _highs = new int[4];
+        _chunks = new Chunks[4];
+        _highCount = 0;
 
-                        }
+    }
+
+    /**
+     * Get a set containing the values which are in this set or another set (or both).
+     *
+     * @param x the other set.
+     * @return the new set (neither this set nor the other set is changed).
+     */
+
+    public MyIntSet union( MyIntSet x ) {
+
+        MyIntSet rval = new MyIntSet();
+        int i = 0;
+        int j = 0;
+        while ( i < _highCount || j < x._highCount ) {
+
+            if ( j == x._highCount || i < _highCount && _highs[i] < x._highs[j] ) {
+
+                rval.appendHigh( _highs[i], _chunks[i].copy() );
+                i += 1;
+
+            } else if ( i == _highCount || x._highs[j] < _highs[i] ) {
+
+                rval.appendHigh( x._highs[j], x._chunks[j].copy() );
+                j += 1;
+
+            } else {
+
+                rval.appendHigh( _highs[i], Chunks.union( _chunks[i], x._chunks[j] ) );
+                i += 1;
+                j += 1;
+
+            }
+
+        }
+
+        return rval;
+
+    }
+
+    /**
+     * Get a set containing the values which are in both this set and another set.
+     *
+     * @param x the other set.
+     * @return the new set (neither this set nor the other set is changed).
+     */
+
+    public MyIntSet intersection( MyIntSet x ) {
+
+        MyIntSet rval = new MyIntSet();
+        int i = 0;
+        int j = 0;
+        while ( i < _highCount && j < x._highCount ) {
+
+            if ( _highs[i] < x._highs[j] ) {
+
+                i += 1;
+
+            } else if ( x._highs[j] < _highs[i] ) {
+
+                j += 1;
+
+            } else {
 
-                    };
+                rval.appendHigh( _highs[i], Chunks.intersection( _chunks[i], x._chunks[j] ) );
+                i += 1;
+                j += 1;
+
+            }
+
+        }
+
+        return rval;
+
+    }
+
+    /**
+     * Get a set containing the values which are in this set but not in another set.
+     *
+     * @param x the other set.
+     * @return the new set (neither this set nor the other set is changed).
+     */
+
+    public MyIntSet difference( MyIntSet x ) {
+
+        MyIntSet rval = new MyIntSet();
+        int j = 0;
+        for ( int i = 0; i < _highCount; i += 1 ) {
+
+            while ( j < x._highCount && x._highs[j] < _highs[i] ) {
+
+                j += 1;
+
+            }
+
+            if ( j < x._highCount && x._highs[j] == _highs[i] ) {
+
+                rval.appendHigh( _highs[i], Chunks.difference( _chunks[i], x._chunks[j] ) );
+
+            } else {
+
+                rval.appendHigh( _highs[i], _chunks[i].copy() );
+
+            }
+
+        }
+
+        return rval;
+
+    }
+
+    private static Container or( Container a, Container b ) {
+
+        if ( a instanceof ArrayContainer && b instanceof ArrayContainer &&
+             a.cardinality() + b.cardinality() <= MyIntSet.MAX_ARRAY_CARDINALITY ) {
+
+            // Merge the two sorted arrays.
+
+            ArrayContainer x = (ArrayContainer)a;
+            ArrayContainer y = (ArrayContainer)b;
+            char[] values = new char[Math.max( 1, x._cardinality + y._cardinality )];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while ( i < x._cardinality && j < y._cardinality ) {
+
+                char xv = x._values[i];
+                char yv = y._values[j];
+                values[k] = xv <= yv ? xv : yv;
+                k += 1;
+                if ( xv <= yv ) {
+
+                    i += 1;
+
+                }
+
+                if ( yv <= xv ) {
+
+                    j += 1;
 
                 }
 
             }
+
+            System.arraycopy( x._values, i, values, k, x._cardinality - i );
+            k += x._cardinality - i;
+            System.arraycopy( y._values, j, values, k, y._cardinality - j );
+            k += y._cardinality - j;
+
+            return new ArrayContainer( values, k );
+
+        }
+
+        long[] words = a.toWords();
+        b.addTo( words );
+
+        return MyIntSet.fromWords( words );
+
+    }
+
+    private static Container and( Container a, Container b ) {
+
+        if ( a instanceof ArrayContainer ) {
+
+            return MyIntSet.filter( a, b, true );
+
+        }
+
+        if ( b instanceof ArrayContainer ) {
+
+            return MyIntSet.filter( b, a, true );
+
+        }
+
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for ( int i = 0; i < MyIntSet.BITMAP_WORDS; i += 1 ) {
+
+            words[i] &= other[i];
+
+        }
+
+        return MyIntSet.fromWords( words );
+
+    }
+
+    private static Container andNot( Container a, Container b ) {
+
+        if ( a instanceof ArrayContainer ) {
+
+            return MyIntSet.filter( a, b, false );
+
+        }
+
+        long[] words = a.toWords();
+        long[] other = b.toWords();
+        for ( int i = 0; i < MyIntSet.BITMAP_WORDS; i += 1 ) {
+
+            words[i] &= ~other[i];
+
+        }
+
+        return MyIntSet.fromWords( words );
+
+    }
+
+    /**
+     * Get the members of a (small) container which are (or aren't) members of another container.
+     */
+
+    private static Container filter( Container source, Container other, boolean keep ) {
+
+        char[] values = new char[Math.max( 1, source.cardinality() )];
+        int k = 0;
+        for ( Cursor cursor = source.cursor(); cursor.hasNext(); ) {
+
+            int v = cursor.next();
+            if ( other.contains( v ) == keep ) {
+
+                values[k] = (char)v;
+                k += 1;
+
+            }
+
+        }
+
+        return new ArrayContainer( values, k );
+
+    }
+
+    /**
+     * Switch each chunk to whichever form takes the least space.
+     * Sets built one value at a time never use runs unless this is called.
+     */
+
+    public void runOptimize() {
+
+        for ( int i = 0; i < _highCount; i += 1 ) {
+
+            _chunks[i].runOptimize();
+
         }
 
+    }
+
+    /**
+     * Get a primitive iterator over the set's values in ascending order.
+     * The set must not be changed while the iterator is in use.
+     */
+
+    public LongIterator longIterator() {
+
+        return new LongIterator() {
+
+            private int _high = 0;
+
+            private int _chunk = -1;
+
+            private long _base = 0L;
+
+            private Cursor _cursor = null;
+
+            public boolean hasNext() {
+
+                while ( _cursor == null || !_cursor.hasNext() ) {
+
+                    if ( _high == _highCount ) {
+
+                        return false;
+
+                    }
+
+                    Chunks chunks = _chunks[_high];
+                    _chunk += 1;
+                    if ( _chunk == chunks._count ) {
+
+                        _high += 1;
+                        _chunk = -1;
+                        _cursor = null;
+
+                    } else {
+
+                        _base = ( (long)_highs[_high] << 32 ) + ( (long)chunks._keys[_chunk] << MyIntSet.CHUNK_BITS );
+                        _cursor = chunks._containers[_chunk].cursor();
+
+                    }
+
+                }
+
+                return true;
+
+            }
+
+            public long next() {
+
+                if ( !hasNext() ) {
+
+                    throw new NoSuchElementException( "no more elements" );
+
+                }
+
+                return _base + (long)_cursor.next();
+
+            }
+
+        };
+
+    }
+
+    /**
+     * Get an iterator over the set's values in ascending order.
+     * {@link #longIterator} is cheaper since it doesn't box each value.
+     */
+
+    public Iterator<Long> iterator() {
+
+        final LongIterator iter = longIterator();
         return new Iterator<Long>() {
 
             public boolean hasNext() {
 
-                return false;
+                return iter.hasNext();
 
             }
 
             public Long next() {
 
-                throw new NoSuchElementException( "set is empty" );
+                return iter.next();
 
             }
 
@@ -174,62 +1711,145 @@ public class MyIntSet implements Iterable<Long>, Serializable {
 
             }
 
-
         };
 
     }
 
-//    public String toString() {
-//
-//        StringBuilder rval = new StringBuilder();
-//        String comma = "";
-//        for ( int i = 0; i < _valueBits.length; i += 1 ) {
-//
-//            for ( int j = 0; j < Long.SIZE; j += 1 ) {
-//
-//                if ( ( _valueBits[i] & ( 1L << j ) ) != 0 ) {
-//
-//                    rval.append( comma ).append( _startValue + i * Long.SIZE + j );
-//                    comma = ", ";
-//
-//                }
-//
-//            }
-//
-//        }
-//
-//        return "MyIntSet( " + rval + " )";
-//
-//    }
+    /**
+     * Write the set in a compact binary form which {@link #readFrom} understands.
+     * Each chunk is written in whichever form takes the least space (the set itself isn't changed).
+     *
+     * @param out where to write it.
+     * @throws IOException if the write fails.
+     */
+
+    public void writeTo( DataOutput out )
+            throws IOException {
+
+        out.writeInt( MyIntSet.SERIAL_MAGIC );
+        out.writeInt( _highCount );
+        for ( int i = 0; i < _highCount; i += 1 ) {
+
+            out.writeInt( _highs[i] );
+            _chunks[i].writeTo( out );
+
+        }
+
+    }
+
+    /**
+     * Read a set written by {@link #writeTo}.
+     *
+     * @param in where to read it from.
+     * @return the set.
+     * @throws IOException if the read fails or what is read isn't a set.
+     */
+
+    public static MyIntSet readFrom( DataInput in )
+            throws IOException {
+
+        if ( in.readInt() != MyIntSet.SERIAL_MAGIC ) {
+
+            throw new IOException( "not a MyIntSet" );
+
+        }
+
+        MyIntSet rval = new MyIntSet();
+        int highCount = in.readInt();
+        for ( int i = 0; i < highCount; i += 1 ) {
+
+            int high = in.readInt();
+            if ( i > 0 && high <= rval._highs[i - 1] ) {
+
+                throw new IOException( "MyIntSet chunks out of order" );
+
+            }
+
+            rval.appendHigh( high, Chunks.readFrom( in ) );
+
+        }
+
+        return rval;
+
+    }
+
+    private void writeObject( ObjectOutputStream out )
+            throws IOException {
+
+        out.defaultWriteObject();
+        writeTo( out );
+
+    }
+
+    private void readObject( ObjectInputStream in )
+            throws IOException, ClassNotFoundException {
+
+        in.defaultReadObject();
+        MyIntSet x = MyIntSet.readFrom( in );
+        _highs = x._highs;
+        _chunks = x._chunks;
+        _highCount = x._highCount;
+
+    }
+
+    public boolean equals( Object rhs ) {
+
+        if ( !( rhs instanceof MyIntSet ) ) {
+
+            return false;
+
+        }
+
+        MyIntSet x = (MyIntSet)rhs;
+        if ( x._highCount != _highCount ) {
+
+            return false;
+
+        }
+
+        for ( int i = 0; i < _highCount; i += 1 ) {
+
+            if ( _highs[i] != x._highs[i] || !_chunks[i].sameAs( x._chunks[i] ) ) {
+
+                return false;
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    public int hashCode() {
+
+        long hash = 0L;
+        for ( LongIterator iter = longIterator(); iter.hasNext(); ) {
+
+            //noinspection MagicNumber
+            hash = hash * 31L + iter.next();
+
+        }
+
+        return (int)( hash ^ ( hash >>> 32 ) );
+
+    }
 
     public String toString() {
 
-        StringBuilder rval2 = new StringBuilder();
+        StringBuilder rval = new StringBuilder();
         String comma = "";
-        //noinspection ForLoopReplaceableByForEach,ForLoopWithMissingComponent
-        for ( Iterator<Long> iter = iterator(); iter.hasNext(); ) {
+        for ( LongIterator iter = longIterator(); iter.hasNext(); ) {
 
-            rval2.append( comma ).append( iter.next() );
+            rval.append( comma ).append( iter.next() );
             comma = ", ";
 
         }
 
-        return "MyIntSet( " + rval2.toString() + " )";
+        return "MyIntSet( " + rval.toString() + " )";
 
     }
 
-//    public void checkToString() {
-//
-//        String s1 = toString();
-//        String s2 = toString2();
-//        if ( !s1.equals( s2 ) ) {
-//
-//            Logger.logMsg( "iterator is broken (old = \"" + s1 + "\", new = \"" + s2 + "\")" );
-//
-//        }
-//
-//    }
-
     @SuppressWarnings("MagicNumber")
     public static void main( String[] args ) {
 
@@ -0,0 +1,413 @@
+package com.obtuse.util;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Fill {@link MyIntSet}s with a mix of scattered values, dense clusters and long runs, check everything that they do
+ * against a {@link TreeSet} and time the common operations (with the {@link TreeSet} timings for comparison).  Also
+ * show how big the serialized forms are and that a set whose values are very far apart stays small.
+ * <p/>
+ * Usage:  <tt>MyIntSetBenchmark [values]</tt>
+ */
+
+public class MyIntSetBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final long SPREAD = 1L << 40;
+
+    private MyIntSetBenchmark() {
+        super();
+
+    }
+
+    private static void fail( String what ) {
+
+        Logger.logErr( what );
+        System.exit( 1 );
+
+    }
+
+    /**
+     * Make up some values:  a third scattered over a huge range, a third in a dense cluster and a third in runs.
+     */
+
+    private static long[] values( Random random, int count ) {
+
+        long[] values = new long[count];
+        int i = 0;
+        while ( i < count / 3 ) {
+
+            values[i] = ( random.nextLong() % MyIntSetBenchmark.SPREAD );
+            i += 1;
+
+        }
+
+        long cluster = random.nextLong() % MyIntSetBenchmark.SPREAD;
+        while ( i < count * 2 / 3 ) {
+
+            values[i] = cluster + (long)random.nextInt( count );
+            i += 1;
+
+        }
+
+        while ( i < count ) {
+
+            //noinspection MagicNumber
+            long start = random.nextLong() % MyIntSetBenchmark.SPREAD;
+            //noinspection MagicNumber
+            for ( int j = random.nextInt( 5000 ); j >= 0 && i < count; j -= 1 ) {
+
+                values[i] = start + (long)j;
+                i += 1;
+
+            }
+
+        }
+
+        return values;
+
+    }
+
+    private static void check( String what, MyIntSet set, SortedSet<Long> expected ) {
+
+        if ( set.size() != (long)expected.size() ) {
+
+            MyIntSetBenchmark.fail( what + ":  " + set.size() + " values instead of " + expected.size() );
+
+        }
+
+        MyIntSet.LongIterator iter = set.longIterator();
+        for ( long v : expected ) {
+
+            if ( !iter.hasNext() || iter.next() != v ) {
+
+                MyIntSetBenchmark.fail( what + ":  iteration doesn't match around " + v );
+
+            }
+
+        }
+
+        if ( iter.hasNext() ) {
+
+            MyIntSetBenchmark.fail( what + ":  iteration goes on too long" );
+
+        }
+
+    }
+
+    private static MyIntSet build( String name, long[] values ) {
+
+        Measure m = new Measure( name );
+        MyIntSet set = new MyIntSet();
+        for ( long v : values ) {
+
+            set.add( v );
+
+        }
+
+        m.done();
+
+        return set;
+
+    }
+
+    private static SortedSet<Long> buildReference( String name, long[] values ) {
+
+        Measure m = new Measure( name );
+        SortedSet<Long> set = new TreeSet<Long>();
+        for ( long v : values ) {
+
+            set.add( v );
+
+        }
+
+        m.done();
+
+        return set;
+
+    }
+
+    private static long lookUp( String name, MyIntSet set, long[] probes ) {
+
+        Measure m = new Measure( name );
+        long found = 0L;
+        for ( long v : probes ) {
+
+            if ( set.contains( v ) ) {
+
+                found += 1L;
+
+            }
+
+        }
+
+        m.done();
+
+        return found;
+
+    }
+
+    private static long lookUpReference( String name, SortedSet<Long> set, long[] probes ) {
+
+        Measure m = new Measure( name );
+        long found = 0L;
+        for ( long v : probes ) {
+
+            if ( set.contains( v ) ) {
+
+                found += 1L;
+
+            }
+
+        }
+
+        m.done();
+
+        return found;
+
+    }
+
+    private static long iterate( MyIntSet set ) {
+
+        Measure m = new Measure( "MyIntSet iterate" );
+        long sum = 0L;
+        for ( MyIntSet.LongIterator iter = set.longIterator(); iter.hasNext(); ) {
+
+            sum += iter.next();
+
+        }
+
+        m.done();
+
+        return sum;
+
+    }
+
+    private static long iterateBoxed( MyIntSet set ) {
+
+        Measure m = new Measure( "MyIntSet iterate boxed" );
+        long sum = 0L;
+        for ( long v : set ) {
+
+            sum += v;
+
+        }
+
+        m.done();
+
+        return sum;
+
+    }
+
+    private static byte[] serialize( MyIntSet set )
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        set.writeTo( out );
+        out.close();
+
+        return bytes.toByteArray();
+
+    }
+
+    private static MyIntSet deserialize( byte[] bytes )
+            throws IOException {
+
+        return MyIntSet.readFrom( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "MyIntSetBenchmark", null );
+
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 300000;
+
+        Random random = new Random( 42L );
+        long[] aValues = MyIntSetBenchmark.values( random, count );
+        long[] bValues = MyIntSetBenchmark.values( random, count );
+
+        // Half of the probes are values in the first set.
+
+        long[] probes = new long[count];
+        for ( int i = 0; i < count; i += 1 ) {
+
+            probes[i] = i % 2 == 0 ? aValues[random.nextInt( count )] : random.nextLong() % MyIntSetBenchmark.SPREAD;
+
+        }
+
+        try {
+
+            for ( int round = 0; round < MyIntSetBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                MyIntSet a = MyIntSetBenchmark.build( "MyIntSet add", aValues );
+                MyIntSet b = MyIntSetBenchmark.build( "MyIntSet add", bValues );
+                SortedSet<Long> aReference = MyIntSetBenchmark.buildReference( "TreeSet add", aValues );
+                SortedSet<Long> bReference = MyIntSetBenchmark.buildReference( "TreeSet add", bValues );
+                MyIntSetBenchmark.check( "add", a, aReference );
+
+                if ( MyIntSetBenchmark.lookUp( "MyIntSet contains", a, probes ) !=
+                     MyIntSetBenchmark.lookUpReference( "TreeSet contains", aReference, probes ) ) {
+
+                    MyIntSetBenchmark.fail( "contains doesn't agree with TreeSet" );
+
+                }
+
+                long sum = 0L;
+                for ( long v : aReference ) {
+
+                    sum += v;
+
+                }
+
+                if ( MyIntSetBenchmark.iterate( a ) != sum || MyIntSetBenchmark.iterateBoxed( a ) != sum ) {
+
+                    MyIntSetBenchmark.fail( "iteration doesn't add up" );
+
+                }
+
+                Measure m = new Measure( "MyIntSet union" );
+                MyIntSet union = a.union( b );
+                m.done();
+                SortedSet<Long> expected = new TreeSet<Long>( aReference );
+                expected.addAll( bReference );
+                MyIntSetBenchmark.check( "union", union, expected );
+
+                m = new Measure( "MyIntSet intersection" );
+                MyIntSet intersection = a.intersection( union.difference( b ) );
+                m.done();
+                MyIntSetBenchmark.check( "intersection", intersection, MyIntSetBenchmark.minus( aReference, bReference ) );
+
+                m = new Measure( "MyIntSet difference" );
+                MyIntSet difference = a.difference( b );
+                m.done();
+                MyIntSetBenchmark.check( "difference", difference, MyIntSetBenchmark.minus( aReference, bReference ) );
+
+                // Remove every other value (which turns some dense chunks back into arrays).
+
+                m = new Measure( "MyIntSet remove" );
+                MyIntSet removed = new MyIntSet( a );
+                for ( int i = 0; i < count; i += 2 ) {
+
+                    removed.remove( aValues[i] );
+
+                }
+
+                m.done();
+                expected = new TreeSet<Long>( aReference );
+                for ( int i = 0; i < count; i += 2 ) {
+
+                    expected.remove( aValues[i] );
+
+                }
+
+                MyIntSetBenchmark.check( "remove", removed, expected );
+
+                // The serialized form uses runs where they help, changing the optimized set must still work.
+
+                byte[] bytes = MyIntSetBenchmark.serialize( a );
+                MyIntSet copy = MyIntSetBenchmark.deserialize( bytes );
+                if ( !copy.equals( a ) || copy.hashCode() != a.hashCode() ) {
+
+                    MyIntSetBenchmark.fail( "serialization round trip changed the set" );
+
+                }
+
+                copy.runOptimize();
+                for ( int i = 1; i < count; i += 2 ) {
+
+                    copy.remove( aValues[i] );
+                    copy.add( aValues[i] + 1L );
+
+                }
+
+                MyIntSet plain = new MyIntSet( a );
+                for ( int i = 1; i < count; i += 2 ) {
+
+                    plain.remove( aValues[i] );
+                    plain.add( aValues[i] + 1L );
+
+                }
+
+                if ( !copy.equals( plain ) ) {
+
+                    MyIntSetBenchmark.fail( "changing a set with runs doesn't work" );
+
+                }
+
+                if ( round == MyIntSetBenchmark.ROUNDS - 1 ) {
+
+                    ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+                    ObjectOutputStream out = new ObjectOutputStream( javaBytes );
+                    out.writeObject( a );
+                    out.close();
+                    ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( javaBytes.toByteArray() ) );
+                    if ( !a.equals( in.readObject() ) ) {
+
+                        MyIntSetBenchmark.fail( "Java serialization round trip changed the set" );
+
+                    }
+
+                    Logger.logMsg(
+                            a.size() + " values serialize into " + bytes.length + " bytes (" +
+                            javaBytes.size() + " with Java serialization)"
+                    );
+
+                }
+
+            }
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "serialization failed", e );
+            System.exit( 1 );
+
+        } catch ( ClassNotFoundException e ) {
+
+            Logger.logErr( "serialization failed", e );
+            System.exit( 1 );
+
+        }
+
+        // The old implementation would have needed a 128 gigabyte array for this.
+
+        MyIntSet outliers = new MyIntSet();
+        outliers.add( 0L );
+        outliers.add( 1L << 40 );
+        outliers.add( -1L );
+        if ( !"MyIntSet( -1, 0, 1099511627776 )".equals( outliers.toString() ) ) {
+
+            MyIntSetBenchmark.fail( "outliers came out as " + outliers );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+    private static SortedSet<Long> minus( SortedSet<Long> a, SortedSet<Long> b ) {
+
+        SortedSet<Long> rval = new TreeSet<Long>( a );
+        rval.removeAll( b );
+
+        return rval;
+
+    }
+
+}
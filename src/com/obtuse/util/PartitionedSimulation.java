@@ -0,0 +1,486 @@
+package com.obtuse.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Run a simulation which has been split into partitions (logical processes), each with its own
+ * {@link SimpleEventQueue} and its own thread.
+ * <p/>
+ * Partitions talk to each other by sending timestamped events (see {@link Partition#send}).  Every such event must be
+ * scheduled at least the simulation's <em>lookahead</em> after the time of the event which sends it.  This is what
+ * makes it safe for the partitions to work independently:  the simulation advances in windows which are the lookahead
+ * wide and which start at the earliest pending event in any partition.  All of the partitions run their events within
+ * a window concurrently.  Nothing sent during a window can land within it, so the partitions then wait for each other,
+ * the sent events are delivered and the next window begins (a conservative, synchronous time-window protocol).
+ * <p/>
+ * Events keep the usual {@link SimpleEvent#run} contract.  Everything that determines the outcome (window boundaries,
+ * the order in which sent events are delivered) depends only on the events' times and never on thread scheduling, so
+ * a simulation produces exactly the same results every time it is run.  Sent events are delivered via
+ * {@link SimpleEventQueue#qAfter} in order of the sending partition's index and then in the order in which they were
+ * sent.  Consequently, the results are identical to those of the same model run on a single queue (where sending an
+ * event is just a call to {@link SimpleEventQueue#qAfter}) unless the model depends on the order of simultaneous
+ * events in one partition which came from different partitions.
+ */
+
+public class PartitionedSimulation<T extends SimpleEvent> {
+
+    private final List<Partition<T>> _partitions;
+
+    private final long _lookahead;
+
+    // The last time in the current window (only changes while all of the partitions are waiting for each other).
+
+    private long _windowLastTime;
+
+    private boolean _done = false;
+
+    private long _windowCount = 0L;
+
+    private volatile boolean _running = false;
+
+    // Why the running simulation is being abandoned (null if nothing has gone wrong).
+
+    private volatile String _failure = null;
+
+    /**
+     * One partition (logical process) of a {@link PartitionedSimulation}.
+     */
+
+    public static class Partition<T extends SimpleEvent> {
+
+        private final PartitionedSimulation<T> _simulation;
+
+        private final int _index;
+
+        private final SimpleEventQueue<T> _queue;
+
+        // Events sent by this partition during the current window.
+
+        private final List<Message<T>> _outbox = new ArrayList<Message<T>>();
+
+        private long _sentCount = 0L;
+
+        private Partition( PartitionedSimulation<T> simulation, int index, SimpleEventQueue<T> queue ) {
+            super();
+
+            _simulation = simulation;
+            _index = index;
+            _queue = queue;
+
+        }
+
+        public int getIndex() {
+
+            return _index;
+
+        }
+
+        /**
+         * Get this partition's event queue.
+         * Events which stay within this partition are queued directly on it.
+         *
+         * @return this partition's event queue.
+         */
+
+        public SimpleEventQueue<T> getQueue() {
+
+            return _queue;
+
+        }
+
+        /**
+         * Send an event to another partition (or to this one).
+         * <p/>
+         * This method must only be called by events running in this partition (or before the simulation starts).
+         * <p/>
+         * While the simulation is running, sending an event to a partition which doesn't exist or sending it too soon
+         * (less than the lookahead after the event doing the sending) doesn't throw an exception (the event queue
+         * would just log it and carry on).  The event is dropped instead and the simulation is abandoned at the end of
+         * the current window (see {@link PartitionedSimulation#run}).
+         *
+         * @param partitionIndex the partition which is to run the event.
+         * @param when           when the event is to run.
+         * @param event          the event.
+         * @throws IllegalArgumentException if the simulation is not running and there is no such partition.
+         */
+
+        public void send( int partitionIndex, long when, T event ) {
+
+            if ( !_simulation._running ) {
+
+                _simulation.getPartition( partitionIndex )._queue.qAfter( when, event );
+
+            } else if ( partitionIndex < 0 || partitionIndex >= _simulation._partitions.size() ) {
+
+                _simulation.fail(
+                        "event " + event + " sent from partition " + _index + " to partition " + partitionIndex +
+                        " which does not exist (there are " + _simulation._partitions.size() + " partitions)"
+                );
+
+            } else if ( when <= _simulation._windowLastTime ) {
+
+                _simulation.fail(
+                        "event " + event + " sent from partition " + _index + " to partition " + partitionIndex +
+                        " at " + when + " is within the current window (which ends at " +
+                        _simulation._windowLastTime + ") - the lookahead of " + _simulation._lookahead +
+                        " has been violated"
+                );
+
+            } else {
+
+                _outbox.add( new Message<T>( _simulation._partitions.get( partitionIndex ), when, event ) );
+
+            }
+
+            _sentCount += 1L;
+
+        }
+
+        /**
+         * Get the number of events that this partition has sent.
+         *
+         * @return the number of calls to {@link #send}.
+         */
+
+        public long getSentCount() {
+
+            return _sentCount;
+
+        }
+
+        public String toString() {
+
+            return "Partition( " + _index + " )";
+
+        }
+
+    }
+
+    private static class Message<T extends SimpleEvent> {
+
+        private final Partition<T> _target;
+
+        private final long _when;
+
+        private final T _event;
+
+        private Message( Partition<T> target, long when, T event ) {
+            super();
+
+            _target = target;
+            _when = when;
+            _event = event;
+
+        }
+
+    }
+
+    /**
+     * Create a simulation whose partitions use the default {@link SimpleEventQueue} backend.
+     *
+     * @param partitionCount how many partitions.
+     * @param lookahead      the minimum delay between an event and any event that it sends to a partition.
+     * @throws IllegalArgumentException if there are no partitions or the lookahead is not positive.
+     */
+
+    public PartitionedSimulation( int partitionCount, long lookahead ) {
+        this( PartitionedSimulation.<T>newQueues( partitionCount ), lookahead );
+
+    }
+
+    /**
+     * Create a simulation with one partition per queue.
+     *
+     * @param queues    the queues (which may already have events queued on them).
+     * @param lookahead the minimum delay between an event and any event that it sends to a partition.
+     * @throws IllegalArgumentException if there are no queues or the lookahead is not positive.
+     */
+
+    public PartitionedSimulation( List<SimpleEventQueue<T>> queues, long lookahead ) {
+        super();
+
+        if ( queues.isEmpty() ) {
+
+            throw new IllegalArgumentException( "a simulation needs at least one partition" );
+
+        }
+
+        if ( lookahead <= 0L ) {
+
+            throw new IllegalArgumentException( "lookahead must be positive (" + lookahead + " is not)" );
+
+        }
+
+        List<Partition<T>> partitions = new ArrayList<Partition<T>>();
+        for ( SimpleEventQueue<T> queue : queues ) {
+
+            partitions.add( new Partition<T>( this, partitions.size(), queue ) );
+
+        }
+
+        _partitions = Collections.unmodifiableList( partitions );
+        _lookahead = lookahead;
+
+    }
+
+    private static <T extends SimpleEvent> List<SimpleEventQueue<T>> newQueues( int partitionCount ) {
+
+        List<SimpleEventQueue<T>> queues = new ArrayList<SimpleEventQueue<T>>();
+        for ( int i = 0; i < partitionCount; i += 1 ) {
+
+            queues.add( new SimpleEventQueue<T>() );
+
+        }
+
+        return queues;
+
+    }
+
+    public Partition<T> getPartition( int partitionIndex ) {
+
+        if ( partitionIndex < 0 || partitionIndex >= _partitions.size() ) {
+
+            throw new IllegalArgumentException(
+                    "no partition " + partitionIndex + " (there are " + _partitions.size() + " partitions)"
+            );
+
+        }
+
+        return _partitions.get( partitionIndex );
+
+    }
+
+    public List<Partition<T>> getPartitions() {
+
+        return _partitions;
+
+    }
+
+    public long getLookahead() {
+
+        return _lookahead;
+
+    }
+
+    /**
+     * Get the number of windows that the simulation has gone through.
+     *
+     * @return the number of windows.
+     */
+
+    public long getWindowCount() {
+
+        return _windowCount;
+
+    }
+
+    /**
+     * Run the simulation until no partition has any events left.
+     * <p/>
+     * Each partition is run on its own thread.  This method returns once they have all finished.
+     *
+     * @throws InterruptedException  if this thread is interrupted while waiting for the partitions to finish.
+     * @throws IllegalStateException if the simulation is already running, if an event was sent to a partition which
+     *                               does not exist or without enough lookahead (see {@link Partition#send}) or if the
+     *                               partitions' threads lost track of each other (because one of them was
+     *                               interrupted).
+     */
+
+    public void run()
+            throws InterruptedException {
+
+        synchronized ( this ) {
+
+            if ( _running ) {
+
+                throw new IllegalStateException( "simulation is already running" );
+
+            }
+
+            _running = true;
+
+        }
+
+        try {
+
+            _done = false;
+            _failure = null;
+            startNextWindow();
+            if ( _done ) {
+
+                return;
+
+            }
+
+            final CyclicBarrier endOfWindow = new CyclicBarrier(
+                    _partitions.size(),
+                    new Runnable() {
+
+                        public void run() {
+
+                            if ( _failure != null ) {
+
+                                _done = true;
+                                return;
+
+                            }
+
+                            deliverMessages();
+                            startNextWindow();
+
+                        }
+
+                    }
+            );
+
+            final boolean[] failed = new boolean[1];
+            List<Thread> threads = new ArrayList<Thread>();
+            for ( final Partition<T> partition : _partitions ) {
+
+                Thread thread = new Thread( "partition " + partition.getIndex() ) {
+
+                    public void run() {
+
+                        try {
+
+                            while ( !_done ) {
+
+                                partition._queue.goThrough( _windowLastTime );
+                                endOfWindow.await();
+
+                            }
+
+                        } catch ( InterruptedException e ) {
+
+                            // The interrupt broke the barrier so the other partitions get a BrokenBarrierException
+                            // (now or once they reach the end of the window).
+
+                            Logger.logErr( "partition " + partition.getIndex() + " interrupted", e );
+                            failed[0] = true;
+
+                        } catch ( BrokenBarrierException e ) {
+
+                            failed[0] = true;
+
+                        }
+
+                    }
+
+                };
+
+                threads.add( thread );
+                thread.start();
+
+            }
+
+            for ( Thread thread : threads ) {
+
+                thread.join();
+
+            }
+
+            if ( failed[0] ) {
+
+                throw new IllegalStateException( "partitions lost track of each other - simulation abandoned" );
+
+            }
+
+            if ( _failure != null ) {
+
+                throw new IllegalStateException( _failure + " - simulation abandoned" );
+
+            }
+
+        } finally {
+
+            _running = false;
+
+        }
+
+    }
+
+    /**
+     * Note that the running simulation must be abandoned at the end of the current window.
+     * Only the first failure is kept.
+     */
+
+    private synchronized void fail( String why ) {
+
+        Logger.logErr( why );
+        if ( _failure == null ) {
+
+            _failure = why;
+
+        }
+
+    }
+
+    /**
+     * Hand the events sent during the window that just ended to their partitions.
+     * Only called while all of the partitions are waiting for each other.
+     */
+
+    private void deliverMessages() {
+
+        for ( Partition<T> sender : _partitions ) {
+
+            for ( Message<T> message : sender._outbox ) {
+
+                message._target._queue.qAfter( message._when, message._event );
+
+            }
+
+            sender._outbox.clear();
+
+        }
+
+    }
+
+    /**
+     * Figure out where the next window starts and ends (or that we are done).
+     * Only called while all of the partitions are waiting for each other.
+     */
+
+    private void startNextWindow() {
+
+        boolean found = false;
+        long earliest = Long.MAX_VALUE;
+        for ( Partition<T> partition : _partitions ) {
+
+            if ( !partition._queue.isEmpty() ) {
+
+                found = true;
+                earliest = Math.min( earliest, partition._queue.getNextEventTime() );
+
+            }
+
+        }
+
+        if ( found ) {
+
+            _windowLastTime = earliest > Long.MAX_VALUE - _lookahead ? Long.MAX_VALUE : earliest + _lookahead - 1L;
+            _windowCount += 1L;
+
+        } else {
+
+            _done = true;
+
+        }
+
+    }
+
+    public String toString() {
+
+        return "PartitionedSimulation( " + _partitions.size() + " partitions, lookahead " + _lookahead + " )";
+
+    }
+
+}
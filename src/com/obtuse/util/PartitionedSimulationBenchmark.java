@@ -0,0 +1,394 @@
+package com.obtuse.util;
+
+import java.util.Arrays;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Run the PHOLD model on a single {@link SimpleEventQueue} and on a {@link PartitionedSimulation} and compare both
+ * the results and the running times.
+ * <p/>
+ * PHOLD spreads a fixed population of events over a number of logical processes.  Each event does a little work and
+ * then sends itself to a (pseudo) randomly chosen logical process at least the lookahead into the future.  The
+ * random choices are derived from the event's identity and time so that they don't depend on the order in which
+ * events run.
+ * <p/>
+ * Finally, make sure that a simulation in which something goes wrong gives up instead of hanging.
+ * <p/>
+ * Usage:  <tt>PartitionedSimulationBenchmark [partitions [population [endTime [work]]]]</tt>
+ */
+
+public class PartitionedSimulationBenchmark {
+
+    private static final long LOOKAHEAD = 100L;
+
+    private static final long MEAN_EXTRA_DELAY = 100L;
+
+    private static final int ROUNDS = 3;
+
+    private static final long SLOW_EVENT_MILLIS = 500L;
+
+    private static final long HANG_MILLIS = 10000L;
+
+    private PartitionedSimulationBenchmark() {
+        super();
+
+    }
+
+    /**
+     * Where a PHOLD event sends itself.
+     */
+
+    private interface Router {
+
+        void send( int fromLp, int toLp, long when, PholdEvent event );
+
+    }
+
+    private static class PholdEvent extends SimpleEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Router _router;
+
+        private final int _id;
+
+        private final int _lpCount;
+
+        private final long _endTime;
+
+        private final int _work;
+
+        private final long[] _lpChecksums;
+
+        private final long[] _lpCounts;
+
+        private int _lp;
+
+        private PholdEvent( Router router, int id, int lp, int lpCount, long endTime, int work, long[] lpChecksums,
+                            long[] lpCounts ) {
+            super( "phold " + id );
+
+            _router = router;
+            _id = id;
+            _lp = lp;
+            _lpCount = lpCount;
+            _endTime = endTime;
+            _work = work;
+            _lpChecksums = lpChecksums;
+            _lpCounts = lpCounts;
+
+        }
+
+        public void run( long when ) {
+
+            long h = PartitionedSimulationBenchmark.mix( (long)_id * 0x9E3779B97F4A7C15L + when );
+            for ( int i = 0; i < _work; i += 1 ) {
+
+                h = PartitionedSimulationBenchmark.mix( h );
+
+            }
+
+            // Only this logical process touches its own totals.
+
+            _lpChecksums[_lp] += h;
+            _lpCounts[_lp] += 1L;
+
+            //noinspection MagicNumber
+            long next = when + PartitionedSimulationBenchmark.LOOKAHEAD +
+                        ( h >>> 1 ) % ( 2L * PartitionedSimulationBenchmark.MEAN_EXTRA_DELAY );
+            if ( next <= _endTime ) {
+
+                int from = _lp;
+                //noinspection MagicNumber
+                _lp = (int)( ( h >>> 33 ) % (long)_lpCount );
+                _router.send( from, _lp, next, this );
+
+            }
+
+        }
+
+    }
+
+    private static enum Probe {
+
+        INTERRUPT,
+
+        SLOW,
+
+        SEND_TOO_SOON
+
+    }
+
+    /**
+     * An event which gets in the way of a simulation (see {@link #checkAbandoned}).
+     */
+
+    private static class ProbeEvent extends SimpleEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Probe _probe;
+
+        private final PartitionedSimulation.Partition<ProbeEvent> _partition;
+
+        private ProbeEvent( Probe probe, PartitionedSimulation.Partition<ProbeEvent> partition ) {
+            super( "probe " + probe );
+
+            _probe = probe;
+            _partition = partition;
+
+        }
+
+        public void run( long when ) {
+
+            if ( _probe == Probe.INTERRUPT ) {
+
+                Thread.currentThread().interrupt();
+
+            } else if ( _probe == Probe.SEND_TOO_SOON ) {
+
+                _partition.send( 1 - _partition.getIndex(), when, new ProbeEvent( Probe.SLOW, _partition ) );
+
+            } else {
+
+                ObtuseUtil.safeSleepMillis( PartitionedSimulationBenchmark.SLOW_EVENT_MILLIS );
+
+            }
+
+        }
+
+    }
+
+    private static void queueProbes( PartitionedSimulation<ProbeEvent> simulation, Probe first, Probe second ) {
+
+        PartitionedSimulation.Partition<ProbeEvent> p0 = simulation.getPartition( 0 );
+        PartitionedSimulation.Partition<ProbeEvent> p1 = simulation.getPartition( 1 );
+        p0.getQueue().qAfter( 0L, new ProbeEvent( first, p0 ) );
+        p1.getQueue().qAfter( 0L, new ProbeEvent( second, p1 ) );
+
+    }
+
+    /**
+     * Make sure that a simulation which runs into trouble throws an {@link IllegalStateException} rather than hanging.
+     */
+
+    private static void checkAbandoned( String what, final PartitionedSimulation<ProbeEvent> simulation )
+            throws InterruptedException {
+
+        final Throwable[] outcome = new Throwable[1];
+        Thread runner = new Thread( "simulation runner" ) {
+
+            public void run() {
+
+                try {
+
+                    simulation.run();
+
+                } catch ( Throwable e ) {
+
+                    outcome[0] = e;
+
+                }
+
+            }
+
+        };
+
+        runner.setDaemon( true );
+        runner.start();
+        runner.join( PartitionedSimulationBenchmark.HANG_MILLIS );
+        if ( runner.isAlive() ) {
+
+            Logger.logErr( what + ":  the simulation is still running after " + PartitionedSimulationBenchmark.HANG_MILLIS + "ms" );
+            System.exit( 1 );
+
+        }
+
+        if ( !( outcome[0] instanceof IllegalStateException ) ) {
+
+            Logger.logErr( what + ":  the simulation ended with " + outcome[0] + " instead of an IllegalStateException" );
+            System.exit( 1 );
+
+        }
+
+        Logger.logMsg( what + ":  " + outcome[0].getMessage() );
+
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+
+    @SuppressWarnings("MagicNumber")
+    private static long mix( long z ) {
+
+        z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+
+        return z ^ ( z >>> 31 );
+
+    }
+
+    private static PholdEvent[] populate( Router router, int lpCount, int population, long endTime, int work,
+                                          long[] lpChecksums, long[] lpCounts ) {
+
+        PholdEvent[] events = new PholdEvent[population];
+        for ( int id = 0; id < population; id += 1 ) {
+
+            events[id] = new PholdEvent( router, id, id % lpCount, lpCount, endTime, work, lpChecksums, lpCounts );
+
+        }
+
+        return events;
+
+    }
+
+    private static long[][] singleQueue( int lpCount, int population, long endTime, int work ) {
+
+        final SimpleEventQueue<PholdEvent> queue = new SimpleEventQueue<PholdEvent>(
+                new CalendarEventQueueBackend<PholdEvent>()
+        );
+        long[] lpChecksums = new long[lpCount];
+        long[] lpCounts = new long[lpCount];
+        Router router = new Router() {
+
+            public void send( int fromLp, int toLp, long when, PholdEvent event ) {
+
+                queue.qAfter( when, event );
+
+            }
+
+        };
+
+        for ( PholdEvent event : PartitionedSimulationBenchmark.populate(
+                router, lpCount, population, endTime, work, lpChecksums, lpCounts
+        ) ) {
+
+            queue.qAfter( (long)event._id % PartitionedSimulationBenchmark.LOOKAHEAD, event );
+
+        }
+
+        Measure m = new Measure( "single queue" );
+        queue.go();
+        m.done();
+
+        return new long[][] { lpChecksums, lpCounts };
+
+    }
+
+    private static long[][] partitioned( int lpCount, int population, long endTime, int work )
+            throws InterruptedException {
+
+        final PartitionedSimulation<PholdEvent> simulation = new PartitionedSimulation<PholdEvent>(
+                Arrays.asList( PartitionedSimulationBenchmark.newQueues( lpCount ) ),
+                PartitionedSimulationBenchmark.LOOKAHEAD
+        );
+        long[] lpChecksums = new long[lpCount];
+        long[] lpCounts = new long[lpCount];
+        Router router = new Router() {
+
+            public void send( int fromLp, int toLp, long when, PholdEvent event ) {
+
+                simulation.getPartition( fromLp ).send( toLp, when, event );
+
+            }
+
+        };
+
+        for ( PholdEvent event : PartitionedSimulationBenchmark.populate(
+                router, lpCount, population, endTime, work, lpChecksums, lpCounts
+        ) ) {
+
+            simulation.getPartition( event._lp ).getQueue().qAfter(
+                    (long)event._id % PartitionedSimulationBenchmark.LOOKAHEAD, event
+            );
+
+        }
+
+        Measure m = new Measure( lpCount + " partitions" );
+        simulation.run();
+        m.done();
+
+        return new long[][] { lpChecksums, lpCounts };
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SimpleEventQueue<PholdEvent>[] newQueues( int count ) {
+
+        SimpleEventQueue<PholdEvent>[] queues = (SimpleEventQueue<PholdEvent>[])new SimpleEventQueue<?>[count];
+        for ( int i = 0; i < count; i += 1 ) {
+
+            queues[i] = new SimpleEventQueue<PholdEvent>( new CalendarEventQueueBackend<PholdEvent>() );
+
+        }
+
+        return queues;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "PartitionedSimulationBenchmark", null );
+
+        int partitions = args.length > 0 ? Integer.parseInt( args[0] ) : Runtime.getRuntime().availableProcessors();
+        int population = args.length > 1 ? Integer.parseInt( args[1] ) : 100000;
+        long endTime = args.length > 2 ? Long.parseLong( args[2] ) : 20000L;
+        int work = args.length > 3 ? Integer.parseInt( args[3] ) : 200;
+
+        Logger.logMsg(
+                "PHOLD with " + population + " events on " + partitions + " logical processes until " + endTime +
+                " (work " + work + ")"
+        );
+
+        try {
+
+            for ( int round = 0; round < PartitionedSimulationBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                long[][] single = PartitionedSimulationBenchmark.singleQueue( partitions, population, endTime, work );
+                long[][] parallel = PartitionedSimulationBenchmark.partitioned( partitions, population, endTime, work );
+                if ( !Arrays.equals( single[0], parallel[0] ) || !Arrays.equals( single[1], parallel[1] ) ) {
+
+                    Logger.logErr( "partitioned results differ from the single queue results" );
+                    System.exit( 1 );
+
+                }
+
+            }
+
+            // One partition is interrupted while the other is still busy.
+
+            PartitionedSimulation<ProbeEvent> interrupted = new PartitionedSimulation<ProbeEvent>( 2, 1L );
+            PartitionedSimulationBenchmark.queueProbes( interrupted, Probe.INTERRUPT, Probe.SLOW );
+            PartitionedSimulationBenchmark.checkAbandoned( "interrupted partition", interrupted );
+
+            // One partition sends an event which would land in the current window.
+
+            PartitionedSimulation<ProbeEvent> tooSoon = new PartitionedSimulation<ProbeEvent>( 2, 10L );
+            PartitionedSimulationBenchmark.queueProbes( tooSoon, Probe.SEND_TOO_SOON, Probe.SLOW );
+            PartitionedSimulationBenchmark.checkAbandoned( "lookahead violation", tooSoon );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
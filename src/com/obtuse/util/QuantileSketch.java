@@ -0,0 +1,309 @@
+package com.obtuse.util;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Estimate quantiles of a stream of values in bounded space.
+ * <p/>
+ * Values are counted in buckets whose boundaries grow geometrically (the same idea as DDSketch) so that every
+ * quantile estimate is within a fixed relative error of a value which really is at that quantile, however big or small
+ * the values are.  Sketches with the same accuracy can be merged exactly, which means that a data set can be split
+ * across threads and the partial sketches combined at the end.
+ * <p/>
+ * Not thread-safe.
+ */
+
+public class QuantileSketch {
+
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    private final double _relativeAccuracy;
+
+    private final double _logGamma;
+
+    private final Buckets _positive;
+
+    private final Buckets _negative;
+
+    private long _zeros = 0L;
+
+    private long _count = 0L;
+
+    /**
+     * Counts indexed by a range of ints which grows as needed.
+     */
+
+    private static class Buckets {
+
+        private long[] _counts = null;
+
+        private int _offset = 0;
+
+        private Buckets() {
+            super();
+
+        }
+
+        private Buckets( Buckets x ) {
+            super();
+
+            _counts = x._counts == null ? null : x._counts.clone();
+            _offset = x._offset;
+
+        }
+
+        private void add( int index, long count ) {
+
+            if ( _counts == null ) {
+
+                //noinspection MagicNumber
+                _counts = new long[64];
+                _offset = index - _counts.length / 2;
+
+            } else if ( index < _offset || index >= _offset + _counts.length ) {
+
+                int low = Math.min( _offset, index );
+                int high = Math.max( _offset + _counts.length, index + 1 );
+                int length = Math.max( high - low, _counts.length * 2 );
+                int newOffset = index < _offset ? high - length : low;
+                long[] counts = new long[length];
+                System.arraycopy( _counts, 0, counts, _offset - newOffset, _counts.length );
+                _counts = counts;
+                _offset = newOffset;
+
+            }
+
+            _counts[index - _offset] += count;
+
+        }
+
+        private void addAll( Buckets x ) {
+
+            if ( x._counts != null ) {
+
+                for ( int i = 0; i < x._counts.length; i += 1 ) {
+
+                    if ( x._counts[i] != 0L ) {
+
+                        add( x._offset + i, x._counts[i] );
+
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Create a sketch with the default accuracy.
+     */
+
+    public QuantileSketch() {
+
+        this( QuantileSketch.DEFAULT_RELATIVE_ACCURACY );
+
+    }
+
+    /**
+     * Create a sketch.
+     *
+     * @param relativeAccuracy how close estimates must be (0.01 means within 1%).
+     * @throws IllegalArgumentException if the accuracy isn't between 0 and 1.
+     */
+
+    public QuantileSketch( double relativeAccuracy ) {
+        super();
+
+        if ( !( relativeAccuracy > 0.0 && relativeAccuracy < 1.0 ) ) {
+
+            throw new IllegalArgumentException( "relative accuracy " + relativeAccuracy + " is not between 0 and 1" );
+
+        }
+
+        _relativeAccuracy = relativeAccuracy;
+        _logGamma = Math.log( ( 1.0 + relativeAccuracy ) / ( 1.0 - relativeAccuracy ) );
+        _positive = new Buckets();
+        _negative = new Buckets();
+
+    }
+
+    /**
+     * Make a copy of a sketch.
+     *
+     * @param x the sketch to be copied.
+     */
+
+    public QuantileSketch( QuantileSketch x ) {
+        super();
+
+        _relativeAccuracy = x._relativeAccuracy;
+        _logGamma = x._logGamma;
+        _positive = new Buckets( x._positive );
+        _negative = new Buckets( x._negative );
+        _zeros = x._zeros;
+        _count = x._count;
+
+    }
+
+    /**
+     * Count a value.
+     * Values which are too close to zero to take a logarithm of count as zero.  NaNs are ignored.
+     *
+     * @param v the value.
+     */
+
+    public void add( double v ) {
+
+        if ( Double.isNaN( v ) ) {
+
+            return;
+
+        }
+
+        if ( v >= Double.MIN_NORMAL ) {
+
+            _positive.add( index( v ), 1L );
+
+        } else if ( v <= -Double.MIN_NORMAL ) {
+
+            _negative.add( index( -v ), 1L );
+
+        } else {
+
+            _zeros += 1L;
+
+        }
+
+        _count += 1L;
+
+    }
+
+    /**
+     * Add everything counted by another sketch to this one.
+     *
+     * @param x the other sketch.
+     * @throws IllegalArgumentException if the other sketch has a different accuracy.
+     */
+
+    public void merge( QuantileSketch x ) {
+
+        if ( x._relativeAccuracy != _relativeAccuracy ) {
+
+            throw new IllegalArgumentException(
+                    "cannot merge a sketch with accuracy " + x._relativeAccuracy + " into one with accuracy " +
+                    _relativeAccuracy
+            );
+
+        }
+
+        _positive.addAll( x._positive );
+        _negative.addAll( x._negative );
+        _zeros += x._zeros;
+        _count += x._count;
+
+    }
+
+    /**
+     * Estimate a quantile.
+     *
+     * @param q the quantile (0 is the smallest value, 0.5 the median and 1 the largest value).
+     * @return the estimate (NaN if nothing has been counted).
+     */
+
+    public double quantile( double q ) {
+
+        if ( _count == 0L ) {
+
+            return Double.NaN;
+
+        }
+
+        long rank = (long)( Math.max( 0.0, Math.min( 1.0, q ) ) * (double)( _count - 1L ) );
+        long seen = 0L;
+
+        // The negative values, most negative first.
+
+        if ( _negative._counts != null ) {
+
+            for ( int i = _negative._counts.length - 1; i >= 0; i -= 1 ) {
+
+                seen += _negative._counts[i];
+                if ( seen > rank ) {
+
+                    return -value( _negative._offset + i );
+
+                }
+
+            }
+
+        }
+
+        seen += _zeros;
+        if ( seen > rank ) {
+
+            return 0.0;
+
+        }
+
+        if ( _positive._counts != null ) {
+
+            for ( int i = 0; i < _positive._counts.length; i += 1 ) {
+
+                seen += _positive._counts[i];
+                if ( seen > rank ) {
+
+                    return value( _positive._offset + i );
+
+                }
+
+            }
+
+        }
+
+        // Only reachable if the counts are inconsistent.
+
+        return Double.NaN;
+
+    }
+
+    private int index( double v ) {
+
+        return (int)Math.ceil( Math.log( v ) / _logGamma );
+
+    }
+
+    /**
+     * Get the value which represents a bucket (it is within the relative accuracy of everything in the bucket).
+     */
+
+    private double value( int index ) {
+
+        return 2.0 * Math.exp( (double)index * _logGamma ) / ( 1.0 + Math.exp( _logGamma ) );
+
+    }
+
+    public double getRelativeAccuracy() {
+
+        return _relativeAccuracy;
+
+    }
+
+    public long getCount() {
+
+        return _count;
+
+    }
+
+    public String toString() {
+
+        //noinspection MagicNumber
+        return "QuantileSketch( n = " + _count + ( _count > 0L ? ", median = " + quantile( 0.5 ) : "" ) + " )";
+
+    }
+
+}
@@ -0,0 +1,442 @@
+package com.obtuse.util;
+
+import java.io.*;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * An output stream which writes to a file that is rotated once it gets too big or too old.
+ * <p/>
+ * Rotation renames the current file to <tt><i>name</i>.<i>yyyy-MM-dd_HH.mm.ss.SSS</i></tt> (the time of the
+ * rotation) and starts a new file under the original name.  Renaming and opening a file are quick so rotation happens
+ * on the writing thread.  Compressing the rotated segment with gzip (to <tt><i>segment</i>.gz</tt>) and deleting old
+ * segments beyond the retention limit happen later on a shared background thread.  Segments which were rotated but
+ * never compressed (because the JVM exited first) are picked up the next time anything is compressed.
+ * <p/>
+ * Rotation only happens when {@link #rotateIfDue} or {@link #rotate} is called so that the owner can make sure that
+ * lines (or whatever the owner's unit of output is) are never split across segments.
+ */
+
+public class RotatingFileOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String SEGMENT_SUFFIX = ".gz";
+
+    /**
+     * What follows the file's name in a segment's name:  when it was rotated and, if more than one segment was rotated
+     * within the same millisecond, a collision count.
+     */
+
+    private static final Pattern SEGMENT_TIMESTAMP = Pattern.compile(
+            "(\\d{4}-\\d\\d-\\d\\d_\\d\\d\\.\\d\\d\\.\\d\\d\\.\\d{3})(?:-(\\d+))?"
+    );
+
+    private static ExecutorService s_compressor = null;
+
+    private final File _file;
+
+    private final long _maxBytes;
+
+    private final long _maxAgeMillis;
+
+    private final int _retainedSegments;
+
+    private final DateFormat _segmentNameFormat = new SimpleDateFormat( "yyyy-MM-dd_HH.mm.ss.SSS" );
+
+    private OutputStream _out;
+
+    private long _size;
+
+    private long _openedAt;
+
+    /**
+     * Open a rotating file.
+     * Anything already in the file is kept (and counts towards its size).
+     *
+     * @param file             the file.
+     * @param maxBytes         rotate once the file holds at least this many bytes (0 if size doesn't matter).
+     * @param maxAgeMillis     rotate once the file has been open for this many milliseconds (0 if age doesn't matter).
+     * @param retainedSegments how many compressed segments to keep (0 to keep them all).
+     * @throws FileNotFoundException if the file cannot be opened.
+     * @throws IllegalArgumentException if any of the limits are negative.
+     */
+
+    public RotatingFileOutputStream( File file, long maxBytes, long maxAgeMillis, int retainedSegments )
+            throws FileNotFoundException {
+        super();
+
+        if ( maxBytes < 0L || maxAgeMillis < 0L || retainedSegments < 0 ) {
+
+            throw new IllegalArgumentException(
+                    "rotation limits must not be negative (maxBytes " + maxBytes + ", maxAgeMillis " + maxAgeMillis +
+                    ", retainedSegments " + retainedSegments + ")"
+            );
+
+        }
+
+        _file = file.getAbsoluteFile();
+        _maxBytes = maxBytes;
+        _maxAgeMillis = maxAgeMillis;
+        _retainedSegments = retainedSegments;
+
+        open();
+
+    }
+
+    private void open()
+            throws FileNotFoundException {
+
+        _out = new BufferedOutputStream(
+                new FileOutputStream( _file, true ), RotatingFileOutputStream.BUFFER_SIZE
+        );
+        _size = _file.length();
+        _openedAt = System.currentTimeMillis();
+
+    }
+
+    public synchronized void write( int b )
+            throws IOException {
+
+        _out.write( b );
+        _size += 1L;
+
+    }
+
+    public synchronized void write( byte[] b, int off, int len )
+            throws IOException {
+
+        _out.write( b, off, len );
+        _size += (long)len;
+
+    }
+
+    public synchronized void flush()
+            throws IOException {
+
+        _out.flush();
+
+    }
+
+    public synchronized void close()
+            throws IOException {
+
+        _out.close();
+
+    }
+
+    /**
+     * Rotate the file if it has got too big or too old.
+     * Cheap enough to call after every line.
+     *
+     * @return true if the file was rotated.
+     * @throws IOException if the file had to be rotated and something went wrong.
+     */
+
+    public synchronized boolean rotateIfDue()
+            throws IOException {
+
+        if ( _maxBytes > 0L && _size >= _maxBytes ||
+             _maxAgeMillis > 0L && System.currentTimeMillis() - _openedAt >= _maxAgeMillis ) {
+
+            rotate();
+
+            return true;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Rotate the file now (unless it is empty).
+     *
+     * @throws IOException if the file could not be renamed or the new file could not be opened.
+     */
+
+    public synchronized void rotate()
+            throws IOException {
+
+        _out.close();
+
+        if ( _file.length() > 0L ) {
+
+            String segmentName = _file.getName() + "." + _segmentNameFormat.format( new Date() );
+            File segment = new File( _file.getParentFile(), segmentName );
+            int collisions = 0;
+            while ( segment.exists() || new File( segment.getPath() + RotatingFileOutputStream.SEGMENT_SUFFIX ).exists() ) {
+
+                collisions += 1;
+                segment = new File( _file.getParentFile(), segmentName + "-" + collisions );
+
+            }
+
+            if ( !_file.renameTo( segment ) ) {
+
+                // Carry on with the old file rather than losing output.
+
+                open();
+                throw new IOException( "unable to rename \"" + _file + "\" to \"" + segment + "\"" );
+
+            }
+
+            RotatingFileOutputStream.compressLater( _file, _retainedSegments );
+
+        }
+
+        open();
+
+    }
+
+    public File getFile() {
+
+        return _file;
+
+    }
+
+    private static synchronized void compressLater( final File file, final int retainedSegments ) {
+
+        if ( RotatingFileOutputStream.s_compressor == null ) {
+
+            RotatingFileOutputStream.s_compressor = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+
+                        public Thread newThread( Runnable runnable ) {
+
+                            Thread thread = new Thread( runnable, "log segment compressor" );
+                            thread.setDaemon( true );
+                            thread.setPriority( Thread.MIN_PRIORITY );
+
+                            return thread;
+
+                        }
+
+                    }
+            );
+
+        }
+
+        RotatingFileOutputStream.s_compressor.execute(
+                new Runnable() {
+
+                    public void run() {
+
+                        RotatingFileOutputStream.compressSegments( file, retainedSegments );
+
+                    }
+
+                }
+        );
+
+    }
+
+    /**
+     * Compress any uncompressed segments of a file and delete the oldest compressed segments beyond the retention
+     * limit.
+     * Only ever runs on the compressor thread.
+     */
+
+    private static void compressSegments( File file, int retainedSegments ) {
+
+        String prefix = file.getName() + ".";
+        File[] candidates = file.getParentFile().listFiles();
+        if ( candidates == null ) {
+
+            return;
+
+        }
+
+        List<File> compressed = new ArrayList<File>();
+        for ( File candidate : candidates ) {
+
+            String name = candidate.getName();
+            if ( !name.startsWith( prefix ) ) {
+
+                continue;
+
+            }
+
+            String rest = name.substring( prefix.length() );
+            if ( rest.endsWith( RotatingFileOutputStream.SEGMENT_SUFFIX ) ) {
+
+                if ( RotatingFileOutputStream.SEGMENT_TIMESTAMP.matcher(
+                        rest.substring( 0, rest.length() - RotatingFileOutputStream.SEGMENT_SUFFIX.length() )
+                ).matches() ) {
+
+                    compressed.add( candidate );
+
+                }
+
+            } else if ( RotatingFileOutputStream.SEGMENT_TIMESTAMP.matcher( rest ).matches() ) {
+
+                File target = RotatingFileOutputStream.compress( candidate );
+                if ( target != null ) {
+
+                    compressed.add( target );
+
+                }
+
+            }
+
+        }
+
+        if ( retainedSegments > 0 ) {
+
+            // Oldest first.  The names themselves don't sort that way since a collision count ('-') sorts before the
+            // suffix ('.').
+
+            final int prefixLength = prefix.length();
+            Collections.sort(
+                    compressed,
+                    new Comparator<File>() {
+
+                        public int compare( File lhs, File rhs ) {
+
+                            Matcher lhsMatcher = RotatingFileOutputStream.matchSegment( lhs, prefixLength );
+                            Matcher rhsMatcher = RotatingFileOutputStream.matchSegment( rhs, prefixLength );
+                            int rval = lhsMatcher.group( 1 ).compareTo( rhsMatcher.group( 1 ) );
+                            if ( rval == 0 ) {
+
+                                long lhsCollisions = RotatingFileOutputStream.collisions( lhsMatcher );
+                                long rhsCollisions = RotatingFileOutputStream.collisions( rhsMatcher );
+                                rval = lhsCollisions < rhsCollisions ? -1 : lhsCollisions == rhsCollisions ? 0 : 1;
+
+                            }
+
+                            return rval;
+
+                        }
+
+                    }
+            );
+
+            for ( int i = 0; i < compressed.size() - retainedSegments; i += 1 ) {
+
+                if ( !compressed.get( i ).delete() ) {
+
+                    Trace.event( "unable to delete old log segment \"" + compressed.get( i ) + "\"" );
+
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Match the part of a compressed segment's name which says when it was rotated.
+     */
+
+    private static Matcher matchSegment( File segment, int prefixLength ) {
+
+        String name = segment.getName();
+        Matcher matcher = RotatingFileOutputStream.SEGMENT_TIMESTAMP.matcher(
+                name.substring( prefixLength, name.length() - RotatingFileOutputStream.SEGMENT_SUFFIX.length() )
+        );
+        if ( !matcher.matches() ) {
+
+            throw new IllegalArgumentException( "\"" + segment + "\" is not a log segment" );
+
+        }
+
+        return matcher;
+
+    }
+
+    private static long collisions( Matcher matcher ) {
+
+        return matcher.group( 2 ) == null ? 0L : Long.parseLong( matcher.group( 2 ) );
+
+    }
+
+    /**
+     * Compress a segment.
+     *
+     * @return the compressed segment or null if something went wrong (the uncompressed segment is left alone).
+     */
+
+    private static File compress( File segment ) {
+
+        File target = new File( segment.getPath() + RotatingFileOutputStream.SEGMENT_SUFFIX );
+        File partial = new File( target.getPath() + ".tmp" );
+        try {
+
+            InputStream in = new FileInputStream( segment );
+            try {
+
+                OutputStream out = new GZIPOutputStream(
+                        new FileOutputStream( partial ), RotatingFileOutputStream.BUFFER_SIZE
+                );
+                try {
+
+                    byte[] buffer = new byte[RotatingFileOutputStream.BUFFER_SIZE];
+                    int count;
+                    while ( ( count = in.read( buffer ) ) > 0 ) {
+
+                        out.write( buffer, 0, count );
+
+                    }
+
+                } finally {
+
+                    out.close();
+
+                }
+
+            } finally {
+
+                in.close();
+
+            }
+
+            if ( !partial.renameTo( target ) ) {
+
+                throw new IOException( "unable to rename \"" + partial + "\" to \"" + target + "\"" );
+
+            }
+
+            if ( !segment.delete() ) {
+
+                Trace.event( "unable to delete compressed log segment \"" + segment + "\"" );
+
+            }
+
+            return target;
+
+        } catch ( IOException e ) {
+
+            Trace.event( "unable to compress log segment \"" + segment + "\"", e );
+
+            //noinspection ResultOfMethodCallIgnored
+            partial.delete();
+
+            return null;
+
+        }
+
+    }
+
+    public String toString() {
+
+        return "RotatingFileOutputStream( " + _file + ", " + _size + " bytes )";
+
+    }
+
+}
@@ -0,0 +1,522 @@
+package com.obtuse.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * A sampling profiler which periodically snapshots every thread's stack and counts how often each distinct stack
+ * turns up.
+ * <p/>
+ * Sampling happens on a daemon thread at a fixed rate using the same {@link ThreadMXBean} that {@link Trace} uses
+ * for its reports, so it needs no agents or external tools.  The results are available as
+ * <ul>
+ * <li>collapsed stacks (see {@link #getCollapsedStacks}) - one line per distinct stack in the form
+ * <tt>outermost;...;innermost count</tt> which is what flame graph tools expect.</li>
+ * <li>hot methods (see {@link #getHotMethods}) - the methods which were most often at the top of a stack.</li>
+ * </ul>
+ * Since a profiler is also a {@link TraceHook}, its report can go into trace reports (see {@link Trace#startProfiler}).
+ * <p/>
+ * By default only threads which are {@link Thread.State#RUNNABLE} are counted so that idle threads don't drown out the
+ * busy ones.  Note that a thread which is blocked in native I/O still looks runnable to the JVM.
+ * <p/>
+ * Like any profiler built on {@link ThreadMXBean}, this one can only see a thread's stack when the thread reaches a
+ * safepoint.  Compiled code often has no safepoints inside tight loops, so time spent in them tends to be blamed on
+ * the caller.
+ */
+
+public class SamplingProfiler implements TraceHook {
+
+    public static final int DEFAULT_SAMPLES_PER_SECOND = 100;
+
+    public static final int DEFAULT_MAX_DEPTH = 64;
+
+    /**
+     * Samples of stacks beyond this many distinct ones are counted as {@link #OVERFLOW_STACK}.
+     */
+
+    public static final int MAX_DISTINCT_STACKS = 20000;
+
+    public static final String OVERFLOW_STACK = "[too many distinct stacks]";
+
+    private static final int HOT_METHODS_IN_REPORT = 20;
+
+    private final long _intervalNanos;
+
+    private final int _maxDepth;
+
+    private final boolean _runnableOnly;
+
+    private final Map<StackKey, long[]> _counts = new HashMap<StackKey, long[]>();
+
+    private long _overflowSamples = 0L;
+
+    private long _rounds = 0L;
+
+    private long _stackSamples = 0L;
+
+    private long _samplingNanos = 0L;
+
+    private long _startedAt = 0L;
+
+    private Thread _sampler = null;
+
+    private volatile boolean _stopping = false;
+
+    /**
+     * A sampled stack with a cached hash code.
+     */
+
+    private static class StackKey {
+
+        private final StackTraceElement[] _frames;
+
+        private final int _hashCode;
+
+        private StackKey( StackTraceElement[] frames ) {
+            super();
+
+            _frames = frames;
+            _hashCode = Arrays.hashCode( frames );
+
+        }
+
+        public int hashCode() {
+
+            return _hashCode;
+
+        }
+
+        public boolean equals( Object rhs ) {
+
+            return rhs instanceof StackKey &&
+                   _hashCode == ( (StackKey)rhs )._hashCode &&
+                   Arrays.equals( _frames, ( (StackKey)rhs )._frames );
+
+        }
+
+        public String toString() {
+
+            return "StackKey( " + _frames.length + " frames )";
+
+        }
+
+    }
+
+    /**
+     * Create a profiler which samples runnable threads at the default rate and depth.
+     */
+
+    public SamplingProfiler() {
+
+        this( SamplingProfiler.DEFAULT_SAMPLES_PER_SECOND, SamplingProfiler.DEFAULT_MAX_DEPTH, true );
+
+    }
+
+    /**
+     * Create a profiler.
+     * Nothing is sampled until {@link #start} is called.
+     *
+     * @param samplesPerSecond how often to sample.
+     * @param maxDepth         how many of the innermost frames of each stack to keep.
+     * @param runnableOnly     true if only runnable threads should be counted.
+     * @throws IllegalArgumentException if the rate or depth isn't positive.
+     */
+
+    public SamplingProfiler( int samplesPerSecond, int maxDepth, boolean runnableOnly ) {
+        super();
+
+        if ( samplesPerSecond <= 0 || maxDepth <= 0 ) {
+
+            throw new IllegalArgumentException(
+                    "samplesPerSecond (" + samplesPerSecond + ") and maxDepth (" + maxDepth + ") must be positive"
+            );
+
+        }
+
+        //noinspection MagicNumber
+        _intervalNanos = 1000000000L / (long)samplesPerSecond;
+        _maxDepth = maxDepth;
+        _runnableOnly = runnableOnly;
+
+    }
+
+    /**
+     * Start sampling on a daemon thread (does nothing if the profiler is already running).
+     */
+
+    public synchronized void start() {
+
+        if ( _sampler != null ) {
+
+            return;
+
+        }
+
+        _stopping = false;
+        if ( _startedAt == 0L ) {
+
+            _startedAt = System.currentTimeMillis();
+
+        }
+
+        //noinspection RefusedBequest,ClassWithoutToString
+        _sampler = new Thread( "sampling profiler" ) {
+
+            public void run() {
+
+                SamplingProfiler.this.sampleUntilStopped();
+
+            }
+
+        };
+        _sampler.setDaemon( true );
+        _sampler.setPriority( Thread.MAX_PRIORITY );
+        _sampler.start();
+
+    }
+
+    /**
+     * Stop sampling and wait for the sampling thread to finish.
+     * What has been collected so far is kept (see {@link #reset}).
+     */
+
+    public void stop() {
+
+        Thread sampler;
+        synchronized ( this ) {
+
+            sampler = _sampler;
+            _sampler = null;
+            _stopping = true;
+
+        }
+
+        if ( sampler != null ) {
+
+            sampler.interrupt();
+            try {
+
+                sampler.join();
+
+            } catch ( InterruptedException e ) {
+
+                Thread.currentThread().interrupt();
+
+            }
+
+        }
+
+    }
+
+    public synchronized boolean isRunning() {
+
+        return _sampler != null;
+
+    }
+
+    /**
+     * Forget everything that has been collected.
+     */
+
+    public synchronized void reset() {
+
+        _counts.clear();
+        _overflowSamples = 0L;
+        _rounds = 0L;
+        _stackSamples = 0L;
+        _samplingNanos = 0L;
+        _startedAt = _sampler == null ? 0L : System.currentTimeMillis();
+
+    }
+
+    private void sampleUntilStopped() {
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        long nextSample = System.nanoTime();
+        while ( !_stopping ) {
+
+            long start = System.nanoTime();
+            ThreadInfo[] infos = bean.getThreadInfo( bean.getAllThreadIds(), _maxDepth );
+            record( infos, self, System.nanoTime() - start );
+
+            // Keep to the schedule (skipping samples if we've fallen behind) rather than drifting.
+
+            nextSample += _intervalNanos;
+            long now = System.nanoTime();
+            if ( nextSample < now ) {
+
+                nextSample = now + _intervalNanos - ( now - nextSample ) % _intervalNanos;
+
+            }
+
+            try {
+
+                //noinspection MagicNumber
+                long sleepNanos = nextSample - now;
+                Thread.sleep( sleepNanos / 1000000L, (int)( sleepNanos % 1000000L ) );
+
+            } catch ( InterruptedException e ) {
+
+                // We've probably been stopped.
+
+            }
+
+        }
+
+    }
+
+    private synchronized void record( ThreadInfo[] infos, long self, long nanos ) {
+
+        _rounds += 1L;
+        _samplingNanos += nanos;
+        for ( ThreadInfo info : infos ) {
+
+            if ( info == null || info.getThreadId() == self ) {
+
+                continue;
+
+            }
+
+            if ( _runnableOnly && info.getThreadState() != Thread.State.RUNNABLE ) {
+
+                continue;
+
+            }
+
+            StackTraceElement[] frames = info.getStackTrace();
+            if ( frames.length == 0 ) {
+
+                continue;
+
+            }
+
+            _stackSamples += 1L;
+            StackKey key = new StackKey( frames );
+            long[] count = _counts.get( key );
+            if ( count == null ) {
+
+                if ( _counts.size() >= SamplingProfiler.MAX_DISTINCT_STACKS ) {
+
+                    _overflowSamples += 1L;
+                    continue;
+
+                }
+
+                count = new long[1];
+                _counts.put( key, count );
+
+            }
+
+            count[0] += 1L;
+
+        }
+
+    }
+
+    /**
+     * Get how many times every thread has been sampled.
+     */
+
+    public synchronized long getRounds() {
+
+        return _rounds;
+
+    }
+
+    /**
+     * Get how many stacks have been counted.
+     */
+
+    public synchronized long getStackSamples() {
+
+        return _stackSamples;
+
+    }
+
+    /**
+     * Get how long sampling has taken on average (in nanoseconds per round).
+     */
+
+    public synchronized long getMeanSamplingNanos() {
+
+        return _rounds == 0L ? 0L : _samplingNanos / _rounds;
+
+    }
+
+    /**
+     * Get the collected stacks in flame graph tools' collapsed format, most common first.
+     *
+     * @return one line per distinct stack, <tt>outermost;...;innermost count</tt>.
+     */
+
+    public List<String> getCollapsedStacks() {
+
+        Map<String, Long> collapsed = new HashMap<String, Long>();
+        long overflow;
+        synchronized ( this ) {
+
+            // Stacks which differ only in line numbers collapse into one.
+
+            for ( Map.Entry<StackKey, long[]> entry : _counts.entrySet() ) {
+
+                StackTraceElement[] frames = entry.getKey()._frames;
+                StringBuilder sb = new StringBuilder();
+                for ( int i = frames.length - 1; i >= 0; i -= 1 ) {
+
+                    sb.append( frames[i].getClassName() ).append( '.' ).append( frames[i].getMethodName() );
+                    if ( i > 0 ) {
+
+                        sb.append( ';' );
+
+                    }
+
+                }
+
+                String stack = sb.toString();
+                Long count = collapsed.get( stack );
+                collapsed.put( stack, ( count == null ? 0L : count ) + entry.getValue()[0] );
+
+            }
+
+            overflow = _overflowSamples;
+
+        }
+
+        if ( overflow > 0L ) {
+
+            collapsed.put( SamplingProfiler.OVERFLOW_STACK, overflow );
+
+        }
+
+        return SamplingProfiler.sortByCount( collapsed, Integer.MAX_VALUE );
+
+    }
+
+    /**
+     * Get the methods which were most often running (i.e. at the top of a stack), most often first.
+     *
+     * @param limit how many methods to list.
+     * @return one line per method, giving its count, its share of the samples and its name.
+     */
+
+    public List<String> getHotMethods( int limit ) {
+
+        Map<String, Long> self = new HashMap<String, Long>();
+        long total;
+        synchronized ( this ) {
+
+            for ( Map.Entry<StackKey, long[]> entry : _counts.entrySet() ) {
+
+                StackTraceElement top = entry.getKey()._frames[0];
+                String method = top.getClassName() + "." + top.getMethodName();
+                Long count = self.get( method );
+                self.put( method, ( count == null ? 0L : count ) + entry.getValue()[0] );
+
+            }
+
+            total = _stackSamples;
+
+        }
+
+        List<String> results = new ArrayList<String>();
+        for ( String line : SamplingProfiler.sortByCount( self, limit ) ) {
+
+            int ix = line.lastIndexOf( ' ' );
+            long count = Long.parseLong( line.substring( ix + 1 ) );
+            //noinspection MagicNumber
+            results.add(
+                    String.format( "%10d %6.2f%%  %s", count, 100.0 * (double)count / (double)total, line.substring( 0, ix ) )
+            );
+
+        }
+
+        return results;
+
+    }
+
+    private static List<String> sortByCount( Map<String, Long> counts, int limit ) {
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>( counts.entrySet() );
+        Collections.sort(
+                entries,
+                new Comparator<Map.Entry<String, Long>>() {
+
+                    public int compare( Map.Entry<String, Long> lhs, Map.Entry<String, Long> rhs ) {
+
+                        int rval = rhs.getValue().compareTo( lhs.getValue() );
+
+                        return rval == 0 ? lhs.getKey().compareTo( rhs.getKey() ) : rval;
+
+                    }
+
+                }
+        );
+
+        List<String> results = new ArrayList<String>();
+        for ( Map.Entry<String, Long> entry : entries ) {
+
+            if ( results.size() >= limit ) {
+
+                break;
+
+            }
+
+            results.add( entry.getKey() + " " + entry.getValue() );
+
+        }
+
+        return results;
+
+    }
+
+    /**
+     * Describe what has been collected:  a summary, the hot methods and then the collapsed stacks.
+     */
+
+    public List<String> run() {
+
+        List<String> results = new ArrayList<String>();
+        long startedAt;
+        synchronized ( this ) {
+
+            startedAt = _startedAt;
+
+        }
+
+        results.add(
+                "sampling profile:  " + getRounds() + " rounds since " +
+                ( startedAt == 0L ? "never" : Trace.TIMESTAMP_FORMAT.format( startedAt ) ) + ", " +
+                getStackSamples() + " stacks counted, " + getMeanSamplingNanos() / 1000L + "us per round" +
+                ( isRunning() ? "" : " (stopped)" )
+        );
+        results.add( "" );
+        results.add( "hot methods:" );
+        results.addAll( getHotMethods( SamplingProfiler.HOT_METHODS_IN_REPORT ) );
+        results.add( "" );
+        results.add( "collapsed stacks:" );
+        results.addAll( getCollapsedStacks() );
+
+        return results;
+
+    }
+
+    public String getDescription() {
+
+        return "sampling profiler";
+
+    }
+
+    public String toString() {
+
+        return "SamplingProfiler( every " + _intervalNanos + "ns, depth " + _maxDepth + " )";
+
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.obtuse.util;
+
+import java.util.List;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Run a workload which spends about three times as long in one method as in another with and without the
+ * {@link SamplingProfiler} to see how much the profiler slows things down, and make sure that the profile puts the
+ * blame in roughly the right places and turns up in trace reports.
+ * <p/>
+ * Usage:  <tt>SamplingProfilerBenchmark [samplesPerSecond [slices]]</tt>
+ */
+
+public class SamplingProfilerBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final int SLICE_ITERATIONS = 20000;
+
+    private static double s_sink = 0.0;
+
+    private static volatile int s_stride = 1;
+
+    /**
+     * Some work.
+     * <p/>
+     * The workload calls its parts through this interface from a single call site with three different implementations
+     * so that the JIT compiler can't inline them into their caller (which would leave the profiler unable to tell them
+     * apart).
+     */
+
+    private interface Part {
+
+        void run();
+
+    }
+
+    private static final Part[] PARTS = {
+            new Part() {
+
+                public void run() {
+
+                    SamplingProfilerBenchmark.hotMethod();
+
+                }
+
+            },
+            new Part() {
+
+                public void run() {
+
+                    SamplingProfilerBenchmark.warmMethod();
+
+                }
+
+            },
+            new Part() {
+
+                public void run() {
+
+                    SamplingProfilerBenchmark.s_sink += 1.0;
+
+                }
+
+            },
+    };
+
+    private SamplingProfilerBenchmark() {
+        super();
+
+    }
+
+    private static void burn( int iterations ) {
+
+        double x = SamplingProfilerBenchmark.s_sink;
+        // The stride is volatile so that the compiler can't turn this into a counted loop, which wouldn't have a
+        // safepoint (where the profiler gets to see the stack) inside it.
+
+        for ( int i = 0; i < iterations; i += SamplingProfilerBenchmark.s_stride ) {
+
+            x = Math.sqrt( x + (double)i );
+
+        }
+
+        SamplingProfilerBenchmark.s_sink = x;
+
+    }
+
+    private static void hotMethod() {
+
+        SamplingProfilerBenchmark.burn( SamplingProfilerBenchmark.SLICE_ITERATIONS * 3 );
+
+    }
+
+    private static void warmMethod() {
+
+        SamplingProfilerBenchmark.burn( SamplingProfilerBenchmark.SLICE_ITERATIONS );
+
+    }
+
+    /**
+     * Do a fixed amount of work and see how long it takes.
+     */
+
+    private static void work( String name, int slices ) {
+
+        Measure m = new Measure( name );
+        for ( int i = 0; i < slices; i += 1 ) {
+
+            for ( Part part : SamplingProfilerBenchmark.PARTS ) {
+
+                part.run();
+
+            }
+
+        }
+
+        m.done();
+
+    }
+
+    private static long countFor( List<String> collapsed, String method ) {
+
+        long count = 0L;
+        for ( String line : collapsed ) {
+
+            int ix = line.lastIndexOf( ' ' );
+            String stack = line.substring( 0, ix ) + ";";
+            if ( stack.contains( "SamplingProfilerBenchmark." + method + ";" ) ) {
+
+                count += Long.parseLong( line.substring( ix + 1 ) );
+
+            }
+
+        }
+
+        return count;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "SamplingProfilerBenchmark", null );
+
+        int samplesPerSecond = args.length > 0 ? Integer.parseInt( args[0] ) : SamplingProfiler.DEFAULT_SAMPLES_PER_SECOND;
+        int slices = args.length > 1 ? Integer.parseInt( args[1] ) : 3000;
+
+        Logger.logMsg( "sampling at " + samplesPerSecond + " Hz" );
+
+        SamplingProfiler profiler = null;
+        for ( int round = 0; round < SamplingProfilerBenchmark.ROUNDS; round += 1 ) {
+
+            if ( round == 1 ) {
+
+                // The first round just warms things up.
+
+                Measure.restart();
+
+            }
+
+            SamplingProfilerBenchmark.work( "not profiled", slices );
+
+            profiler = Trace.startProfiler( samplesPerSecond );
+            SamplingProfilerBenchmark.work( "profiled", slices );
+            Trace.stopProfiler();
+
+        }
+
+        List<String> collapsed = profiler.getCollapsedStacks();
+        long hot = SamplingProfilerBenchmark.countFor( collapsed, "hotMethod" );
+        long warm = SamplingProfilerBenchmark.countFor( collapsed, "warmMethod" );
+        Logger.logMsg(
+                profiler.getRounds() + " rounds, " + profiler.getMeanSamplingNanos() / 1000L + "us per round, " +
+                "hotMethod " + hot + " samples, warmMethod " + warm + " samples"
+        );
+        for ( String line : profiler.getHotMethods( 5 ) ) {
+
+            Logger.logMsg( line );
+
+        }
+
+        //noinspection MagicNumber
+        double ratio = (double)hot / (double)Math.max( 1L, warm );
+        //noinspection MagicNumber
+        if ( ratio < 2.0 || ratio > 4.5 ) {
+
+            Logger.logErr( "hotMethod should have about three times as many samples as warmMethod" );
+            System.exit( 1 );
+
+        }
+
+        // The report goes into trace reports while the profiler is running.
+
+        profiler = Trace.startProfiler( samplesPerSecond );
+        SamplingProfilerBenchmark.work( "final", slices / 4 );
+        boolean found = false;
+        for ( String line : Trace.getTrace( "benchmark", "nowhere" ) ) {
+
+            found |= line.startsWith( "sampling profile:" );
+
+        }
+
+        Trace.stopProfiler();
+        if ( !found || profiler.isRunning() ) {
+
+            Logger.logErr( "the profile didn't turn up in the trace report or the profiler didn't stop" );
+            System.exit( 1 );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -1,14 +1,21 @@
 package com.obtuse.util;
 
+import java.io.Serializable;
+
 /**
  * A clock event.
  * <p/>
  * See the {@link SimpleEventQueue} class for more information.
  * <p/>
+ * Events are serializable so that a queue's pending events can be checkpointed (see
+ * {@link SimpleEventQueue#checkpoint}).  Events which are never checkpointed need not worry about this.
+ * <p/>
  * Copyright © 2011 Obtuse Systems Corporation
  */
 
-public abstract class SimpleEvent {
+public abstract class SimpleEvent implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final String _description;
 
@@ -21,6 +28,25 @@ public abstract class SimpleEvent {
 
     public abstract void run( long when );
 
+    /**
+     * Determine if this event can be run at the same time as other events scheduled for the same time.
+     * <p/>
+     * Only matters if the event's queue has been given a batch executor (see
+     * {@link SimpleEventQueue#setBatchExecutor}).  An independent event must not touch any state which other
+     * independent events scheduled for the same time might also touch (other than by queueing events, which is
+     * always safe).
+     * <p/>
+     * This implementation returns false.
+     *
+     * @return true if this event may be run concurrently with other independent events.
+     */
+
+    public boolean isIndependent() {
+
+        return false;
+
+    }
+
     public String toString() {
 
         return "ClockEvent( \"" + _description + "\" )";
@@ -1,21 +1,147 @@
 package com.obtuse.util;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Very simple event queue manager.
  * <p>
+ * The pending events are kept in an {@link EventQueueBackend}.  The default is a {@link TreeMapEventQueueBackend};
+ * simulations with lots of pending events should consider a {@link CalendarEventQueueBackend} instead.
+ * <p>
+ * Events normally run one at a time.  Queues which have been given a batch executor (see {@link #setBatchExecutor})
+ * run independent events which are scheduled for the same time concurrently.
+ * <p>
+ * The state of a queue can be saved to a file (see {@link #checkpoint} and {@link #setCheckpointing}) and a new queue
+ * can later pick up where the saved one left off (see {@link #resume}).
+ * <p>
  * Copyright © 2011 Obtuse Systems Corporation
  */
 
 public class SimpleEventQueue<T extends SimpleEvent> {
 
-    private final SortedMap<Long,LinkedList<T>> _eventQueue = new TreeMap<Long,LinkedList<T>>();
+    private final EventQueueBackend<T> _eventQueue;
     private long _now;
     private long _endTime = Long.MAX_VALUE;
 
     private final boolean _traceMode = false;
 
+    private static final int CHECKPOINT_MAGIC = 0x53455143;    // "SEQC"
+
+    private static final int CHECKPOINT_VERSION = 1;
+
+    private File _checkpointFile = null;
+
+    private long _checkpointInterval;
+
+    private long _lastCheckpoint;
+
+    private Executor _batchExecutor = null;
+
+    private EventQueueStats _stats = null;
+
+    // Set while independent events are running concurrently.  Events that they queue are held in a per-thread list
+    // and only really queued once all of them are done (see runConcurrently()).
+
+    private volatile boolean _runningConcurrently = false;
+
+    private final ThreadLocal<List<DeferredEvent<T>>> _deferredEvents = new ThreadLocal<List<DeferredEvent<T>>>();
+
+    /**
+     * What a reference to the queue being checkpointed is replaced by in a checkpoint file.
+     * Events can refer to their queue and still be checkpointed.
+     */
+
+    private static enum QueuePlaceholder {
+
+        THE_QUEUE
+
+    }
+
+    private static class CheckpointOutputStream extends ObjectOutputStream {
+
+        private final SimpleEventQueue<?> _queue;
+
+        private CheckpointOutputStream( OutputStream out, SimpleEventQueue<?> queue )
+                throws IOException {
+            super( out );
+
+            _queue = queue;
+            enableReplaceObject( true );
+
+        }
+
+        protected Object replaceObject( Object obj ) {
+
+            return obj == _queue ? QueuePlaceholder.THE_QUEUE : obj;
+
+        }
+
+    }
+
+    private static class CheckpointInputStream extends ObjectInputStream {
+
+        private final SimpleEventQueue<?> _queue;
+
+        private CheckpointInputStream( InputStream in, SimpleEventQueue<?> queue )
+                throws IOException {
+            super( in );
+
+            _queue = queue;
+            enableResolveObject( true );
+
+        }
+
+        protected Object resolveObject( Object obj ) {
+
+            return obj == QueuePlaceholder.THE_QUEUE ? _queue : obj;
+
+        }
+
+    }
+
+    /**
+     * Something which wants to be handed events (see {@link SimpleEventQueue#dispatchNextEvent}).
+     */
+
+    public interface EventDispatcher<T extends SimpleEvent> {
+
+        /**
+         * Handle an event which has just been removed from the queue.
+         * @param when  the time that the event was scheduled for.
+         * @param event the event.
+         */
+
+        void dispatch( long when, T event );
+
+    }
+
+    /**
+     * An event queued by an event which is running concurrently with other events.
+     */
+
+    private static class DeferredEvent<T extends SimpleEvent> {
+
+        private final long _when;
+        private final T _event;
+        private final boolean _before;
+
+        private DeferredEvent( long when, T event, boolean before ) {
+            super();
+
+            _when = when;
+            _event = event;
+            _before = before;
+
+        }
+
+    }
+
     /**
      * A wrapper for a set of simultaneous clock events and the timestamp associated with all of them.
      */
@@ -114,8 +240,20 @@ public class SimpleEventQueue<T extends SimpleEvent> {
     }
 
     public SimpleEventQueue() {
+        this( new TreeMapEventQueueBackend<T>() );
+
+    }
+
+    /**
+     * Create an event queue which keeps its pending events in a particular backend.
+     *
+     * @param backend where the pending events are to be kept (it should be empty).
+     */
+
+    public SimpleEventQueue( EventQueueBackend<T> backend ) {
         super();
 
+        _eventQueue = backend;
         _now = Long.MIN_VALUE;
 
     }
@@ -142,11 +280,11 @@ public class SimpleEventQueue<T extends SimpleEvent> {
     public void showQueue( String why, boolean hideEmpties ) {
 
         StringBuilder msg = new StringBuilder( why ).append( ":  [ " );
-        for ( long when : _eventQueue.keySet() ) {
+        for ( List<T> events : _eventQueue.snapshot().values() ) {
 
-            if ( !_eventQueue.get( when ).isEmpty() || !hideEmpties ) {
+            if ( !events.isEmpty() || !hideEmpties ) {
 
-                msg.append( "   " ).append( SimpleEventQueue.eventsToString( _eventQueue.get( when ) ) );
+                msg.append( "   " ).append( SimpleEventQueue.eventsToString( events ) );
 
             }
 
@@ -214,6 +352,18 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
     private void queueEvent( long when, T event, boolean before ) {
 
+        if ( _runningConcurrently ) {
+
+            List<DeferredEvent<T>> deferredEvents = _deferredEvents.get();
+            if ( deferredEvents != null ) {
+
+                deferredEvents.add( new DeferredEvent<T>( when, event, before ) );
+                return;
+
+            }
+
+        }
+
         if ( when < _now || _now == Long.MAX_VALUE ) {
 
             Logger.logErr(
@@ -236,92 +386,47 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
         }
 
-        List<T> queue = findQueue( when );
-
-        if ( before ) {
-
-            queue.add( 0, event );
-
-        } else {
-
-            queue.add( event );
-
-        }
+        _eventQueue.add( when, event, before );
 
     }
 
-    private List<T> findQueue( long when ) {
+    private TimestampedClockEventContainer<T> getOrPeekNextEventBatch( boolean peek, boolean advanceNow ) {
 
-        if ( when < _now ) {
+        if ( _eventQueue.isEmpty() ) {
 
-            throw new IllegalArgumentException(
-                    "attempt to add event at " + DateUtils.formatYYYY_MM_DD_HH_MM_SS_SSS( new Date( when ) ) +
-                    " when time is already " + DateUtils.formatYYYY_MM_DD_HH_MM_SS_SSS( new Date( _now ) )
-            );
+            return null;
 
         }
 
-        LinkedList<T> queue = _eventQueue.get( when );
-        if ( queue == null ) {
+        long peekNow = _eventQueue.getFirstTime();
+        TimestampedClockEventContainer<T> rval = new TimestampedClockEventContainer<T>( peekNow, _eventQueue.getFirstBatch() );
+        if ( !peek ) {
 
-            queue = new LinkedList<T>();
-            _eventQueue.put( when, queue );
+            _now = peekNow + ( advanceNow ? 1 : 0 );
+            _eventQueue.removeFirstBatch();
 
         }
 
-        return queue;
-
-    }
-
-    private TimestampedClockEventContainer<T> getOrPeekNextEventBatch( boolean peek, boolean advanceNow ) {
-
-        while ( true ) {
-
-            if ( _eventQueue.isEmpty() ) {
-
-                return null;
-
-            }
-
-            long peekNow = _eventQueue.firstKey().longValue();
-
-            if ( _eventQueue.get( peekNow ).isEmpty() ) {
-
-                _eventQueue.remove( peekNow );
-
-            } else {
-
-                if ( peek ) {
-
-                    return new TimestampedClockEventContainer<T>( peekNow, _eventQueue.get( peekNow ) );
-
-                } else {
-
-                    _now = peekNow + ( advanceNow ? 1 : 0 );
-                    return new TimestampedClockEventContainer<T>( peekNow, _eventQueue.remove( peekNow ) );
-
-                }
-
-            }
-
-        }
+        return rval;
 
     }
 
     private TimestampedClockEventInstance<T> getOrPeekNextEvent( boolean peek ) {
 
-        TimestampedClockEventContainer<T> nextBatch = getOrPeekNextEventBatch( true, false );
-        if ( nextBatch == null ) {
+        if ( _eventQueue.isEmpty() ) {
 
             return null;
 
-        } else if ( peek ) {
+        }
+
+        long eventTime = _eventQueue.getFirstTime();
+        if ( peek ) {
 
-            return new TimestampedClockEventInstance<T>( nextBatch.getEventTime(), nextBatch.getClockEvents().get( 0 ) );
+            return new TimestampedClockEventInstance<T>( eventTime, _eventQueue.getFirstBatch().get( 0 ) );
 
         } else {
 
-            return new TimestampedClockEventInstance<T>( nextBatch.getEventTime(), _eventQueue.get( nextBatch.getEventTime() ).remove( 0 ) );
+            return new TimestampedClockEventInstance<T>( eventTime, _eventQueue.removeFirst() );
 
         }
 
@@ -355,6 +460,31 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
     }
 
+    /**
+     * Remove the next available event and hand it and its time to a dispatcher.
+     * <p/>
+     * This is {@link #getNextEvent} without the wrapper.  The queue itself never allocates anything along this path
+     * (whether or not the backend does is up to the backend;  {@link CalendarEventQueueBackend} doesn't once it
+     * reaches a steady state).
+     * @param dispatcher who gets the event.
+     * @return true if an event was dispatched; false if there were no events left.
+     */
+
+    public boolean dispatchNextEvent( EventDispatcher<? super T> dispatcher ) {
+
+        if ( _eventQueue.isEmpty() ) {
+
+            return false;
+
+        }
+
+        long eventTime = _eventQueue.getFirstTime();
+        dispatcher.dispatch( eventTime, _eventQueue.removeFirst() );
+
+        return true;
+
+    }
+
     /**
      * Peek at the next available batch of events.
      * <p/>
@@ -399,6 +529,40 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
     }
 
+    /**
+     * Determine if this instance has any events left.
+     * @return true if there are no events left.
+     */
+
+    public boolean isEmpty() {
+
+        return _eventQueue.isEmpty();
+
+    }
+
+    /**
+     * Get the number of events left in this instance.
+     * @return the number of events that have been queued and not yet removed.
+     */
+
+    public int size() {
+
+        return _eventQueue.size();
+
+    }
+
+    /**
+     * Get the time of the next available event without creating any wrappers.
+     * @return the time of the next available event.
+     * @throws NoSuchElementException if there are no events left.
+     */
+
+    public long getNextEventTime() {
+
+        return _eventQueue.getFirstTime();
+
+    }
+
     /**
      * Empty this event queue and make it impossible to add more events.
      */
@@ -469,14 +633,315 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 //
 //    }
 
+    /**
+     * Provide an executor for running independent events (see {@link SimpleEvent#isIndependent}) concurrently.
+     * <p/>
+     * Once a queue has a batch executor, {@link #go} works through the queue a batch (see {@link #getNextEventBatch})
+     * at a time with the clock set to the time of the batch.  Consecutive independent events within a batch are handed
+     * to the executor and the queue waits for all of them to finish.  Other events are run one at a time on the thread
+     * that called {@link #go}.  The clock only moves on once the entire batch has been run.
+     * <p/>
+     * Events queued by concurrently running events are held back until they have all finished and are then queued in
+     * the order that the events which queued them appear in the batch, so how the executor schedules them makes no
+     * difference.  The outcome is the same as running the events one at a time in batch order with one exception:
+     * an event queued for the time of the batch that is being run goes into the next batch, so an event queued via
+     * {@link #qBefore} for the current time runs after the rest of the current batch rather than immediately (as it
+     * would without a batch executor).
+     *
+     * @param executor the executor (null if events are to be run one at a time).
+     */
+
+    public void setBatchExecutor( Executor executor ) {
+
+        _batchExecutor = executor;
+
+    }
+
+    public Executor getBatchExecutor() {
+
+        return _batchExecutor;
+
+    }
+
+    /**
+     * Provide somewhere to record what {@link #go} is doing.
+     * <p/>
+     * Each event run by {@link #go} (or {@link #goThrough}) is timed and the size of the queue is noted after each
+     * event (after each batch if this queue has a batch executor).  Events taken via {@link #getNextEvent} and friends
+     * are not counted since this queue doesn't run them.  The stats can be read by any thread while the simulation is
+     * running.
+     * @param stats where the counts go (null to stop counting).
+     */
+
+    public void setStats( EventQueueStats stats ) {
+
+        _stats = stats;
+
+    }
+
+    public EventQueueStats getStats() {
+
+        return _stats;
+
+    }
+
+    /**
+     * Arrange for {@link #go} to checkpoint this queue periodically.
+     * <p/>
+     * Checkpoints are taken between events (between batches if this queue has a batch executor) once at least the
+     * specified amount of real (wall clock) time has passed since the previous checkpoint.  A checkpoint which cannot be
+     * written is logged and the simulation carries on.
+     * @param file where the checkpoints go (null to stop checkpointing).  Each checkpoint replaces the previous one.
+     * @param intervalMillis how many milliseconds of real time should pass between checkpoints.
+     */
+
+    public void setCheckpointing( File file, long intervalMillis ) {
+
+        _checkpointFile = file;
+        _checkpointInterval = intervalMillis;
+        _lastCheckpoint = System.currentTimeMillis();
+
+    }
+
+    /**
+     * Save the state of this queue (its clock, its end time and all of its pending events) to a file.
+     * <p/>
+     * The file is a gzipped Java serialization stream.  All of the pending events (and everything that they refer to)
+     * must be serializable except for references to this queue, which are restored by {@link #resume}.
+     * The checkpoint is written to a temporary file and forced to disk before it replaces the specified file so a crash
+     * while the checkpoint is being written does not destroy the previous checkpoint.  Where a file can't be renamed
+     * over an existing one, the previous checkpoint is moved to a <tt>.bak</tt> file first (which {@link #resume}
+     * falls back to if the system goes down before the new checkpoint is in place).
+     * <p/>
+     * This method must not be called while an event is running in another thread.
+     * @param file where the checkpoint goes.
+     * @throws IOException if the file cannot be written (including if an event cannot be serialized).
+     */
+
+    public void checkpoint( File file )
+            throws IOException {
+
+        File tmpFile = new File( file.getPath() + ".tmp" );
+        FileOutputStream fileOut = new FileOutputStream( tmpFile );
+        GZIPOutputStream gzipOut = new GZIPOutputStream( fileOut );
+        ObjectOutputStream out = new CheckpointOutputStream( new BufferedOutputStream( gzipOut ), this );
+        try {
+
+            out.writeInt( SimpleEventQueue.CHECKPOINT_MAGIC );
+            out.writeInt( SimpleEventQueue.CHECKPOINT_VERSION );
+            out.writeLong( _now );
+            out.writeLong( _endTime );
+
+            SortedMap<Long,List<T>> pendingEvents = _eventQueue.snapshot();
+            out.writeInt( pendingEvents.size() );
+            for ( Map.Entry<Long,List<T>> entry : pendingEvents.entrySet() ) {
+
+                out.writeLong( entry.getKey().longValue() );
+                out.writeInt( entry.getValue().size() );
+                for ( T event : entry.getValue() ) {
+
+                    out.writeObject( event );
+
+                }
+
+            }
+
+            // Make sure that the new checkpoint really is on the disk before it replaces the previous one.
+
+            out.flush();
+            gzipOut.finish();
+            fileOut.getFD().sync();
+
+        } finally {
+
+            out.close();
+
+        }
+
+        SimpleEventQueue.replaceFile( tmpFile, file );
+
+        _lastCheckpoint = System.currentTimeMillis();
+
+    }
+
+    private static File backupOf( File file ) {
+
+        return new File( file.getPath() + ".bak" );
+
+    }
+
+    /**
+     * Replace a file with another one.
+     * Renaming a file over an existing one replaces it atomically where it works at all.  Where it doesn't (on Windows,
+     * for example) the existing file is moved to a <tt>.bak</tt> file first so that there is always a complete copy
+     * of one or the other.
+     */
+
+    private static void replaceFile( File from, File to )
+            throws IOException {
+
+        if ( from.renameTo( to ) ) {
+
+            return;
+
+        }
+
+        File backup = SimpleEventQueue.backupOf( to );
+        if ( to.exists() ) {
+
+            // If there is no file to replace then the backup (if there is one) is all we've got so we leave it alone.
+
+            if ( backup.exists() && !backup.delete() ) {
+
+                throw new IOException( "unable to delete old checkpoint " + backup );
+
+            }
+
+            if ( !to.renameTo( backup ) ) {
+
+                throw new IOException( "unable to move previous checkpoint " + to + " to " + backup );
+
+            }
+
+        }
+
+        if ( !from.renameTo( to ) ) {
+
+            throw new IOException( "unable to rename " + from + " to " + to );
+
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        backup.delete();
+
+    }
+
+    /**
+     * Create a queue from a checkpoint written by {@link #checkpoint}.
+     * <p/>
+     * The new queue has the checkpointed clock, end time and pending events.  Calling {@link #go} carries on from
+     * where the checkpointed queue was when the checkpoint was taken.  Neither checkpointing nor the batch executor
+     * are restored.
+     * <p/>
+     * If the file doesn't exist but a <tt>.bak</tt> file left behind by an interrupted {@link #checkpoint} does then
+     * the queue is restored from the <tt>.bak</tt> file.
+     * @param file the checkpoint.
+     * @param backend where the new queue is to keep its pending events (it should be empty).
+     * @return the new queue.
+     * @throws IOException if the file cannot be read or is not a checkpoint.
+     * @throws ClassNotFoundException if the class of one of the checkpointed events cannot be found.
+     */
+
+    public static <T extends SimpleEvent> SimpleEventQueue<T> resume( File file, EventQueueBackend<T> backend )
+            throws IOException, ClassNotFoundException {
+
+        File source = file;
+        if ( !file.exists() && SimpleEventQueue.backupOf( file ).exists() ) {
+
+            // The system went down while a checkpoint was replacing this one.
+
+            source = SimpleEventQueue.backupOf( file );
+
+        }
+
+        SimpleEventQueue<T> queue = new SimpleEventQueue<T>( backend );
+        ObjectInputStream in = new CheckpointInputStream(
+                new BufferedInputStream( new GZIPInputStream( new FileInputStream( source ) ) ),
+                queue
+        );
+        try {
+
+            if ( in.readInt() != SimpleEventQueue.CHECKPOINT_MAGIC ) {
+
+                throw new IOException( source + " is not an event queue checkpoint" );
+
+            }
+
+            int version = in.readInt();
+            if ( version != SimpleEventQueue.CHECKPOINT_VERSION ) {
+
+                throw new IOException( source + " is a version " + version + " checkpoint (only version " +
+                                       SimpleEventQueue.CHECKPOINT_VERSION + " is supported)" );
+
+            }
+
+            queue._now = in.readLong();
+            queue._endTime = in.readLong();
+
+            int timeCount = in.readInt();
+            for ( int i = 0; i < timeCount; i += 1 ) {
+
+                long when = in.readLong();
+                int eventCount = in.readInt();
+                for ( int j = 0; j < eventCount; j += 1 ) {
+
+                    @SuppressWarnings("unchecked")
+                    T event = (T)in.readObject();
+                    backend.add( when, event, false );
+
+                }
+
+            }
+
+        } finally {
+
+            in.close();
+
+        }
+
+        return queue;
+
+    }
+
+    private void checkpointIfDue() {
+
+        if ( System.currentTimeMillis() - _lastCheckpoint < _checkpointInterval ) {
+
+            return;
+
+        }
+
+        try {
+
+            checkpoint( _checkpointFile );
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "ERROR:  unable to checkpoint event queue to " + _checkpointFile + " - will try again later", e );
+            _lastCheckpoint = System.currentTimeMillis();
+
+        }
+
+    }
+
     @SuppressWarnings({ "StaticMethodNamingConvention" })
     public void go() {
 
-        runClock();
+        goThrough( Long.MAX_VALUE );
 
     }
 
-    private void runClock() {
+    /**
+     * Run events until there are none left which are scheduled at or before a specified time.
+     * Events scheduled after that time are left in the queue.
+     * @param lastTime the time of the last events which are to be run.
+     */
+
+    public void goThrough( long lastTime ) {
+
+        if ( _batchExecutor == null ) {
+
+            runClock( lastTime );
+
+        } else {
+
+            runClockInBatches( lastTime );
+
+        }
+
+    }
+
+    private void runClock( long lastTime ) {
 
         while ( true ) {
 
@@ -486,27 +951,33 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
             }
 
-            TimestampedClockEventInstance<T> event = getNextEvent();
-            if ( event == null ) {
+            if ( _eventQueue.isEmpty() ) {
 
                 break;
 
             }
 
-            if ( _traceMode ) {
+            // Go straight to the backend rather than through getNextEvent() so that running an event allocates
+            // nothing.
 
-                    showQueue( "doing", true );
-                    Logger.logMsg( "doing eventContainer " + event.getClockEvent() + " for " + event.getEventTime() );
+            long eventTime = _eventQueue.getFirstTime();
+            if ( eventTime > lastTime ) {
+
+                break;
 
             }
 
-            try {
+            runEvent( eventTime, _eventQueue.removeFirst() );
 
-                event.getClockEvent().run( event.getEventTime() );
+            if ( _stats != null ) {
+
+                _stats.queueObserved( _eventQueue.size(), _eventQueue.getTimeCount() );
+
+            }
 
-            } catch ( Throwable e ) {
+            if ( _checkpointFile != null ) {
 
-                Logger.logErr( "ERROR:  event \"" + event.getClockEvent() + "\" failed @ " + event.getEventTime(), e );
+                checkpointIfDue();
 
             }
 
@@ -546,6 +1017,192 @@ public class SimpleEventQueue<T extends SimpleEvent> {
 
     }
 
+    private void runClockInBatches( long lastTime ) {
+
+        List<T> batch = new ArrayList<T>();
+        while ( !_eventQueue.isEmpty() && _eventQueue.getFirstTime() <= lastTime ) {
+
+            if ( _traceMode ) {
+
+                showQueue( "getting", true );
+
+            }
+
+            long when = _eventQueue.getFirstTime();
+            batch.clear();
+            batch.addAll( _eventQueue.getFirstBatch() );
+            _eventQueue.removeFirstBatch();
+            _now = when;
+
+            int ix = 0;
+            while ( ix < batch.size() ) {
+
+                int end = ix;
+                while ( end < batch.size() && batch.get( end ).isIndependent() ) {
+
+                    end += 1;
+
+                }
+
+                if ( end - ix > 1 ) {
+
+                    runConcurrently( when, batch.subList( ix, end ) );
+                    ix = end;
+
+                } else {
+
+                    runEvent( when, batch.get( ix ) );
+                    ix += 1;
+
+                }
+
+            }
+
+            if ( _stats != null ) {
+
+                _stats.queueObserved( _eventQueue.size(), _eventQueue.getTimeCount() );
+
+            }
+
+            if ( _checkpointFile != null ) {
+
+                checkpointIfDue();
+
+            }
+
+        }
+
+        batch.clear();
+
+    }
+
+    /**
+     * Run a group of independent events on the batch executor and wait for them to finish.
+     * Then queue whatever they queued in the order that they appear in the group.
+     */
+
+    private void runConcurrently( final long when, List<T> events ) {
+
+        if ( _traceMode ) {
+
+            Logger.logMsg( "doing " + events.size() + " independent events concurrently for " + when );
+
+        }
+
+        final CountDownLatch done = new CountDownLatch( events.size() );
+        List<List<DeferredEvent<T>>> deferredEvents = new ArrayList<List<DeferredEvent<T>>>( events.size() );
+
+        _runningConcurrently = true;
+        try {
+
+            for ( final T event : events ) {
+
+                final List<DeferredEvent<T>> eventsQueuedByEvent = new ArrayList<DeferredEvent<T>>();
+                deferredEvents.add( eventsQueuedByEvent );
+
+                Runnable task = new Runnable() {
+
+                    public void run() {
+
+                        _deferredEvents.set( eventsQueuedByEvent );
+                        try {
+
+                            runEvent( when, event );
+
+                        } finally {
+
+                            _deferredEvents.remove();
+                            done.countDown();
+
+                        }
+
+                    }
+
+                };
+
+                try {
+
+                    _batchExecutor.execute( task );
+
+                } catch ( RejectedExecutionException e ) {
+
+                    task.run();
+
+                }
+
+            }
+
+            boolean interrupted = false;
+            while ( true ) {
+
+                try {
+
+                    done.await();
+                    break;
+
+                } catch ( InterruptedException e ) {
+
+                    // The events are already underway.  We have to wait for them regardless.
+
+                    interrupted = true;
+
+                }
+
+            }
+
+            if ( interrupted ) {
+
+                Thread.currentThread().interrupt();
+
+            }
+
+        } finally {
+
+            _runningConcurrently = false;
+
+        }
+
+        for ( List<DeferredEvent<T>> eventsQueuedByEvent : deferredEvents ) {
+
+            for ( DeferredEvent<T> deferredEvent : eventsQueuedByEvent ) {
+
+                queueEvent( deferredEvent._when, deferredEvent._event, deferredEvent._before );
+
+            }
+
+        }
+
+    }
+
+    private void runEvent( long when, T event ) {
+
+        if ( _traceMode ) {
+
+                showQueue( "doing", true );
+                Logger.logMsg( "doing eventContainer " + event + " for " + when );
+
+        }
+
+        EventQueueStats stats = _stats;
+        long start = stats == null ? 0L : System.nanoTime();
+        try {
+
+            event.run( when );
+
+        } catch ( Throwable e ) {
+
+            Logger.logErr( "ERROR:  event \"" + event + "\" failed @ " + when, e );
+
+        }
+
+        if ( stats != null ) {
+
+            stats.eventRun( event, System.nanoTime() - start );
+
+        }
+
+    }
+
     @SuppressWarnings("MagicNumber")
     public static void main( String[] args ) {
 
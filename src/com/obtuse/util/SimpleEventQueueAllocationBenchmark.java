@@ -0,0 +1,219 @@
+package com.obtuse.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Measure how many bytes the {@link SimpleEventQueue} allocates per event once a simulation reaches a steady state.
+ * <p/>
+ * Uses the hold model (each event queues itself again a random amount of time later) and compares taking events via
+ * {@link SimpleEventQueue#getNextEvent} with taking them via {@link SimpleEventQueue#dispatchNextEvent} and with
+ * {@link SimpleEventQueue#go}, on each backend.  Allocations are counted by the JVM's per-thread allocation counter
+ * so this only works on JVMs which provide one (HotSpot does).
+ * <p/>
+ * Usage:  <tt>SimpleEventQueueAllocationBenchmark [population [events]]</tt>
+ */
+
+public class SimpleEventQueueAllocationBenchmark {
+
+    private static final int DEFAULT_POPULATION = 100000;
+
+    private static final int DEFAULT_EVENTS = 5000000;
+
+    private static final int MAX_DELAY = 2000;
+
+    private static long s_eventsRun = 0L;
+
+    private SimpleEventQueueAllocationBenchmark() {
+        super();
+
+    }
+
+    private static class HoldEvent extends SimpleEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SimpleEventQueue<HoldEvent> _queue;
+
+        private final Random _random;
+
+        private HoldEvent( SimpleEventQueue<HoldEvent> queue, Random random ) {
+            super( "hold event" );
+
+            _queue = queue;
+            _random = random;
+
+        }
+
+        public void run( long when ) {
+
+            SimpleEventQueueAllocationBenchmark.s_eventsRun += 1L;
+            _queue.qAfter( when + 1L + (long)_random.nextInt( SimpleEventQueueAllocationBenchmark.MAX_DELAY ), this );
+
+        }
+
+    }
+
+    private static final SimpleEventQueue.EventDispatcher<HoldEvent> RUNNER =
+            new SimpleEventQueue.EventDispatcher<HoldEvent>() {
+
+                public void dispatch( long when, HoldEvent event ) {
+
+                    event.run( when );
+
+                }
+
+            };
+
+    private static com.sun.management.ThreadMXBean getAllocationCounter() {
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( !( bean instanceof com.sun.management.ThreadMXBean ) ) {
+
+            return null;
+
+        }
+
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)bean;
+        if ( !counter.isThreadAllocatedMemorySupported() ) {
+
+            return null;
+
+        }
+
+        counter.setThreadAllocatedMemoryEnabled( true );
+
+        return counter;
+
+    }
+
+    private static SimpleEventQueue<HoldEvent> newQueue( boolean calendar, int population ) {
+
+        SimpleEventQueue<HoldEvent> queue = new SimpleEventQueue<HoldEvent>(
+                calendar ? new CalendarEventQueueBackend<HoldEvent>() : new TreeMapEventQueueBackend<HoldEvent>()
+        );
+        Random random = new Random( (long)population );
+        for ( int i = 0; i < population; i += 1 ) {
+
+            queue.qAfter( (long)random.nextInt( SimpleEventQueueAllocationBenchmark.MAX_DELAY ), new HoldEvent( queue, random ) );
+
+        }
+
+        return queue;
+
+    }
+
+    private static final int VIA_GET_NEXT_EVENT = 0;
+
+    private static final int VIA_DISPATCH = 1;
+
+    private static final int VIA_GO = 2;
+
+    private static final String[] HOW = { "getNextEvent()", "dispatchNextEvent()", "goThrough()" };
+
+    /**
+     * Run a number of events.
+     *
+     * @return the time of the last event run.
+     */
+
+    private static long runEvents( SimpleEventQueue<HoldEvent> queue, int how, int events ) {
+
+        switch ( how ) {
+
+            case SimpleEventQueueAllocationBenchmark.VIA_GET_NEXT_EVENT:
+                long when = 0L;
+                for ( int i = 0; i < events; i += 1 ) {
+
+                    SimpleEventQueue.TimestampedClockEventInstance<HoldEvent> event = queue.getNextEvent();
+                    when = event.getEventTime();
+                    event.getClockEvent().run( when );
+
+                }
+
+                return when;
+
+            case SimpleEventQueueAllocationBenchmark.VIA_DISPATCH:
+                for ( int i = 0; i < events; i += 1 ) {
+
+                    queue.dispatchNextEvent( SimpleEventQueueAllocationBenchmark.RUNNER );
+
+                }
+
+                return queue.getNextEventTime();
+
+            case SimpleEventQueueAllocationBenchmark.VIA_GO:
+
+                // The hold model never runs dry so run up to a time instead (a mean delay of MAX_DELAY / 2 means
+                // that the whole population runs about once every MAX_DELAY / 2 milliseconds).
+
+                long start = queue.getNextEventTime();
+                int population = queue.size();
+                queue.goThrough(
+                        start + (long)events / (long)population * ( SimpleEventQueueAllocationBenchmark.MAX_DELAY / 2 )
+                );
+
+                return queue.getNextEventTime();
+
+            default:
+                throw new IllegalArgumentException( "unknown way to run events (" + how + ")" );
+
+        }
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "SimpleEventQueueAllocationBenchmark", null );
+
+        int population = args.length > 0 ? Integer.parseInt( args[0] ) : SimpleEventQueueAllocationBenchmark.DEFAULT_POPULATION;
+        int events = args.length > 1 ? Integer.parseInt( args[1] ) : SimpleEventQueueAllocationBenchmark.DEFAULT_EVENTS;
+
+        com.sun.management.ThreadMXBean counter = SimpleEventQueueAllocationBenchmark.getAllocationCounter();
+        if ( counter == null ) {
+
+            Logger.logErr( "this JVM does not count allocated bytes per thread" );
+            System.exit( 1 );
+
+        }
+
+        long threadId = Thread.currentThread().getId();
+        for ( boolean calendar : new boolean[] { false, true } ) {
+
+            for ( int how = 0; how < SimpleEventQueueAllocationBenchmark.HOW.length; how += 1 ) {
+
+                SimpleEventQueue<HoldEvent> queue = SimpleEventQueueAllocationBenchmark.newQueue( calendar, population );
+
+                // Warm up (and let the queue reach its steady state).
+
+                SimpleEventQueueAllocationBenchmark.runEvents( queue, how, events );
+
+                long eventsRunBefore = SimpleEventQueueAllocationBenchmark.s_eventsRun;
+                long before = counter.getThreadAllocatedBytes( threadId );
+                Measure m = new Measure( ( calendar ? "calendar " : "TreeMap " ) + SimpleEventQueueAllocationBenchmark.HOW[how] );
+                SimpleEventQueueAllocationBenchmark.runEvents( queue, how, events );
+                m.done();
+                long allocated = counter.getThreadAllocatedBytes( threadId ) - before;
+                long eventsRun = SimpleEventQueueAllocationBenchmark.s_eventsRun - eventsRunBefore;
+
+                Logger.logMsg(
+                        ( calendar ? "calendar queue backend" : "TreeMap backend" ) + " via " +
+                        SimpleEventQueueAllocationBenchmark.HOW[how] + ":  " +
+                        String.format( "%.3f", (double)allocated / (double)eventsRun ) + " bytes per event"
+                );
+
+            }
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.obtuse.util;
+
+import java.util.Random;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Compare the {@link SimpleEventQueue} backends using the classic "hold" model.
+ * <p/>
+ * The queue is loaded with a population of events.  Each event, when run, queues itself again a random (roughly
+ * exponentially distributed) number of milliseconds later until the requested number of events have been run.  Half of
+ * the events use {@link SimpleEventQueue#qBefore} and the other half {@link SimpleEventQueue#qAfter} and the delays
+ * are coarse enough that lots of events share a time, so the ordering of simultaneous events gets a workout too.
+ * <p/>
+ * Every backend gets the same random delays and must run the events in exactly the same order.  The calendar queue
+ * backend is run a second time with {@link EventQueueStats} turned on to show what counting costs.
+ * <p/>
+ * Usage:  <tt>SimpleEventQueueBenchmark [population [events]]</tt>
+ */
+
+public class SimpleEventQueueBenchmark {
+
+    private static final int DEFAULT_POPULATION = 1000000;
+
+    private static final int DEFAULT_EVENTS = 10000000;
+
+    private static final double MEAN_DELAY = 1000.0;
+
+    private static final long SEED = 20120101L;
+
+    private static final int ROUNDS = 3;
+
+    private SimpleEventQueueBenchmark() {
+        super();
+
+    }
+
+    /**
+     * The state shared by the events of one run.
+     */
+
+    private static class Hold {
+
+        private final SimpleEventQueue<HoldEvent> _queue;
+
+        private final Random _random = new Random( SimpleEventQueueBenchmark.SEED );
+
+        private int _remaining;
+
+        private long _checksum = 0L;
+
+        private Hold( EventQueueBackend<HoldEvent> backend, int events ) {
+            super();
+
+            _queue = new SimpleEventQueue<HoldEvent>( backend );
+            _remaining = events;
+
+        }
+
+        private long nextDelay() {
+
+            return (long)( -SimpleEventQueueBenchmark.MEAN_DELAY * Math.log( 1.0 - _random.nextDouble() ) );
+
+        }
+
+        private void schedule( long when, HoldEvent event ) {
+
+            if ( ( event._id & 1 ) == 0 ) {
+
+                _queue.qBefore( when, event );
+
+            } else {
+
+                _queue.qAfter( when, event );
+
+            }
+
+        }
+
+    }
+
+    private static class HoldEvent extends SimpleEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Hold _hold;
+
+        private final int _id;
+
+        private HoldEvent( Hold hold, int id ) {
+            super( "hold event " + id );
+
+            _hold = hold;
+            _id = id;
+
+        }
+
+        public void run( long when ) {
+
+            Hold hold = _hold;
+
+            //noinspection MagicNumber
+            hold._checksum = hold._checksum * 31L + (long)_id + when;
+            if ( hold._remaining > 0 ) {
+
+                hold._remaining -= 1;
+                hold.schedule( when + hold.nextDelay(), this );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Run the hold model on a particular backend.
+     *
+     * @return a checksum of the order in which the events were run.
+     */
+
+    private static long hold(
+            String name, EventQueueBackend<HoldEvent> backend, EventQueueStats stats, int population, int events
+    ) {
+
+        Hold hold = new Hold( backend, events );
+        hold._queue.setStats( stats );
+        for ( int id = 0; id < population; id += 1 ) {
+
+            hold.schedule( hold.nextDelay(), new HoldEvent( hold, id ) );
+
+        }
+
+        Measure m = new Measure( name );
+        hold._queue.go();
+        m.done();
+
+        return hold._checksum;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "SimpleEventQueueBenchmark", null );
+
+        int population = args.length > 0 ? Integer.parseInt( args[0] ) : SimpleEventQueueBenchmark.DEFAULT_POPULATION;
+        int events = args.length > 1 ? Integer.parseInt( args[1] ) : SimpleEventQueueBenchmark.DEFAULT_EVENTS;
+
+        Logger.logMsg( "hold model with " + population + " pending events and " + events + " events run" );
+
+        EventQueueStats stats = null;
+        for ( int round = 0; round < SimpleEventQueueBenchmark.ROUNDS; round += 1 ) {
+
+            if ( round == 1 ) {
+
+                // The first round just warms things up.
+
+                Measure.restart();
+
+            }
+
+            long treeMap = SimpleEventQueueBenchmark.hold(
+                    "TreeMap backend", new TreeMapEventQueueBackend<HoldEvent>(), null, population, events
+            );
+            long calendar = SimpleEventQueueBenchmark.hold(
+                    "calendar queue backend", new CalendarEventQueueBackend<HoldEvent>(), null, population, events
+            );
+            stats = new EventQueueStats();
+            long counted = SimpleEventQueueBenchmark.hold(
+                    "calendar queue backend with stats", new CalendarEventQueueBackend<HoldEvent>(), stats,
+                    population, events
+            );
+            if ( treeMap != calendar || calendar != counted ) {
+
+                Logger.logErr( "backends ran the events in different orders" );
+                System.exit( 1 );
+
+            }
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+        //noinspection UseOfSystemOutOrSystemErr,ConstantConditions
+        stats.dump( System.out );
+
+    }
+
+}
@@ -1,21 +1,42 @@
 package com.obtuse.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Compute various statistics.
  * <p/>
+ * Instances can be merged (see {@link #merge}) so statistics for a large data set can be computed in parallel, and
+ * can optionally estimate quantiles as they go (see {@link #Stats(double)}).
+ * <p/>
  * Copyright © 2006 Obtuse Systems Corporation
  */
 
 @SuppressWarnings("UnusedDeclaration")
 public class Stats {
 
+    // The running mean and sum of squared differences from it (Welford's method), which stay accurate when the values
+    // are large compared to their spread, unlike the sum of the squares.
+
+    private double _mean;
+    private double _m2;
+
+    // The sum with Neumaier's compensation for the low-order bits lost along the way.
+
     @SuppressWarnings({ "InstanceVariableNamingConvention" })
     private double _sum;
-    private double _sumSq;
+    private double _sumCompensation;
+
     private double _maxValue;
     private double _minValue;
     @SuppressWarnings({ "InstanceVariableNamingConvention" })
-    private int _n;
+    private long _n;
+
+    private final QuantileSketch _quantiles;
 
     /**
      * Create a new instance.
@@ -24,9 +45,21 @@ public class Stats {
     public Stats() {
         super();
 
-        _sum = 0;
-        _sumSq = 0;
         _n = 0;
+        _quantiles = null;
+
+    }
+
+    /**
+     * Create a new instance which also estimates quantiles (see {@link #quantile}).
+     * @param quantileAccuracy how close quantile estimates must be (0.01 means within 1%; see {@link QuantileSketch}).
+     */
+
+    public Stats( double quantileAccuracy ) {
+        super();
+
+        _n = 0;
+        _quantiles = new QuantileSketch( quantileAccuracy );
 
     }
 
@@ -38,11 +71,14 @@ public class Stats {
     public Stats( Stats x ) {
         super();
 
+        _mean = x._mean;
+        _m2 = x._m2;
         _sum = x._sum;
-        _sumSq = x._sumSq;
+        _sumCompensation = x._sumCompensation;
         _n = x._n;
         _maxValue = x._maxValue;
         _minValue = x._minValue;
+        _quantiles = x._quantiles == null ? null : new QuantileSketch( x._quantiles );
 
     }
 
@@ -53,8 +89,7 @@ public class Stats {
 
     public void datum( double v ) {
 
-        _sum += v;
-        _sumSq += v * v;
+        addToSum( v );
         if ( _n == 0 ) {
 
             _maxValue = v;
@@ -73,21 +108,176 @@ public class Stats {
         }
 
         _n += 1;
+        double delta = v - _mean;
+        _mean += delta / _n;
+        _m2 += delta * ( v - _mean );
+
+        if ( _quantiles != null ) {
+
+            _quantiles.add( v );
+
+        }
 
     }
 
     /**
      * Provide a separately accumulated set of values in the form of their sum and sumSq's.
+     * The smallest and largest values and any quantile estimates are not affected.
+     * Use {@link #merge} instead if the values were accumulated in another instance.
      * @param sum the sum of the separately accumulated values.
      * @param sumsq the sum of the squares of the separately accumulated values.
      * @param n the number of separately accumulated values.
      */
 
-    public void datum( double sum, double sumsq, int n ) {
+    public void datum( double sum, double sumsq, long n ) {
+
+        if ( n <= 0 ) {
+
+            return;
+
+        }
+
+        double mean = sum / n;
+        combine( n, mean, Math.max( 0.0, sumsq - sum * mean ) );
+        addToSum( sum );
+
+    }
+
+    /**
+     * Add the values accumulated by another instance to this one.
+     * The result is the same (give or take rounding) as if this instance had been given all of the other instance's
+     * values, so a large data set can be split between threads and the partial results merged at the end.
+     * @param x the other instance.
+     * @throws IllegalArgumentException if this instance estimates quantiles and the other one doesn't (or does so with
+     * a different accuracy).
+     */
+
+    public void merge( Stats x ) {
+
+        if ( _quantiles != null && x._n > 0 ) {
+
+            if ( x._quantiles == null ) {
+
+                throw new IllegalArgumentException( "cannot merge an instance without quantiles into one with them" );
+
+            }
+
+            _quantiles.merge( x._quantiles );
+
+        }
+
+        if ( x._n == 0 ) {
+
+            return;
+
+        }
+
+        if ( _n == 0 ) {
+
+            _minValue = x._minValue;
+            _maxValue = x._maxValue;
+
+        } else {
+
+            _minValue = Math.min( _minValue, x._minValue );
+            _maxValue = Math.max( _maxValue, x._maxValue );
+
+        }
+
+        combine( x._n, x._mean, x._m2 );
+        addToSum( x._sum );
+        addToSum( x._sumCompensation );
+
+    }
+
+    /**
+     * Combine another group of values with ours (Chan et al.'s parallel form of Welford's method).
+     */
+
+    private void combine( long n, double mean, double m2 ) {
 
-        _sum += sum;
-        _sumSq += sumsq;
-        _n += n;
+        long total = _n + n;
+        double delta = mean - _mean;
+        _mean += delta * ( (double)n / (double)total );
+        _m2 += m2 + delta * delta * ( (double)_n * (double)n / (double)total );
+        _n = total;
+
+    }
+
+    private void addToSum( double v ) {
+
+        double t = _sum + v;
+        if ( Math.abs( _sum ) >= Math.abs( v ) ) {
+
+            _sumCompensation += ( _sum - t ) + v;
+
+        } else {
+
+            _sumCompensation += ( v - t ) + _sum;
+
+        }
+
+        _sum = t;
+
+    }
+
+    /**
+     * Compute statistics for a large array of values by splitting it into chunks which are worked on in parallel.
+     * @param values the values.
+     * @param executor what to run the chunks on.
+     * @param chunks how many chunks to split the values into.
+     * @param quantiles true if the result should estimate quantiles (with the default accuracy).
+     * @return the statistics.
+     * @throws InterruptedException if we are interrupted while waiting for the chunks.
+     */
+
+    public static Stats parallelOf( final double[] values, ExecutorService executor, int chunks, final boolean quantiles )
+            throws InterruptedException {
+
+        List<Future<Stats>> futures = new ArrayList<Future<Stats>>();
+        for ( int chunk = 0; chunk < chunks; chunk += 1 ) {
+
+            final int from = (int)( (long)values.length * (long)chunk / (long)chunks );
+            final int to = (int)( (long)values.length * (long)( chunk + 1 ) / (long)chunks );
+            futures.add(
+                    executor.submit(
+                            new Callable<Stats>() {
+
+                                public Stats call() {
+
+                                    Stats stats = quantiles ? new Stats( QuantileSketch.DEFAULT_RELATIVE_ACCURACY ) : new Stats();
+                                    for ( int i = from; i < to; i += 1 ) {
+
+                                        stats.datum( values[i] );
+
+                                    }
+
+                                    return stats;
+
+                                }
+
+                            }
+                    )
+            );
+
+        }
+
+        Stats rval = quantiles ? new Stats( QuantileSketch.DEFAULT_RELATIVE_ACCURACY ) : new Stats();
+        for ( Future<Stats> future : futures ) {
+
+            try {
+
+                rval.merge( future.get() );
+
+            } catch ( ExecutionException e ) {
+
+                throw new IllegalStateException( "unable to compute the statistics of a chunk", e.getCause() );
+
+            }
+
+        }
+
+        return rval;
 
     }
 
@@ -98,7 +288,7 @@ public class Stats {
 
     public double mean() {
 
-        return _sum / _n;
+        return _n == 0 ? Double.NaN : _mean;
 
     }
 
@@ -110,8 +300,7 @@ public class Stats {
 
     public double sampleVariance() {
 
-        //noinspection UnnecessaryParentheses
-        return ( _sumSq - ( _sum * _sum ) / _n ) / ( _n - 1 );
+        return _m2 / ( _n - 1 );
 
     }
 
@@ -123,8 +312,7 @@ public class Stats {
 
     public double populationVariance() {
 
-        //noinspection UnnecessaryParentheses
-        return ( _sumSq - ( _sum * _sum ) / _n ) / _n;
+        return _m2 / _n;
 
     }
 
@@ -181,7 +369,7 @@ public class Stats {
 
     public double sum() {
 
-        return _sum;
+        return _sum + _sumCompensation;
 
     }
 
@@ -192,21 +380,52 @@ public class Stats {
 
     public double sumSq() {
 
-        return _sumSq;
+        return _m2 + _n * _mean * _mean;
 
     }
 
     /**
      * Return the number of datusm in the sequence.
-     * @return the number of datums in the sequence.
+     * @return the number of datums in the sequence (or {@link Integer#MAX_VALUE} if there are more than that; see
+     * {@link #count}).
      */
 
     public int n() {
 
+        return (int)Math.min( _n, (long)Integer.MAX_VALUE );
+
+    }
+
+    /**
+     * Return the number of datums in the sequence.
+     * @return the number of datums in the sequence.
+     */
+
+    public long count() {
+
         return _n;
 
     }
 
+    /**
+     * Estimate a quantile of the values.
+     * @param q the quantile (0 is the smallest value, 0.5 the median and 1 the largest value).
+     * @return the estimate (NaN if there are no values).
+     * @throws IllegalStateException if this instance wasn't created to estimate quantiles.
+     */
+
+    public double quantile( double q ) {
+
+        if ( _quantiles == null ) {
+
+            throw new IllegalStateException( "this instance doesn't estimate quantiles" );
+
+        }
+
+        return _quantiles.quantile( q );
+
+    }
+
     public String toString() {
 
         return "Stats(" + " n = " + _n + ( _n > 0 ? ", mean = " + mean() : "" ) +
@@ -0,0 +1,218 @@
+package com.obtuse.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Check how accurate {@link Stats} is on values which are large compared to their spread (compared with summing the
+ * squares, which is what it used to do), make sure that statistics computed in parallel and merged match the ones
+ * computed in one pass, check that quantile estimates are within their promised accuracy, and time it all.
+ * <p/>
+ * Usage:  <tt>StatsBenchmark [values [threads]]</tt>
+ */
+
+public class StatsBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final double OFFSET = 1.0e9;
+
+    private static final double[] QUANTILES = { 0.001, 0.01, 0.5, 0.99, 0.999 };
+
+    private StatsBenchmark() {
+        super();
+
+    }
+
+    private static void fail( String what ) {
+
+        Logger.logErr( what );
+        System.exit( 1 );
+
+    }
+
+    private static double relativeError( double actual, double expected ) {
+
+        return Math.abs( actual - expected ) / Math.abs( expected );
+
+    }
+
+    /**
+     * Compute the population variance the careful way (two passes).
+     */
+
+    private static double exactVariance( double[] values ) {
+
+        double sum = 0.0;
+        for ( double v : values ) {
+
+            sum += v - StatsBenchmark.OFFSET;
+
+        }
+
+        double mean = sum / (double)values.length;
+        double sumSq = 0.0;
+        for ( double v : values ) {
+
+            double d = v - StatsBenchmark.OFFSET - mean;
+            sumSq += d * d;
+
+        }
+
+        return sumSq / (double)values.length;
+
+    }
+
+    private static Stats serial( String name, double[] values, boolean quantiles ) {
+
+        Measure m = new Measure( name );
+        Stats stats = quantiles ? new Stats( QuantileSketch.DEFAULT_RELATIVE_ACCURACY ) : new Stats();
+        for ( double v : values ) {
+
+            stats.datum( v );
+
+        }
+
+        m.done();
+
+        return stats;
+
+    }
+
+    private static Stats parallel( String name, double[] values, ExecutorService executor, int threads, boolean quantiles )
+            throws InterruptedException {
+
+        Measure m = new Measure( name );
+        //noinspection MagicNumber
+        Stats stats = Stats.parallelOf( values, executor, threads * 4, quantiles );
+        m.done();
+
+        return stats;
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "StatsBenchmark", null );
+
+        int count = args.length > 0 ? Integer.parseInt( args[0] ) : 5000000;
+        int threads = args.length > 1 ? Integer.parseInt( args[1] ) : 4;
+
+        // Values with a standard deviation of 1 a long way from zero.
+
+        Random random = new Random( 42L );
+        double[] offset = new double[count];
+        for ( int i = 0; i < count; i += 1 ) {
+
+            offset[i] = StatsBenchmark.OFFSET + random.nextGaussian();
+
+        }
+
+        double exact = StatsBenchmark.exactVariance( offset );
+        double sum = 0.0;
+        double sumSq = 0.0;
+        for ( double v : offset ) {
+
+            sum += v;
+            sumSq += v * v;
+
+        }
+
+        double naive = ( sumSq - sum * sum / (double)count ) / (double)count;
+        Stats welford = StatsBenchmark.serial( "warmup", offset, false );
+        Logger.logMsg(
+                "variance of values around " + StatsBenchmark.OFFSET + ":  exact " + exact + ", sum of squares " + naive +
+                ", Stats " + welford.populationVariance()
+        );
+        //noinspection MagicNumber
+        if ( StatsBenchmark.relativeError( welford.populationVariance(), exact ) > 1.0e-6 ) {
+
+            StatsBenchmark.fail( "Stats' variance is too far off" );
+
+        }
+
+        // Values spread over several orders of magnitude (and a few negative ones) for the quantiles.
+
+        double[] spread = new double[count];
+        for ( int i = 0; i < count; i += 1 ) {
+
+            //noinspection MagicNumber
+            spread[i] = ( i % 100 == 0 ? -1.0 : 1.0 ) * Math.exp( random.nextGaussian() * 3.0 );
+
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+
+            Stats serial = null;
+            Stats parallel = null;
+            for ( int round = 0; round < StatsBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                StatsBenchmark.serial( "serial", offset, false );
+                StatsBenchmark.parallel( "parallel", offset, executor, threads, false );
+                serial = StatsBenchmark.serial( "serial with quantiles", spread, true );
+                parallel = StatsBenchmark.parallel( "parallel with quantiles", spread, executor, threads, true );
+
+            }
+
+            // Merged partial results must match the single pass.
+
+            //noinspection MagicNumber
+            if ( parallel.count() != serial.count() ||
+                 parallel.getMinValue() != serial.getMinValue() ||
+                 parallel.getMaxValue() != serial.getMaxValue() ||
+                 StatsBenchmark.relativeError( parallel.mean(), serial.mean() ) > 1.0e-9 ||
+                 StatsBenchmark.relativeError( parallel.populationVariance(), serial.populationVariance() ) > 1.0e-9 ||
+                 StatsBenchmark.relativeError( parallel.sum(), serial.sum() ) > 1.0e-12 ) {
+
+                StatsBenchmark.fail( "merged statistics " + parallel + " don't match " + serial );
+
+            }
+
+            double[] sorted = spread.clone();
+            Arrays.sort( sorted );
+            for ( double q : StatsBenchmark.QUANTILES ) {
+
+                double expected = sorted[(int)( q * (double)( count - 1 ) )];
+                double estimate = parallel.quantile( q );
+                double error = StatsBenchmark.relativeError( estimate, expected );
+                Logger.logMsg( "quantile " + q + ":  exact " + expected + ", estimate " + estimate );
+                if ( error > QuantileSketch.DEFAULT_RELATIVE_ACCURACY || estimate != serial.quantile( q ) ) {
+
+                    StatsBenchmark.fail( "quantile " + q + " is off by " + error * 100.0 + "%" );
+
+                }
+
+            }
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        } finally {
+
+            executor.shutdown();
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -3,16 +3,14 @@ package com.obtuse.util;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -29,6 +27,13 @@ public class Trace {
 
     public static final DateFormat OUR_DATE_FORMAT = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" );
 
+    /**
+     * Formats timestamps the way that {@link #OUR_DATE_FORMAT} does but can be used by any number of threads at once
+     * (trace reports are produced concurrently by the trace port listener's workers).
+     */
+
+    static final CachedTimestampFormat TIMESTAMP_FORMAT = new CachedTimestampFormat( Trace.OUR_DATE_FORMAT );
+
 //    public static final DateFormat YYMMDD_HHMMSS_FORMAT = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
 
     private static final Map<Integer, TraceHook> s_traceHooks = new TreeMap<Integer, TraceHook>();
@@ -40,6 +45,8 @@ public class Trace {
 
     private static boolean s_liveTrace = false;
 
+    private static boolean s_binaryFormat = false;
+
     private static String s_programName = null;
 
     private static File s_traceFileDirectory = new File( BasicProgramConfigInfo.getWorkingDirectory(), "traces" );
@@ -95,20 +102,14 @@ public class Trace {
 
         private final long _tid;
 
-        private Throwable _exception = null;
+        private final Throwable _exception;
 
-        private TraceEvent( String event ) {
+        private TraceEvent( String why, long tid, Throwable e ) {
             super();
 
-            _event = event;
+            _event = why + ( e == null ? "" : " (associated exception:  " + e + ")" );
             _timestamp = System.currentTimeMillis();
-            _tid = Thread.currentThread().getId();
-
-        }
-
-        private TraceEvent( String why, Throwable e ) {
-            this( why + ( e == null ? "" : " (associated exception:  " + e + ")" ) );
-
+            _tid = tid;
             _exception = e;
 
         }
@@ -134,47 +135,128 @@ public class Trace {
 
         }
 
-        private void emit( List<String> results ) {
-
-            String pfx = Trace.OUR_DATE_FORMAT.format( _timestamp ) + " {" + _tid + "}:  ";
+        public String toString() {
 
-            results.add( pfx + _event );
+            String msg = Trace.TIMESTAMP_FORMAT.format( _timestamp ) + " {" + _tid + "}:  " + _event;
 
             if ( _exception != null ) {
 
-                Trace.captureStackTrace( false, pfx, _exception, results );
+                List<String> results = new LinkedList<String>();
+                Trace.captureStackTrace( false, "", _exception, results );
+                for ( String s : results ) {
+
+                    msg += "\n" + s;
+
+                }
 
             }
 
+            return msg;
+
         }
 
-        public String toString() {
+    }
 
-            String msg = Trace.OUR_DATE_FORMAT.format( _timestamp ) + " {" + _tid + "}:  " + _event;
+    /**
+     * The most recent trace events recorded by one thread.
+     * <p/>
+     * Only the owning thread ever records events so recording needs no locks.  Events are published via an
+     * {@link AtomicReferenceArray} and a volatile count so that other threads can take a (slightly fuzzy) snapshot at
+     * any time.
+     */
 
-            if ( _exception != null ) {
+    private static class ThreadTrace {
 
-                List<String> results = new LinkedList<String>();
-                Trace.captureStackTrace( false, "", _exception, results );
-                for ( String s : results ) {
+        private final WeakReference<Thread> _thread;
 
-                    msg += "\n" + s;
+        private final long _tid;
 
-                }
+        private final AtomicReferenceArray<TraceEvent> _events;
+
+        private volatile long _recorded = 0L;
+
+        private boolean _busy = false;          // Only touched by the owning thread.
+
+        private ThreadTrace( Thread thread, int capacity ) {
+            super();
+
+            _thread = new WeakReference<Thread>( thread );
+            _tid = thread.getId();
+            _events = new AtomicReferenceArray<TraceEvent>( capacity );
+
+        }
+
+        private void record( TraceEvent event ) {
+
+            long recorded = _recorded;
+            _events.lazySet( (int)( recorded % (long)_events.length() ), event );
+            _recorded = recorded + 1L;
+
+        }
+
+        /**
+         * Copy this thread's events (oldest first).
+         * Events which are overwritten while we're copying them are left out.
+         */
+
+        private void snapshot( List<TraceEvent> into ) {
+
+            int capacity = _events.length();
+            long end = _recorded;
+            long start = Math.max( 0L, end - (long)capacity );
+            List<TraceEvent> events = new ArrayList<TraceEvent>( (int)( end - start ) );
+            for ( long i = start; i < end; i += 1L ) {
+
+                events.add( _events.get( (int)( i % (long)capacity ) ) );
 
             }
 
-            return msg;
+            // Anything the owner has recorded since we started may have overwritten the oldest of our copies.
+
+            long overwritten = Math.min( _recorded - (long)capacity - start, (long)events.size() );
+            into.addAll( overwritten > 0L ? events.subList( (int)overwritten, events.size() ) : events );
+
+        }
+
+        private boolean isAlive() {
+
+            Thread thread = _thread.get();
+
+            return thread != null && thread.isAlive();
 
         }
 
     }
 
-    private static Queue<TraceEvent> s_traceEvents = new LinkedList<TraceEvent>();
+    private static final ThreadLocal<ThreadTrace> s_threadTrace = new ThreadLocal<ThreadTrace>() {
+
+        protected ThreadTrace initialValue() {
+
+            return Trace.newThreadTrace();
+
+        }
+
+    };
+
+    // Every thread's trace events.  Only locked when a thread records its first event and when a trace is requested.
+
+    private static final List<ThreadTrace> s_threadTraces = new LinkedList<ThreadTrace>();
 
     private static final List<TraceFileManager> s_traceFileManagers = new LinkedList<TraceFileManager>();
 
-    private static final int MAX_TRACE_EVENTS = 25000;
+    public static final int DEFAULT_EVENTS_PER_THREAD = 2048;
+
+    /**
+     * How many threads which have ended get to keep their trace events.
+     */
+
+    private static final int MAX_DEAD_THREAD_TRACES = 64;
+
+    private static volatile int s_eventsPerThread = Trace.DEFAULT_EVENTS_PER_THREAD;
+
+    private static SamplingProfiler s_profiler = null;
+
+    private static int s_profilerHookId = 0;
 
     private Trace() {
 
@@ -189,6 +271,23 @@ public class Trace {
 
     }
 
+    /**
+     * Choose the format of trace files.
+     * <p/>
+     * Binary trace files (see {@link BinaryTrace}) are much smaller and much quicker to write than the usual gzipped
+     * text files, particularly when there are lots of threads with similar stacks.  They can be turned back into the
+     * usual text with <tt>java com.obtuse.util.BinaryTrace <i>file</i></tt>.
+     *
+     * @param value true if trace files are to be written in binary; false if they are to be written as text.
+     */
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setBinaryFormat( boolean value ) {
+
+        Trace.s_binaryFormat = value;
+
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public static void register( TraceFileManager traceFileManager ) {
 
@@ -200,6 +299,74 @@ public class Trace {
 
     }
 
+    /**
+     * Set how many trace events each thread keeps.
+     * <p/>
+     * Each thread keeps its most recent events in a fixed size ring buffer of its own.  The size only affects threads
+     * which record their first event after this method is called.  A few threads which have ended keep their events
+     * too (until they are crowded out by more recently ended threads).
+     *
+     * @param eventsPerThread the number of events.
+     * @throws IllegalArgumentException if the number is not positive.
+     */
+
+    @SuppressWarnings("UnusedDeclaration")
+    public static void setEventsPerThread( int eventsPerThread ) {
+
+        if ( eventsPerThread <= 0 ) {
+
+            throw new IllegalArgumentException( "events per thread must be positive (" + eventsPerThread + " is not)" );
+
+        }
+
+        Trace.s_eventsPerThread = eventsPerThread;
+
+    }
+
+    public static int getEventsPerThread() {
+
+        return Trace.s_eventsPerThread;
+
+    }
+
+    private static ThreadTrace newThreadTrace() {
+
+        ThreadTrace threadTrace = new ThreadTrace( Thread.currentThread(), Trace.s_eventsPerThread );
+        synchronized ( Trace.s_threadTraces ) {
+
+            // Forget the oldest of the threads which have ended if there are too many of them.
+
+            int dead = 0;
+            for ( ThreadTrace existing : Trace.s_threadTraces ) {
+
+                if ( !existing.isAlive() ) {
+
+                    dead += 1;
+
+                }
+
+            }
+
+            for ( Iterator<ThreadTrace> iter = Trace.s_threadTraces.iterator();
+                  iter.hasNext() && dead >= Trace.MAX_DEAD_THREAD_TRACES; ) {
+
+                if ( !iter.next().isAlive() ) {
+
+                    iter.remove();
+                    dead -= 1;
+
+                }
+
+            }
+
+            Trace.s_threadTraces.add( threadTrace );
+
+        }
+
+        return threadTrace;
+
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public static void setProgramName( String programName ) {
 
@@ -248,6 +415,56 @@ public class Trace {
 
     }
 
+    /**
+     * Start a sampling profiler (see {@link SamplingProfiler}) whose report goes into every trace report.
+     * Any profiler started earlier is stopped and replaced.
+     *
+     * @param samplesPerSecond how often to sample every thread's stack.
+     * @return the profiler.
+     */
+
+    public static synchronized SamplingProfiler startProfiler( int samplesPerSecond ) {
+
+        Trace.stopProfiler();
+
+        SamplingProfiler profiler = new SamplingProfiler( samplesPerSecond, SamplingProfiler.DEFAULT_MAX_DEPTH, true );
+        profiler.start();
+        Trace.s_profiler = profiler;
+        Trace.s_profilerHookId = Trace.addTraceHook( profiler );
+
+        return profiler;
+
+    }
+
+    /**
+     * Stop the profiler started by {@link #startProfiler} (if there is one) and drop its report from trace reports.
+     */
+
+    public static synchronized void stopProfiler() {
+
+        if ( Trace.s_profiler != null ) {
+
+            Trace.s_profiler.stop();
+            Trace.removeTraceHook( Trace.s_profilerHookId );
+            Trace.s_profiler = null;
+
+        }
+
+    }
+
+    /**
+     * Get the profiler started by {@link #startProfiler}.
+     *
+     * @return the profiler or null if there isn't one.
+     */
+
+    @Nullable
+    public static synchronized SamplingProfiler getProfiler() {
+
+        return Trace.s_profiler;
+
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public TraceHook getHook( int id ) {
 
@@ -267,22 +484,27 @@ public class Trace {
 
     }
 
-    public static void event( String event, @Nullable Throwable e ) {
+    /**
+     * Record a trace event.
+     * The event goes into the calling thread's own ring buffer without taking any locks.
+     *
+     * @param event what happened.
+     * @param e     the associated exception (if any).
+     */
 
-        Long threadId = Thread.currentThread().getId();
+    public static void event( String event, @Nullable Throwable e ) {
 
-        synchronized ( Trace.s_exceptionsInProgress ) {
+        ThreadTrace threadTrace = Trace.s_threadTrace.get();
 
-            // Avoid recursion
+        // Avoid recursion
 
-            if ( Trace.s_exceptionsInProgress.containsKey( threadId ) ) {
+        if ( threadTrace._busy ) {
 
-                return;
-
-            }
+            return;
 
         }
 
+        threadTrace._busy = true;
         try {
 
             if ( Trace.s_liveTrace ) {
@@ -298,23 +520,166 @@ public class Trace {
 
             }
 
-            synchronized ( Trace.TRACE_HOOKS_LOCK ) {
+            threadTrace.record( new TraceEvent( event, threadTrace._tid, e ) );
+
+        } finally {
+
+            threadTrace._busy = false;
 
-                Trace.s_traceEvents.add( new TraceEvent( event, e ) );
+        }
+
+    }
+
+    /**
+     * Collect every thread's trace events.
+     *
+     * @return the events, in timestamp order (events with the same timestamp from the same thread stay in the order in
+     *         which they were recorded).
+     */
+
+    private static List<TraceEvent> collectEvents() {
+
+        List<ThreadTrace> threadTraces;
+        synchronized ( Trace.s_threadTraces ) {
+
+            threadTraces = new ArrayList<ThreadTrace>( Trace.s_threadTraces );
+
+        }
+
+        List<TraceEvent> events = new ArrayList<TraceEvent>();
+        for ( ThreadTrace threadTrace : threadTraces ) {
+
+            threadTrace.snapshot( events );
+
+        }
+
+        // Each thread's events are already in order so a stable sort by timestamp merges them.
 
-                if ( Trace.s_traceEvents.size() > Trace.MAX_TRACE_EVENTS ) {
+        Collections.sort(
+                events,
+                new Comparator<TraceEvent>() {
 
-                    Trace.s_traceEvents.remove();
+                    public int compare( TraceEvent lhs, TraceEvent rhs ) {
+
+                        return lhs._timestamp < rhs._timestamp ? -1 : lhs._timestamp == rhs._timestamp ? 0 : 1;
+
+                    }
 
                 }
+        );
+
+        return events;
+
+    }
+
+    /**
+     * Where the parts of a trace report go as they are collected (see {@link #collectTrace}).
+     */
+
+    interface TraceSink {
+
+        /**
+         * Add a line of text.
+         */
+
+        void line( String line );
+
+        /**
+         * Describe a thread and its stack.
+         */
+
+        void thread( ThreadInfo info );
+
+        /**
+         * Describe a trace event.
+         */
+
+        void event( long timestamp, long tid, String event, @Nullable Throwable exception );
+
+    }
+
+    /**
+     * Collects a trace report as lines of text.
+     */
+
+    static class TextTraceSink implements TraceSink {
+
+        private final List<String> _results;
+
+        TextTraceSink( @Nullable List<String> results ) {
+            super();
+
+            _results = results;
+
+        }
+
+        /**
+         * Add a line of text to the report.
+         * Override this to send the lines somewhere other than a list.
+         */
+
+        void add( String line ) {
+
+            _results.add( line );
+
+        }
+
+        public void line( String line ) {
+
+            add( line );
+
+        }
+
+        public void thread( ThreadInfo info ) {
+
+            add(
+                    "{" + info.getThreadId() + "}:" +
+                    info.getThreadName() +
+                    " (state = " + info.getThreadState() +
+// Java on Mac OS X sometimes crashes if the next line is uncommented!
+//                                 ", cpu = " + formatCpuTime(bean.getThreadCpuTime(info.getThreadId()) ) +
+                    ")"
+            );
+
+            String lock = info.getLockName();
+            if ( lock != null ) {
+
+                String lockOwnerName = info.getLockOwnerName();
+                long lockOwnerId = info.getLockOwnerId();
+
+                add(
+                        "    thread is waiting for \"" + lock + "\" which is currently held by {" +
+                        lockOwnerId + "}:" + lockOwnerName
+                );
 
             }
 
-        } finally {
+            StackTraceElement[] stack = info.getStackTrace();
+            for ( StackTraceElement element : stack ) {
+
+                add( "    at " + Trace.formatFrame( element ) );
 
-            synchronized ( Trace.s_exceptionsInProgress ) {
+            }
 
-                Trace.s_exceptionsInProgress.remove( threadId );
+            add( "" );
+
+        }
+
+        public void event( long timestamp, long tid, String event, @Nullable Throwable exception ) {
+
+            String pfx = Trace.TIMESTAMP_FORMAT.format( timestamp ) + " {" + tid + "}:  ";
+
+            add( pfx + event );
+
+            if ( exception != null ) {
+
+                List<String> lines = new ArrayList<String>();
+                Trace.captureStackTrace( false, pfx, exception, lines );
+                for ( String line : lines ) {
+
+                    add( line );
+
+                }
 
             }
 
@@ -322,114 +687,136 @@ public class Trace {
 
     }
 
+    /**
+     * Format a stack frame the way that thread stacks appear in trace reports.
+     */
+
+    static String formatFrame( StackTraceElement element ) {
+
+        return element.getClassName() + "." + element.getMethodName() + "(" +
+               element.getFileName() + ":" + element.getLineNumber() + ")";
+
+    }
+
     public static List<String> getTrace( String why, String where ) {
 
-        // Sitting on the trace hooks lock while collecting trace data risks a deadlock
-        // (e.g. if some other thread tries to record a trace event) so we hold the
-        // lock only long enough to collect copies of the raw trace data and hooks.
+        List<String> results = new LinkedList<String>();
+        Trace.collectTrace( why, where, new TextTraceSink( results ) );
 
-        List<TraceEvent> events;
-        Map<Integer, TraceHook> hooks;
-        synchronized ( Trace.TRACE_HOOKS_LOCK ) {
+        return results;
 
-            events = new LinkedList<TraceEvent>();
-            for ( TraceEvent event : Trace.s_traceEvents ) {
-                events.add( event );
-            }
+    }
+
+    /**
+     * Collect a trace report.
+     *
+     * @param why   why the report is being collected.
+     * @param where where it is going to end up.
+     * @param sink  where the parts of the report go.
+     */
+
+    static void collectTrace( String why, String where, TraceSink sink ) {
+
+        Trace.collectTrace( why, where, sink, true, Long.MIN_VALUE, true );
+
+    }
+
+    /**
+     * Collect some or all of a trace report.
+     *
+     * @param why         why the report is being collected.
+     * @param where       where it is going to end up.
+     * @param sink        where the parts of the report go.
+     * @param threads     true if the report should describe every thread.
+     * @param eventsSince only events recorded at or after this time (in milliseconds since the epoch) go into the
+     *                    report ({@link Long#MAX_VALUE} leaves out the events altogether).
+     * @param hooks       true if the trace hooks should be run.
+     */
+
+    static void collectTrace( String why, String where, TraceSink sink, boolean threads, long eventsSince, boolean hooks ) {
+
+        // Sitting on the trace hooks lock while running the hooks risks a deadlock
+        // so we hold the lock only long enough to collect copies of the hooks.
+
+        List<TraceEvent> events = eventsSince == Long.MAX_VALUE ? new ArrayList<TraceEvent>() : Trace.collectEvents();
+        Map<Integer, TraceHook> traceHooks = new TreeMap<Integer, TraceHook>();
+        if ( hooks ) {
+
+            synchronized ( Trace.TRACE_HOOKS_LOCK ) {
+
+                for ( int hookId : Trace.s_traceHooks.keySet() ) {
+                    traceHooks.put( hookId, Trace.s_traceHooks.get( hookId ) );
+                }
 
-            hooks = new TreeMap<Integer, TraceHook>();
-            for ( int hookId : Trace.s_traceHooks.keySet() ) {
-                hooks.put( hookId, Trace.s_traceHooks.get( hookId ) );
             }
 
         }
 
-        List<String> results = new LinkedList<String>();
         try {
 
             String what = "Trace requested at " + new Date() +
                           ( Trace.s_programName == null ? "" : " for " + Trace.s_programName ) +
                           ( why == null ? "" : " (" + why + ")" );
 
-            results.add( what );
-            results.add( "IMPORTANT:  email this to danny@savrola.com (you should find a copy in \"" + where + "\")" );
-
-            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
-            long[] curThreads = bean.getAllThreadIds();
-
-            //noinspection MagicNumber
-            ThreadInfo[] thInfos = bean.getThreadInfo( curThreads, 50 );
-            for ( ThreadInfo info : thInfos ) {
+            sink.line( what );
+            sink.line( "IMPORTANT:  email this to danny@savrola.com (you should find a copy in \"" + where + "\")" );
 
-                if ( info != null ) {
+            if ( threads ) {
 
-                    results.add(
-                            "{" + info.getThreadId() + "}:" +
-                            info.getThreadName() +
-                            " (state = " + info.getThreadState() +
-// Java on Mac OS X sometimes crashes if the next line is uncommented!
-//                                 ", cpu = " + formatCpuTime(bean.getThreadCpuTime(info.getThreadId()) ) +
-                            ")"
-                    );
+                ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                long[] curThreads = bean.getAllThreadIds();
 
-                    String lock = info.getLockName();
-                    if ( lock != null ) {
+                //noinspection MagicNumber
+                ThreadInfo[] thInfos = bean.getThreadInfo( curThreads, 50 );
+                for ( ThreadInfo info : thInfos ) {
 
-                        String lockOwnerName = info.getLockOwnerName();
-                        long lockOwnerId = info.getLockOwnerId();
+                    if ( info != null ) {
 
-                        results.add(
-                                "    thread is waiting for \"" + lock + "\" which is currently held by {" +
-                                lockOwnerId + "}:" + lockOwnerName
-                        );
+                        sink.thread( info );
 
                     }
 
-                    StackTraceElement[] stack = info.getStackTrace();
-                    for ( StackTraceElement element : stack ) {
+                }
 
-                        results.add(
-                                "    at " + element.getClassName() + "." + element.getMethodName() + "(" +
-                                element.getFileName() + ":" + element.getLineNumber() + ")"
-                        );
+            }
 
-                    }
+            if ( eventsSince != Long.MAX_VALUE ) {
 
-                    results.add( "" );
-                }
+                sink.line( "" );
+                sink.line( "trace events:" );
 
-            }
+                for ( TraceEvent event : events ) {
 
-            results.add( "" );
-            results.add( "trace events:" );
+                    if ( event._timestamp >= eventsSince ) {
 
-            for ( TraceEvent event : events ) {
+                        sink.event( event._timestamp, event._tid, event._event, event._exception );
 
-                event.emit( results );
-//                results.add( "    " + event );
+                    }
+
+                }
 
             }
 
             // Process the hooks in the order that they were defined.
 
-            if ( !hooks.isEmpty() ) {
+            if ( !traceHooks.isEmpty() ) {
 
-                results.add( "" );
-                results.add( "trace hooks:" );
+                sink.line( "" );
+                sink.line( "trace hooks:" );
 
                 // System.out.println("trace hooks");
 
-                for ( int hookId : hooks.keySet() ) {
+                for ( int hookId : traceHooks.keySet() ) {
 
-                    results.add( "" );
-                    TraceHook hook = hooks.get( hookId );
+                    sink.line( "" );
+                    TraceHook hook = traceHooks.get( hookId );
                     //noinspection UseOfSystemOutOrSystemErr
                     System.out.println( "doing hook " + hook );
                     List<String> hookResults = hook.run();
 
                     for ( String line : hookResults ) {
 
-                        results.add( line );
+                        sink.line( line );
 
                     }
 
@@ -439,14 +826,12 @@ public class Trace {
 
         } catch ( Throwable e ) {
 
-            results.add( "*** unable to collect trace data due to exception:  " + e.getMessage() );
+            sink.line( "*** unable to collect trace data due to exception:  " + e.getMessage() );
 
         }
 
         // System.out.println("trace data collected");
 
-        return results;
-
     }
 
     @SuppressWarnings("UseOfSystemOutOrSystemErr")
@@ -454,10 +839,20 @@ public class Trace {
 
         String where = Trace._logFileNameFormatter.format( System.currentTimeMillis() );
         System.out.println( "where string built" );
-        List<String> results = Trace.getTrace( why, where );
-        System.out.println( "results collected" );
+        String rval;
+        if ( Trace.s_binaryFormat ) {
+
+            rval = Trace.emitBinaryTrace( why, null, where );
+
+        } else {
+
+            List<String> results = Trace.getTrace( why, where );
+            System.out.println( "results collected" );
+
+            rval = Trace.emitResults( why, results, where, true );
+
+        }
 
-        String rval = Trace.emitResults( why, results, where, true );
         System.out.println( "file emitted" );
 
         //noinspection MagicNumber
@@ -489,6 +884,12 @@ public class Trace {
 
             }
             String longWhy = ( why == null ? "" : why + " / " ) + exceptionDescription;
+            if ( Trace.s_binaryFormat ) {
+
+                return Trace.emitBinaryTrace( longWhy, e, where );
+
+            }
+
             List<String> results = Trace.getTrace( longWhy, where );
 
             Trace.captureStackTrace( true, "", e, results );
@@ -499,7 +900,7 @@ public class Trace {
 
     }
 
-    private static void captureStackTrace( boolean bothStyles, String pfx, Throwable e, List<String> results ) {
+    static void captureStackTrace( boolean bothStyles, String pfx, Throwable e, List<String> results ) {
 
         if ( bothStyles ) {
 
@@ -577,14 +978,81 @@ public class Trace {
 
         }
 
+        Trace.announceTraceFile( why, traceFname, timeStamp );
+
+        return traceFname;
+
+    }
+
+    /**
+     * Collect a trace report and write it straight to a binary trace file (see {@link BinaryTrace}).
+     *
+     * @param why   why the trace was requested.
+     * @param e     the exception which prompted the trace (null if there wasn't one).
+     * @param where the name that a text trace file would have had.
+     * @return the path of the binary trace file.
+     */
+
+    private static String emitBinaryTrace( String why, @Nullable Throwable e, String where ) {
+
+        final long timeStamp = System.currentTimeMillis();
+
+        String traceFname = ( where.endsWith( ".txt" ) ? where.substring( 0, where.length() - 4 ) : where ) +
+                            BinaryTrace.FILE_SUFFIX;
+        File traceFile = new File( Trace.s_traceFileDirectory, traceFname );
+        BinaryTrace.Writer writer = null;
+
+        try {
+
+            //noinspection ResultOfMethodCallIgnored
+            Trace.s_traceFileDirectory.mkdirs();
+
+            writer = new BinaryTrace.Writer( new FileOutputStream( traceFile ) );
+            Trace.collectTrace( why, traceFname, writer );
+            if ( e != null ) {
+
+                List<String> lines = new ArrayList<String>();
+                Trace.captureStackTrace( true, "", e, lines );
+                for ( String line : lines ) {
+
+                    writer.line( line );
+
+                }
+
+            }
+
+            BinaryTrace.Writer finishing = writer;
+            writer = null;
+            finishing.close();
+
+        } catch ( FileNotFoundException ee ) {
+
+            Logger.logErr( "unable to open trace file \"" + traceFile + "\"", ee );
+
+        } catch ( IOException ee ) {
+
+            Logger.logErr( "I/O error writing trace file \"" + traceFile + "\"", ee );
+
+        } finally {
+
+            ObtuseUtil.closeQuietly( writer );
+
+        }
+
+        Trace.announceTraceFile( why, traceFile.getPath(), timeStamp );
+
+        return traceFile.getPath();
+
+    }
+
+    private static void announceTraceFile( String why, String traceFname, long timeStamp ) {
+
         // Report the trace via the friendly logger.
 
         Logger.logMsg( "A trace file has been captured (" + why + ")", null );
 
         Trace.tellTraceFileManagers( traceFname, timeStamp );
 
-        return traceFname;
-
     }
 
     private static void tellTraceFileManagers( final String traceFname, final long timeStamp ) {
@@ -617,60 +1085,22 @@ public class Trace {
 
     }
 
+    /**
+     * Start listening for trace requests on a local port (see {@link TracePortListener} for the commands that it
+     * understands).
+     * The program exits if the port cannot be opened.
+     *
+     * @param port the port (0 to let the system pick one).
+     */
+
     @SuppressWarnings("UnusedDeclaration")
     public static void startTracePortListener( int port ) {
 
         try {
 
-            final ServerSocket listenSocket = new ServerSocket();
-
-            listenSocket.setReuseAddress( true );
-            listenSocket.bind(
-                    new InetSocketAddress(
-                            "127.0.0.1",
-                            port
-                    )
-            );
-            Logger.logMsg( "listening for a trace request on port " + listenSocket.getLocalPort() );
-
-            //noinspection RefusedBequest,ClassWithoutToString
-            new Thread( "trace port listener" ) {
-
-                public void run() {
-
-                    while ( true ) {
-                        try {
-
-                            Socket sock = listenSocket.accept();
-                            Logger.logErr( "trace requested" );
-                            Trace.emitTrace( "externally requested" );
-                            Logger.logErr( "trace done" );
-                            ObtuseUtil.closeQuietly( sock );
-
-                        } catch ( Throwable e ) {
-
-                            Logger.logErr(
-                                    "trace port listener caught an exception/error - thread terminating after one more trace",
-                                    e
-                            );
-                            Trace.emitTrace( "trace port listener failed", e );
-
-                            ObtuseUtil.closeQuietly( listenSocket );
-
-                            return;
-
-                        }
-
-                    }
-
-                }
-
-            }.start();
-
-        } catch ( SocketException e ) {
-
-            Trace.emitTrace( "trace port listener unable to allocate listen socket on port " + port, e );
-            System.exit( 1 );
+            TracePortListener listener = new TracePortListener( port );
+            Logger.logMsg( "listening for trace requests on port " + listener.getPort() );
+            listener.start();
 
         } catch ( IOException e ) {
 
@@ -0,0 +1,174 @@
+package com.obtuse.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Time {@link Trace#event} with one thread and with several threads recording events at once and make sure that a
+ * trace taken afterwards has each thread's most recent events in order.
+ * <p/>
+ * Usage:  <tt>TraceBenchmark [threads [events]]</tt>
+ */
+
+public class TraceBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static int s_run = 0;
+
+    private TraceBenchmark() {
+        super();
+
+    }
+
+    private static void record( String name, int threadCount, final int events )
+            throws InterruptedException {
+
+        // Tag each event with the run so that the check can ignore events recorded by earlier runs.
+
+        TraceBenchmark.s_run += 1;
+        Thread[] threads = new Thread[threadCount];
+        for ( int t = 0; t < threadCount; t += 1 ) {
+
+            final String tracer = TraceBenchmark.s_run + "." + t;
+            threads[t] = new Thread( "tracer " + tracer ) {
+
+                public void run() {
+
+                    String prefix = "tracer " + tracer + " event ";
+                    for ( int i = 0; i < events; i += 1 ) {
+
+                        Trace.event( prefix + i );
+
+                    }
+
+                }
+
+            };
+
+        }
+
+        Measure m = new Measure( name );
+        for ( Thread thread : threads ) {
+
+            thread.start();
+
+        }
+
+        for ( Thread thread : threads ) {
+
+            thread.join();
+
+        }
+
+        m.done();
+
+    }
+
+    /**
+     * Make sure that the trace has each tracer's last events, in order.
+     */
+
+    private static void check( int threadCount, int events ) {
+
+        String run = TraceBenchmark.s_run + ".";
+        Map<String,Integer> lastEvent = new HashMap<String,Integer>();
+        List<String> trace = Trace.getTrace( "benchmark", "nowhere" );
+        for ( String line : trace ) {
+
+            int ix = line.indexOf( ":  tracer " );
+            if ( ix < 0 ) {
+
+                continue;
+
+            }
+
+            String[] words = line.substring( ix + 3 ).split( " " );
+            String tracer = words[1];
+            if ( !tracer.startsWith( run ) ) {
+
+                continue;
+
+            }
+
+            int event = Integer.parseInt( words[3] );
+            Integer previous = lastEvent.get( tracer );
+            if ( previous != null && event != previous + 1 ) {
+
+                Logger.logErr( "tracer " + tracer + "'s event " + event + " follows event " + previous );
+                System.exit( 1 );
+
+            }
+
+            lastEvent.put( tracer, event );
+
+        }
+
+        if ( lastEvent.size() != threadCount ) {
+
+            Logger.logErr( "found events from " + lastEvent.size() + " tracers instead of " + threadCount );
+            System.exit( 1 );
+
+        }
+
+        for ( Map.Entry<String,Integer> entry : lastEvent.entrySet() ) {
+
+            if ( entry.getValue() != events - 1 ) {
+
+                Logger.logErr( "tracer " + entry.getKey() + "'s last event is " + entry.getValue() );
+                System.exit( 1 );
+
+            }
+
+        }
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "TraceBenchmark", null );
+
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 4;
+        int events = args.length > 1 ? Integer.parseInt( args[1] ) : 1000000;
+
+        Logger.logMsg( threads + " threads recording " + events + " trace events each" );
+
+        try {
+
+            for ( int round = 0; round < TraceBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                TraceBenchmark.record( "1 thread", 1, events );
+                TraceBenchmark.record( threads + " threads", threads, events );
+
+            }
+
+            TraceBenchmark.record( "final", threads, events );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        }
+
+        TraceBenchmark.check( threads, events );
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
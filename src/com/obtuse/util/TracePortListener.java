@@ -0,0 +1,587 @@
+package com.obtuse.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Listen for trace requests on a local port.
+ * <p/>
+ * A single thread accepts connections and reads each one's command using non-blocking I/O.  Once a command has
+ * arrived, the request is handed to a small pool of worker threads which collect the trace and stream it back over
+ * the connection.  Several requests can be in progress at once, a client which starts sending a command but never
+ * finishes it is eventually dropped, and nothing that goes wrong with one request stops the listener from serving the
+ * next one.
+ * <p/>
+ * A command is a single line of text.  The listener understands these commands:
+ * <ul>
+ * <li>an empty line (or closing the connection or waiting for 30 seconds without sending anything) - write a trace
+ * file (just like {@link Trace#emitTrace(String)}) and reply with its name.</li>
+ * <li><tt>full</tt> - send the full trace report.</li>
+ * <li><tt>binary</tt> - send the full trace report in the binary format (see {@link BinaryTrace}).</li>
+ * <li><tt>threads</tt> or <tt>threads only</tt> - send just the threads and their stacks.</li>
+ * <li><tt>events</tt> - send just the trace events.</li>
+ * <li><tt>events since <i>T</i></tt> - send just the trace events recorded at or after <i>T</i>, which is either
+ * a time in milliseconds since the epoch or a time in {@link Trace#OUR_DATE_FORMAT}.</li>
+ * <li><tt>profile</tt> - send the collapsed stacks collected by the profiler started by {@link Trace#startProfiler}
+ * (ready for flame graph tools).</li>
+ * <li><tt>help</tt> - list the commands.</li>
+ * </ul>
+ */
+
+public class TracePortListener {
+
+    public static final int DEFAULT_WORKERS = 2;
+
+    private static final int MAX_COMMAND_LENGTH = 256;
+
+    private static final long COMMAND_TIMEOUT_MILLIS = 30000L;
+
+    private static final long SELECT_TIMEOUT_MILLIS = 1000L;
+
+    private static final long FAILURE_PAUSE_MILLIS = 1000L;
+
+    private static final String[] HELP = {
+            "commands:",
+            "    (empty line)         write a trace file and reply with its name",
+            "    full                 send the full trace report",
+            "    binary               send the full trace report in the binary format",
+            "    threads [only]       send just the threads and their stacks",
+            "    events [since T]     send the trace events (optionally only those at or after T)",
+            "    profile              send the profiler's collapsed stacks",
+            "    help                 show this list",
+    };
+
+    private final ServerSocketChannel _serverChannel;
+
+    private final Selector _selector;
+
+    private final ExecutorService _workers;
+
+    private volatile boolean _stopping = false;
+
+    /**
+     * A connection whose command hasn't all arrived yet.
+     */
+
+    private static class PendingRequest {
+
+        private final SocketChannel _channel;
+
+        private final ByteBuffer _command = ByteBuffer.allocate( TracePortListener.MAX_COMMAND_LENGTH );
+
+        private final long _acceptedAt = System.currentTimeMillis();
+
+        private PendingRequest( SocketChannel channel ) {
+            super();
+
+            _channel = channel;
+
+        }
+
+        /**
+         * Get the command if it has all arrived.
+         *
+         * @param eof true if the client isn't going to send anything more.
+         * @return the command or null if we need to wait for more of it.
+         */
+
+        @Nullable
+        private String getCommand( boolean eof )
+                throws UnsupportedEncodingException {
+
+            byte[] bytes = _command.array();
+            for ( int i = 0; i < _command.position(); i += 1 ) {
+
+                if ( bytes[i] == (byte)'\n' ) {
+
+                    return new String( bytes, 0, i, "UTF-8" ).trim();
+
+                }
+
+            }
+
+            if ( eof || !_command.hasRemaining() ) {
+
+                return new String( bytes, 0, _command.position(), "UTF-8" ).trim();
+
+            }
+
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Sends the lines of a trace report straight down a connection.
+     */
+
+    private static class StreamingTraceSink extends Trace.TextTraceSink {
+
+        private final PrintWriter _writer;
+
+        private StreamingTraceSink( PrintWriter writer ) {
+            super( null );
+
+            _writer = writer;
+
+        }
+
+        void add( String line ) {
+
+            _writer.println( line );
+
+        }
+
+    }
+
+    /**
+     * Open a listen socket on a local port.
+     * Nothing is accepted until {@link #start} is called.
+     *
+     * @param port the port (0 to let the system pick one).
+     * @throws IOException if the port cannot be opened.
+     */
+
+    public TracePortListener( int port )
+            throws IOException {
+
+        this( port, TracePortListener.DEFAULT_WORKERS );
+
+    }
+
+    /**
+     * Open a listen socket on a local port.
+     * Nothing is accepted until {@link #start} is called.
+     *
+     * @param port    the port (0 to let the system pick one).
+     * @param workers how many requests can be worked on at once.
+     * @throws IOException if the port cannot be opened.
+     */
+
+    public TracePortListener( int port, int workers )
+            throws IOException {
+        super();
+
+        _serverChannel = ServerSocketChannel.open();
+        try {
+
+            _serverChannel.socket().setReuseAddress( true );
+            _serverChannel.socket().bind( new InetSocketAddress( "127.0.0.1", port ) );
+            _serverChannel.configureBlocking( false );
+            _selector = Selector.open();
+            _serverChannel.register( _selector, SelectionKey.OP_ACCEPT );
+
+        } catch ( IOException e ) {
+
+            ObtuseUtil.closeQuietly( _serverChannel );
+            throw e;
+
+        }
+
+        _workers = Executors.newFixedThreadPool(
+                workers,
+                new ThreadFactory() {
+
+                    private int _nextWorker = 1;
+
+                    public synchronized Thread newThread( Runnable runnable ) {
+
+                        Thread thread = new Thread( runnable, "trace port worker " + _nextWorker );
+                        _nextWorker += 1;
+                        thread.setDaemon( true );
+
+                        return thread;
+
+                    }
+
+                }
+        );
+
+    }
+
+    /**
+     * Start accepting requests on a background thread.
+     */
+
+    public void start() {
+
+        //noinspection RefusedBequest,ClassWithoutToString
+        Thread thread = new Thread( "trace port listener" ) {
+
+            public void run() {
+
+                TracePortListener.this.listen();
+
+            }
+
+        };
+        thread.setDaemon( true );
+        thread.start();
+
+    }
+
+    /**
+     * Stop accepting requests and close the port.
+     * Requests which are already being worked on are allowed to finish.
+     */
+
+    public void stop() {
+
+        _stopping = true;
+        _selector.wakeup();
+
+    }
+
+    public int getPort() {
+
+        return _serverChannel.socket().getLocalPort();
+
+    }
+
+    private void listen() {
+
+        while ( !_stopping ) {
+
+            try {
+
+                _selector.select( TracePortListener.SELECT_TIMEOUT_MILLIS );
+
+                List<PendingRequest> ready = new ArrayList<PendingRequest>();
+                Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+                while ( iter.hasNext() ) {
+
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    try {
+
+                        if ( !key.isValid() ) {
+
+                            continue;
+
+                        }
+
+                        if ( key.isAcceptable() ) {
+
+                            accept();
+
+                        } else if ( key.isReadable() ) {
+
+                            PendingRequest request = (PendingRequest)key.attachment();
+                            if ( read( request ) ) {
+
+                                key.cancel();
+                                ready.add( request );
+
+                            }
+
+                        }
+
+                    } catch ( IOException e ) {
+
+                        Trace.event( "trace port listener dropped a connection", e );
+                        key.cancel();
+                        ObtuseUtil.closeQuietly( key.channel() );
+
+                    }
+
+                }
+
+                expireStalledRequests( ready );
+
+                if ( !ready.isEmpty() ) {
+
+                    // A cancelled key's channel stays registered (and therefore non-blocking) until the next select.
+
+                    _selector.selectNow();
+                    for ( PendingRequest request : ready ) {
+
+                        submit( request );
+
+                    }
+
+                }
+
+            } catch ( Throwable e ) {
+
+                Logger.logErr( "trace port listener caught an exception/error - carrying on", e );
+                ObtuseUtil.safeSleepMillis( TracePortListener.FAILURE_PAUSE_MILLIS );
+
+            }
+
+        }
+
+        for ( SelectionKey key : _selector.keys() ) {
+
+            ObtuseUtil.closeQuietly( key.channel() );
+
+        }
+
+        ObtuseUtil.closeQuietly( _selector );
+        ObtuseUtil.closeQuietly( _serverChannel );
+        _workers.shutdown();
+
+    }
+
+    private void accept()
+            throws IOException {
+
+        SocketChannel channel = _serverChannel.accept();
+        if ( channel == null ) {
+
+            return;
+
+        }
+
+        try {
+
+            channel.configureBlocking( false );
+            channel.register( _selector, SelectionKey.OP_READ, new PendingRequest( channel ) );
+
+        } catch ( IOException e ) {
+
+            ObtuseUtil.closeQuietly( channel );
+            throw e;
+
+        }
+
+    }
+
+    /**
+     * Read whatever has arrived of a connection's command.
+     *
+     * @return true if the command has all arrived.
+     */
+
+    private static boolean read( PendingRequest request )
+            throws IOException {
+
+        int count = request._channel.read( request._command );
+
+        return request.getCommand( count < 0 ) != null;
+
+    }
+
+    /**
+     * Deal with connections whose command still hasn't arrived after {@link #COMMAND_TIMEOUT_MILLIS}.
+     * A client which hasn't sent anything at all gets the empty command (it is probably just waiting for a trace file
+     * to be written).  One which has sent part of a command is dropped.
+     *
+     * @param ready where to put the requests which are to be served as the empty command.
+     */
+
+    private void expireStalledRequests( List<PendingRequest> ready ) {
+
+        long now = System.currentTimeMillis();
+        for ( SelectionKey key : _selector.keys() ) {
+
+            Object attachment = key.attachment();
+            if ( attachment instanceof PendingRequest &&
+                 now - ( (PendingRequest)attachment )._acceptedAt > TracePortListener.COMMAND_TIMEOUT_MILLIS ) {
+
+                PendingRequest request = (PendingRequest)attachment;
+                key.cancel();
+                if ( request._command.position() == 0 ) {
+
+                    ready.add( request );
+
+                } else {
+
+                    ObtuseUtil.closeQuietly( key.channel() );
+
+                }
+
+            }
+
+        }
+
+    }
+
+    private void submit( final PendingRequest request ) {
+
+        try {
+
+            _workers.execute(
+                    new Runnable() {
+
+                        public void run() {
+
+                            TracePortListener.serve( request );
+
+                        }
+
+                    }
+            );
+
+        } catch ( RejectedExecutionException e ) {
+
+            ObtuseUtil.closeQuietly( request._channel );
+
+        }
+
+    }
+
+    /**
+     * Carry out a request and close its connection.
+     * Only ever runs on a worker thread.
+     */
+
+    private static void serve( PendingRequest request ) {
+
+        try {
+
+            String command = request.getCommand( true );
+            request._channel.configureBlocking( true );
+            OutputStream out = new BufferedOutputStream( Channels.newOutputStream( request._channel ) );
+            try {
+
+                TracePortListener.reply( command, out );
+
+            } finally {
+
+                out.close();
+
+            }
+
+        } catch ( IOException e ) {
+
+            Trace.event( "trace port request failed", e );
+
+        } catch ( RuntimeException e ) {
+
+            Logger.logErr( "trace port request failed", e );
+
+        } finally {
+
+            ObtuseUtil.closeQuietly( request._channel );
+
+        }
+
+    }
+
+    private static void reply( @Nullable String command, OutputStream out )
+            throws IOException {
+
+        String why = "externally requested";
+        String where = "trace port";
+        PrintWriter writer = new PrintWriter( new OutputStreamWriter( out, "UTF-8" ) );
+        String[] words = command == null || command.length() == 0 ? new String[0] : command.split( "\\s+", 3 );
+
+        if ( words.length == 0 ) {
+
+            writer.println( "trace written to " + Trace.emitTrace( why ) );
+
+        } else if ( words.length == 1 && "full".equals( words[0] ) ) {
+
+            Trace.collectTrace( why, where, new StreamingTraceSink( writer ) );
+
+        } else if ( words.length == 1 && "binary".equals( words[0] ) ) {
+
+            BinaryTrace.Writer binary = new BinaryTrace.Writer( out );
+            Trace.collectTrace( why, where, binary );
+            binary.close();
+
+        } else if ( "threads".equals( words[0] ) && ( words.length == 1 || words.length == 2 && "only".equals( words[1] ) ) ) {
+
+            Trace.collectTrace( why, where, new StreamingTraceSink( writer ), true, Long.MAX_VALUE, false );
+
+        } else if ( "events".equals( words[0] ) && ( words.length == 1 || words.length == 3 && "since".equals( words[1] ) ) ) {
+
+            long since = Long.MIN_VALUE;
+            if ( words.length == 3 ) {
+
+                try {
+
+                    since = TracePortListener.parseTime( words[2] );
+
+                } catch ( ParseException e ) {
+
+                    writer.println( "unable to parse time \"" + words[2] + "\"" );
+                    writer.flush();
+
+                    return;
+
+                }
+
+            }
+
+            Trace.collectTrace( why, where, new StreamingTraceSink( writer ), false, since, false );
+
+        } else if ( words.length == 1 && "profile".equals( words[0] ) ) {
+
+            SamplingProfiler profiler = Trace.getProfiler();
+            if ( profiler == null ) {
+
+                writer.println( "the profiler isn't running" );
+
+            } else {
+
+                for ( String line : profiler.getCollapsedStacks() ) {
+
+                    writer.println( line );
+
+                }
+
+            }
+
+        } else {
+
+            if ( !"help".equals( command ) ) {
+
+                writer.println( "unknown command \"" + command + "\"" );
+
+            }
+
+            for ( String line : TracePortListener.HELP ) {
+
+                writer.println( line );
+
+            }
+
+        }
+
+        writer.flush();
+
+    }
+
+    private static long parseTime( String time )
+            throws ParseException {
+
+        try {
+
+            return Long.parseLong( time );
+
+        } catch ( NumberFormatException e ) {
+
+            synchronized ( Trace.OUR_DATE_FORMAT ) {
+
+                return Trace.OUR_DATE_FORMAT.parse( time ).getTime();
+
+            }
+
+        }
+
+    }
+
+    public String toString() {
+
+        return "TracePortListener( " + getPort() + " )";
+
+    }
+
+}
@@ -0,0 +1,267 @@
+package com.obtuse.util;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * Send lots of concurrent requests to a {@link TracePortListener} and make sure that every one of them gets a
+ * sensible answer, even while a client which never finishes its command is hanging around and after clients which
+ * send nonsense or hang up early.
+ * <p/>
+ * Usage:  <tt>TracePortListenerBenchmark [clients [requests]]</tt>
+ */
+
+public class TracePortListenerBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final String[] COMMANDS = { "full", "threads only", "events", "events since 0", "binary", "help" };
+
+    private TracePortListenerBenchmark() {
+        super();
+
+    }
+
+    private static byte[] request( int port, String command )
+            throws IOException {
+
+        Socket socket = new Socket();
+        try {
+
+            socket.connect( new InetSocketAddress( "127.0.0.1", port ) );
+            OutputStream out = socket.getOutputStream();
+            out.write( ( command + "\n" ).getBytes( "UTF-8" ) );
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ( ( count = in.read( buffer ) ) > 0 ) {
+
+                reply.write( buffer, 0, count );
+
+            }
+
+            return reply.toByteArray();
+
+        } finally {
+
+            ObtuseUtil.closeQuietly( socket );
+
+        }
+
+    }
+
+    /**
+     * Make sure that a reply looks like an answer to its command.
+     *
+     * @return null if it does, otherwise what's wrong with it.
+     */
+
+    private static String check( String command, byte[] reply )
+            throws IOException {
+
+        List<String> lines = new ArrayList<String>();
+        if ( "binary".equals( command ) ) {
+
+            BinaryTrace.render( new ByteArrayInputStream( reply ), lines );
+
+        } else {
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader( new ByteArrayInputStream( reply ), "UTF-8" )
+            );
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+
+                lines.add( line );
+
+            }
+
+        }
+
+        boolean hasThreads = false;
+        boolean hasEvents = false;
+        boolean hasHelp = false;
+        for ( String line : lines ) {
+
+            hasThreads |= line.contains( "}:main (state = " );
+            hasEvents |= line.contains( ":  benchmark event" );
+            hasHelp |= line.equals( "commands:" );
+
+        }
+
+        boolean wantThreads = "full".equals( command ) || "binary".equals( command ) || command.startsWith( "threads" );
+        boolean wantEvents = "full".equals( command ) || "binary".equals( command ) || command.startsWith( "events" );
+        boolean wantHelp = !wantThreads && !wantEvents;
+        if ( hasThreads != wantThreads || hasEvents != wantEvents || hasHelp != wantHelp ) {
+
+            return "threads " + hasThreads + ", events " + hasEvents + ", help " + hasHelp + " in " + lines.size() +
+                   " lines";
+
+        }
+
+        return null;
+
+    }
+
+    private static void run( String name, final int port, int clientCount, final int requests )
+            throws InterruptedException {
+
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] clients = new Thread[clientCount];
+        for ( int c = 0; c < clientCount; c += 1 ) {
+
+            final int clientNumber = c;
+            clients[c] = new Thread( "client " + c ) {
+
+                public void run() {
+
+                    for ( int i = 0; i < requests; i += 1 ) {
+
+                        String command = TracePortListenerBenchmark.COMMANDS[
+                                ( clientNumber + i ) % TracePortListenerBenchmark.COMMANDS.length
+                        ];
+                        try {
+
+                            String problem = TracePortListenerBenchmark.check(
+                                    command,
+                                    TracePortListenerBenchmark.request( port, command )
+                            );
+                            if ( problem != null ) {
+
+                                Logger.logErr( "\"" + command + "\" got a bad reply:  " + problem );
+                                failures.incrementAndGet();
+
+                            }
+
+                        } catch ( IOException e ) {
+
+                            Logger.logErr( "\"" + command + "\" failed", e );
+                            failures.incrementAndGet();
+
+                        }
+
+                    }
+
+                }
+
+            };
+
+        }
+
+        Measure m = new Measure( name );
+        for ( Thread client : clients ) {
+
+            client.start();
+
+        }
+
+        for ( Thread client : clients ) {
+
+            client.join();
+
+        }
+
+        m.done();
+
+        if ( failures.get() > 0 ) {
+
+            Logger.logErr( failures.get() + " requests failed" );
+            System.exit( 1 );
+
+        }
+
+    }
+
+    public static void main( String[] args ) {
+
+        BasicProgramConfigInfo.init( "Obtuse", "Utils", "TracePortListenerBenchmark", null );
+
+        int clients = args.length > 0 ? Integer.parseInt( args[0] ) : 8;
+        int requests = args.length > 1 ? Integer.parseInt( args[1] ) : 30;
+
+        for ( int i = 0; i < 1000; i += 1 ) {
+
+            Trace.event( "benchmark event " + i );
+
+        }
+
+        Socket stalled = new Socket();
+        try {
+
+            TracePortListener listener = new TracePortListener( 0 );
+            listener.start();
+            int port = listener.getPort();
+            Logger.logMsg( clients + " clients sending " + requests + " requests each to port " + port );
+
+            // A client which never finishes its command mustn't hold anyone else up.
+
+            stalled.connect( new InetSocketAddress( "127.0.0.1", port ) );
+            stalled.getOutputStream().write( "thr".getBytes( "UTF-8" ) );
+            stalled.getOutputStream().flush();
+
+            // Neither should clients which hang up early or send nonsense.
+
+            Socket rude = new Socket();
+            rude.connect( new InetSocketAddress( "127.0.0.1", port ) );
+            rude.getOutputStream().write( "full\n".getBytes( "UTF-8" ) );
+            rude.close();
+            String problem = TracePortListenerBenchmark.check(
+                    "nonsense", TracePortListenerBenchmark.request( port, "nonsense" )
+            );
+            if ( problem != null ) {
+
+                Logger.logErr( "nonsense got a bad reply:  " + problem );
+                System.exit( 1 );
+
+            }
+
+            for ( int round = 0; round < TracePortListenerBenchmark.ROUNDS; round += 1 ) {
+
+                if ( round == 1 ) {
+
+                    // The first round just warms things up.
+
+                    Measure.restart();
+
+                }
+
+                TracePortListenerBenchmark.run( "1 client", port, 1, requests );
+                TracePortListenerBenchmark.run( clients + " clients", port, clients, requests );
+
+            }
+
+            listener.stop();
+
+        } catch ( IOException e ) {
+
+            Logger.logErr( "I/O error", e );
+            System.exit( 1 );
+
+        } catch ( InterruptedException e ) {
+
+            Logger.logErr( "interrupted", e );
+            System.exit( 1 );
+
+        } finally {
+
+            ObtuseUtil.closeQuietly( stalled );
+
+        }
+
+        //noinspection UseOfSystemOutOrSystemErr
+        Measure.showStats( System.out, true );
+
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.obtuse.util;
+
+import java.util.*;
+
+/*
+ * Copyright © 2012 Daniel Boulet
+ */
+
+/**
+ * An {@link EventQueueBackend} which keeps a list of events for each distinct time in a {@link TreeMap}.
+ * <p/>
+ * This is how {@link SimpleEventQueue} has always stored its events.  It is simple and copes well with any pattern of
+ * times but each distinct time costs a boxed {@link Long}, a tree node and a {@link LinkedList}.
+ * See {@link CalendarEventQueueBackend} for a faster alternative.
+ */
+
+public class TreeMapEventQueueBackend<T extends SimpleEvent> implements EventQueueBackend<T> {
+
+    private final SortedMap<Long,LinkedList<T>> _eventQueue = new TreeMap<Long,LinkedList<T>>();
+
+    private int _size = 0;
+
+    // The list for the earliest time (null if it needs to be looked up again).
+
+    private LinkedList<T> _firstEvents = null;
+
+    private long _firstTime;
+
+    public TreeMapEventQueueBackend() {
+        super();
+
+    }
+
+    public void add( long when, T event, boolean before ) {
+
+        LinkedList<T> queue = _firstEvents != null && when == _firstTime ? _firstEvents : _eventQueue.get( when );
+        if ( queue == null ) {
+
+            queue = new LinkedList<T>();
+            _eventQueue.put( when, queue );
+            if ( _firstEvents != null && when < _firstTime ) {
+
+                _firstEvents = null;
+
+            }
+
+        }
+
+        if ( before ) {
+
+            queue.add( 0, event );
+
+        } else {
+
+            queue.add( event );
+
+        }
+
+        _size += 1;
+
+    }
+
+    public boolean isEmpty() {
+
+        return _size == 0;
+
+    }
+
+    public int size() {
+
+        return _size;
+
+    }
+
+    public int getTimeCount() {
+
+        return _eventQueue.size();
+
+    }
+
+    public long getFirstTime() {
+
+        findFirst();
+
+        return _firstTime;
+
+    }
+
+    public List<T> getFirstBatch() {
+
+        return Collections.unmodifiableList( findFirst() );
+
+    }
+
+    public T removeFirst() {
+
+        LinkedList<T> firstEvents = findFirst();
+        T event = firstEvents.removeFirst();
+        _size -= 1;
+        if ( firstEvents.isEmpty() ) {
+
+            _eventQueue.remove( _firstTime );
+            _firstEvents = null;
+
+        }
+
+        return event;
+
+    }
+
+    public void removeFirstBatch() {
+
+        _size -= findFirst().size();
+        _eventQueue.remove( _firstTime );
+        _firstEvents = null;
+
+    }
+
+    public void clear() {
+
+        _eventQueue.clear();
+        _size = 0;
+        _firstEvents = null;
+
+    }
+
+    /**
+     * Find the list for the earliest time (and remember it).
+     *
+     * @return the list for the earliest time.
+     * @throws NoSuchElementException if there are no events left.
+     */
+
+    private LinkedList<T> findFirst() {
+
+        if ( _firstEvents != null ) {
+
+            return _firstEvents;
+
+        }
+
+        if ( _eventQueue.isEmpty() ) {
+
+            throw new NoSuchElementException( "no events left" );
+
+        }
+
+        // A time's list is removed as soon as it is empty so the first list is never empty.
+
+        Long firstTime = _eventQueue.firstKey();
+        _firstTime = firstTime.longValue();
+        _firstEvents = _eventQueue.get( firstTime );
+
+        return _firstEvents;
+
+    }
+
+    public SortedMap<Long,List<T>> snapshot() {
+
+        SortedMap<Long,List<T>> rval = new TreeMap<Long,List<T>>();
+        for ( Map.Entry<Long,LinkedList<T>> entry : _eventQueue.entrySet() ) {
+
+            rval.put( entry.getKey(), new ArrayList<T>( entry.getValue() ) );
+
+        }
+
+        return rval;
+
+    }
+
+    public String toString() {
+
+        return "TreeMapEventQueueBackend( " + _size + " events at " + _eventQueue.size() + " times )";
+
+    }
+
+}
@@ -204,6 +204,8 @@ public abstract class NanoHTTPD {
 
         }
 
+        _serverSocket = ss;
+
         //noinspection ClassWithoutToString
         Thread t = new Thread(
                 new Runnable() {
@@ -299,6 +301,30 @@ public abstract class NanoHTTPD {
 
     }
 
+    /**
+     * Get the port that the server is actually listening on (which is only different from {@link #getMyTcpPort} if
+     * the server was asked to listen on port 0).
+     *
+     * @return the port.
+     */
+
+    public int getLocalPort() {
+
+        return _serverSocket.getLocalPort();
+
+    }
+
+    /**
+     * Stop accepting connections.
+     * Sessions which are already in progress are allowed to finish.
+     */
+
+    public void stop() {
+
+        ObtuseUtil.closeQuietly( _serverSocket );
+
+    }
+
     /**
      * Starts as a standalone file server and waits for Enter.
      *
@@ -826,6 +852,8 @@ public abstract class NanoHTTPD {
     @SuppressWarnings("FieldCanBeLocal")
     private final int _myTcpPort;
 
+    private final ServerSocket _serverSocket;
+
     private File _myFileDir = null;
 
     // ==================================================